@@ -0,0 +1,67 @@
+#!/bin/bash
+#
+# Measures the start up time of ixa-pipe-convert as the time to the first
+# byte of output of a small conversion, running it from the executable jar
+# with and without the launcher and its class-data sharing archive.
+#
+# Usage: bin/startup-benchmark.sh [runs] [command...]
+#
+# The default command prints the terms of the AppCDS training document. The
+# median and the minimum over the runs are reported in milliseconds.
+#
+
+dir=$(cd "$(dirname "$0")/.." && pwd)
+runs=${1:-20}
+[ $# -gt 0 ] && shift
+if [ $# -eq 0 ]; then
+  set -- naf --printTerm "$dir/src/appcds/training.naf"
+fi
+jar=${IXA_PIPE_CONVERT_JAR:-$(ls "$dir"/target/ixa-pipe-convert-*-exec.jar 2>/dev/null | tail -n 1)}
+if [ ! -f "$jar" ]; then
+  echo "startup-benchmark: no executable jar found, run mvn package first" >&2
+  exit 1
+fi
+
+# wall clock in milliseconds; bash 5 has a microsecond clock built in, older
+# ones (e.g., bash 3.2 on macOS) use perl, adding its start up to every run
+now_ms() {
+  if [ -n "${EPOCHREALTIME:-}" ]; then
+    local usec=${EPOCHREALTIME/[.,]/}
+    echo $((usec / 1000))
+  else
+    perl -MTime::HiRes=time -e 'printf "%d\n", time() * 1000'
+  fi
+}
+
+# milliseconds until the first byte written by the command
+first_output() {
+  local start end
+  start=$(now_ms)
+  "$@" 2>/dev/null | {
+    dd bs=1 count=1 of=/dev/null 2>/dev/null
+    end=$(now_ms)
+    cat >/dev/null
+    echo $((end - start))
+  }
+}
+
+benchmark() {
+  name=$1
+  shift
+  # warm up the file system cache and, on JDK 19 or later, the archive
+  first_output "$@" >/dev/null
+  i=0
+  while [ $i -lt "$runs" ]; do
+    first_output "$@"
+    i=$((i + 1))
+  done | sort -n | awk -v name="$name" '
+    { times[NR] = $1 }
+    END {
+      median = NR % 2 ? times[(NR + 1) / 2] : (times[NR / 2] + times[NR / 2 + 1]) / 2
+      printf "%-10s median %6.1f ms  min %6d ms  (%d runs)\n", name, median, times[1], NR
+    }'
+}
+
+echo "Time to first output of: $*"
+benchmark "java -jar" "${JAVA:-java}" -jar "$jar" "$@"
+benchmark "launcher" env IXA_PIPE_CONVERT_JAR="$jar" "$dir/bin/ixa-pipe-convert" "$@"
@@ -16,30 +16,33 @@
 
 package eus.ixa.ixa.pipe.convert;
 
-import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
 import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.LinkedHashSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Set;
+import java.util.Map;
+
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
 
 import org.jdom2.Document;
 import org.jdom2.Element;
 import org.jdom2.JDOMException;
 import org.jdom2.filter.Filters;
 import org.jdom2.input.SAXBuilder;
-import org.jdom2.output.Format;
-import org.jdom2.output.XMLOutputter;
 import org.jdom2.xpath.XPathExpression;
 import org.jdom2.xpath.XPathFactory;
-import org.json.simple.JSONObject;
-import org.json.simple.parser.JSONParser;
-import org.json.simple.parser.ParseException;
 
 import eus.ixa.ixa.pipe.ml.tok.Token;
 import ixa.kaflib.Entity;
@@ -56,12 +59,50 @@ import ixa.kaflib.WF;
  */
 public class AbsaSemEval {
 
+  private static final XMLOutputFactory outputFactory = XMLOutputFactory
+      .newInstance();
+
   // do not instantiate this class
   private AbsaSemEval() {
   }
 
+  /**
+   * Declares the readers of ABSA 2014 and 2015 datasets, with their targets
+   * as entities and opinions, and the writers of NAF opinions into both
+   * formats, so that a dataset read into NAF is written back with its targets.
+   * 
+   * @param registry
+   *          the registry of conversions
+   */
+  static void registerConversions(ConversionRegistry registry) {
+    registry.registerReader("absa2015", ConversionRegistry.NAF,
+        (Path file, String language) -> {
+          KAFDocument kaf = new KAFDocument("en", "v1.naf");
+          absa2015ToNAFNER(kaf, file.toString(), language);
+          return kaf;
+        });
+    registry.registerReader("absa2014", ConversionRegistry.NAF,
+        (Path file, String language) -> {
+          KAFDocument kaf = new KAFDocument("en", "v1.naf");
+          absa2014ToNAFNER(kaf, file.toString(), language);
+          return kaf;
+        });
+    registry.registerWriter(ConversionRegistry.NAF, "absa2015",
+        (KAFDocument kaf, String language) -> {
+          StringWriter writer = new StringWriter();
+          nafToAbsa2015(kaf, writer);
+          return writer.toString();
+        });
+    registry.registerWriter(ConversionRegistry.NAF, "absa2014",
+        (KAFDocument kaf, String language) -> {
+          StringWriter writer = new StringWriter();
+          nafToAbsa2014(kaf, writer);
+          return writer.toString();
+        });
+  }
+
   private static void absa2015ToNAFNER(KAFDocument kaf, String fileName,
-      String language) {
+      String language) throws IOException {
     // reading the ABSA xml file
     SAXBuilder sax = new SAXBuilder();
     XPathFactory xFactory = XPathFactory.instance();
@@ -142,25 +183,119 @@ public class AbsaSemEval {
                   List<Term> nameTerms = kaf.getTermsFromWFs(wfIds);
                   ixa.kaflib.Span<Term> neSpan = KAFDocument
                       .newTermSpan(nameTerms);
-                  List<ixa.kaflib.Span<Term>> references = new ArrayList<>();
-                  references.add(neSpan);
-                  Entity neEntity = kaf.newEntity(references);
-                  neEntity.setType(category);
+                  addOpinionTarget(kaf, neSpan, category);
                 }
               }
             }
           }
         }
       } // end of sentence
+    } catch (JDOMException e) {
+      throw new IOException(e);
+    }
+  }
+
+  /**
+   * Adds an opinion target of an ABSA sentence to the NAF document, both as an
+   * entity, for the NER conversions, and as an opinion whose expression holds
+   * the category, for the ABSA writers.
+   */
+  private static void addOpinionTarget(KAFDocument kaf,
+      ixa.kaflib.Span<Term> targetSpan, String category) {
+    List<ixa.kaflib.Span<Term>> references = new ArrayList<>();
+    references.add(targetSpan);
+    Entity neEntity = kaf.newEntity(references);
+    neEntity.setType(category);
+    Opinion opinion = kaf.newOpinion();
+    opinion.createOpinionTarget(targetSpan);
+    opinion.createOpinionExpression(targetSpan)
+        .setSentimentProductFeature(category);
+  }
+
+  public static String absa2015ToCoNLL2002(String fileName, String language) {
+    return ConllUtils
+        .columnarToCoNLL2002(absa2015ToColumnar(fileName, language));
+  }
+
+  /**
+   * Converts an ABSA 2015 and 2016 dataset to a columnar document, one
+   * sentence per ABSA sentence, labeling the opinion targets aligned with the
+   * tokens with their category.
+   * 
+   * @param fileName
+   *          the ABSA xml file
+   * @param language
+   *          the language
+   * @return the columnar document
+   */
+  private static ColumnarDocument absa2015ToColumnar(String fileName,
+      String language) {
+    ColumnarDocument columnar = new ColumnarDocument();
+    SAXBuilder sax = new SAXBuilder();
+    XPathFactory xFactory = XPathFactory.instance();
+    try {
+      Document doc = sax.build(fileName);
+      XPathExpression<Element> expr = xFactory.compile("//sentence",
+          Filters.element());
+      List<Element> sentences = expr.evaluate(doc);
+      for (Element sent : sentences) {
+        int sentenceStart = addSentence(columnar, sent.getChildText("text"),
+            language);
+        Element opinionsElement = sent.getChild("Opinions");
+        if (opinionsElement != null) {
+          for (Element opinion : opinionsElement.getChildren()) {
+            String category = opinion.getAttributeValue("category");
+            String targetString = opinion.getAttributeValue("target");
+            System.err.println("-> " + category + ", " + targetString);
+            if (!targetString.equalsIgnoreCase("NULL")) {
+              addTarget(columnar, sentenceStart,
+                  Integer.parseInt(opinion.getAttributeValue("from")),
+                  Integer.parseInt(opinion.getAttributeValue("to")),
+                  category);
+            }
+          }
+        }
+      }
     } catch (JDOMException | IOException e) {
       e.printStackTrace();
     }
+    return columnar;
   }
 
-  public static String absa2015ToCoNLL2002(String fileName, String language) {
-    KAFDocument kaf = new KAFDocument("en", "v1.naf");
-    absa2015ToNAFNER(kaf, fileName, language);
-    return ConllUtils.nafToCoNLLConvert2002(kaf);
+  /**
+   * Adds the tokens of an ABSA sentence to a columnar document.
+   *
+   * @return the position of the first token of the sentence
+   */
+  private static int addSentence(ColumnarDocument columnar,
+      String sentString, String language) {
+    int sentenceStart = columnar.getNumberOfTokens();
+    // the list contains just one list of tokens
+    for (List<Token> sentence : StringUtils.tokenizeSentence(sentString,
+        language)) {
+      for (Token token : sentence) {
+        columnar.addToken(token.getTokenValue(), token.startOffset());
+      }
+    }
+    columnar.endSentence();
+    return sentenceStart;
+  }
+
+  /**
+   * Labels the tokens of a target if its offsets match token boundaries of
+   * the sentence.
+   */
+  private static void addTarget(ColumnarDocument columnar, int sentenceStart,
+      int fromOffset, int toOffset, String type) {
+    int sentenceEnd = columnar.getNumberOfTokens();
+    int startIndex = columnar.findTokenStartingAt(sentenceStart, sentenceEnd,
+        fromOffset);
+    int lastIndex = columnar.findTokenEndingAt(sentenceStart, sentenceEnd,
+        toOffset);
+    // TODO remove this condition to correct manually offsets
+    if (startIndex != -1 && lastIndex >= startIndex) {
+      columnar.addSpan(startIndex, lastIndex + 1, type);
+    }
   }
 
   public static String absa2015ToWFs(String fileName, String language) {
@@ -196,10 +331,37 @@ public class AbsaSemEval {
 
   public static String absa2015ToDocCatFormatForPolarity(String fileName,
       String language, int windowMin, int windowMax) {
+    return absa2015ToDocCatFormatForPolarity(fileName, language,
+        new int[] { windowMin }, new int[] { windowMax })[0];
+  }
+
+  /**
+   * Converts ABSA 2015 and 2016 opinions to document classification format
+   * for polarity, one text for each window around the target, in a single
+   * pass over the dataset. Each sentence is tokenized once, each distinct
+   * target once, and the target is located once per opinion for all the
+   * windows.
+   * 
+   * @param fileName
+   *          the ABSA xml file
+   * @param language
+   *          the language
+   * @param windowMins
+   *          the number of tokens before the target of each window
+   * @param windowMaxs
+   *          the number of tokens after the target of each window
+   * @return the polarity dataset of each window
+   */
+  public static String[] absa2015ToDocCatFormatForPolarity(String fileName,
+      String language, int[] windowMins, int[] windowMaxs) {
     SAXBuilder sax = new SAXBuilder();
     XPathFactory xFactory = XPathFactory.instance();
     Document doc;
-    StringBuilder text = new StringBuilder();
+    StringBuilder[] texts = new StringBuilder[windowMins.length];
+    for (int w = 0; w < texts.length; w++) {
+      texts[w] = new StringBuilder();
+    }
+    Map<String, String[]> targets = new HashMap<>();
 
     try {
       doc = sax.build(fileName);
@@ -209,144 +371,201 @@ public class AbsaSemEval {
 
       for (Element sent : sentences) {
         Element opinionsElement = sent.getChild("Opinions");
+        if (opinionsElement == null) {
+          continue;
+        }
         String sentStringTmp = sent.getChildText("text");
-
-        List<List<Token>> segmentedSentence = StringUtils
-            .tokenizeSentence(sentStringTmp, language);
-        List<Token> sentence = segmentedSentence.get(0);
-
-        if (opinionsElement != null) {
-          // iterating over every opinion in the opinions element
-          List<Element> opinionList = opinionsElement.getChildren();
-
-          for (Element opinion : opinionList) {
-
-            StringBuilder sentString = new StringBuilder();
-
-            String targetString = opinion.getAttributeValue("target");
-            String polarityString = opinion.getAttributeValue("polarity");
-
-            if (targetString.equalsIgnoreCase("NULL")
-                || opinionList.size() == 1) {
-              for (Token token : sentence) {
-                sentString.append(token.getTokenValue()).append(" ");
-              }
-            } else {
-              int posTargetMin = -1;
-              int posTargetMax = -1;
-              // List<String> itemsTarget = Arrays.asList(targetString.split("
-              // "));
-              List<List<Token>> segmentedtarget = StringUtils
-                  .tokenizeSentence(targetString, language);
-              List<Token> target = segmentedtarget.get(0);
-              String targetMin = target.get(0).getTokenValue();
-              String targetMax = target.get(target.size() - 1).getTokenValue();
-              int count = 0;
-              for (Token token : sentence) {
-                if (token.getTokenValue().equals(targetMin)) {
-                  posTargetMin = count;
-                }
-                if (token.getTokenValue().equals(targetMax)
-                    && posTargetMin > -1) {
-                  posTargetMax = count;
-                  break;
-                }
-                count++;
-              }
-              if (posTargetMin - windowMin >= 0) {
-                posTargetMin = posTargetMin - windowMin;
-              } else
-                posTargetMin = 0;
-              if (posTargetMax + windowMax < sentence.size()) {
-                posTargetMax = posTargetMax + windowMax;
-              } else
-                posTargetMax = sentence.size() - 1;
-              for (int x = posTargetMin; x <= posTargetMax; x++) {
-                sentString.append(sentence.get(x).getTokenValue()).append(" ");
-              }
+        String[] sentence = getTokenValues(
+            StringUtils.tokenizeSentence(sentStringTmp, language).get(0));
+        // iterating over every opinion in the opinions element
+        List<Element> opinionList = opinionsElement.getChildren();
+        for (Element opinion : opinionList) {
+          String targetString = opinion.getAttributeValue("target");
+          String polarityString = opinion.getAttributeValue("polarity");
+
+          if (targetString.equalsIgnoreCase("NULL")
+              || opinionList.size() == 1) {
+            String sentString = joinTokens(sentence, 0, sentence.length - 1);
+            for (StringBuilder text : texts) {
+              text.append(polarityString).append("\t").append(sentString)
+                  .append("\n");
+            }
+          } else {
+            String[] target = targets.computeIfAbsent(targetString,
+                t -> getTokenValues(
+                    StringUtils.tokenizeSentence(t, language).get(0)));
+            int[] targetSpan = findTarget(sentence, target);
+            for (int w = 0; w < texts.length; w++) {
+              int posTargetMin = Math.max(targetSpan[0] - windowMins[w], 0);
+              int posTargetMax = Math.min(targetSpan[1] + windowMaxs[w],
+                  sentence.length - 1);
+              texts[w].append(polarityString).append("\t")
+                  .append(joinTokens(sentence, posTargetMin, posTargetMax))
+                  .append("\n");
             }
-            text.append(polarityString).append("\t").append(sentString).append("\n");
           }
-
         }
       } // end of sentence
     } catch (JDOMException | IOException e) {
       e.printStackTrace();
     }
 
-    return text.toString();
+    String[] results = new String[texts.length];
+    for (int w = 0; w < texts.length; w++) {
+      results[w] = texts[w].toString();
+    }
+    return results;
+  }
+
+  private static String[] getTokenValues(List<Token> tokens) {
+    String[] values = new String[tokens.size()];
+    for (int i = 0; i < values.length; i++) {
+      values[i] = tokens.get(i).getTokenValue();
+    }
+    return values;
+  }
+
+  /**
+   * @return the tokens from the first to the last positions, each followed by
+   *         a space
+   */
+  private static String joinTokens(String[] tokens, int first, int last) {
+    StringBuilder sb = new StringBuilder();
+    for (int i = first; i <= last; i++) {
+      sb.append(tokens[i]).append(" ");
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Finds the first occurrence of the tokens of a target in a sentence. If the
+   * target is tokenized differently alone than in the sentence, its first
+   * and last tokens are looked for instead.
+   * 
+   * @return the positions of the first and last tokens of the target, -1 if
+   *         not found
+   */
+  private static int[] findTarget(String[] sentence, String[] target) {
+    search: for (int i = 0; i + target.length <= sentence.length; i++) {
+      for (int j = 0; j < target.length; j++) {
+        if (!sentence[i + j].equals(target[j])) {
+          continue search;
+        }
+      }
+      return new int[] { i, i + target.length - 1 };
+    }
+    int posTargetMin = -1;
+    int posTargetMax = -1;
+    for (int i = 0; i < sentence.length; i++) {
+      if (sentence[i].equals(target[0])) {
+        posTargetMin = i;
+      }
+      if (sentence[i].equals(target[target.length - 1]) && posTargetMin > -1) {
+        posTargetMax = i;
+        break;
+      }
+    }
+    return new int[] { posTargetMin, posTargetMax };
   }
 
+  /**
+   * Converts a NAF document with opinions to the ABSA 2015 and 2016 format.
+   * 
+   * @param inputNAF
+   *          the NAF document
+   * @return the ABSA xml document
+   * @throws IOException
+   *           if io problems
+   */
   public static String nafToAbsa2015(String inputNAF) throws IOException {
+    StringWriter writer = new StringWriter();
+    nafToAbsa2015(inputNAF, writer);
+    return writer.toString();
+  }
 
+  /**
+   * Converts a NAF document with opinions to the ABSA 2015 and 2016 format.
+   * The sentences of each review and the opinions of each sentence are
+   * indexed in one pass over the NAF document, and the xml is streamed to the
+   * writer.
+   * 
+   * @param inputNAF
+   *          the NAF document
+   * @param writer
+   *          the writer of the ABSA xml document, flushed but not closed
+   * @throws IOException
+   *           if io problems
+   */
+  public static void nafToAbsa2015(String inputNAF, Writer writer)
+      throws IOException {
     Path kafPath = Paths.get(inputNAF);
-    KAFDocument kaf = KAFDocument.createFromFile(kafPath.toFile());
-    Set<String> reviewIds = getReviewIdsFromXpathAttribute(kaf);
-
-    // root element in ABSA 2015 and 2016 format
-    Element reviewsElem = new Element("Reviews");
-    Document doc = new Document(reviewsElem);
-
-    // creating Reviews children of Review
-    for (String reviewId : reviewIds) {
-      Element reviewElem = new Element("Review");
-      reviewElem.setAttribute("rid", reviewId);
-      Element sentencesElem = new Element("sentences");
-      // getting the sentences in the review
-      List<List<WF>> sentencesByReview = getSentencesByReview(kaf, reviewId);
-      for (List<WF> sent : sentencesByReview) {
-        String sentId = sent.get(0).getXpath();
-        Integer sentNumber = sent.get(0).getSent();
-
-        // getting text element from word forms in NAF
-        String textString = NAFUtils.getSentenceStringFromWFs(sent);
-        Element sentenceElem = new Element("sentence");
-        sentenceElem.setAttribute("id", sentId);
-        Element textElem = new Element("text");
-        textElem.setText(textString);
-        sentenceElem.addContent(textElem);
-
-        // creating opinions element for sentence
-        List<Opinion> opinionsBySentence = getOpinionsBySentence(kaf,
-            sentNumber);
-        Element opinionsElem = new Element("Opinions");
-        if (!opinionsBySentence.isEmpty()) {
-          // getting opinion info from NAF Opinion layer
-          for (Opinion opinion : opinionsBySentence) {
-            Element opinionElem = new Element("Opinion");
-            // String polarity = opinion.getOpinionExpression().getPolarity();
-            String category = opinion.getOpinionExpression()
-                .getSentimentProductFeature();
-            String targetString = opinion.getStr();
-            int fromOffset = opinion.getOpinionTarget().getTerms().get(0)
-                .getWFs().get(0).getOffset();
-            List<WF> targetWFs = opinion.getOpinionTarget().getTerms()
-                .get(opinion.getOpinionTarget().getTerms().size() - 1).getWFs();
-            int toOffset = targetWFs.get(targetWFs.size() - 1).getOffset()
-                + targetWFs.get(targetWFs.size() - 1).getLength();
-            opinionElem.setAttribute("target", targetString);
-            opinionElem.setAttribute("category", category);
-            // TODO we still do not have polarity here
-            opinionElem.setAttribute("polarity", "na");
-            opinionElem.setAttribute("from", Integer.toString(fromOffset));
-            opinionElem.setAttribute("to", Integer.toString(toOffset));
-            opinionsElem.addContent(opinionElem);
+    nafToAbsa2015(KAFDocument.createFromFile(kafPath.toFile()), writer);
+  }
+
+  private static void nafToAbsa2015(KAFDocument kaf, Writer writer)
+      throws IOException {
+    Map<String, List<List<WF>>> sentencesByReview = getSentencesByReview(kaf);
+    Map<Integer, List<Opinion>> opinionsBySentence = getOpinionsBySentence(
+        kaf);
+    try {
+      XMLStreamWriter xmlWriter = outputFactory.createXMLStreamWriter(writer);
+      xmlWriter.writeStartDocument("UTF-8", "1.0");
+      // root element in ABSA 2015 and 2016 format
+      newLine(xmlWriter, 0);
+      xmlWriter.writeStartElement("Reviews");
+      for (Map.Entry<String, List<List<WF>>> review : sentencesByReview
+          .entrySet()) {
+        newLine(xmlWriter, 1);
+        xmlWriter.writeStartElement("Review");
+        xmlWriter.writeAttribute("rid", review.getKey());
+        newLine(xmlWriter, 2);
+        xmlWriter.writeStartElement("sentences");
+        for (List<WF> sent : review.getValue()) {
+          newLine(xmlWriter, 3);
+          xmlWriter.writeStartElement("sentence");
+          writeSentenceText(xmlWriter, sent, 4);
+          // opinions element for sentence from the NAF Opinion layer
+          List<Opinion> opinions = opinionsBySentence
+              .getOrDefault(sent.get(0).getSent(), Collections.emptyList());
+          newLine(xmlWriter, 4);
+          if (opinions.isEmpty()) {
+            xmlWriter.writeEmptyElement("Opinions");
+          } else {
+            xmlWriter.writeStartElement("Opinions");
+            for (Opinion opinion : opinions) {
+              newLine(xmlWriter, 5);
+              xmlWriter.writeEmptyElement("Opinion");
+              xmlWriter.writeAttribute("target", opinion.getStr());
+              xmlWriter.writeAttribute("category", opinion
+                  .getOpinionExpression().getSentimentProductFeature());
+              // TODO we still do not have polarity here
+              xmlWriter.writeAttribute("polarity", "na");
+              writeTargetOffsets(xmlWriter, opinion);
+            }
+            newLine(xmlWriter, 4);
+            xmlWriter.writeEndElement();
           }
+          newLine(xmlWriter, 3);
+          xmlWriter.writeEndElement();
         }
-        sentenceElem.addContent(opinionsElem);
-        sentencesElem.addContent(sentenceElem);
-      }
-      reviewElem.addContent(sentencesElem);
-      reviewsElem.addContent(reviewElem);
-    } // end of review
-
-    XMLOutputter xmlOutput = new XMLOutputter();
-    Format format = Format.getPrettyFormat();
-    xmlOutput.setFormat(format);
-    return xmlOutput.outputString(doc);
+        newLine(xmlWriter, 2);
+        xmlWriter.writeEndElement();
+        newLine(xmlWriter, 1);
+        xmlWriter.writeEndElement();
+      } // end of review
+      newLine(xmlWriter, 0);
+      xmlWriter.writeEndElement();
+      xmlWriter.writeCharacters("\n");
+      xmlWriter.writeEndDocument();
+      xmlWriter.flush();
+    } catch (XMLStreamException e) {
+      throw new IOException(e);
+    }
+    writer.flush();
   }
 
-  public static void absa2015PrintTargets(String fileName, String language) {
+  public static void absa2015PrintTargets(String fileName, String language)
+      throws IOException {
     KAFDocument kaf = new KAFDocument(language, "v1.naf");
     absa2015ToNAFNER(kaf, fileName, language);
     List<Entity> entityList = kaf.getEntities();
@@ -355,41 +574,77 @@ public class AbsaSemEval {
     }
   }
 
-  private static List<List<WF>> getSentencesByReview(KAFDocument kaf,
-      String reviewId) {
-    List<List<WF>> sentsByReview = new ArrayList<>();
+  /**
+   * @return the sentences of each review, in document order
+   */
+  private static Map<String, List<List<WF>>> getSentencesByReview(
+      KAFDocument kaf) {
+    Map<String, List<List<WF>>> sentsByReview = new LinkedHashMap<>();
     for (List<WF> sent : kaf.getSentences()) {
-      if (sent.get(0).getXpath().split(":")[0].equalsIgnoreCase(reviewId)) {
-        sentsByReview.add(sent);
-      }
+      String xpath = sent.get(0).getXpath();
+      int colon = xpath.indexOf(':');
+      String reviewId = colon == -1 ? xpath : xpath.substring(0, colon);
+      sentsByReview.computeIfAbsent(reviewId, k -> new ArrayList<>())
+          .add(sent);
     }
     return sentsByReview;
   }
 
-  private static List<Opinion> getOpinionsBySentence(KAFDocument kaf,
-      Integer sentNumber) {
-    List<Opinion> opinionList = kaf.getOpinions();
-    List<Opinion> opinionsBySentence = new ArrayList<>();
-    for (Opinion opinion : opinionList) {
-      if (sentNumber.equals(
-          opinion.getOpinionTarget().getSpan().getFirstTarget().getSent())) {
-        opinionsBySentence.add(opinion);
-      }
+  /**
+   * @return the opinions of each sentence number, in document order
+   */
+  private static Map<Integer, List<Opinion>> getOpinionsBySentence(
+      KAFDocument kaf) {
+    Map<Integer, List<Opinion>> opinionsBySentence = new HashMap<>();
+    for (Opinion opinion : kaf.getOpinions()) {
+      Integer sentNumber = opinion.getOpinionTarget().getSpan()
+          .getFirstTarget().getSent();
+      opinionsBySentence.computeIfAbsent(sentNumber, k -> new ArrayList<>())
+          .add(opinion);
     }
     return opinionsBySentence;
   }
 
-  private static Set<String> getReviewIdsFromXpathAttribute(KAFDocument kaf) {
-    Set<String> reviewIds = new LinkedHashSet<>();
-    for (List<WF> sent : kaf.getSentences()) {
-      String reviewId = sent.get(0).getXpath().split(":")[0];
-      reviewIds.add(reviewId);
+  /**
+   * Writes the id attribute of the current sentence element and its text
+   * element from the word forms in NAF.
+   */
+  private static void writeSentenceText(XMLStreamWriter xmlWriter,
+      List<WF> sent, int level) throws XMLStreamException {
+    xmlWriter.writeAttribute("id", sent.get(0).getXpath());
+    newLine(xmlWriter, level);
+    xmlWriter.writeStartElement("text");
+    xmlWriter.writeCharacters(NAFUtils.getSentenceStringFromWFs(sent));
+    xmlWriter.writeEndElement();
+  }
+
+  /**
+   * Writes the from and to attributes of the target of an opinion.
+   */
+  private static void writeTargetOffsets(XMLStreamWriter xmlWriter,
+      Opinion opinion) throws XMLStreamException {
+    List<Term> targetTerms = opinion.getOpinionTarget().getTerms();
+    int fromOffset = targetTerms.get(0).getWFs().get(0).getOffset();
+    List<WF> targetWFs = targetTerms.get(targetTerms.size() - 1).getWFs();
+    int toOffset = targetWFs.get(targetWFs.size() - 1).getOffset()
+        + targetWFs.get(targetWFs.size() - 1).getLength();
+    xmlWriter.writeAttribute("from", Integer.toString(fromOffset));
+    xmlWriter.writeAttribute("to", Integer.toString(toOffset));
+  }
+
+  /**
+   * Starts a new line indented to an element nesting level.
+   */
+  private static void newLine(XMLStreamWriter xmlWriter, int level)
+      throws XMLStreamException {
+    xmlWriter.writeCharacters("\n");
+    for (int i = 0; i < level; i++) {
+      xmlWriter.writeCharacters("  ");
     }
-    return reviewIds;
   }
 
   private static void absa2014ToNAFNER(KAFDocument kaf, String fileName,
-      String language) {
+      String language) throws IOException {
     // reading the ABSA xml file
     SAXBuilder sax = new SAXBuilder();
     XPathFactory xFactory = XPathFactory.instance();
@@ -472,85 +727,133 @@ public class AbsaSemEval {
                   List<Term> nameTerms = kaf.getTermsFromWFs(wfIds);
                   ixa.kaflib.Span<Term> neSpan = KAFDocument
                       .newTermSpan(nameTerms);
-                  List<ixa.kaflib.Span<Term>> references = new ArrayList<>();
-                  references.add(neSpan);
-                  Entity neEntity = kaf.newEntity(references);
-                  neEntity.setType("term");
+                  addOpinionTarget(kaf, neSpan, "term");
                 }
               }
             }
           }
         }
       } // end of sentence
-    } catch (JDOMException | IOException e) {
-      e.printStackTrace();
+    } catch (JDOMException e) {
+      throw new IOException(e);
     }
   }
 
   public static String absa2014ToCoNLL2002(String fileName, String language) {
-    KAFDocument kaf = new KAFDocument("en", "v1.naf");
-    absa2014ToNAFNER(kaf, fileName, language);
-    return ConllUtils.nafToCoNLLConvert2002(kaf);
+    return ConllUtils
+        .columnarToCoNLL2002(absa2014ToColumnar(fileName, language));
   }
 
-  public static String nafToAbsa2014(String kafDocument) {
+  /**
+   * Converts an ABSA 2014 dataset to a columnar document, one sentence per
+   * ABSA sentence, labeling the aspect terms aligned with the tokens.
+   * 
+   * @param fileName
+   *          the ABSA xml file
+   * @param language
+   *          the language
+   * @return the columnar document
+   */
+  private static ColumnarDocument absa2014ToColumnar(String fileName,
+      String language) {
+    ColumnarDocument columnar = new ColumnarDocument();
+    SAXBuilder sax = new SAXBuilder();
+    XPathFactory xFactory = XPathFactory.instance();
+    try {
+      Document doc = sax.build(fileName);
+      XPathExpression<Element> expr = xFactory.compile("//sentence",
+          Filters.element());
+      List<Element> sentences = expr.evaluate(doc);
+      for (Element sent : sentences) {
+        int sentenceStart = addSentence(columnar, sent.getChildText("text"),
+            language);
+        Element aspectTermsElem = sent.getChild("aspectTerms");
+        if (aspectTermsElem != null) {
+          for (Element aspectTerm : aspectTermsElem.getChildren()) {
+            addTarget(columnar, sentenceStart,
+                Integer.parseInt(aspectTerm.getAttributeValue("from")),
+                Integer.parseInt(aspectTerm.getAttributeValue("to")), "term");
+          }
+        }
+      }
+    } catch (JDOMException | IOException e) {
+      e.printStackTrace();
+    }
+    return columnar;
+  }
 
-    KAFDocument kaf = null;
+  public static String nafToAbsa2014(String kafDocument) {
+    StringWriter writer = new StringWriter();
     try {
-      Path kafPath = Paths.get(kafDocument);
-      kaf = KAFDocument.createFromFile(kafPath.toFile());
+      nafToAbsa2014(kafDocument, writer);
     } catch (IOException e) {
       e.printStackTrace();
     }
-    Element sentencesElem = new Element("sentences");
-    Document doc = new Document(sentencesElem);
+    return writer.toString();
+  }
 
-    assert kaf != null;
-    for (List<WF> sent : kaf.getSentences()) {
-      String sentId = sent.get(0).getXpath();
-      Integer sentNumber = sent.get(0).getSent();
-
-      // getting text element from WFs in NAF
-      String textString = NAFUtils.getSentenceStringFromWFs(sent);
-      Element sentenceElem = new Element("sentence");
-      sentenceElem.setAttribute("id", sentId);
-      Element textElem = new Element("text");
-      textElem.setText(textString);
-      sentenceElem.addContent(textElem);
-
-      // creating opinions element for sentence
-      List<Opinion> opinionsBySentence = getOpinionsBySentence(kaf, sentNumber);
-      if (!opinionsBySentence.isEmpty()) {
-        Element aspectTerms = new Element("aspectTerms");
-        // getting opinion info from NAF Opinion layer
-        for (Opinion opinion : opinionsBySentence) {
-          String polarity = "";
-          String targetString = opinion.getStr();
-          int fromOffset = opinion.getOpinionTarget().getTerms().get(0).getWFs()
-              .get(0).getOffset();
-          List<WF> targetWFs = opinion.getOpinionTarget().getTerms()
-              .get(opinion.getOpinionTarget().getTerms().size() - 1).getWFs();
-          int toOffset = targetWFs.get(targetWFs.size() - 1).getOffset()
-              + targetWFs.get(targetWFs.size() - 1).getLength();
-
-          Element aspectTerm = new Element("aspectTerm");
-          aspectTerm.setAttribute("term", targetString);
-          aspectTerm.setAttribute("polarity", polarity);
-          aspectTerm.setAttribute("from", Integer.toString(fromOffset));
-          aspectTerm.setAttribute("to", Integer.toString(toOffset));
-          aspectTerms.addContent(aspectTerm);
+  /**
+   * Converts a NAF document with opinions to the ABSA 2014 format. The
+   * opinions of each sentence are indexed in one pass over the NAF document,
+   * and the xml is streamed to the writer.
+   * 
+   * @param kafDocument
+   *          the NAF document
+   * @param writer
+   *          the writer of the ABSA xml document, flushed but not closed
+   * @throws IOException
+   *           if io problems
+   */
+  public static void nafToAbsa2014(String kafDocument, Writer writer)
+      throws IOException {
+    Path kafPath = Paths.get(kafDocument);
+    nafToAbsa2014(KAFDocument.createFromFile(kafPath.toFile()), writer);
+  }
+
+  private static void nafToAbsa2014(KAFDocument kaf, Writer writer)
+      throws IOException {
+    Map<Integer, List<Opinion>> opinionsBySentence = getOpinionsBySentence(
+        kaf);
+    try {
+      XMLStreamWriter xmlWriter = outputFactory.createXMLStreamWriter(writer);
+      xmlWriter.writeStartDocument("UTF-8", "1.0");
+      newLine(xmlWriter, 0);
+      xmlWriter.writeStartElement("sentences");
+      for (List<WF> sent : kaf.getSentences()) {
+        newLine(xmlWriter, 1);
+        xmlWriter.writeStartElement("sentence");
+        writeSentenceText(xmlWriter, sent, 2);
+        // aspect terms of the sentence from the NAF Opinion layer
+        List<Opinion> opinions = opinionsBySentence.get(sent.get(0).getSent());
+        if (opinions != null) {
+          newLine(xmlWriter, 2);
+          xmlWriter.writeStartElement("aspectTerms");
+          for (Opinion opinion : opinions) {
+            newLine(xmlWriter, 3);
+            xmlWriter.writeEmptyElement("aspectTerm");
+            xmlWriter.writeAttribute("term", opinion.getStr());
+            xmlWriter.writeAttribute("polarity", "");
+            writeTargetOffsets(xmlWriter, opinion);
+          }
+          newLine(xmlWriter, 2);
+          xmlWriter.writeEndElement();
         }
-        sentenceElem.addContent(aspectTerms);
+        newLine(xmlWriter, 1);
+        xmlWriter.writeEndElement();
       }
-      sentencesElem.addContent(sentenceElem);
+      newLine(xmlWriter, 0);
+      xmlWriter.writeEndElement();
+      xmlWriter.writeCharacters("\n");
+      xmlWriter.writeEndDocument();
+      xmlWriter.flush();
+    } catch (XMLStreamException e) {
+      throw new IOException(e);
     }
-    XMLOutputter xmlOutput = new XMLOutputter();
-    Format format = Format.getPrettyFormat();
-    xmlOutput.setFormat(format);
-    return xmlOutput.outputString(doc);
+    writer.flush();
   }
 
-  public static void absa2014PrintTargets(String fileName, String language) {
+  public static void absa2014PrintTargets(String fileName, String language)
+      throws IOException {
     KAFDocument kaf = new KAFDocument("en", "v1.naf");
     absa2014ToNAFNER(kaf, fileName, language);
     List<Entity> entityList = kaf.getEntities();
@@ -559,22 +862,19 @@ public class AbsaSemEval {
     }
   }
 
+  /**
+   * Prints the text of every review of the Yelp dataset, one review per line.
+   * 
+   * @param fileName
+   *          the Yelp reviews JSON lines file
+   * @throws IOException
+   *           if io problems
+   */
   public static void getYelpText(String fileName) throws IOException {
-    JSONParser parser = new JSONParser();
-    Path filePath = Paths.get(fileName);
-    BufferedReader breader = new BufferedReader(
-        Files.newBufferedReader(filePath, StandardCharsets.UTF_8));
-    String line;
-    while ((line = breader.readLine()) != null) {
-      try {
-        Object obj = parser.parse(line);
-        JSONObject jsonObject = (JSONObject) obj;
-        String text = (String) jsonObject.get("text");
-        System.out.println(text);
-      } catch (ParseException e) {
-        e.printStackTrace();
-      }
-    }
-    breader.close();
+    Writer stdout = new BufferedWriter(
+        new OutputStreamWriter(System.out, StandardCharsets.UTF_8));
+    JsonLinesExtractor.extract(Paths.get(fileName),
+        Collections.singletonList("text"), stdout);
   }
+
 }
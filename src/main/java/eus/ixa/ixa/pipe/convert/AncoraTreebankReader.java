@@ -17,7 +17,6 @@
 package eus.ixa.ixa.pipe.convert;
 
 import java.io.IOException;
-import java.nio.charset.StandardCharsets;
 import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
@@ -89,6 +88,9 @@ public class AncoraTreebankReader extends DefaultHandler {
     String filteredTrees;
     if (Files.isRegularFile(inXML)) {
       Path outfile = Paths.get(inXML.toString() + ".th");
+      if (!ConversionManifest.needsConversion(inXML, outfile)) {
+        return;
+      }
       System.err
           .println(">> Wrote XML ancora file to Penn Treebank in " + outfile);
       SAXParserFactory saxParserFactory = SAXParserFactory.newInstance();
@@ -106,7 +108,10 @@ public class AncoraTreebankReader extends DefaultHandler {
         filteredTrees = filteredTrees.replaceAll(" {2}", " ");
         // remove empty sentences created by <sentence title="yes"> elements
         filteredTrees = filteredTrees.replaceAll("\\(SENTENCE \\)\n", "");
-        Files.write(outfile, filteredTrees.getBytes(StandardCharsets.UTF_8));
+        // this output has always been overwritten
+        Files.deleteIfExists(OutputFiles.getOutputPath(outfile));
+        OutputFiles.write(outfile, filteredTrees);
+        ConversionManifest.converted(inXML, outfile);
       } catch (ParserConfigurationException | SAXException e) {
         e.printStackTrace();
       }
@@ -115,6 +120,14 @@ public class AncoraTreebankReader extends DefaultHandler {
     }
   }
 
+  /**
+   * Checks whether a file is an output of ancora2treebank, possibly sharded
+   * or compressed.
+   */
+  private static boolean isTreebankFile(Path file) {
+    return OutputFiles.hasOutputExtension(file, ".th");
+  }
+
   /**
    * Calls the ancora2treebank function to generate Penn Treebank trees from
    * Ancora XML constituent parsing.
@@ -127,7 +140,7 @@ public class AncoraTreebankReader extends DefaultHandler {
   public static void processAncoraConstituentXMLCorpus(Path dir)
       throws IOException {
     // process one file
-    if (Files.isRegularFile(dir) && !dir.endsWith(".th")) {
+    if (Files.isRegularFile(dir) && !isTreebankFile(dir)) {
       ancora2treebank(dir);
     } else {
       // recursively process directories
@@ -136,7 +149,7 @@ public class AncoraTreebankReader extends DefaultHandler {
           if (Files.isDirectory(file)) {
             processAncoraConstituentXMLCorpus(file);
           } else {
-            if (!file.endsWith(".th")) {
+            if (!isTreebankFile(file)) {
               ancora2treebank(file);
             }
           }
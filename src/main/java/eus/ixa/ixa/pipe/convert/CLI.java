@@ -16,12 +16,20 @@
 
 package eus.ixa.ixa.pipe.convert;
 
+import java.io.BufferedWriter;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
 
 import javax.xml.parsers.ParserConfigurationException;
 
@@ -124,50 +132,127 @@ public class CLI {
   private static final String OTHER_CONVERSOR_NAME = "convert";
 
   /**
-   * Reading the CLI.
+   * The sub-commands, in the order shown by the help.
+   */
+  private static final List<String> COMMANDS = Arrays.asList(
+      ABSA_CONVERSOR_NAME, HYPERPARTISAN_CONVERSOR_NAME,
+      INTERSTOCK_CONVERSOR_NAME, TIMEML_CONVERSOR_NAME, CLUSTER_CONVERSOR_NAME,
+      DIANN_CONVERSOR_NAME, TASS_CONVERSOR_NAME, MARKYT_CONVERSOR_NAME,
+      TREEBANK_CONVERSOR_NAME, NAF_CONVERSOR_NAME, EPEC_CONVERSOR_NAME,
+      OTHER_CONVERSOR_NAME);
+
+  /**
+   * Reading the CLI, with the arguments of every sub-command.
    */
   public CLI() {
+    this(null);
+  }
+
+  /**
+   * Reading the CLI. Every sub-command is registered, but only the arguments
+   * of the sub-command to be run are defined, so that starting a conversion
+   * does not pay for the set up of the other eleven.
+   * 
+   * @param command
+   *          the sub-command to be run; if null or not a sub-command, the
+   *          arguments of every sub-command are defined
+   */
+  public CLI(String command) {
     absaParser = subParsers.addParser(ABSA_CONVERSOR_NAME)
         .help("ABSA tasks at SemEval conversion functions.");
-    loadAbsaParameters();
     hyperPartisanParser = subParsers.addParser(HYPERPARTISAN_CONVERSOR_NAME).help("HyperPartisan task at Semeval");
-    loadHyperPartisanParameters();
     interstockParser = subParsers.addParser(INTERSTOCK_CONVERSOR_NAME)
         .help("Interstock data conversion functions.");
-    loadInterstockParameters();
     timemlParser = subParsers.addParser(TIMEML_CONVERSOR_NAME)
         .help("TimeML Conversion functions.");
-    loadTimeMLParameters();
     clusterParser = subParsers.addParser(CLUSTER_CONVERSOR_NAME)
         .help("Cluster lexicon conversion functions.");
-    loadClusterParameters();
     diannParser = subParsers.addParser(DIANN_CONVERSOR_NAME)
         .help("DIANN conversion functions.\n");
-    loadDiannParameters();
     tassParser = subParsers.addParser(TASS_CONVERSOR_NAME)
         .help("TASS corpora conversion functions.\n");
-    loadTassParameters();
     markytParser = subParsers.addParser(MARKYT_CONVERSOR_NAME)
         .help("Markyt conversion functions.\n");
-    loadMarkytParameters();
     treebankParser = subParsers.addParser(TREEBANK_CONVERSOR_NAME)
         .help("Treebank conversion functions.");
-    loadTreebankParameters();
     nafParser = subParsers.addParser(NAF_CONVERSOR_NAME)
         .help("NAF to other formats conversion functions.");
-    loadNafParameters();
     epecParser = subParsers.addParser(EPEC_CONVERSOR_NAME)
         .help("EPEC format conversion functions.");
-    loadEpecParameters();
     convertParser = subParsers.addParser(OTHER_CONVERSOR_NAME)
         .help("Other conversion functions.");
-    loadConvertParameters();
+    if (COMMANDS.contains(command)) {
+      loadParameters(command);
+    } else {
+      for (String name : COMMANDS) {
+        loadParameters(name);
+      }
+    }
+  }
+
+  /**
+   * Defines the arguments of a sub-command.
+   */
+  private void loadParameters(String command) {
+    switch (command) {
+    case ABSA_CONVERSOR_NAME:
+      loadAbsaParameters();
+      loadOutputParameters(absaParser);
+      break;
+    case HYPERPARTISAN_CONVERSOR_NAME:
+      loadHyperPartisanParameters();
+      loadOutputParameters(hyperPartisanParser);
+      break;
+    case INTERSTOCK_CONVERSOR_NAME:
+      loadInterstockParameters();
+      loadOutputParameters(interstockParser);
+      break;
+    case TIMEML_CONVERSOR_NAME:
+      loadTimeMLParameters();
+      loadOutputParameters(timemlParser);
+      break;
+    case CLUSTER_CONVERSOR_NAME:
+      loadClusterParameters();
+      loadOutputParameters(clusterParser);
+      break;
+    case DIANN_CONVERSOR_NAME:
+      loadDiannParameters();
+      loadOutputParameters(diannParser);
+      break;
+    case TASS_CONVERSOR_NAME:
+      loadTassParameters();
+      loadOutputParameters(tassParser);
+      break;
+    case MARKYT_CONVERSOR_NAME:
+      loadMarkytParameters();
+      loadOutputParameters(markytParser);
+      break;
+    case TREEBANK_CONVERSOR_NAME:
+      loadTreebankParameters();
+      loadOutputParameters(treebankParser);
+      break;
+    case NAF_CONVERSOR_NAME:
+      loadNafParameters();
+      loadOutputParameters(nafParser);
+      break;
+    case EPEC_CONVERSOR_NAME:
+      loadEpecParameters();
+      loadOutputParameters(epecParser);
+      break;
+    case OTHER_CONVERSOR_NAME:
+      loadConvertParameters();
+      loadOutputParameters(convertParser);
+      break;
+    default:
+      throw new IllegalArgumentException("Unknown sub-command " + command);
+    }
   }
 
   public static void main(String[] args) throws IOException,
       ParserConfigurationException, SAXException, JDOMException {
 
-    final CLI cmdLine = new CLI();
+    // only the selected sub-command is set up
+    final CLI cmdLine = new CLI(args.length > 0 ? args[0] : null);
     cmdLine.parseCLI(args);
   }
 
@@ -186,43 +271,19 @@ public class CLI {
     try {
       parsedArguments = parser.parseArgs(args);
       System.err.println("CLI options: " + parsedArguments);
-      switch (args[0]) {
-      case ABSA_CONVERSOR_NAME:
-        absa();
-        break;
-      case HYPERPARTISAN_CONVERSOR_NAME:
-        hyperpartisan();
-        break;
-      case INTERSTOCK_CONVERSOR_NAME:
-        interstock();
-        break;
-      case TIMEML_CONVERSOR_NAME:
-        timeml();
-        break;
-      case CLUSTER_CONVERSOR_NAME:
-        cluster();
-        break;
-      case DIANN_CONVERSOR_NAME:
-        diann();
-        break;
-      case TASS_CONVERSOR_NAME:
-        tass();
-        break;
-      case MARKYT_CONVERSOR_NAME:
-        markyt();
-        break;
-      case TREEBANK_CONVERSOR_NAME:
-        treebank();
-        break;
-      case NAF_CONVERSOR_NAME:
-        naf();
-        break;
-      case EPEC_CONVERSOR_NAME:
-        epec();
-        break;
-      case OTHER_CONVERSOR_NAME:
-        convert();
-        break;
+      PrintStream stdout = configureOutput();
+      try {
+        runCommand(args[0]);
+      } finally {
+        try {
+          OutputFiles.closeArchive();
+          ConversionManifest.close();
+        } finally {
+          if (stdout != null) {
+            System.out.close();
+            System.setOut(stdout);
+          }
+        }
       }
     } catch (final ArgumentParserException e) {
       parser.handleError(e);
@@ -232,7 +293,173 @@ public class CLI {
     }
   }
 
-  public final void absa() throws IOException {
+  /**
+   * Sets the number of threads of the conversion and the compression and
+   * sharding of the output files, opens the container of documents and the
+   * manifest of an incremental conversion and, if an output file is given,
+   * redirects the standard output to it.
+   * 
+   * @return the original standard output if it was redirected, null
+   *         otherwise
+   * @throws IOException
+   *           if the output file cannot be created
+   * @throws ArgumentParserException
+   *           if the number of threads is not positive
+   */
+  private PrintStream configureOutput()
+      throws IOException, ArgumentParserException {
+    int threads = parsedArguments.getInt("threads");
+    if (threads < 1) {
+      throw new ArgumentParserException(
+          "--threads must be positive: " + threads, parser);
+    }
+    ConversionPipeline.setThreads(threads);
+    OutputFiles.configure(
+        OutputFiles.Compression
+            .valueOf(parsedArguments.getString("compression").toUpperCase()),
+        parsedArguments.getLong("shardSize"),
+        parsedArguments.getLong("shardRecords"),
+        OutputFiles.Records
+            .valueOf(parsedArguments.getString("records").toUpperCase()));
+    if (parsedArguments.getString("archive") != null) {
+      OutputFiles.openArchive(Paths.get(parsedArguments.getString("archive")));
+    }
+    if (parsedArguments.getString("manifest") != null) {
+      // the options which change the output of the conversion
+      Map<String, Object> options = new TreeMap<>(parsedArguments.getAttrs());
+      options.keySet().removeAll(Arrays.asList("manifest", "checksum",
+          "threads", "cacheSize", "runSize", "output"));
+      ConversionManifest.open(Paths.get(parsedArguments.getString("manifest")),
+          options.toString(), parsedArguments.getBoolean("checksum"));
+    }
+    if (parsedArguments.getString("output") == null) {
+      return null;
+    }
+    Path outputFile = Paths.get(parsedArguments.getString("output"));
+    PrintStream stdout = System.out;
+    System.setOut(new PrintStream(OutputFiles.newOutputStream(outputFile),
+        false, StandardCharsets.UTF_8.name()));
+    System.err.println(
+        ">> Writing output to " + OutputFiles.getOutputPath(outputFile));
+    return stdout;
+  }
+
+  /**
+   * Parses the comma separated positive integers of an option.
+   *
+   * @param value
+   *          the value of the option
+   * @param option
+   *          the name of the option, for the usage error
+   * @return the integers
+   * @throws ArgumentParserException
+   *           if a value is not a positive integer
+   */
+  private List<Integer> getPositiveInts(String value, String option)
+      throws ArgumentParserException {
+    List<Integer> ints = new ArrayList<>();
+    for (String number : value.split(",")) {
+      int n;
+      try {
+        n = Integer.parseInt(number.trim());
+      } catch (NumberFormatException e) {
+        n = 0;
+      }
+      if (n < 1) {
+        throw new ArgumentParserException(
+            option + " must be positive integers: " + value, parser);
+      }
+      ints.add(n);
+    }
+    return ints;
+  }
+
+  /**
+   * Parses the comma separated min:max windows of an option, dropping the
+   * repeated ones.
+   *
+   * @param value
+   *          the value of the option
+   * @param option
+   *          the name of the option, for the usage error
+   * @return the min and max of each window, in order of first occurrence
+   * @throws ArgumentParserException
+   *           if a window is not two non negative integers separated by a
+   *           colon
+   */
+  private List<int[]> getWindows(String value, String option)
+      throws ArgumentParserException {
+    List<int[]> windows = new ArrayList<>();
+    for (String window : value.split(",")) {
+      String[] bounds = window.split(":");
+      int[] minMax = { -1, -1 };
+      if (bounds.length == 2) {
+        try {
+          minMax[0] = Integer.parseInt(bounds[0].trim());
+          minMax[1] = Integer.parseInt(bounds[1].trim());
+        } catch (NumberFormatException e) {
+          minMax[0] = -1;
+        }
+      }
+      if (minMax[0] < 0 || minMax[1] < 0) {
+        throw new ArgumentParserException(option
+            + " must be min:max windows of non negative integers: " + value,
+            parser);
+      }
+      boolean repeated = false;
+      for (int[] previous : windows) {
+        repeated |= Arrays.equals(previous, minMax);
+      }
+      if (!repeated) {
+        windows.add(minMax);
+      }
+    }
+    return windows;
+  }
+
+  private void runCommand(String command)
+      throws IOException, JDOMException, ArgumentParserException {
+    switch (command) {
+    case ABSA_CONVERSOR_NAME:
+      absa();
+      break;
+    case HYPERPARTISAN_CONVERSOR_NAME:
+      hyperpartisan();
+      break;
+    case INTERSTOCK_CONVERSOR_NAME:
+      interstock();
+      break;
+    case TIMEML_CONVERSOR_NAME:
+      timeml();
+      break;
+    case CLUSTER_CONVERSOR_NAME:
+      cluster();
+      break;
+    case DIANN_CONVERSOR_NAME:
+      diann();
+      break;
+    case TASS_CONVERSOR_NAME:
+      tass();
+      break;
+    case MARKYT_CONVERSOR_NAME:
+      markyt();
+      break;
+    case TREEBANK_CONVERSOR_NAME:
+      treebank();
+      break;
+    case NAF_CONVERSOR_NAME:
+      naf();
+      break;
+    case EPEC_CONVERSOR_NAME:
+      epec();
+      break;
+    case OTHER_CONVERSOR_NAME:
+      convert();
+      break;
+    }
+  }
+
+  public final void absa() throws IOException, ArgumentParserException {
 
     String language = parsedArguments.getString("language");
     if (parsedArguments.get("absa2015ToCoNLL2002") != null) {
@@ -244,21 +471,35 @@ public class CLI {
       String kafString = AbsaSemEval.absa2015ToWFs(inputFile, language);
       System.out.print(kafString);
     } else if (parsedArguments.get("absa2015ToPolarity") != null) {
-      int min = 1000;
-      int max = 1000;
+      // one or more windows, e.g., 5:5,3:3
+      String windowValue = "1000:1000";
       if (parsedArguments.get("window") != null) {
-        String window = parsedArguments.getString("window");
-        min = Integer.parseInt(window.split(":")[0]);
-        max = Integer.parseInt(window.split(":")[1]);
+        windowValue = parsedArguments.getString("window");
+      }
+      List<int[]> windows = getWindows(windowValue, "--window");
+      int[] mins = new int[windows.size()];
+      int[] maxs = new int[windows.size()];
+      for (int i = 0; i < windows.size(); i++) {
+        mins[i] = windows.get(i)[0];
+        maxs[i] = windows.get(i)[1];
       }
       String inputFile = parsedArguments.getString("absa2015ToPolarity");
-      String text = AbsaSemEval.absa2015ToDocCatFormatForPolarity(inputFile,
-          language, min, max);
-      System.out.print(text);
+      String[] texts = AbsaSemEval.absa2015ToDocCatFormatForPolarity(inputFile,
+          language, mins, maxs);
+      if (texts.length == 1) {
+        System.out.print(texts[0]);
+      } else {
+        for (int i = 0; i < texts.length; i++) {
+          Path outfile = OutputFiles.write(Paths.get(
+              inputFile + ".window" + mins[i] + "-" + maxs[i]), texts[i]);
+          System.err.println(">> Wrote polarity dataset to " + outfile);
+        }
+      }
     } else if (parsedArguments.get("nafToAbsa2015") != null) {
       String inputNAF = parsedArguments.getString("nafToAbsa2015");
-      String xmlFile = AbsaSemEval.nafToAbsa2015(inputNAF);
-      System.out.print(xmlFile);
+      Writer stdout = new BufferedWriter(
+          new OutputStreamWriter(System.out, StandardCharsets.UTF_8));
+      AbsaSemEval.nafToAbsa2015(inputNAF, stdout);
     } else if (parsedArguments.get("absa2015PrintTargets") != null) {
       String inputNAF = parsedArguments.getString("absa2015PrintTargets");
       AbsaSemEval.absa2015PrintTargets(inputNAF, language);
@@ -268,7 +509,9 @@ public class CLI {
       System.out.println(conllFile);
     } else if (parsedArguments.get("nafToAbsa2014") != null) {
       String inputFile = parsedArguments.getString("nafToAbsa2014");
-      System.out.print(AbsaSemEval.nafToAbsa2014(inputFile));
+      Writer stdout = new BufferedWriter(
+          new OutputStreamWriter(System.out, StandardCharsets.UTF_8));
+      AbsaSemEval.nafToAbsa2014(inputFile, stdout);
     } else if (parsedArguments.get("yelpGetText") != null) {
       String inputFile = parsedArguments.getString("yelpGetText");
       AbsaSemEval.getYelpText(inputFile);
@@ -336,16 +579,36 @@ public class CLI {
     }
   }
 
-  public final void cluster() throws IOException {
+  public final void cluster() throws IOException, ArgumentParserException {
+    if (parsedArguments.getString("brownPrefixes") != null
+        && parsedArguments.getString("serializeBrownCluster") == null) {
+      throw new ArgumentParserException(
+          "--brownPrefixes requires --serializeBrownCluster", parser);
+    }
     if (parsedArguments.get("brownClean") != null) {
       Path inputFile = Paths.get(parsedArguments.getString("brownClean"));
-      Convert.brownClusterClean(inputFile);
+      double lowercaseRatio = parsedArguments.getDouble("lowercaseRatio");
+      int threads = parsedArguments.getInt("threads");
+      Convert.brownClusterClean(inputFile, lowercaseRatio, threads);
     } else if (parsedArguments.getString("serializeBrownCluster") != null) {
       Path clusterFile = Paths
           .get(parsedArguments.getString("serializeBrownCluster"));
       boolean lowercase = Boolean
           .valueOf((boolean) parsedArguments.get("lowercase"));
-      SerializeResources.serializeBrownClusters(clusterFile, lowercase);
+      int frequencyCutoff = parsedArguments.getInt("frequencyCutoff");
+      if (parsedArguments.getString("brownPrefixes") != null) {
+        List<Integer> lengths = getPositiveInts(
+            parsedArguments.getString("brownPrefixes"), "--brownPrefixes");
+        int[] prefixLengths = new int[lengths.size()];
+        for (int i = 0; i < prefixLengths.length; i++) {
+          prefixLengths[i] = lengths.get(i);
+        }
+        SerializeResources.serializeBrownClusterPrefixes(clusterFile,
+            lowercase, prefixLengths, frequencyCutoff);
+      } else {
+        SerializeResources.serializeBrownClusters(clusterFile, lowercase,
+            frequencyCutoff);
+      }
     } else if (parsedArguments.getString("serializeClarkCluster") != null) {
       Path clusterFile = Paths
           .get(parsedArguments.getString("serializeClarkCluster"));
@@ -356,6 +619,21 @@ public class CLI {
       Path dictionaryFile = Paths
           .get(parsedArguments.getString("serializeEntityDictionary"));
       SerializeResources.serializeEntityGazetteers(dictionaryFile);
+    } else if (parsedArguments.get("mergeEntityDictionaries") != null) {
+      List<Path> dictionaries = new ArrayList<>();
+      for (String dictionary : parsedArguments
+          .<String> getList("mergeEntityDictionaries")) {
+        dictionaries.add(Paths.get(dictionary));
+      }
+      String mergedDictionary = parsedArguments.getString("mergedDictionary");
+      if (mergedDictionary == null) {
+        System.out.println("Please choose the merged dictionary file with "
+            + "--mergedDictionary.");
+        System.exit(1);
+      }
+      GazetteerMerger.ConflictPolicy policy = GazetteerMerger.ConflictPolicy
+          .valueOf(parsedArguments.getString("conflictPolicy").toUpperCase());
+      GazetteerMerger.merge(dictionaries, Paths.get(mergedDictionary), policy);
     } else if (parsedArguments.getString("serializeLemmaDictionary") != null) {
       Path lemmaDict = Paths
           .get(parsedArguments.getString("serializeLemmaDictionary"));
@@ -389,7 +667,9 @@ public class CLI {
     } else if (parsedArguments.get("annotateGeneralTest") != null) {
       String inputFile = parsedArguments.getString("annotateGeneralTest");
       String model = parsedArguments.getString("model");
-      TassFormat.annotateGeneralTest(inputFile, model);
+      int batchSize = parsedArguments.getInt("batchSize");
+      TassFormat.annotateGeneralTest(inputFile, model,
+          ConversionPipeline.getThreads(), batchSize);
     }
   }
 
@@ -398,13 +678,15 @@ public class CLI {
     if (parsedArguments.get("barrToCoNLL2002") != null) {
       String docName = parsedArguments.getString("barrToCoNLL2002");
       String entitiesFile = parsedArguments.getString("entities");
-      String conllFile = MarkytFormat.barrToCoNLL2002(docName, entitiesFile,
-          language);
-      System.out.print(conllFile);
+      MarkytFormat.barrToCoNLL2002(docName, entitiesFile, language);
     } else if (parsedArguments.get("barrToWFs") != null) {
       String inputFile = parsedArguments.getString("barrToWFs");
-      String kafString = MarkytFormat.barrToWFs(inputFile, language);
-      System.out.print(kafString);
+      if (parsedArguments.getBoolean("perDocument")) {
+        MarkytFormat.barrToWFsPerDocument(inputFile, language);
+      } else {
+        String kafString = MarkytFormat.barrToWFs(inputFile, language);
+        System.out.print(kafString);
+      }
     } else if (parsedArguments.get("nafToBARR") != null) {
       String inputNAF = parsedArguments.getString("nafToBARR");
       String barrEntities = MarkytFormat.nafToBARREntities(inputNAF);
@@ -458,43 +740,104 @@ public class CLI {
   }
 
   public final void epec() throws IOException {
+    Writer stdout = new BufferedWriter(
+        new OutputStreamWriter(System.out, StandardCharsets.UTF_8));
     if (parsedArguments.get("threeLevel") != null) {
       Path inputDir = Paths.get(parsedArguments.getString("threeLevel"));
-      String conllCorpus = EpecCorpus.formatCorpus(inputDir, "threeLevel");
-      System.out.println(conllCorpus);
+      EpecCorpus.formatCorpus(inputDir, null, null, stdout);
     } else if (parsedArguments.get("twoLevel") != null) {
       Path inputDir = Paths.get(parsedArguments.getString("twoLevel"));
-      String conllCorpus = EpecCorpus.formatCorpus(inputDir, "twoLevel");
-      System.out.println(conllCorpus);
+      EpecCorpus.formatCorpus(inputDir, null, stdout, null);
     } else if (parsedArguments.get("oneLevel") != null) {
       Path inputDir = Paths.get(parsedArguments.getString("oneLevel"));
-      String conllCorpus = EpecCorpus.formatCorpus(inputDir, "oneLevel");
-      System.out.println(conllCorpus);
+      EpecCorpus.formatCorpus(inputDir, stdout, null, null);
+    } else if (parsedArguments.get("allLevels") != null) {
+      Path inputDir = Paths.get(parsedArguments.getString("allLevels"));
+      try (Writer oneLevel = OutputFiles
+          .newWriter(Paths.get(inputDir.toString() + ".oneLevel"));
+          Writer twoLevel = OutputFiles
+              .newWriter(Paths.get(inputDir.toString() + ".twoLevel"));
+          Writer threeLevel = OutputFiles
+              .newWriter(Paths.get(inputDir.toString() + ".threeLevel"))) {
+        EpecCorpus.formatCorpus(inputDir, oneLevel, twoLevel, threeLevel);
+      }
+      System.err.println(">> Wrote oneLevel, twoLevel and threeLevel corpora for " + inputDir);
+      return;
+    } else {
+      return;
     }
+    stdout.write("\n");
+    stdout.flush();
   }
 
-  public final void convert() throws IOException {
-    if (parsedArguments.getString("convertToUTF8") != null) {
+  public final void convert() throws IOException, ArgumentParserException {
+    if (parsedArguments.getString("from") != null) {
+      String from = parsedArguments.getString("from");
+      String to = parsedArguments.getString("to");
+      String input = parsedArguments.getString("input");
+      if (to == null || input == null) {
+        throw new ArgumentParserException(
+            "--from requires --to and --input", parser);
+      }
+      String language = parsedArguments.getString("language");
+      Path inputFile = Paths.get(input);
+      ConversionRegistry registry = ConversionRegistry.createDefault();
+      try {
+        System.err.println("-> Conversion: " + registry.describe(from, to));
+      } catch (IllegalArgumentException e) {
+        throw new ArgumentParserException(e.getMessage(), parser);
+      }
+      System.out.print(registry.convert(from, to, inputFile, language));
+    } else if (parsedArguments.getString("convertToUTF8") != null) {
       Path inputDir = Paths
               .get(parsedArguments.getString("convertToUTF8"));
-      Convert.unicodeForDirectories(inputDir, false);
+      String encoding = parsedArguments.getString("encoding");
+      Charset charset = encoding.equalsIgnoreCase("auto") ? null
+          : Charset.forName(encoding);
+      boolean lowercase = parsedArguments.getBoolean("lowercase");
+      int threads = parsedArguments.getInt("threads");
+      Convert.unicodeForDirectories(inputDir, charset, lowercase, threads);
+    } else if (parsedArguments.getString("textToNAF") != null) {
+      Path inputFile = Paths.get(parsedArguments.getString("textToNAF"));
+      String language = parsedArguments.getString("language");
+      int maxTokens = parsedArguments.getInt("maxTokens");
+      Convert.textToNAF(inputFile, language, maxTokens);
+    } else if (parsedArguments.getString("jsonlToTSV") != null) {
+      Path inputFile = Paths.get(parsedArguments.getString("jsonlToTSV"));
+      List<String> fields = Arrays
+          .asList(parsedArguments.getString("fields").split(","));
+      Writer stdout = new BufferedWriter(
+          new OutputStreamWriter(System.out, StandardCharsets.UTF_8));
+      JsonLinesExtractor.extract(inputFile, fields, stdout);
     } else if (parsedArguments.getString("getSES") != null) {
       Path inputFile = Paths.get(parsedArguments.getString("getSES"));
-      String conllSesCorpus = Convert.getSES(inputFile);
-      System.out.print(conllSesCorpus);
+      int threads = parsedArguments.getInt("threads");
+      long cacheSize = parsedArguments.getLong("cacheSize");
+      Writer stdout = new BufferedWriter(
+          new OutputStreamWriter(System.out, StandardCharsets.UTF_8));
+      Convert.getSES(inputFile, stdout, threads, cacheSize);
+    } else if (parsedArguments.getString("benchmarkSES") != null) {
+      Path inputFile = Paths.get(parsedArguments.getString("benchmarkSES"));
+      List<Integer> threadCounts = getPositiveInts(
+          parsedArguments.getString("benchmarkThreads"), "--benchmarkThreads");
+      long cacheSize = parsedArguments.getLong("cacheSize");
+      Convert.benchmarkSES(inputFile, threadCounts, cacheSize);
     } else if (parsedArguments.getString("createMonosemicDictionary") != null) {
       Path inputDir = Paths
           .get(parsedArguments.getString("createMonosemicDictionary"));
-      Convert.createMonosemicDictionary(inputDir);
+      Convert.createMonosemicDictionary(inputDir,
+          parsedArguments.getInt("runSize"));
     } else if (parsedArguments.getString("createPOSDictionary") != null) {
       Path inputDir = Paths
           .get(parsedArguments.getString("createPOSDictionary"));
-      Convert.convertLemmaToPOSDict(inputDir);
+      Convert.convertLemmaToPOSDict(inputDir,
+          parsedArguments.getInt("runSize"));
     } else if (parsedArguments.getList("addLemmaDict2POSDict") != null) {
       List<Object> fileArgs = parsedArguments.getList("addLemmaDict2POSDict");
       Path lemmaDict = Paths.get((String) fileArgs.get(0));
       Path xmlDict = Paths.get((String) fileArgs.get(1));
-      Convert.addLemmaToPOSDict(lemmaDict, xmlDict);
+      Convert.addLemmaToPOSDict(lemmaDict, xmlDict,
+          parsedArguments.getInt("runSize"));
     } else if (parsedArguments.get("classifyDocuments") != null) {
       Path inputDir = Paths.get(parsedArguments.getString("classifyDocuments"));
       String model = parsedArguments.getString("model");
@@ -508,7 +851,8 @@ public class CLI {
         .choices("en", "es", "fr", "nl", "tr", "ru").required(true)
         .help("Choose a language.");
     this.absaParser.addArgument("-w", "--window").required(false).help(
-        "Define window size around target for document classification for polarity: absa2015ToPolarity. Example: 5:5");
+        "Define window size around target for document classification for polarity: absa2015ToPolarity. Example: 5:5. "
+            + "Several comma separated windows, e.g., 5:5,3:3, write one file per window.");
     absaParser.addArgument("--absa2015ToCoNLL2002").help(
         "Convert ABSA SemEval 2015 and 2016 Opinion Target Extraction to CoNLL 2002 format.\n");
     absaParser.addArgument("--absa2015ToWFs").help(
@@ -570,14 +914,38 @@ public class CLI {
 
   public void loadClusterParameters() {
     // cluster lexicons functions
-    clusterParser.addArgument("--brownClean")
-        .help("Remove paragraph if 90% of its characters are not lowercase.\n");
+    clusterParser.addArgument("--brownClean").help(
+        "Remove paragraph if less than --lowercaseRatio of its characters are lowercase.\n");
+    clusterParser.addArgument("--lowercaseRatio").type(Double.class)
+        .setDefault(CasingFilter.DEFAULT_LOWERCASE_RATIO)
+        .help("Minimum ratio of lowercase characters for brownClean.\n");
     clusterParser.addArgument("--serializeBrownCluster")
         .help("Serialize Brown cluster lexicons to an object.\n");
+    clusterParser.addArgument("--brownPrefixes")
+        .help("Comma separated lengths of the path prefixes, e.g., "
+            + "4,6,10,20, whose ids are serialized by serializeBrownCluster "
+            + "as extra columns of each word in the .prefixes.gz lexicon.\n");
+    clusterParser.addArgument("--frequencyCutoff").type(Integer.class)
+        .setDefault(SerializeResources.DEFAULT_FREQUENCY_CUTOFF)
+        .help("Skip the words occurring this number of times or less in "
+            + "serializeBrownCluster.\n");
     clusterParser.addArgument("--serializeClarkCluster")
         .help("Serialize Clark cluster lexicons and alike to an object.\n");
     clusterParser.addArgument("--serializeEntityDictionary")
         .help("Serialize ixa-pipe-nerc entity gazetteers to an object.\n");
+    clusterParser.addArgument("--mergeEntityDictionaries").nargs("+")
+        .help("Merge ixa-pipe-nerc entity gazetteers, or directories of "
+            + "gazetteers, in order of precedence, into one sorted serialized "
+            + "gazetteer, reading them with --threads threads.\n");
+    clusterParser.addArgument("--mergedDictionary")
+        .help("Serialized gazetteer written by mergeEntityDictionaries; the "
+            + "entries with several classes are reported in this file plus "
+            + "the .conflicts extension.\n");
+    clusterParser.addArgument("--conflictPolicy")
+        .choices("first", "all", "majority").setDefault("first")
+        .help("Class kept by mergeEntityDictionaries for an entry with "
+            + "several classes: the first one, all of them separated by "
+            + "|, or the most frequent one.\n");
     clusterParser.addArgument("--serializeLemmaDictionary")
         .help("Serialize DictionaryLemmatizer files to an object.\n");
     clusterParser.addArgument("--lowercase").action(Arguments.storeTrue())
@@ -604,6 +972,10 @@ public class CLI {
         .help("Reads and annotates the testset from TASS General Corpus.\n");
     tassParser.addArgument("--model")
         .help("Chooses the model to annotateGeneralTest argument.\n");
+    tassParser.addArgument("--batchSize").type(Integer.class)
+        .setDefault(TassFormat.DEFAULT_BATCH_SIZE)
+        .help("Number of tweets classified at a time by each of the "
+            + "--threads of annotateGeneralTest.\n");
   }
 
   public void loadMarkytParameters() {
@@ -615,6 +987,8 @@ public class CLI {
         .help("Entities file to convert BARR 2017 to CoNLL 2002 format.");
     markytParser.addArgument("--barrToWFs").help(
         "Convert BARR 2017 document file format to tokenized WF NAF layer.\n");
+    markytParser.addArgument("--perDocument").action(Arguments.storeTrue())
+        .help("Write barrToWFs output as one NAF document per abstract.\n");
     markytParser.addArgument("--nafToBARR").help(
         "Convert NAF containing entities into BARR 2017 prediction format.\n");
     markytParser.addArgument("--diannToCoNLL")
@@ -667,11 +1041,84 @@ public class CLI {
         "Convert Epec to tabulated format containing category and subcategory.\n");
     epecParser.addArgument("--oneLevel")
         .help("Convert Epec to tabulated format containing category.\n");
+    epecParser.addArgument("--allLevels").help(
+        "Convert Epec to the three tabulated formats in one pass, writing .oneLevel, .twoLevel and .threeLevel files.\n");
+  }
+
+  /**
+   * Output options shared by every sub-command.
+   */
+  private void loadOutputParameters(Subparser subparser) {
+    subparser.addArgument("--output")
+        .help("Write the standard output of the command to this file, "
+            + "which can be compressed and sharded.\n");
+    subparser.addArgument("--archive")
+        .help("Write the documents of the converters producing one document "
+            + "per record, e.g., tass --generalToWFs, into this container "
+            + "instead of one file each: .zip, .tar, .tar.gz, .tgz, .jsonl "
+            + "or .jsonl.gz. The naf and tass commands read these "
+            + "containers as input.\n");
+    subparser.addArgument("--compression").choices("none", "gzip")
+        .setDefault("none")
+        .help("Compression of the output files; gzip adds the .gz "
+            + "extension.\n");
+    subparser.addArgument("--shardSize").type(Long.class).setDefault(0L)
+        .help("Start a new output file, named by appending a shard number, "
+            + "once this many bytes (uncompressed) are written; 0 for no "
+            + "limit.\n");
+    subparser.addArgument("--shardRecords").type(Long.class).setDefault(0L)
+        .help("Start a new output file once this many records are written; "
+            + "0 for no limit.\n");
+    subparser.addArgument("--manifest")
+        .help("Convert incrementally, recording the converted files in this "
+            + "manifest: unchanged files are skipped and interrupted runs "
+            + "resume where they stopped.\n");
+    subparser.addArgument("--checksum").action(Arguments.storeTrue())
+        .help("Compare the content hash of the files in the manifest, not "
+            + "only their size and modification time.\n");
+    subparser.addArgument("--threads").type(Integer.class).setDefault(1)
+        .help("Number of threads used by the conversion.\n");
+    subparser.addArgument("--records").choices("line", "sentence")
+        .setDefault("line")
+        .help("Records at which output files are split: lines, or "
+            + "sentences ended by an empty line.\n");
   }
 
   public void loadConvertParameters() {
+    convertParser.addArgument("--from")
+        .help("Input format of a conversion through in-memory documents, "
+            + "e.g., absa2015, absa2014, dsrc, timeml or naf.\n");
+    convertParser.addArgument("--to")
+        .help("Output format of the conversion, e.g., conll02, conll03, "
+            + "absa2015, absa2014 or naf.\n");
+    convertParser.addArgument("--input")
+        .help("Input file of the conversion from --from to --to.\n");
     convertParser.addArgument("--convertToUTF8").help("Convert texts to UTF-8.\n");
+    convertParser.addArgument("--encoding").setDefault("auto")
+        .help("Source encoding for convertToUTF8; auto detects it for each "
+            + "file (UTF-8, UTF-16, Windows-1252, ISO-8859-15 or ISO-8859-1).\n");
+    convertParser.addArgument("--lowercase").action(Arguments.storeTrue())
+        .help("Lowercase the texts converted by convertToUTF8.\n");
+    convertParser.addArgument("--textToNAF").help(
+        "Convert a tokenized text, one sentence per line, to NAF documents.\n");
+    convertParser.addArgument("--maxTokens").type(Integer.class).setDefault(0)
+        .help("Maximum number of tokens per NAF document created by "
+            + "textToNAF; 0 writes one document.\n");
+    convertParser.addArgument("--jsonlToTSV").help(
+        "Extract fields of a JSON lines file as tab separated values.\n");
+    convertParser.addArgument("--fields").setDefault("text")
+        .help("Comma separated keys or JSON pointers, e.g., "
+            + "text,stars,/user/name, extracted by jsonlToTSV.\n");
     convertParser.addArgument("--getSES").help("Convert lemmas to SES.\n");
+    convertParser.addArgument("--benchmarkSES")
+        .help("Compare the throughput of getSES on a file with the numbers "
+            + "of threads of --benchmarkThreads.\n");
+    convertParser.addArgument("--benchmarkThreads").setDefault("1,2,4,8")
+        .help("Comma separated numbers of threads compared by "
+            + "benchmarkSES.\n");
+    convertParser.addArgument("--cacheSize").type(Long.class)
+        .setDefault(100000L)
+        .help("Maximum number of word and lemma pairs cached by getSES.\n");
     convertParser.addArgument("--createMonosemicDictionary")
         .help("Create monosemic dictionary from a lemmatizer dictionary.\n");
     convertParser.addArgument("--createPOSDictionary")
@@ -680,10 +1127,16 @@ public class CLI {
     convertParser.addArgument("--addLemmaDict2POSDict").nargs(2)
         .help("Aggregate a lemmatizer dictionary to a POSTagger OpenNLP "
             + "dictionary: first input is lemmatizer dictionary and second output the XML dictionary to be expanded.\n");
+    convertParser.addArgument("--runSize").type(Integer.class)
+        .setDefault(ExternalDictionaryBuilder.DEFAULT_RUN_SIZE)
+        .help("Number of dictionary entries sorted in memory before spilling "
+            + "them to disk when creating monosemic and POSTagger dictionaries.\n");
     convertParser.addArgument("--classifyDocuments")
         .help("Classify documents in a file where each document is a line.\n");
-    convertParser.addArgument("-l", "--language").choices("eu", "en", "es")
-        .required(false).help("Choose a language.");
+    convertParser.addArgument("-l", "--language").setDefault("en")
+        .required(false)
+        .help("Choose a language; it is also the language of the NAF "
+            + "documents created by textToNAF.");
     convertParser.addArgument("-m", "--model").required(false)
         .help("Choose a model.");
   }
@@ -0,0 +1,340 @@
+/*
+ * Copyright 2018 Rodrigo Agerri
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package eus.ixa.ixa.pipe.convert;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Removes the lines of a UTF-8 corpus which do not contain enough lowercase
+ * characters, as required to clean the corpora used to induce Brown clusters.
+ * The input file is memory mapped in chunks ending at a newline which are
+ * filtered in parallel and written in input order. Every line is scanned once
+ * decoding its code points directly from the mapped bytes; spaces are not
+ * taken into account to compute the lowercase ratio and the lines kept are
+ * copied verbatim. As when reading the input with a UTF-8 reader, lines end
+ * at \n, \r\n or a lone \r, and the malformed sequences of a line are
+ * replaced by U+FFFD; only the rare lines with malformed sequences are
+ * decoded to strings to do so.
+ *
+ * @author ragerri
+ * @version 2018-06-07
+ */
+public final class CasingFilter {
+
+  /**
+   * Default minimum ratio of lowercase characters for a line to be kept.
+   */
+  public static final double DEFAULT_LOWERCASE_RATIO = 0.90;
+  private static final int CHUNK_SIZE = 32 * 1024 * 1024;
+  private static final int MALFORMED = -1;
+  // results of scanning a line
+  private static final int DROP = 0;
+  private static final int KEEP = 1;
+  private static final int MALFORMED_LINE = 2;
+
+  private CasingFilter() {
+  }
+
+  /**
+   * Writes to the output every line of the input whose ratio of lowercase
+   * characters (spaces excluded) is at least the given ratio.
+   *
+   * @param inFile
+   *          the input file
+   * @param outputStream
+   *          the output
+   * @param lowercaseRatio
+   *          the minimum lowercase ratio
+   * @param threads
+   *          the number of threads
+   * @throws IOException
+   *           if io problems
+   */
+  public static void filter(Path inFile, OutputStream outputStream,
+      double lowercaseRatio, int threads) throws IOException {
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    Deque<Future<ByteBuffer>> chunks = new ArrayDeque<>();
+    try (FileChannel channel = FileChannel.open(inFile,
+        StandardOpenOption.READ)) {
+      long fileSize = channel.size();
+      long position = 0;
+      while (position < fileSize) {
+        final MappedByteBuffer chunk = mapChunk(channel, position, fileSize);
+        position += chunk.limit();
+        chunks.add(executor.submit(() -> filterChunk(chunk, lowercaseRatio)));
+        while (chunks.size() > 2 * threads) {
+          write(getChunk(chunks.poll()), outputStream);
+        }
+      }
+      while (!chunks.isEmpty()) {
+        write(getChunk(chunks.poll()), outputStream);
+      }
+      outputStream.flush();
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * Maps the next chunk of the file making sure that it ends with a line
+   * terminator or at the end of the file. A \r ends the chunk only if the
+   * byte after it is mapped too, so that a \r\n is never split.
+   */
+  private static MappedByteBuffer mapChunk(FileChannel channel, long position,
+      long fileSize) throws IOException {
+    long size = Math.min(CHUNK_SIZE, fileSize - position);
+    while (true) {
+      MappedByteBuffer chunk = channel.map(FileChannel.MapMode.READ_ONLY,
+          position, size);
+      if (position + size == fileSize) {
+        return chunk;
+      }
+      for (int i = (int) size - 1; i >= 0; i--) {
+        byte b = chunk.get(i);
+        if (b == '\n' || (b == '\r' && i + 1 < size)) {
+          chunk.limit(i + 1);
+          return chunk;
+        }
+      }
+      // a line longer than the chunk size
+      size = Math.min(Math.min(size * 2, Integer.MAX_VALUE),
+          fileSize - position);
+    }
+  }
+
+  private static void write(ByteBuffer chunk, OutputStream outputStream)
+      throws IOException {
+    outputStream.write(chunk.array(), 0, chunk.limit());
+  }
+
+  private static ByteBuffer getChunk(Future<ByteBuffer> chunk)
+      throws IOException {
+    try {
+      return chunk.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for chunk");
+    } catch (ExecutionException e) {
+      throw new IOException(e.getCause());
+    }
+  }
+
+  private static ByteBuffer filterChunk(ByteBuffer chunk,
+      double lowercaseRatio) {
+    int limit = chunk.limit();
+    byte[] output = new byte[Math.max(16, limit / 2)];
+    int outputLength = 0;
+    int lineStart = 0;
+    while (lineStart < limit) {
+      int lineEnd = lineStart;
+      while (lineEnd < limit && !isLineTerminator(chunk.get(lineEnd))) {
+        lineEnd++;
+      }
+      int next = lineEnd + 1;
+      // the line terminator can be \r\n
+      if (next < limit && chunk.get(lineEnd) == '\r'
+          && chunk.get(next) == '\n') {
+        next++;
+      }
+      int scan = scanLine(chunk, lineStart, lineEnd, lowercaseRatio);
+      byte[] replaced = null;
+      if (scan == MALFORMED_LINE) {
+        replaced = filterMalformedLine(chunk, lineStart, lineEnd,
+            lowercaseRatio);
+      }
+      if (scan == KEEP || replaced != null) {
+        int length = replaced == null ? lineEnd - lineStart : replaced.length;
+        if (outputLength + length + 1 > output.length) {
+          output = Arrays.copyOf(output,
+              Math.max(output.length * 2, outputLength + length + 1));
+        }
+        if (replaced == null) {
+          for (int i = lineStart; i < lineEnd; i++) {
+            output[outputLength++] = chunk.get(i);
+          }
+        } else {
+          System.arraycopy(replaced, 0, output, outputLength, length);
+          outputLength += length;
+        }
+        output[outputLength++] = '\n';
+      }
+      lineStart = next;
+    }
+    return ByteBuffer.wrap(output, 0, outputLength);
+  }
+
+  private static boolean isLineTerminator(byte b) {
+    return b == '\n' || b == '\r';
+  }
+
+  private static boolean keep(int lowercase, int characters,
+      double lowercaseRatio) {
+    return characters > 0 && (double) lowercase / characters >= lowercaseRatio;
+  }
+
+  /**
+   * Decodes the UTF-8 code points of a line to count the lowercase and non
+   * space characters.
+   *
+   * @return whether the line is dropped or kept, or
+   *         {@link #MALFORMED_LINE} as soon as a malformed sequence is found
+   */
+  private static int scanLine(ByteBuffer chunk, int start, int end,
+      double lowercaseRatio) {
+    int lowercase = 0;
+    int characters = 0;
+    int i = start;
+    while (i < end) {
+      int codePoint = chunk.get(i) & 0xFF;
+      if (codePoint < 0x80) {
+        i++;
+      } else {
+        codePoint = decode(chunk, i, end);
+        if (codePoint == MALFORMED) {
+          return MALFORMED_LINE;
+        }
+        i += codePoint < 0x800 ? 2 : codePoint < 0x10000 ? 3 : 4;
+      }
+      if (codePoint != ' ') {
+        characters++;
+        if (Character.isLowerCase(codePoint)) {
+          lowercase++;
+        }
+      }
+    }
+    return keep(lowercase, characters, lowercaseRatio) ? KEEP : DROP;
+  }
+
+  /**
+   * Filters a line with malformed sequences decoding it as a UTF-8 reader
+   * does, which replaces them by U+FFFD.
+   *
+   * @return the UTF-8 bytes of the decoded line if it is kept, null otherwise
+   */
+  private static byte[] filterMalformedLine(ByteBuffer chunk, int start,
+      int end, double lowercaseRatio) {
+    byte[] bytes = new byte[end - start];
+    for (int i = start; i < end; i++) {
+      bytes[i - start] = chunk.get(i);
+    }
+    String line = new String(bytes, StandardCharsets.UTF_8);
+    int lowercase = 0;
+    int characters = 0;
+    for (int i = 0; i < line.length();) {
+      int codePoint = line.codePointAt(i);
+      i += Character.charCount(codePoint);
+      if (codePoint != ' ') {
+        characters++;
+        if (Character.isLowerCase(codePoint)) {
+          lowercase++;
+        }
+      }
+    }
+    return keep(lowercase, characters, lowercaseRatio)
+        ? line.getBytes(StandardCharsets.UTF_8)
+        : null;
+  }
+
+  /**
+   * Decodes the multibyte UTF-8 sequence starting at a position. Truncated
+   * sequences, overlong forms, surrogates and code points above U+10FFFF are
+   * malformed.
+   *
+   * @return the code point, or {@link #MALFORMED}
+   */
+  private static int decode(ByteBuffer chunk, int i, int end) {
+    int b = chunk.get(i) & 0xFF;
+    int length;
+    int codePoint;
+    // the range of the second byte, narrower for some leading bytes
+    int min = 0x80;
+    int max = 0xBF;
+    if (b >= 0xC2 && b < 0xE0) {
+      length = 2;
+      codePoint = b & 0x1F;
+    } else if (b >= 0xE0 && b < 0xF0) {
+      length = 3;
+      codePoint = b & 0x0F;
+      if (b == 0xE0) {
+        min = 0xA0;
+      } else if (b == 0xED) {
+        max = 0x9F;
+      }
+    } else if (b >= 0xF0 && b < 0xF5) {
+      length = 4;
+      codePoint = b & 0x07;
+      if (b == 0xF0) {
+        min = 0x90;
+      } else if (b == 0xF4) {
+        max = 0x8F;
+      }
+    } else {
+      return MALFORMED;
+    }
+    if (i + length > end) {
+      return MALFORMED;
+    }
+    for (int j = 1; j < length; j++) {
+      int continuation = chunk.get(i + j) & 0xFF;
+      if (continuation < min || continuation > max) {
+        return MALFORMED;
+      }
+      min = 0x80;
+      max = 0xBF;
+      codePoint = (codePoint << 6) | (continuation & 0x3F);
+    }
+    return codePoint;
+  }
+
+  /**
+   * Filters a file writing the result to the given path.
+   *
+   * @param inFile
+   *          the input file
+   * @param outFile
+   *          the output file, which must not exist
+   * @param lowercaseRatio
+   *          the minimum lowercase ratio
+   * @param threads
+   *          the number of threads
+   * @throws IOException
+   *           if io problems
+   */
+  public static void filter(Path inFile, Path outFile, double lowercaseRatio,
+      int threads) throws IOException {
+    try (OutputStream outputStream = Files.newOutputStream(outFile,
+        StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+      filter(inFile, outputStream, lowercaseRatio, threads);
+    }
+  }
+}
@@ -0,0 +1,262 @@
+/*
+ * Copyright 2018 Rodrigo Agerri
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package eus.ixa.ixa.pipe.convert;
+
+import java.util.Arrays;
+
+/**
+ * Compact columnar representation of tokenized text with labeled spans, for
+ * conversions which do not write NAF, e.g., to CoNLL. The characters of all
+ * the tokens are stored in one buffer and every other annotation in int
+ * arrays indexed by token position: the start of the token in the buffer,
+ * its offset in the original text, and the size and the {@link SymbolTable}
+ * id of the label of the span starting at it. Sentences are ranges of token
+ * positions. No object is created per token, unlike the WF, Term and Span
+ * objects and string ids of a NAF document.
+ *
+ * @author ragerri
+ * @version 2018-06-07
+ */
+public final class ColumnarDocument {
+
+  private static final int INITIAL_TOKENS = 256;
+
+  private char[] chars = new char[INITIAL_TOKENS * 8];
+  private int noChars;
+  // tokenStarts[i + 1] is the end of token i in the buffer
+  private int[] tokenStarts = new int[INITIAL_TOKENS + 1];
+  private int[] offsets = new int[INITIAL_TOKENS];
+  private int[] spanSizes = new int[INITIAL_TOKENS];
+  private int[] spanLabels = new int[INITIAL_TOKENS];
+  private int noTokens;
+  private int[] sentenceStarts = new int[64];
+  private int noSentences;
+
+  /**
+   * Adds a token to the current sentence.
+   *
+   * @param token
+   *          the token
+   * @param offset
+   *          the offset of the token in the original text
+   * @return the position of the token
+   */
+  public int addToken(CharSequence token, int offset) {
+    if (noTokens == offsets.length) {
+      int capacity = noTokens * 2;
+      tokenStarts = Arrays.copyOf(tokenStarts, capacity + 1);
+      offsets = Arrays.copyOf(offsets, capacity);
+      spanSizes = Arrays.copyOf(spanSizes, capacity);
+      spanLabels = Arrays.copyOf(spanLabels, capacity);
+    }
+    int length = token.length();
+    if (noChars + length > chars.length) {
+      chars = Arrays.copyOf(chars, Math.max(chars.length * 2, noChars + length));
+    }
+    for (int i = 0; i < length; i++) {
+      chars[noChars++] = token.charAt(i);
+    }
+    offsets[noTokens] = offset;
+    tokenStarts[++noTokens] = noChars;
+    return noTokens - 1;
+  }
+
+  /**
+   * Ends the current sentence with the tokens added since the previous one;
+   * nothing is done if there are none.
+   */
+  public void endSentence() {
+    if (noSentences + 1 == sentenceStarts.length) {
+      sentenceStarts = Arrays.copyOf(sentenceStarts, sentenceStarts.length * 2);
+    }
+    if (sentenceStarts[noSentences] < noTokens) {
+      sentenceStarts[++noSentences] = noTokens;
+    }
+  }
+
+  /**
+   * Labels a span of tokens; it replaces the span starting at the same token,
+   * if any.
+   *
+   * @param start
+   *          the position of the first token
+   * @param end
+   *          the position after the last token
+   * @param label
+   *          the label of the span
+   */
+  public void addSpan(int start, int end, String label) {
+    if (start < 0 || end > noTokens || start >= end) {
+      throw new IllegalArgumentException(
+          "Bad span " + start + ":" + end + " of " + noTokens + " tokens");
+    }
+    spanSizes[start] = end - start;
+    spanLabels[start] = SymbolTable.getShared().getId(label);
+  }
+
+  /**
+   * @return the number of tokens
+   */
+  public int getNumberOfTokens() {
+    return noTokens;
+  }
+
+  /**
+   * @return the number of sentences ended
+   */
+  public int getNumberOfSentences() {
+    return noSentences;
+  }
+
+  /**
+   * @param sentence
+   *          the position of the sentence
+   * @return the position of the first token of the sentence
+   */
+  public int getSentenceStart(int sentence) {
+    return sentenceStarts[sentence];
+  }
+
+  /**
+   * @param sentence
+   *          the position of the sentence
+   * @return the position after the last token of the sentence
+   */
+  public int getSentenceEnd(int sentence) {
+    return sentenceStarts[sentence + 1];
+  }
+
+  /**
+   * Appends a token without creating a string.
+   *
+   * @param sb
+   *          the builder
+   * @param position
+   *          the position of the token
+   */
+  public void appendToken(StringBuilder sb, int position) {
+    sb.append(chars, tokenStarts[position],
+        tokenStarts[position + 1] - tokenStarts[position]);
+  }
+
+  /**
+   * @param start
+   *          the position of the first token
+   * @param end
+   *          the position after the last token
+   * @return the tokens separated by spaces
+   */
+  public String getText(int start, int end) {
+    StringBuilder sb = new StringBuilder();
+    for (int i = start; i < end; i++) {
+      if (i > start) {
+        sb.append(' ');
+      }
+      appendToken(sb, i);
+    }
+    return sb.toString();
+  }
+
+  /**
+   * @return the number of characters of all the tokens
+   */
+  public int getNumberOfChars() {
+    return noChars;
+  }
+
+  /**
+   * @param position
+   *          the position of the token
+   * @return the offset of the token in the original text
+   */
+  public int getOffset(int position) {
+    return offsets[position];
+  }
+
+  /**
+   * @param position
+   *          the position of the token
+   * @return the length of the token
+   */
+  public int getLength(int position) {
+    return tokenStarts[position + 1] - tokenStarts[position];
+  }
+
+  /**
+   * Finds the token starting at an offset among tokens in text order.
+   *
+   * @param from
+   *          the position of the first token searched
+   * @param to
+   *          the position after the last token searched
+   * @param offset
+   *          the offset in the original text
+   * @return the position of the token, -1 if none
+   */
+  public int findTokenStartingAt(int from, int to, int offset) {
+    int i = Arrays.binarySearch(offsets, from, to, offset);
+    return i < 0 ? -1 : i;
+  }
+
+  /**
+   * Finds the token ending at an offset among tokens in text order.
+   *
+   * @param from
+   *          the position of the first token searched
+   * @param to
+   *          the position after the last token searched
+   * @param offset
+   *          the offset after the last character of the token in the
+   *          original text
+   * @return the position of the token, -1 if none
+   */
+  public int findTokenEndingAt(int from, int to, int offset) {
+    int low = from;
+    int high = to - 1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      int end = offsets[mid] + getLength(mid);
+      if (end < offset) {
+        low = mid + 1;
+      } else if (end > offset) {
+        high = mid - 1;
+      } else {
+        return mid;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * @param position
+   *          the position of the token
+   * @return the size of the span starting at the token, 0 if none
+   */
+  public int getSpanSize(int position) {
+    return spanSizes[position];
+  }
+
+  /**
+   * @param position
+   *          the position of the token
+   * @return the id in the shared {@link SymbolTable} of the label of the
+   *         span starting at the token; only meaningful if there is a span
+   */
+  public int getSpanLabel(int position) {
+    return spanLabels[position];
+  }
+}
@@ -1,54 +1,124 @@
 package eus.ixa.ixa.pipe.convert;
 
 import java.io.IOException;
-import java.nio.charset.StandardCharsets;
+import java.io.StringReader;
+import java.io.Writer;
 import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import java.util.function.Function;
 
-import ixa.kaflib.Entity;
 import ixa.kaflib.KAFDocument;
 import ixa.kaflib.Term;
-import ixa.kaflib.WF;
 
 public class ConllUtils {
 
+  /**
+   * Extensions of the CoNLL files written, skipped when walking a directory.
+   */
+  private static final String[] CONLL_EXTENSIONS = { ".conll02", ".conll03" };
+
   public ConllUtils() {
   }
 
+  /**
+   * Declares the writers of NAF documents into CoNLL 2002 and 2003 formats.
+   * 
+   * @param registry
+   *          the registry of conversions
+   */
+  static void registerConversions(ConversionRegistry registry) {
+    registry.registerWriter(ConversionRegistry.NAF, "conll02",
+        (KAFDocument kaf, String language) -> nafToCoNLLConvert2002(kaf));
+    registry.registerWriter(ConversionRegistry.NAF, "conll03",
+        (KAFDocument kaf, String language) -> nafToCoNLLConvert2003(kaf));
+  }
+
   public static void nafToCoNLL2002(Path dir) throws IOException {
     // process one file
-    if (Files.isRegularFile(dir) && !dir.endsWith(".conll02")) {
-      KAFDocument kaf = KAFDocument.createFromFile(dir.toFile());
-      Path outfile = Files.createFile(Paths.get(dir.toString() + ".conll02"));
-      String outKAF = nafToCoNLLConvert2002(kaf);
-      Files.write(outfile, outKAF.getBytes(StandardCharsets.UTF_8));
-      System.err.println(">> Wrote CoNLL document to " + outfile);
+    if (Files.isRegularFile(dir)) {
+      nafFileToCoNLL2002(dir);
     } else {
       // recursively process directories
       try (DirectoryStream<Path> filesDir = Files.newDirectoryStream(dir)) {
         for (Path file : filesDir) {
           if (Files.isDirectory(file)) {
             nafToCoNLL2002(file);
-          } else {
-            if (!file.endsWith(".conll02")) {
-              Path outfile = Files
-                  .createFile(Paths.get(file.toString() + ".conll02"));
-              KAFDocument kaf = KAFDocument.createFromFile(file.toFile());
-              String outKAF = nafToCoNLLConvert2002(kaf);
-              Files.write(outfile, outKAF.getBytes(StandardCharsets.UTF_8));
-              System.err.println(">> Wrote CoNLL02 document to " + outfile);
-            }
+          } else if (isConverted(file)) {
+            nafFileToCoNLL2002(file);
           }
         }
       }
     }
   }
 
+  /**
+   * Tells whether a file found in a directory is converted. Every file is
+   * converted except the CoNLL files written by the conversions and the
+   * manifest of the run, which are reported as skipped.
+   * 
+   * @param file
+   *          the file
+   * @return true if the file is converted
+   */
+  private static boolean isConverted(Path file) {
+    for (String extension : CONLL_EXTENSIONS) {
+      if (OutputFiles.hasOutputExtension(file, extension)) {
+        System.err.println("-> Skipped CoNLL file " + file);
+        return false;
+      }
+    }
+    if (ConversionManifest.isManifest(file)) {
+      System.err.println("-> Skipped manifest " + file);
+      return false;
+    }
+    return true;
+  }
+
+  private static void nafFileToCoNLL2002(Path file) throws IOException {
+    Path outPath = Paths.get(file.toString() + ".conll02");
+    if (ConversionManifest.needsConversion(file, outPath)) {
+      Path outfile;
+      if (DocumentArchive.isArchive(file)) {
+        outfile = nafArchiveToCoNLL(file, outPath,
+            ConllUtils::nafToCoNLLConvert2002);
+      } else {
+        KAFDocument kaf = KAFDocument.createFromFile(file.toFile());
+        String outKAF = nafToCoNLLConvert2002(kaf);
+        outfile = OutputFiles.write(outPath, outKAF);
+      }
+      ConversionManifest.converted(file, outPath);
+      System.err.println(">> Wrote CoNLL02 document to " + outfile);
+    }
+  }
+
+  /**
+   * Converts every NAF document of a container, writing them in order to a
+   * single CoNLL file.
+   * 
+   * @param archive
+   *          the container of NAF documents
+   * @param outPath
+   *          the CoNLL file
+   * @param conversion
+   *          the conversion of each document
+   * @return the first file actually written
+   * @throws IOException
+   *           if io problems
+   */
+  private static Path nafArchiveToCoNLL(Path archive, Path outPath,
+      Function<KAFDocument, String> conversion) throws IOException {
+    try (Writer writer = OutputFiles.newWriter(outPath)) {
+      ConversionPipeline.read(DocumentArchive.read(archive))
+          .map(ConversionPipeline.getThreads(),
+              document -> conversion.apply(KAFDocument
+                  .createFromStream(new StringReader(document.getContent()))))
+          .run(writer::write);
+    }
+    return OutputFiles.getOutputPath(outPath);
+  }
+
   /**
    * Output Conll2002 format.
    * 
@@ -57,75 +127,64 @@ public class ConllUtils {
    * @return the annotated named entities in conll02 format
    */
   public static String nafToCoNLLConvert2002(KAFDocument kaf) {
-    List<Entity> namedEntityList = kaf.getEntities();
-    Map<String, Integer> entityToSpanSize = new HashMap<>();
-    Map<String, String> entityToType = new HashMap<>();
-    for (Entity ne : namedEntityList) {
-      List<ixa.kaflib.Span<Term>> entitySpanList = ne.getSpans();
-      for (ixa.kaflib.Span<Term> spanTerm : entitySpanList) {
-        Term neTerm = spanTerm.getFirstTarget();
-        entityToSpanSize.put(neTerm.getId(), spanTerm.size());
-        entityToType.put(neTerm.getId(), ne.getType());
+    SentenceIndex index = SentenceIndex.build(kaf);
+    SymbolTable symbols = SymbolTable.getShared();
+    StringBuilder sb = new StringBuilder();
+    for (int s = 0; s < index.getNumberOfSentences(); s++) {
+      int sentenceEnd = index.getSentenceEnd(s);
+      for (int i = index.getSentenceStart(s); i < sentenceEnd; i++) {
+        int neSpanSize = index.getEntitySpanSize(i);
+        if (neSpanSize > 0) {
+          String neClass = index.getEntityType(i);
+          // entity spans do not go beyond the sentence
+          neSpanSize = Math.min(neSpanSize, sentenceEnd - i);
+          for (int j = 0; j < neSpanSize; j++) {
+            appendTerm(sb, index.getTerm(i + j));
+            sb.append(j == 0 ? symbols.getBegin(neClass)
+                : symbols.getIn(neClass));
+            sb.append("\n");
+          }
+          i += neSpanSize - 1;
+        } else {
+          appendTerm(sb, index.getTerm(i));
+          sb.append(BIO.OUT);
+          sb.append("\n");
+        }
       }
+      sb.append("\n");// end of sentence
     }
+    return sb.toString();
+  }
 
-    List<List<WF>> sentences = kaf.getSentences();
-    StringBuilder sb = new StringBuilder();
-    for (List<WF> sentence : sentences) {
-      int sentNumber = sentence.get(0).getSent();
-      List<Term> sentenceTerms = kaf.getSentenceTerms(sentNumber);
-
-      for (int i = 0; i < sentenceTerms.size(); i++) {
-        Term thisTerm = sentenceTerms.get(i);
-        // System.err.println("--> thisterm: " + thisTerm.getForm() + " " +
-        // thisTerm.getId());
-
-        if (entityToSpanSize.get(thisTerm.getId()) != null) {
-          int neSpanSize = entityToSpanSize.get(thisTerm.getId());
-          // System.err.println("--> neSpanSize: " + neSpanSize);
-          String neClass = entityToType.get(thisTerm.getId());
-          // String neType = convertToConLLTypes(neClass);
-          if (neSpanSize > 1) {
-            for (int j = 0; j < neSpanSize; j++) {
-              // System.err.println("-> sentenceTerms: " +
-              // sentenceTerms.size());
-              // System.err.println("-> indexes: " + (i + j));
-              // System.err.println("-> terms: " + sentenceTerms.get(i +
-              // j).getId());
-              thisTerm = sentenceTerms.get(i + j);
-              sb.append(thisTerm.getForm());
-              sb.append("\t");
-              sb.append(thisTerm.getLemma());
-              sb.append("\t");
-              sb.append(thisTerm.getMorphofeat());
-              sb.append("\t");
-              if (j == 0) {
-                sb.append(BIO.BEGIN.toString());
-              } else {
-                sb.append(BIO.IN.toString());
-              }
-              sb.append(neClass);
-              sb.append("\n");
-            }
-          } else {
-            sb.append(thisTerm.getForm());
-            sb.append("\t");
-            sb.append(thisTerm.getLemma());
-            sb.append("\t");
-            sb.append(thisTerm.getMorphofeat());
-            sb.append("\t");
-            sb.append(BIO.BEGIN.toString());
-            sb.append(neClass);
+  /**
+   * Converts a columnar document to CoNLL 2002 format. The lemma column is the
+   * token and the morphofeat column is null, as in the CoNLL conversion of a
+   * NAF document with one term per token and no morphological features.
+   * 
+   * @param doc
+   *          the columnar document
+   * @return the document in CoNLL 2002 format
+   */
+  public static String columnarToCoNLL2002(ColumnarDocument doc) {
+    SymbolTable symbols = SymbolTable.getShared();
+    StringBuilder sb = new StringBuilder(
+        doc.getNumberOfChars() * 2 + doc.getNumberOfTokens() * 16);
+    for (int s = 0; s < doc.getNumberOfSentences(); s++) {
+      int sentenceEnd = doc.getSentenceEnd(s);
+      for (int i = doc.getSentenceStart(s); i < sentenceEnd; i++) {
+        int neSpanSize = doc.getSpanSize(i);
+        if (neSpanSize > 0) {
+          int label = doc.getSpanLabel(i);
+          // entity spans do not go beyond the sentence
+          neSpanSize = Math.min(neSpanSize, sentenceEnd - i);
+          for (int j = 0; j < neSpanSize; j++) {
+            appendToken(sb, doc, i + j);
+            sb.append(j == 0 ? symbols.getBegin(label) : symbols.getIn(label));
             sb.append("\n");
           }
           i += neSpanSize - 1;
         } else {
-          sb.append(thisTerm.getForm());
-          sb.append("\t");
-          sb.append(thisTerm.getLemma());
-          sb.append("\t");
-          sb.append(thisTerm.getMorphofeat());
-          sb.append("\t");
+          appendToken(sb, doc, i);
           sb.append(BIO.OUT);
           sb.append("\n");
         }
@@ -135,35 +194,64 @@ public class ConllUtils {
     return sb.toString();
   }
 
+  /**
+   * Appends the token, lemma and morphofeat columns of a token.
+   */
+  private static void appendToken(StringBuilder sb, ColumnarDocument doc,
+      int position) {
+    doc.appendToken(sb, position);
+    sb.append("\t");
+    doc.appendToken(sb, position);
+    sb.append("\tnull\t");
+  }
+
+  /**
+   * Appends the form, lemma and morphofeat columns of a term.
+   */
+  private static void appendTerm(StringBuilder sb, Term term) {
+    sb.append(term.getForm());
+    sb.append("\t");
+    sb.append(term.getLemma());
+    sb.append("\t");
+    sb.append(term.getMorphofeat());
+    sb.append("\t");
+  }
+
   public static void nafToCoNLL2003(Path dir) throws IOException {
     // process one file
-    if (Files.isRegularFile(dir) && !dir.endsWith(".conll03")) {
-      KAFDocument kaf = KAFDocument.createFromFile(dir.toFile());
-      Path outfile = Files.createFile(Paths.get(dir.toString() + ".conll03"));
-      String outKAF = nafToCoNLLConvert2003(kaf);
-      Files.write(outfile, outKAF.getBytes(StandardCharsets.UTF_8));
-      System.err.println(">> Wrote CoNLL document to " + outfile);
+    if (Files.isRegularFile(dir)) {
+      nafFileToCoNLL2003(dir);
     } else {
       // recursively process directories
       try (DirectoryStream<Path> filesDir = Files.newDirectoryStream(dir)) {
         for (Path file : filesDir) {
           if (Files.isDirectory(file)) {
             nafToCoNLL2003(file);
-          } else {
-            if (!file.endsWith(".conll03")) {
-              Path outfile = Files
-                  .createFile(Paths.get(file.toString() + ".conll02"));
-              KAFDocument kaf = KAFDocument.createFromFile(file.toFile());
-              String outKAF = nafToCoNLLConvert2003(kaf);
-              Files.write(outfile, outKAF.getBytes());
-              System.err.println(">> Wrote CoNLL03 document to " + outfile);
-            }
+          } else if (isConverted(file)) {
+            nafFileToCoNLL2003(file);
           }
         }
       }
     }
   }
 
+  private static void nafFileToCoNLL2003(Path file) throws IOException {
+    Path outPath = Paths.get(file.toString() + ".conll03");
+    if (ConversionManifest.needsConversion(file, outPath)) {
+      Path outfile;
+      if (DocumentArchive.isArchive(file)) {
+        outfile = nafArchiveToCoNLL(file, outPath,
+            ConllUtils::nafToCoNLLConvert2003);
+      } else {
+        KAFDocument kaf = KAFDocument.createFromFile(file.toFile());
+        String outKAF = nafToCoNLLConvert2003(kaf);
+        outfile = OutputFiles.write(outPath, outKAF);
+      }
+      ConversionManifest.converted(file, outPath);
+      System.err.println(">> Wrote CoNLL03 document to " + outfile);
+    }
+  }
+
   /**
    * Output Conll2003 format.
    * 
@@ -172,80 +260,34 @@ public class ConllUtils {
    * @return the annotated named entities in conll03 format
    */
   public static String nafToCoNLLConvert2003(KAFDocument kaf) {
-    List<Entity> namedEntityList = kaf.getEntities();
-    Map<String, Integer> entityToSpanSize = new HashMap<>();
-    Map<String, String> entityToType = new HashMap<>();
-    for (Entity ne : namedEntityList) {
-      List<ixa.kaflib.Span<Term>> entitySpanList = ne.getSpans();
-      for (ixa.kaflib.Span<Term> spanTerm : entitySpanList) {
-        Term neTerm = spanTerm.getFirstTarget();
-        // create map from term Id to Entity span size
-        entityToSpanSize.put(neTerm.getId(), spanTerm.size());
-        // create map from term Id to Entity type
-        entityToType.put(neTerm.getId(), ne.getType());
-      }
-    }
-
-    List<List<WF>> sentences = kaf.getSentences();
+    SentenceIndex index = SentenceIndex.build(kaf);
+    SymbolTable symbols = SymbolTable.getShared();
     StringBuilder sb = new StringBuilder();
-    for (List<WF> sentence : sentences) {
-      int sentNumber = sentence.get(0).getSent();
-      List<Term> sentenceTerms = kaf.getSentenceTerms(sentNumber);
+    for (int s = 0; s < index.getNumberOfSentences(); s++) {
+      int sentenceEnd = index.getSentenceEnd(s);
       boolean previousIsEntity = false;
       String previousType = null;
-
-      for (int i = 0; i < sentenceTerms.size(); i++) {
-        Term thisTerm = sentenceTerms.get(i);
+      for (int i = index.getSentenceStart(s); i < sentenceEnd; i++) {
+        int neSpanSize = index.getEntitySpanSize(i);
         // if term is inside an entity span then annotate B-I entities
-        if (entityToSpanSize.get(thisTerm.getId()) != null) {
-          int neSpanSize = entityToSpanSize.get(thisTerm.getId());
-          String neClass = entityToType.get(thisTerm.getId());
-          String neType = convertToConLLTypes(neClass);
-          // if Entity span is multi token
-          if (neSpanSize > 1) {
-            for (int j = 0; j < neSpanSize; j++) {
-              thisTerm = sentenceTerms.get(i + j);
-              sb.append(thisTerm.getForm());
-              sb.append("\t");
-              sb.append(thisTerm.getLemma());
-              sb.append("\t");
-              sb.append(thisTerm.getMorphofeat());
-              sb.append("\t");
-              if (j == 0 && previousIsEntity
-                  && previousType.equalsIgnoreCase(neType)) {
-                sb.append(BIO.BEGIN.toString());
-              } else {
-                sb.append(BIO.IN.toString());
-              }
-              sb.append(neType);
-              sb.append("\n");
-            }
-            previousType = neType;
-          } else {
-            sb.append(thisTerm.getForm());
-            sb.append("\t");
-            sb.append(thisTerm.getLemma());
-            sb.append("\t");
-            sb.append(thisTerm.getMorphofeat());
-            sb.append("\t");
-            if (previousIsEntity && previousType.equalsIgnoreCase(neType)) {
-              sb.append(BIO.BEGIN.toString());
-            } else {
-              sb.append(BIO.IN.toString());
-            }
-            sb.append(neType);
+        if (neSpanSize > 0) {
+          String neType = index.getConllType(i);
+          // B- only for an entity right after another of the same type
+          boolean begin = previousIsEntity
+              && previousType.equalsIgnoreCase(neType);
+          // entity spans do not go beyond the sentence
+          neSpanSize = Math.min(neSpanSize, sentenceEnd - i);
+          for (int j = 0; j < neSpanSize; j++) {
+            appendTerm(sb, index.getTerm(i + j));
+            sb.append(j == 0 && begin ? symbols.getBegin(neType)
+                : symbols.getIn(neType));
             sb.append("\n");
           }
           previousIsEntity = true;
           previousType = neType;
           i += neSpanSize - 1;
         } else {
-          sb.append(thisTerm.getForm());
-          sb.append("\t");
-          sb.append(thisTerm.getLemma());
-          sb.append("\t");
-          sb.append(thisTerm.getMorphofeat());
-          sb.append("\t");
+          appendTerm(sb, index.getTerm(i));
           sb.append(BIO.OUT);
           sb.append("\n");
           previousIsEntity = false;
@@ -0,0 +1,291 @@
+/*
+ * Copyright 2018 Rodrigo Agerri
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package eus.ixa.ixa.pipe.convert;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.hash.Hashing;
+import com.google.common.io.MoreFiles;
+
+/**
+ * Manifest of the files converted by a run, which makes the directory
+ * converters incremental. For every input and output file converted it
+ * records the path, size and modification time (and optionally a hash of the
+ * content) of the input and the conversion options. An input whose entry for
+ * the output matches is not converted again; if the input or the options
+ * changed, or the output is missing, the output is removed and the input is
+ * converted again. Entries are kept per input and output, so that a manifest
+ * shared by several conversions of the same inputs, e.g., to CoNLL 2002 and
+ * to CoNLL 2003, never removes the output of another conversion. Entries are
+ * appended to the manifest as soon as each conversion finishes, so an
+ * interrupted run resumes where it stopped; the manifest is compacted when the
+ * run finishes. Incremental mode is off unless a manifest is opened.
+ *
+ * @author ragerri
+ * @version 2018-06-07
+ */
+public final class ConversionManifest {
+
+  private static final String HEADER = "# ixa-pipe-convert manifest: "
+      + "input\tsize\tmtime\thash\toptions\toutput";
+  private static final String NO_HASH = "-";
+
+  private static volatile ConversionManifest current;
+
+  private final Path manifestFile;
+  private final String options;
+  private final boolean checksum;
+  private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+  private final Writer log;
+  private final AtomicInteger converted = new AtomicInteger();
+  private final AtomicInteger unchanged = new AtomicInteger();
+
+  private ConversionManifest(Path manifestFile, String options,
+      boolean checksum) throws IOException {
+    this.manifestFile = manifestFile;
+    this.options = options;
+    this.checksum = checksum;
+    if (Files.isRegularFile(manifestFile)) {
+      try (BufferedReader breader = new BufferedReader(new InputStreamReader(
+          Files.newInputStream(manifestFile), StandardCharsets.UTF_8))) {
+        String line;
+        while ((line = breader.readLine()) != null) {
+          String[] fields = line.split("\t");
+          if (line.startsWith("#") || fields.length != 6) {
+            continue;
+          }
+          try {
+            Entry entry = new Entry(fields);
+            entries.put(entry.getKey(), entry);
+          } catch (NumberFormatException e) {
+            // an interrupted run can leave a truncated last line
+          }
+        }
+      }
+    }
+    boolean isNew = !Files.exists(manifestFile);
+    log = new BufferedWriter(new OutputStreamWriter(
+        Files.newOutputStream(manifestFile, StandardOpenOption.CREATE,
+            StandardOpenOption.APPEND),
+        StandardCharsets.UTF_8));
+    if (isNew) {
+      log.write(HEADER + "\n");
+      log.flush();
+    }
+  }
+
+  /**
+   * Turns on incremental mode for the rest of the run.
+   *
+   * @param manifestFile
+   *          the manifest, created if it does not exist
+   * @param options
+   *          the conversion options; inputs converted with other options
+   *          are converted again
+   * @param checksum
+   *          whether to compare a hash of the content of the inputs besides
+   *          their size and modification time
+   * @throws IOException
+   *           if the manifest cannot be read or written
+   */
+  public static synchronized void open(Path manifestFile, String options,
+      boolean checksum) throws IOException {
+    if (current != null) {
+      close();
+    }
+    current = new ConversionManifest(manifestFile, options.replace('\t', ' '),
+        checksum);
+  }
+
+  /**
+   * Finishes the run, compacting the manifest. Does nothing if incremental
+   * mode is off.
+   *
+   * @throws IOException
+   *           if the manifest cannot be written
+   */
+  public static synchronized void close() throws IOException {
+    if (current == null) {
+      return;
+    }
+    ConversionManifest manifest = current;
+    current = null;
+    manifest.log.close();
+    manifest.compact();
+    System.err.println("-> " + manifest.converted + " files converted, "
+        + manifest.unchanged + " unchanged files skipped");
+  }
+
+  /**
+   * Checks whether an input needs to be converted. In incremental mode, an
+   * input whose output is up to date is skipped, and the stale output of an
+   * input to be converted again is removed. Without a manifest every input is
+   * converted.
+   *
+   * @param input
+   *          the input file
+   * @param output
+   *          the output file, as requested to {@link OutputFiles}
+   * @return true if the input must be converted
+   * @throws IOException
+   *           if io problems
+   */
+  public static boolean needsConversion(Path input, Path output)
+      throws IOException {
+    ConversionManifest manifest = current;
+    if (manifest == null) {
+      return true;
+    }
+    return manifest.check(input, output);
+  }
+
+  /**
+   * Tells whether a file is the manifest of the run.
+   *
+   * @param file
+   *          the file
+   * @return true if incremental mode is on and the file is its manifest
+   */
+  public static boolean isManifest(Path file) {
+    ConversionManifest manifest = current;
+    return manifest != null && manifest.manifestFile.toAbsolutePath()
+        .normalize().equals(file.toAbsolutePath().normalize());
+  }
+
+  /**
+   * Records the conversion of an input. Does nothing if incremental mode is
+   * off.
+   *
+   * @param input
+   *          the input file
+   * @param output
+   *          the output file, as requested to {@link OutputFiles}
+   * @throws IOException
+   *           if the manifest cannot be written
+   */
+  public static void converted(Path input, Path output) throws IOException {
+    ConversionManifest manifest = current;
+    if (manifest != null) {
+      manifest.record(input, output);
+    }
+  }
+
+  private boolean check(Path input, Path output) throws IOException {
+    Entry entry = entries.get(getKey(input.toAbsolutePath().toString(),
+        output.toAbsolutePath().toString()));
+    if (entry != null && entry.options.equals(options)
+        && Files.exists(OutputFiles.getOutputPath(output))
+        && entry.size == Files.size(input)
+        && entry.mtime == Files.getLastModifiedTime(input).toMillis()
+        && (!checksum || entry.hash.equals(hash(input)))) {
+      unchanged.incrementAndGet();
+      return false;
+    }
+    // the stale output, or the partial output of an interrupted conversion
+    OutputFiles.delete(output);
+    return true;
+  }
+
+  private void record(Path input, Path output) throws IOException {
+    Entry entry = new Entry(input.toAbsolutePath().toString(),
+        Files.size(input), Files.getLastModifiedTime(input).toMillis(),
+        checksum ? hash(input) : NO_HASH, options,
+        output.toAbsolutePath().toString());
+    entries.put(entry.getKey(), entry);
+    synchronized (log) {
+      log.write(entry.toString());
+      log.write("\n");
+      log.flush();
+    }
+    converted.incrementAndGet();
+  }
+
+  private static String hash(Path input) throws IOException {
+    return MoreFiles.asByteSource(input).hash(Hashing.murmur3_128())
+        .toString();
+  }
+
+  /**
+   * Rewrites the manifest keeping only the last entry of each input and
+   * output.
+   */
+  private void compact() throws IOException {
+    Path tmpFile = Paths.get(manifestFile.toString() + ".tmp");
+    try (Writer writer = Files.newBufferedWriter(tmpFile,
+        StandardCharsets.UTF_8)) {
+      writer.write(HEADER + "\n");
+      for (Entry entry : entries.values()) {
+        writer.write(entry.toString());
+        writer.write("\n");
+      }
+    }
+    Files.move(tmpFile, manifestFile, StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  private static String getKey(String input, String output) {
+    return input + "\t" + output;
+  }
+
+  private static class Entry {
+    private final String input;
+    private final long size;
+    private final long mtime;
+    private final String hash;
+    private final String options;
+    private final String output;
+
+    Entry(String input, long size, long mtime, String hash, String options,
+        String output) {
+      this.input = input;
+      this.size = size;
+      this.mtime = mtime;
+      this.hash = hash;
+      this.options = options;
+      this.output = output;
+    }
+
+    Entry(String[] fields) {
+      this(fields[0], Long.parseLong(fields[1]), Long.parseLong(fields[2]),
+          fields[3], fields[4], fields[5]);
+    }
+
+    String getKey() {
+      return ConversionManifest.getKey(input, output);
+    }
+
+    @Override
+    public String toString() {
+      return input + "\t" + size + "\t" + mtime + "\t" + hash + "\t" + options
+          + "\t" + output;
+    }
+  }
+}
@@ -0,0 +1,672 @@
+/*
+ * Copyright 2018 Rodrigo Agerri
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package eus.ixa.ixa.pipe.convert;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.jdom2.Element;
+import org.jdom2.JDOMException;
+import org.jdom2.input.StAXStreamBuilder;
+
+/**
+ * Streaming conversion of a sequence of records (lines, files, XML elements,
+ * etc.). A {@link RecordReader} thread feeds the records to a chain of
+ * {@link Stage}s, each run by its own number of threads, and the results are
+ * passed to a {@link RecordSink} in the order in which the records were read.
+ * The stages are connected by bounded queues and the number of records in
+ * flight is limited, so that a slow stage or sink stops the reader instead of
+ * letting the records pile up in memory. The first error raised by the
+ * reader, a stage or the sink cancels the whole pipeline and is rethrown by
+ * {@link #run(RecordSink)}.
+ *
+ * <pre>
+ * ConversionPipeline.read(ConversionPipeline.lines(file))
+ *     .map(threads, line -&gt; convert(line))
+ *     .run(System.out::println);
+ * </pre>
+ *
+ * @author ragerri
+ * @version 2018-06-07
+ */
+public final class ConversionPipeline<T> {
+
+  /**
+   * Reads the records to convert.
+   */
+  public interface RecordReader<T> extends Closeable {
+    /**
+     * @return the next record, or null at the end of the input
+     * @throws IOException
+     *           if io problems
+     */
+    T read() throws IOException;
+  }
+
+  /**
+   * A transformation of the records. The same stage is called concurrently
+   * by all the threads of the stage unless it was added with
+   * {@link ConversionPipeline#mapPerThread(int, StageFactory)}.
+   */
+  public interface Stage<I, O> {
+    /**
+     * @param record
+     *          the input record
+     * @return the output record, or null to drop the record
+     * @throws Exception
+     *           if the record cannot be converted; it cancels the pipeline
+     */
+    O apply(I record) throws Exception;
+  }
+
+  /**
+   * Creates the stage of each thread of a stage added with
+   * {@link ConversionPipeline#mapPerThread(int, StageFactory)}.
+   */
+  public interface StageFactory<I, O> {
+    /**
+     * @return a new stage
+     * @throws Exception
+     *           if the stage cannot be created; it cancels the pipeline
+     */
+    Stage<? super I, ? extends O> create() throws Exception;
+  }
+
+  /**
+   * Receives the converted records in input order, always from the thread
+   * which runs the pipeline.
+   */
+  public interface RecordSink<T> {
+    /**
+     * @param record
+     *          the converted record
+     * @throws IOException
+     *           if io problems; it cancels the pipeline
+     */
+    void accept(T record) throws IOException;
+  }
+
+  private static final int DEFAULT_QUEUE_SIZE = 64;
+  private static final XMLInputFactory inputFactory = XMLInputFactory
+      .newInstance();
+  static {
+    inputFactory.setProperty(XMLInputFactory.IS_COALESCING, true);
+    inputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+    inputFactory.setProperty(
+        XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+  }
+
+  private static volatile int defaultThreads = 1;
+
+  private final Plan plan;
+
+  private ConversionPipeline(Plan plan) {
+    this.plan = plan;
+  }
+
+  /**
+   * Sets the number of threads of the stages of the converters which do not
+   * ask for a specific number, as given by the --threads option.
+   *
+   * @param threads
+   *          the number of threads
+   */
+  public static void setThreads(int threads) {
+    if (threads < 1) {
+      throw new IllegalArgumentException("threads must be positive");
+    }
+    defaultThreads = threads;
+  }
+
+  /**
+   * @return the default number of threads of the stages
+   */
+  public static int getThreads() {
+    return defaultThreads;
+  }
+
+  /**
+   * Starts a pipeline.
+   *
+   * @param reader
+   *          the reader of the records, closed when the pipeline finishes
+   * @return the pipeline
+   */
+  public static <T> ConversionPipeline<T> read(RecordReader<T> reader) {
+    return new ConversionPipeline<>(new Plan(reader));
+  }
+
+  /**
+   * Adds a stage shared by all its threads, which must then be thread safe.
+   *
+   * @param threads
+   *          the number of threads running the stage
+   * @param stage
+   *          the stage
+   * @return the pipeline producing the output of the stage
+   */
+  public <O> ConversionPipeline<O> map(int threads,
+      Stage<? super T, ? extends O> stage) {
+    return mapPerThread(threads, () -> stage);
+  }
+
+  /**
+   * Adds a stage of which every thread gets its own instance, for stages
+   * keeping state which is not thread safe, such as parsers or classifiers.
+   *
+   * @param threads
+   *          the number of threads running the stage
+   * @param stageFactory
+   *          creates the stage of each thread
+   * @return the pipeline producing the output of the stage
+   */
+  @SuppressWarnings("unchecked")
+  public <O> ConversionPipeline<O> mapPerThread(int threads,
+      StageFactory<T, O> stageFactory) {
+    if (threads < 1) {
+      throw new IllegalArgumentException("threads must be positive");
+    }
+    plan.stages.add(new StageSpec(threads,
+        (StageFactory<Object, Object>) (StageFactory<?, ?>) stageFactory));
+    return new ConversionPipeline<>(plan);
+  }
+
+  /**
+   * Sets the capacity of the queues between the stages.
+   *
+   * @param queueSize
+   *          the capacity, in records
+   * @return this pipeline
+   */
+  public ConversionPipeline<T> queueSize(int queueSize) {
+    if (queueSize < 1) {
+      throw new IllegalArgumentException("queueSize must be positive");
+    }
+    plan.queueSize = queueSize;
+    return this;
+  }
+
+  /**
+   * Reports the progress of the conversion in the standard error.
+   *
+   * @param unit
+   *          the name of the records, e.g., "documents"
+   * @param interval
+   *          the number of records between reports
+   * @return this pipeline
+   */
+  public ConversionPipeline<T> progress(String unit, long interval) {
+    plan.progressUnit = unit;
+    plan.progressInterval = interval;
+    return this;
+  }
+
+  /**
+   * Runs the pipeline until every record has been passed to the sink.
+   *
+   * @param sink
+   *          the sink of the converted records
+   * @throws IOException
+   *           the first error of the reader, the stages or the sink, or an
+   *           {@link InterruptedIOException} if the pipeline was cancelled
+   */
+  @SuppressWarnings("unchecked")
+  public void run(RecordSink<? super T> sink) throws IOException {
+    plan.execute((RecordSink<Object>) sink);
+  }
+
+  /**
+   * Runs the pipeline discarding the output of the last stage, for
+   * pipelines whose stages write their own output.
+   *
+   * @throws IOException
+   *           as in {@link #run(RecordSink)}
+   */
+  public void run() throws IOException {
+    run(record -> {
+    });
+  }
+
+  /**
+   * Stops a running pipeline, from any thread. {@link #run(RecordSink)} then
+   * throws an {@link InterruptedIOException}.
+   */
+  public void cancel() {
+    plan.cancel();
+  }
+
+  /**
+   * Reads the lines of a UTF-8 file.
+   *
+   * @param file
+   *          the file
+   * @return the reader
+   * @throws IOException
+   *           if the file cannot be opened
+   */
+  public static RecordReader<String> lines(Path file) throws IOException {
+    BufferedReader breader = new BufferedReader(new InputStreamReader(
+        Files.newInputStream(file), StandardCharsets.UTF_8), 1 << 16);
+    return new RecordReader<String>() {
+      @Override
+      public String read() throws IOException {
+        return breader.readLine();
+      }
+
+      @Override
+      public void close() throws IOException {
+        breader.close();
+      }
+    };
+  }
+
+  /**
+   * Groups the records of a reader in batches, so that the stages process
+   * several records at a time.
+   *
+   * @param reader
+   *          the reader of the records
+   * @param batchSize
+   *          the number of records of every batch but the last one
+   * @return the reader of the batches
+   */
+  public static <T> RecordReader<List<T>> batches(RecordReader<T> reader,
+      int batchSize) {
+    if (batchSize < 1) {
+      throw new IllegalArgumentException("batchSize must be positive");
+    }
+    return new RecordReader<List<T>>() {
+      @Override
+      public List<T> read() throws IOException {
+        List<T> batch = new ArrayList<>(batchSize);
+        T record;
+        while (batch.size() < batchSize && (record = reader.read()) != null) {
+          batch.add(record);
+        }
+        return batch.isEmpty() ? null : batch;
+      }
+
+      @Override
+      public void close() throws IOException {
+        reader.close();
+      }
+    };
+  }
+
+  /**
+   * Lists the regular files accepted by a filter, recursively if the input
+   * is a directory.
+   *
+   * @param input
+   *          a file or a directory
+   * @param filter
+   *          the files to read
+   * @return the reader
+   * @throws IOException
+   *           if the directory cannot be read
+   */
+  public static RecordReader<Path> files(Path input, Predicate<Path> filter)
+      throws IOException {
+    Stream<Path> files = Files.walk(input)
+        .filter(file -> Files.isRegularFile(file) && filter.test(file));
+    Iterator<Path> iterator = files.iterator();
+    return new RecordReader<Path>() {
+      @Override
+      public Path read() throws IOException {
+        return iterator.hasNext() ? iterator.next() : null;
+      }
+
+      @Override
+      public void close() {
+        files.close();
+      }
+    };
+  }
+
+  /**
+   * Reads the elements with a given name of a XML document, one at a time,
+   * so that the document is never fully loaded. Nested elements with the
+   * same name are returned as part of the outer element.
+   *
+   * @param xmlFile
+   *          the XML document
+   * @param name
+   *          the local name of the elements
+   * @return the reader
+   * @throws IOException
+   *           if the document cannot be opened
+   */
+  public static RecordReader<Element> elements(Path xmlFile, String name)
+      throws IOException {
+    InputStream inputStream = new BufferedInputStream(
+        Files.newInputStream(xmlFile), 1 << 16);
+    XMLStreamReader reader;
+    try {
+      reader = inputFactory.createXMLStreamReader(inputStream);
+    } catch (XMLStreamException e) {
+      inputStream.close();
+      throw new IOException("Error reading XML document " + xmlFile, e);
+    }
+    StAXStreamBuilder builder = new StAXStreamBuilder();
+    return new RecordReader<Element>() {
+      private boolean advance = true;
+
+      @Override
+      public Element read() throws IOException {
+        try {
+          while (true) {
+            if (advance) {
+              if (!reader.hasNext()) {
+                return null;
+              }
+              reader.next();
+            }
+            advance = true;
+            if (reader.getEventType() == XMLStreamConstants.START_ELEMENT
+                && reader.getLocalName().equals(name)) {
+              Element element = (Element) builder.fragment(reader);
+              // the builder may leave the reader on the next element already
+              advance = reader
+                  .getEventType() != XMLStreamConstants.START_ELEMENT;
+              return element;
+            }
+          }
+        } catch (XMLStreamException | JDOMException e) {
+          throw new IOException("Error reading XML document " + xmlFile, e);
+        }
+      }
+
+      @Override
+      public void close() throws IOException {
+        try {
+          reader.close();
+        } catch (XMLStreamException e) {
+          throw new IOException(e);
+        } finally {
+          inputStream.close();
+        }
+      }
+    };
+  }
+
+  private static final class StageSpec {
+    private final int threads;
+    private final StageFactory<Object, Object> factory;
+
+    StageSpec(int threads, StageFactory<Object, Object> factory) {
+      this.threads = threads;
+      this.factory = factory;
+    }
+  }
+
+  /**
+   * A record and its position in the input; a null value is a dropped
+   * record, which still has to be accounted for by the sink.
+   */
+  private static final class Item {
+    private final long seq;
+    private Object value;
+
+    Item(long seq, Object value) {
+      this.seq = seq;
+      this.value = value;
+    }
+  }
+
+  private static final Item END = new Item(-1, null);
+
+  /**
+   * The reader and stages of a pipeline and the state of its execution.
+   */
+  private static final class Plan {
+    private final RecordReader<?> reader;
+    private final List<StageSpec> stages = new ArrayList<>();
+    private int queueSize = DEFAULT_QUEUE_SIZE;
+    private String progressUnit;
+    private long progressInterval;
+
+    private final List<Thread> threads = new ArrayList<>();
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+    private boolean running;
+    private boolean cancelled;
+
+    Plan(RecordReader<?> reader) {
+      this.reader = reader;
+    }
+
+    void execute(RecordSink<Object> sink) throws IOException {
+      List<BlockingQueue<Item>> queues = new ArrayList<>();
+      int workers = 0;
+      for (int i = 0; i <= stages.size(); i++) {
+        queues.add(new ArrayBlockingQueue<>(queueSize));
+      }
+      for (StageSpec stage : stages) {
+        workers += stage.threads;
+      }
+      // the records in the queues, the stages and waiting to be sunk in order
+      Semaphore inFlight = new Semaphore(
+          queueSize * (stages.size() + 1) + workers);
+      synchronized (this) {
+        if (running) {
+          throw new IllegalStateException("The pipeline is already running");
+        }
+        threads.clear();
+        threads.add(Thread.currentThread());
+        threads.add(newThread("convert-reader",
+            () -> readRecords(queues.get(0), inFlight)));
+        for (int i = 0; i < stages.size(); i++) {
+          StageSpec stage = stages.get(i);
+          AtomicInteger remaining = new AtomicInteger(stage.threads);
+          for (int j = 0; j < stage.threads; j++) {
+            BlockingQueue<Item> in = queues.get(i);
+            BlockingQueue<Item> out = queues.get(i + 1);
+            threads.add(newThread("convert-stage" + (i + 1) + "-" + (j + 1),
+                () -> runStage(stage, in, out, remaining)));
+          }
+        }
+        running = true;
+        if (cancelled) {
+          fail(new InterruptedIOException("Conversion cancelled"));
+        }
+        for (Thread thread : threads.subList(1, threads.size())) {
+          thread.start();
+        }
+      }
+      long converted = 0;
+      try {
+        converted = sinkRecords(queues.get(stages.size()), inFlight, sink);
+      } catch (InterruptedException e) {
+        fail(new InterruptedIOException("Conversion cancelled"));
+      } catch (Throwable e) {
+        fail(e);
+      } finally {
+        finish();
+      }
+      Throwable error = failure.get();
+      if (error == null) {
+        if (progressUnit != null) {
+          System.err.println("-> " + converted + " " + progressUnit
+              + " converted");
+        }
+        return;
+      }
+      if (error instanceof IOException) {
+        throw (IOException) error;
+      } else if (error instanceof RuntimeException) {
+        throw (RuntimeException) error;
+      } else if (error instanceof Error) {
+        throw (Error) error;
+      }
+      throw new IOException(error);
+    }
+
+    private Thread newThread(String name, Runnable task) {
+      Thread thread = new Thread(task, name);
+      thread.setDaemon(true);
+      return thread;
+    }
+
+    private void readRecords(BlockingQueue<Item> out, Semaphore inFlight) {
+      try (RecordReader<?> input = reader) {
+        long seq = 0;
+        Object record;
+        while ((record = input.read()) != null) {
+          inFlight.acquire();
+          out.put(new Item(seq++, record));
+        }
+        out.put(END);
+      } catch (InterruptedException e) {
+        // cancelled
+      } catch (Throwable e) {
+        fail(e);
+      }
+    }
+
+    private void runStage(StageSpec spec, BlockingQueue<Item> in,
+        BlockingQueue<Item> out, AtomicInteger remaining) {
+      try {
+        Stage<? super Object, ?> stage = spec.factory.create();
+        while (true) {
+          Item item = in.take();
+          if (item == END) {
+            // leave it for the other threads of the stage
+            in.put(END);
+            if (remaining.decrementAndGet() == 0) {
+              out.put(END);
+            }
+            return;
+          }
+          if (item.value != null) {
+            item.value = stage.apply(item.value);
+          }
+          out.put(item);
+        }
+      } catch (InterruptedException e) {
+        // cancelled
+      } catch (Throwable e) {
+        fail(e);
+      }
+    }
+
+    private long sinkRecords(BlockingQueue<Item> in, Semaphore inFlight,
+        RecordSink<Object> sink) throws InterruptedException, IOException {
+      Map<Long, Item> pending = new HashMap<>();
+      long next = 0;
+      long converted = 0;
+      while (true) {
+        Item item = in.take();
+        if (item == END) {
+          return converted;
+        }
+        if (item.seq != next) {
+          pending.put(item.seq, item);
+          continue;
+        }
+        do {
+          if (item.value != null) {
+            sink.accept(item.value);
+            converted++;
+            if (progressUnit != null && progressInterval > 0
+                && converted % progressInterval == 0) {
+              System.err.println("-> " + converted + " " + progressUnit
+                  + " converted");
+            }
+          }
+          inFlight.release();
+          next++;
+        } while ((item = pending.remove(next)) != null);
+      }
+    }
+
+    private void fail(Throwable e) {
+      if (failure.compareAndSet(null, e)) {
+        cancel();
+      }
+    }
+
+    synchronized void cancel() {
+      cancelled = true;
+      if (running) {
+        failure.compareAndSet(null,
+            new InterruptedIOException("Conversion cancelled"));
+        for (Thread thread : threads) {
+          thread.interrupt();
+        }
+      }
+    }
+
+    /**
+     * Stops and waits for the threads of the pipeline, which are only still
+     * running if it failed or was cancelled.
+     */
+    private void finish() {
+      List<Thread> started;
+      synchronized (this) {
+        started = new ArrayList<>(threads.subList(1, threads.size()));
+      }
+      if (failure.get() != null) {
+        for (Thread thread : started) {
+          thread.interrupt();
+        }
+      }
+      boolean interrupted = false;
+      for (Thread thread : started) {
+        while (thread.isAlive()) {
+          try {
+            thread.join();
+          } catch (InterruptedException e) {
+            interrupted = true;
+          }
+        }
+      }
+      synchronized (this) {
+        running = false;
+        threads.clear();
+        // the interruption used to stop this thread when cancelling
+        Thread.interrupted();
+      }
+      if (interrupted && failure.get() == null) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+}
@@ -0,0 +1,284 @@
+/*
+ * Copyright 2018 Rodrigo Agerri
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package eus.ixa.ixa.pipe.convert;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Registry of the conversions between formats through in-memory document
+ * models, e.g., a NAF document. Each format class declares readers, from a
+ * file in its format to a model, and writers, from a model to its format;
+ * transforms convert between models. A conversion from one format to another
+ * is planned as the shortest chain reader, transforms, writer, and run in
+ * one process handing the models from step to step without serializing
+ * them.
+ *
+ * @author ragerri
+ * @version 2018-06-07
+ */
+public final class ConversionRegistry {
+
+  /**
+   * The NAF document model, a {@code KAFDocument} with text and terms.
+   */
+  public static final String NAF = "naf";
+  /**
+   * The raw NAF document model, a {@code KAFDocument} with raw text only.
+   */
+  public static final String RAW_NAF = "rawnaf";
+
+  /**
+   * A step of a conversion.
+   *
+   * @param <I>
+   *          the input of the step
+   * @param <O>
+   *          the output of the step
+   */
+  @FunctionalInterface
+  public interface Step<I, O> {
+    /**
+     * @param input
+     *          the input file or model
+     * @param language
+     *          the language of the documents
+     * @return the output model or text
+     * @throws IOException
+     *           if io problems
+     */
+    O apply(I input, String language) throws IOException;
+  }
+
+  private static class Edge {
+    private final String from;
+    private final String to;
+    private final boolean reader;
+    private final Step<Object, Object> step;
+
+    @SuppressWarnings("unchecked")
+    Edge(String from, String to, boolean reader, Step<?, ?> step) {
+      this.from = from;
+      this.to = to;
+      this.reader = reader;
+      this.step = (Step<Object, Object>) step;
+    }
+  }
+
+  private final Map<String, List<Edge>> readers = new LinkedHashMap<>();
+  private final Map<String, List<Edge>> transforms = new LinkedHashMap<>();
+  private final Map<String, Map<String, Edge>> writers = new LinkedHashMap<>();
+
+  /**
+   * Creates an empty registry.
+   */
+  public ConversionRegistry() {
+  }
+
+  /**
+   * Creates a registry with the conversions declared by the format classes.
+   *
+   * @return the registry
+   */
+  public static ConversionRegistry createDefault() {
+    ConversionRegistry registry = new ConversionRegistry();
+    NAFUtils.registerConversions(registry);
+    ConllUtils.registerConversions(registry);
+    AbsaSemEval.registerConversions(registry);
+    DSRCCorpus.registerConversions(registry);
+    TimeMLFormat.registerConversions(registry);
+    return registry;
+  }
+
+  /**
+   * Registers a reader of files in a format into a model.
+   *
+   * @param format
+   *          the format of the files
+   * @param model
+   *          the model created
+   * @param step
+   *          the reader
+   */
+  public <O> void registerReader(String format, String model,
+      Step<Path, O> step) {
+    readers.computeIfAbsent(format, k -> new ArrayList<>())
+        .add(new Edge(format, model, true, step));
+  }
+
+  /**
+   * Registers a transform from a model to another.
+   *
+   * @param from
+   *          the input model
+   * @param to
+   *          the output model
+   * @param step
+   *          the transform
+   */
+  public <I, O> void registerTransform(String from, String to,
+      Step<I, O> step) {
+    transforms.computeIfAbsent(from, k -> new ArrayList<>())
+        .add(new Edge(from, to, false, step));
+  }
+
+  /**
+   * Registers a writer of a model into a format.
+   *
+   * @param model
+   *          the model written
+   * @param format
+   *          the format written
+   * @param step
+   *          the writer, which returns the text of the output
+   */
+  public <I> void registerWriter(String model, String format,
+      Step<I, String> step) {
+    writers.computeIfAbsent(model, k -> new LinkedHashMap<>()).put(format,
+        new Edge(model, format, false, step));
+  }
+
+  /**
+   * @return the formats which can be read
+   */
+  public Set<String> getInputFormats() {
+    return new TreeSet<>(readers.keySet());
+  }
+
+  /**
+   * @return the formats which can be written
+   */
+  public Set<String> getOutputFormats() {
+    Set<String> formats = new TreeSet<>();
+    for (Map<String, Edge> modelWriters : writers.values()) {
+      formats.addAll(modelWriters.keySet());
+    }
+    return formats;
+  }
+
+  /**
+   * Plans the shortest conversion between two formats.
+   *
+   * @param from
+   *          the input format
+   * @param to
+   *          the output format
+   * @return the steps of the conversion, a reader, zero or more transforms
+   *         and a writer, or an empty list if there is no conversion
+   */
+  private List<Edge> plan(String from, String to) {
+    // breadth first search over the models, from those read from the input
+    Map<String, Edge> reachedBy = new HashMap<>();
+    Deque<String> queue = new ArrayDeque<>();
+    for (Edge reader : readers.getOrDefault(from,
+        Collections.<Edge> emptyList())) {
+      if (reachedBy.putIfAbsent(reader.to, reader) == null) {
+        queue.add(reader.to);
+      }
+    }
+    while (!queue.isEmpty()) {
+      String model = queue.poll();
+      Edge writer = writers.getOrDefault(model,
+          Collections.<String, Edge> emptyMap()).get(to);
+      if (writer != null) {
+        List<Edge> steps = new ArrayList<>();
+        steps.add(writer);
+        Edge edge = reachedBy.get(model);
+        steps.add(edge);
+        while (!edge.reader) {
+          edge = reachedBy.get(edge.from);
+          steps.add(edge);
+        }
+        Collections.reverse(steps);
+        return steps;
+      }
+      for (Edge transform : transforms.getOrDefault(model,
+          Collections.<Edge> emptyList())) {
+        if (reachedBy.putIfAbsent(transform.to, transform) == null) {
+          queue.add(transform.to);
+        }
+      }
+    }
+    return Collections.emptyList();
+  }
+
+  /**
+   * Describes the conversion between two formats.
+   *
+   * @param from
+   *          the input format
+   * @param to
+   *          the output format
+   * @return the formats and models of the conversion, e.g., absa2015 -&gt;
+   *         naf -&gt; conll02
+   * @throws IllegalArgumentException
+   *           if there is no conversion
+   */
+  public String describe(String from, String to) {
+    StringBuilder sb = new StringBuilder(from);
+    for (Edge step : getPlan(from, to)) {
+      sb.append(" -> ").append(step.to);
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Converts a file from a format to another in memory.
+   *
+   * @param from
+   *          the input format
+   * @param to
+   *          the output format
+   * @param input
+   *          the input file
+   * @param language
+   *          the language of the documents
+   * @return the text of the output
+   * @throws IOException
+   *           if io problems
+   * @throws IllegalArgumentException
+   *           if there is no conversion
+   */
+  public String convert(String from, String to, Path input, String language)
+      throws IOException {
+    Object value = input;
+    for (Edge step : getPlan(from, to)) {
+      value = step.step.apply(value, language);
+    }
+    return (String) value;
+  }
+
+  private List<Edge> getPlan(String from, String to) {
+    List<Edge> steps = plan(from, to);
+    if (steps.isEmpty()) {
+      throw new IllegalArgumentException("No conversion from " + from
+          + " to " + to + "; input formats: " + getInputFormats()
+          + ", output formats: " + getOutputFormats());
+    }
+    return steps;
+  }
+}
@@ -16,27 +16,33 @@
 
 package eus.ixa.ixa.pipe.convert;
 
-import com.google.common.collect.ArrayListMultimap;
-import com.google.common.collect.ListMultimap;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import eus.ixa.ixa.pipe.convert.ConversionPipeline.RecordReader;
 import eus.ixa.ixa.pipe.ml.tok.RuleBasedSegmenter;
 import eus.ixa.ixa.pipe.ml.utils.StringUtils;
-import ixa.kaflib.Entity;
 import ixa.kaflib.KAFDocument;
-import ixa.kaflib.Term;
-import ixa.kaflib.WF;
-import opennlp.tools.cmdline.CmdLineUtil;
 import opennlp.tools.postag.POSDictionary;
 
 import java.io.*;
+import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.regex.Pattern;
 
 /**
@@ -54,6 +60,14 @@ public class Convert {
   public static Pattern detokenizeTargets = Pattern.compile(
       "<\\s+START\\s+:\\s+target\\s+>", Pattern.UNICODE_CHARACTER_CLASS);
   public static Pattern detokenizeEnds = Pattern.compile("<\\s+END\\s+>");
+  /**
+   * Number of lines processed by each SES worker task.
+   */
+  private static final int SES_BATCH_SIZE = 10000;
+  /**
+   * Extension of the files written by the Brown cluster casing filter.
+   */
+  private static final String CLEAN_EXTENSION = ".clean";
 
   /**
    * Remove named entity related layers in NAF.
@@ -91,13 +105,12 @@ public class Convert {
   private static void removeEntityLayer(Path inFile) {
     KAFDocument kaf;
     try {
-      Path outfile = Files
-          .createFile(Paths.get(inFile.toString() + ".tok.naf"));
       kaf = KAFDocument.createFromFile(inFile.toFile());
       // kaf.removeLayer(Layer.entities); kaf.removeLayer(Layer.constituency);
       // kaf.removeLayer(Layer.coreferences); kaf.removeLayer(Layer.chunks);
       // kaf.removeLayer(Layer.deps);
-      Files.write(outfile, kaf.toString().getBytes(StandardCharsets.UTF_8));
+      Path outfile = OutputFiles.writeDocument(
+          Paths.get(inFile.toString() + ".tok.naf"), kaf.toString());
       System.err
           .println(">> Wrote KAF document without entities to " + outfile);
     } catch (IOException e) {
@@ -135,31 +148,37 @@ public class Convert {
    * Print terms in NAF.
    *
    * @param inFile
-   *          the NAF document
+   *          the NAF document or container of NAF documents
    */
   public static void printTerms(Path inFile) {
-    KAFDocument kaf = null;
-    try {
-      kaf = KAFDocument.createFromFile(inFile.toFile());
+    try (RecordReader<NAFReader> documents = NAFReader.readAll(inFile,
+        NAFReader.Layer.TERMS)) {
+      NAFReader naf;
+      while ((naf = documents.read()) != null) {
+        printTerms(naf);
+      }
     } catch (IOException e) {
       e.printStackTrace();
     }
-    assert kaf != null;
-    final List<List<WF>> sentences = kaf.getSentences();
-    for (final List<WF> wfs : sentences) {
-      final List<String> wfIds = new ArrayList<>();
-      for (int i = 0; i < wfs.size(); i++) {
-        wfIds.add(wfs.get(i).getId());
-      }
-      List<Term> termList = kaf.getTermsFromWFs(wfIds);
-      for (Term term : termList) {
+  }
+
+  private static void printTerms(NAFReader naf) {
+    final Map<Integer, List<NAFReader.Term>> termsBySent = new HashMap<>();
+    for (NAFReader.Term term : naf.getTerms()) {
+      termsBySent.computeIfAbsent(term.getSent(), k -> new ArrayList<>())
+          .add(term);
+    }
+    final List<List<NAFReader.WordForm>> sentences = naf.getSentences();
+    for (final List<NAFReader.WordForm> wfs : sentences) {
+      List<NAFReader.Term> termList = termsBySent.getOrDefault(
+          wfs.get(0).getSent(), Collections.emptyList());
+      for (NAFReader.Term term : termList) {
         System.out.println(term.getForm() + "\t" + term.getMorphofeat() + "\t" + term.getLemma());
       }
       System.out.println();
     }
   }
 
-
   /**
    * Extract entities in NAF.
    * 
@@ -190,24 +209,25 @@ public class Convert {
    * Print entities in NAF.
    * 
    * @param inFile
-   *          the NAF document
+   *          the NAF document or container of NAF documents
    */
   public static void printEntities(Path inFile) {
-    KAFDocument kaf = null;
-    try {
-      kaf = KAFDocument.createFromFile(inFile.toFile());
+    try (RecordReader<NAFReader> documents = NAFReader.readAll(inFile,
+        NAFReader.Layer.TEXT)) {
+      NAFReader naf;
+      while ((naf = documents.read()) != null) {
+        printEntities(naf);
+      }
     } catch (IOException e) {
       e.printStackTrace();
     }
-    /*List<Entity> entityList = kaf.getEntities();
-    for (Entity entity : entityList) {
-      System.out.println(entity.getStr() + "\t" + entity.getType());
-    }*/
-    assert kaf != null;
-    List<List<WF>> tokenList = kaf.getSentences();
-    for (List<WF> sentence : tokenList) {
+  }
+
+  private static void printEntities(NAFReader naf) {
+    List<List<NAFReader.WordForm>> tokenList = naf.getSentences();
+    for (List<NAFReader.WordForm> sentence : tokenList) {
       StringBuilder sb = new StringBuilder();
-      for (WF wf : sentence) {
+      for (NAFReader.WordForm wf : sentence) {
         sb.append(wf.getForm()).append(" ");
       }
       System.out.println(sb.toString());
@@ -241,20 +261,25 @@ public class Convert {
    * Print entities that contain an external resource link in NAF.
    * 
    * @param inFile
-   *          the NAF document
+   *          the NAF document or container of NAF documents
    */
   public static void printNEDEntities(Path inFile) {
-    KAFDocument kaf = null;
-    try {
-      kaf = KAFDocument.createFromFile(inFile.toFile());
+    try (RecordReader<NAFReader> documents = NAFReader.readAll(inFile,
+        NAFReader.Layer.ENTITIES)) {
+      NAFReader naf;
+      while ((naf = documents.read()) != null) {
+        printNEDEntities(naf);
+      }
     } catch (IOException e) {
       e.printStackTrace();
     }
-    assert kaf != null;
-    List<Entity> entityList = kaf.getEntities();
-    for (Entity entity : entityList) {
-      if (entity.getExternalRefs().size() > 0)
-        System.out.println(entity.getExternalRefs().get(0).getReference());
+  }
+
+  private static void printNEDEntities(NAFReader naf) {
+    List<NAFReader.Entity> entityList = naf.getEntities();
+    for (NAFReader.Entity entity : entityList) {
+      if (entity.getExternalReferences().size() > 0)
+        System.out.println(entity.getExternalReferences().get(0));
     }
   }
 
@@ -285,175 +310,363 @@ public class Convert {
     return sb.toString();
   }
 
-
   /**
-   * Convert a lemma dictionary (word lemma postag) into a
-   * {@code POSTaggerDictionary}.
+   * Get the SES required to go from a word to a lemma reading the input file
+   * line by line. Scripts are memoized in a bounded cache shared by the worker
+   * threads, which process batches of whole sentences. Batches are written in
+   * input order and the cache hit rate and throughput are reported at the
+   * end.
    * 
-   * @param lemmaDict
-   *          the input file
+   * @param inputFile
+   *          a file containing word, postag and lemma in tabulated format
+   * @param writer
+   *          the output
+   * @param threads
+   *          the number of worker threads
+   * @param cacheSize
+   *          the maximum number of (word, lemma) scripts to keep
+   * @return the number of lines read
    * @throws IOException
    *           if io problems
    */
-  public static void createMonosemicDictionary(Path lemmaDict)
-      throws IOException {
-    // process one file
-    if (Files.isRegularFile(lemmaDict)) {
-      List<String> inputLines = Files.readAllLines(lemmaDict,
-          StandardCharsets.UTF_8);
-      getMonosemicDict(inputLines);
-    } else {
+  public static long getSES(Path inputFile, Writer writer, int threads,
+      long cacheSize) throws IOException {
+    if (!Files.isRegularFile(inputFile)) {
       System.out.println("Please choose a valid file as input.");
       System.exit(1);
     }
+    if (threads < 1) {
+      throw new IllegalArgumentException("threads must be positive");
+    }
+    final Cache<String, String> sesCache = CacheBuilder.newBuilder()
+        .maximumSize(cacheSize).recordStats().build();
+    final ThreadLocal<ShortestEditScript> sesBuilder = ThreadLocal
+        .withInitial(ShortestEditScript::new);
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    Deque<Future<String>> batches = new ArrayDeque<>();
+    long noLines = 0;
+    long start = System.nanoTime();
+    try (BufferedReader breader = new BufferedReader(new InputStreamReader(
+        Files.newInputStream(inputFile), StandardCharsets.UTF_8))) {
+      List<String> batch = new ArrayList<>();
+      String line;
+      while ((line = breader.readLine()) != null) {
+        batch.add(line);
+        noLines++;
+        // batches end at sentence boundaries unless a sentence is huge
+        if ((batch.size() >= SES_BATCH_SIZE && line.indexOf('\t') == -1)
+            || batch.size() >= 4 * SES_BATCH_SIZE) {
+          final List<String> lines = batch;
+          batches.add(executor
+              .submit(() -> getSESBatch(lines, sesCache, sesBuilder.get())));
+          batch = new ArrayList<>();
+          while (batches.size() > 2 * threads) {
+            writer.write(getBatch(batches.poll()));
+          }
+        }
+      }
+      if (!batch.isEmpty()) {
+        final List<String> lines = batch;
+        batches.add(executor
+            .submit(() -> getSESBatch(lines, sesCache, sesBuilder.get())));
+      }
+      while (!batches.isEmpty()) {
+        writer.write(getBatch(batches.poll()));
+      }
+      writer.flush();
+    } finally {
+      executor.shutdownNow();
+    }
+    double seconds = (System.nanoTime() - start) / 1e9;
+    CacheStats stats = sesCache.stats();
+    System.err.println(String.format(
+        ">> SES for %d lines in %.2f s (%.0f lines/s) with %d threads",
+        noLines, seconds, noLines / seconds, threads));
+    System.err.println(String.format(
+        ">> SES cache hit rate %.2f%% (%d hits, %d misses, %d evictions)",
+        stats.hitRate() * 100, stats.hitCount(), stats.missCount(),
+        stats.evictionCount()));
+    return noLines;
+  }
+
+  /**
+   * Measures the throughput of {@link #getSES(Path, Writer, int, long)} with
+   * each number of threads, discarding the scripts. A first unreported run
+   * with the first number of threads warms up the JVM, and every run starts
+   * with an empty cache.
+   *
+   * @param inputFile
+   *          a file containing word, postag and lemma in tabulated format
+   * @param threadCounts
+   *          the numbers of worker threads compared
+   * @param cacheSize
+   *          the maximum number of (word, lemma) scripts to keep
+   * @throws IOException
+   *           if io problems
+   */
+  public static void benchmarkSES(Path inputFile, List<Integer> threadCounts,
+      long cacheSize) throws IOException {
+    Writer discard = new Writer() {
+      @Override
+      public void write(char[] cbuf, int off, int len) {
+      }
+
+      @Override
+      public void write(String str) {
+      }
+
+      @Override
+      public void flush() {
+      }
+
+      @Override
+      public void close() {
+      }
+    };
+    getSES(inputFile, discard, threadCounts.get(0), cacheSize);
+    double[] linesPerSecond = new double[threadCounts.size()];
+    for (int i = 0; i < threadCounts.size(); i++) {
+      long start = System.nanoTime();
+      long noLines = getSES(inputFile, discard, threadCounts.get(i),
+          cacheSize);
+      linesPerSecond[i] = noLines / ((System.nanoTime() - start) / 1e9);
+    }
+    System.err.println(">> SES benchmark of " + inputFile);
+    for (int i = 0; i < threadCounts.size(); i++) {
+      System.err.println(String.format(
+          ">> %3d threads: %12.0f lines/s, %5.2fx the first run",
+          threadCounts.get(i), linesPerSecond[i],
+          linesPerSecond[i] / linesPerSecond[0]));
+    }
   }
 
-  private static void getMonosemicDict(List<String> inputLines) {
-    Map<String, String> monosemicMap = new HashMap<>();
-    ListMultimap<String, String> dictMultiMap = ArrayListMultimap.create();
-    for (String line : inputLines) {
+  private static String getSESBatch(List<String> lines,
+      Cache<String, String> sesCache, ShortestEditScript sesBuilder) {
+    StringBuilder sb = new StringBuilder();
+    for (String line : lines) {
       String[] lineArray = line.split("\t");
       if (lineArray.length == 3) {
-        if (!lineArray[0].contains("<")) {
-          dictMultiMap.put(lineArray[0], lineArray[2]);
-          monosemicMap.put(lineArray[0], lineArray[1] + "\t" + lineArray[2]);
+        String key = lineArray[0] + "\t" + lineArray[2];
+        String ses = sesCache.getIfPresent(key);
+        if (ses == null) {
+          ses = sesBuilder.getShortestEditScript(lineArray[0], lineArray[2]);
+          sesCache.put(key, ses);
         }
+        sb.append(lineArray[0]).append("\t").append(lineArray[1]).append("\t")
+            .append(ses).append("\n");
+      } else if (lineArray.length == 1) {
+        sb.append("\n");
       }
     }
-    for (String token : dictMultiMap.keySet()) {
-      List<String> tags = dictMultiMap.get(token);
-      // add only monosemic words
-      if (tags.size() == 1) {
-        System.out.println(token + "\t" + monosemicMap.get(token));
-      }
+    return sb.toString();
+  }
+
+  private static String getBatch(Future<String> batch) throws IOException {
+    try {
+      return batch.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for batch");
+    } catch (ExecutionException e) {
+      throw new IOException(e.getCause());
     }
   }
 
   /**
-   * Convert a lemma dictionary (word lemma postag) into a
-   * {@code POSTaggerDictionary}. It saves the resulting file with the name of
-   * the original dictionary changing the extension to .xml.
+   * Print the monosemic words (word lemma postag) of a lemma dictionary. The
+   * dictionary is sorted and grouped by word form on disk so that it does not
+   * need to fit in memory.
    * 
    * @param lemmaDict
    *          the input file
+   * @param runSize
+   *          the number of entries sorted in memory before spilling to disk
    * @throws IOException
    *           if io problems
    */
-  public static void convertLemmaToPOSDict(Path lemmaDict) throws IOException {
+  public static void createMonosemicDictionary(Path lemmaDict, int runSize)
+      throws IOException {
     // process one file
     if (Files.isRegularFile(lemmaDict)) {
-      List<String> inputLines = Files.readAllLines(lemmaDict,
-          StandardCharsets.UTF_8);
-      Path outFile = Files.createFile(Paths.get(lemmaDict.toString() + ".xml"));
-      POSDictionary posTagDict = getPOSTaggerDict(inputLines);
-      OutputStream outputStream = Files.newOutputStream(outFile);
-      posTagDict.serialize(outputStream);
-      outputStream.close();
-      System.err.println(
-          ">> Serialized Apache OpenNLP POSDictionary format to " + outFile);
+      final Writer writer = new BufferedWriter(
+          new OutputStreamWriter(System.out, StandardCharsets.UTF_8));
+      try (ExternalDictionaryBuilder dictBuilder = readLemmaDictionary(
+          lemmaDict, runSize)) {
+        dictBuilder.forEachMonosemic((word, lemma, postag) -> writer
+            .append(word).append("\t").append(lemma).append("\t")
+            .append(postag).append("\n"));
+      }
+      writer.flush();
     } else {
       System.out.println("Please choose a valid file as input.");
       System.exit(1);
     }
   }
 
+  public static void createMonosemicDictionary(Path lemmaDict)
+      throws IOException {
+    createMonosemicDictionary(lemmaDict,
+        ExternalDictionaryBuilder.DEFAULT_RUN_SIZE);
+  }
+
   /**
-   * Generates {@code POSDictionary} from a list of monosemic words and its
-   * postag. form\tab\lemma\tabpostag
-   * 
-   * @param inputLines
-   *          the list of words and postag per line
-   * @return the POSDictionary
+   * Reads a lemma dictionary (word lemma postag) into the external dictionary
+   * builder, skipping words containing "<".
    */
-  private static POSDictionary getPOSTaggerDict(List<String> inputLines) {
-    POSDictionary posTaggerDict = new POSDictionary();
-    ListMultimap<String, String> dictMultiMap = ArrayListMultimap.create();
-    for (String line : inputLines) {
-      String[] lineArray = line.split("\t");
-      if (lineArray.length == 3) {
-        if (!lineArray[0].contains("<")) {
-          dictMultiMap.put(lineArray[0], lineArray[2]);
+  private static ExternalDictionaryBuilder readLemmaDictionary(Path lemmaDict,
+      int runSize) throws IOException {
+    ExternalDictionaryBuilder dictBuilder = new ExternalDictionaryBuilder(
+        runSize);
+    try (BufferedReader breader = new BufferedReader(new InputStreamReader(
+        Files.newInputStream(lemmaDict), StandardCharsets.UTF_8))) {
+      String line;
+      while ((line = breader.readLine()) != null) {
+        String[] lineArray = line.split("\t");
+        if (lineArray.length == 3) {
+          if (!lineArray[0].contains("<")) {
+            dictBuilder.add(lineArray[0], lineArray[1], lineArray[2]);
+          }
         }
       }
-    }
-    for (String token : dictMultiMap.keySet()) {
-      List<String> tags = dictMultiMap.get(token);
-      // add only monosemic words
-      if (tags.size() == 1) {
-        posTaggerDict.put(token, tags.toArray(new String[tags.size()]));
+    } catch (IOException | RuntimeException e) {
+      try {
+        dictBuilder.close();
+      } catch (IOException closeException) {
+        e.addSuppressed(closeException);
       }
+      throw e;
     }
-    return posTaggerDict;
+    return dictBuilder;
   }
 
   /**
-   * Aggregates a lemma dictionary (word lemma postag) into a
+   * Convert a lemma dictionary (word lemma postag) into a
    * {@code POSTaggerDictionary}. It saves the resulting file with the name of
-   * the original lemma dictionary changing the extension to .xml.
+   * the original dictionary changing the extension to .xml. The monosemic
+   * words are written to the file as they are found, so the memory used does
+   * not grow with the dictionary.
    * 
    * @param lemmaDict
    *          the input file
+   * @param runSize
+   *          the number of entries sorted in memory before spilling to disk
    * @throws IOException
    *           if io problems
    */
-  public static void addLemmaToPOSDict(Path lemmaDict, Path posTaggerDict)
+  public static void convertLemmaToPOSDict(Path lemmaDict, int runSize)
       throws IOException {
     // process one file
-    if (Files.isRegularFile(lemmaDict) && Files.isRegularFile(posTaggerDict)) {
-      InputStream posDictInputStream = Files.newInputStream(posTaggerDict);
-      POSDictionary posDict = POSDictionary.create(posDictInputStream);
-      List<String> inputLines = Files.readAllLines(lemmaDict);
-      Path outFile = Paths.get(lemmaDict.toString() + ".xml");
-      addPOSTaggerDict(inputLines, posDict);
-      OutputStream outputStream = Files.newOutputStream(outFile);
-      posDict.serialize(outputStream);
-      outputStream.close();
-      System.err.println(
-          ">> Serialized Apache OpenNLP POSDictionary format to " + outFile);
+    if (Files.isRegularFile(lemmaDict)) {
+      Path outFile = Files.createFile(Paths.get(lemmaDict.toString() + ".xml"));
+      try (ExternalDictionaryBuilder dictBuilder = readLemmaDictionary(
+          lemmaDict, runSize);
+          POSDictionaryWriter posTagDict = new POSDictionaryWriter(
+              new BufferedOutputStream(Files.newOutputStream(outFile)))) {
+        dictBuilder.forEachMonosemic(
+            (word, lemma, postag) -> posTagDict.addEntry(word, postag));
+        System.err.println(">> Serialized " + posTagDict.getNumberOfEntries()
+            + " entries in Apache OpenNLP POSDictionary format to " + outFile);
+      }
     } else {
-      System.out.println("Please choose a valid files as input.");
+      System.out.println("Please choose a valid file as input.");
       System.exit(1);
     }
   }
 
+  public static void convertLemmaToPOSDict(Path lemmaDict) throws IOException {
+    convertLemmaToPOSDict(lemmaDict, ExternalDictionaryBuilder.DEFAULT_RUN_SIZE);
+  }
+
   /**
-   * Aggregates {@code POSDictionary} from a list of words and its postag.
+   * Aggregates a lemma dictionary (word postag) into a
+   * {@code POSTaggerDictionary}. It saves the resulting file with the name of
+   * the original lemma dictionary changing the extension to .xml. The lemma
+   * dictionary is sorted on disk, but the POSTagger dictionary is loaded in
+   * memory with the monosemic words added to it, so the memory used still
+   * grows with the size of the resulting dictionary.
    * 
-   * @param inputLines
-   *          the list of words and postag per line
-   * @param tagDict
+   * @param lemmaDict
+   *          the input file
+   * @param posTaggerDict
    *          the POSDictionary to which the lemma dictionary will be added
+   * @param runSize
+   *          the number of entries sorted in memory before spilling to disk
+   * @throws IOException
+   *           if io problems
    */
-  private static void addPOSTaggerDict(List<String> inputLines,
-      POSDictionary tagDict) {
-    ListMultimap<String, String> dictMultiMap = ArrayListMultimap.create();
-    for (String line : inputLines) {
-      String[] lineArray = line.split(" ");
-      if (lineArray.length == 2) {
-        dictMultiMap.put(lineArray[0], lineArray[1]);
+  public static void addLemmaToPOSDict(Path lemmaDict, Path posTaggerDict,
+      int runSize) throws IOException {
+    // process one file
+    if (Files.isRegularFile(lemmaDict) && Files.isRegularFile(posTaggerDict)) {
+      POSDictionary posDict;
+      try (InputStream posDictInputStream = Files
+          .newInputStream(posTaggerDict)) {
+        posDict = POSDictionary.create(posDictInputStream);
       }
-    }
-    for (String token : dictMultiMap.keySet()) {
-      List<String> tags = dictMultiMap.get(token);
-      if (tags.size() == 1) {
-        tagDict.put(token, tags.toArray(new String[tags.size()]));
+      Path outFile = Paths.get(lemmaDict.toString() + ".xml");
+      try (ExternalDictionaryBuilder dictBuilder = new ExternalDictionaryBuilder(
+          runSize);
+          BufferedReader breader = new BufferedReader(new InputStreamReader(
+              Files.newInputStream(lemmaDict), StandardCharsets.UTF_8))) {
+        String line;
+        while ((line = breader.readLine()) != null) {
+          String[] lineArray = line.split(" ");
+          if (lineArray.length == 2) {
+            dictBuilder.add(lineArray[0], "", lineArray[1]);
+          }
+        }
+        dictBuilder.forEachMonosemic(
+            (word, lemma, postag) -> posDict.put(word, postag));
+      }
+      try (OutputStream outputStream = Files.newOutputStream(outFile)) {
+        posDict.serialize(outputStream);
       }
+      System.err.println(
+          ">> Serialized Apache OpenNLP POSDictionary format to " + outFile);
+    } else {
+      System.out.println("Please choose a valid files as input.");
+      System.exit(1);
     }
   }
 
+  public static void addLemmaToPOSDict(Path lemmaDict, Path posTaggerDict)
+      throws IOException {
+    addLemmaToPOSDict(lemmaDict, posTaggerDict,
+        ExternalDictionaryBuilder.DEFAULT_RUN_SIZE);
+  }
+
   public static void brownClusterClean(Path dir) throws IOException {
+    brownClusterClean(dir, CasingFilter.DEFAULT_LOWERCASE_RATIO, 1);
+  }
+
+  /**
+   * Do not print a line if its ratio of lowercase characters is less than the
+   * given ratio. It saves the result with the .clean extension.
+   * 
+   * @param dir
+   *          the file or directory to clean
+   * @param lowercaseRatio
+   *          the minimum ratio of lowercase characters
+   * @param threads
+   *          the number of threads used for each file
+   * @throws IOException
+   *           if io problems
+   */
+  public static void brownClusterClean(Path dir, double lowercaseRatio,
+      int threads) throws IOException {
     // process one file
-    if (Files.isRegularFile(dir) && !dir.toString().endsWith(".clean")) {
-      brownCleanUpperCase(dir);
+    if (Files.isRegularFile(dir)
+        && !OutputFiles.hasOutputExtension(dir, CLEAN_EXTENSION)) {
+      brownCleanUpperCase(dir, lowercaseRatio, threads);
     } else {
       // recursively process directories
       try (DirectoryStream<Path> filesDir = Files.newDirectoryStream(dir)) {
         for (Path file : filesDir) {
           if (Files.isDirectory(file)) {
-            brownClusterClean(file);
+            brownClusterClean(file, lowercaseRatio, threads);
           } else {
-            if (!file.toString().endsWith(".clean")) {
-              brownCleanUpperCase(file);
+            if (!OutputFiles.hasOutputExtension(file, CLEAN_EXTENSION)) {
+              brownCleanUpperCase(file, lowercaseRatio, threads);
             }
           }
         }
@@ -462,41 +675,28 @@ public class Convert {
   }
 
   /**
-   * Do not print a sentence if is less than 90% lowercase.
+   * Do not print a sentence if it is less than lowercaseRatio lowercase.
    * 
    * @param inFile
    *          the input file
+   * @param lowercaseRatio
+   *          the minimum ratio of lowercase characters
+   * @param threads
+   *          the number of threads
    * @throws IOException if io problems
    */
-  private static void brownCleanUpperCase(Path inFile) throws IOException {
-    StringBuilder precleantext = new StringBuilder();
-    InputStream inputStream = CmdLineUtil.openInFile(inFile.toFile());
-    BufferedReader breader = new BufferedReader(
-        new InputStreamReader(inputStream, StandardCharsets.UTF_8));
-    String line;
-    while ((line = breader.readLine()) != null) {
-      double lowercaseCounter = 0;
-      StringBuilder sb = new StringBuilder();
-      String[] lineArray = line.split(" ");
-      for (String word : lineArray) {
-        sb.append(word);
-      }
-      char[] lineCharArray = sb.toString().toCharArray();
-      for (char lineArr : lineCharArray) {
-        if (Character.isLowerCase(lineArr)) {
-          lowercaseCounter++;
-        }
-      }
-      double percent = lowercaseCounter / (double) lineCharArray.length;
-      if (percent >= 0.90) {
-        precleantext.append(line).append("\n");
-      }
+  private static void brownCleanUpperCase(Path inFile, double lowercaseRatio,
+      int threads) throws IOException {
+    Path outfile = Paths.get(inFile.toString() + CLEAN_EXTENSION);
+    if (!ConversionManifest.needsConversion(inFile, outfile)) {
+      return;
+    }
+    try (OutputStream outputStream = OutputFiles.newOutputStream(outfile)) {
+      CasingFilter.filter(inFile, outputStream, lowercaseRatio, threads);
     }
-    Path outfile = Files.createFile(Paths.get(inFile.toString() + ".clean"));
-    Files.write(outfile,
-        precleantext.toString().getBytes(StandardCharsets.UTF_8));
+    ConversionManifest.converted(inFile, outfile);
+    outfile = OutputFiles.getOutputPath(outfile);
     System.err.println(">> Wrote clean document to " + outfile);
-    breader.close();
   }
 
   /**
@@ -507,70 +707,145 @@ public class Convert {
    * @throws IOException if io errors
    */
   public static void textToNAF(final Path inputFile) throws IOException {
-    KAFDocument kaf = new KAFDocument("en", "v1.naf");
+    textToNAF(inputFile, "en", 0);
+  }
+
+  /**
+   * Takes a tokenized text file, one sentence per line and tokens separated by
+   * spaces, and writes its WF elements to NAF documents as they are read. The
+   * offsets are those of the tokens in the input file, counted from the start
+   * of each NAF document. The paragraph markers of the tokenizer start a new
+   * paragraph and a new sentence. If maxTokens is positive the input is split
+   * at sentence boundaries into several documents of at most maxTokens WFs
+   * (unless a sentence is longer than that), named inputFile.partN.naf;
+   * otherwise one inputFile.naf document is written.
+   * 
+   * @param inputFile the input file
+   * @param language the language of the NAF documents
+   * @param maxTokens the maximum number of WFs per document, 0 for no limit
+   * @throws IOException if io errors
+   */
+  public static void textToNAF(final Path inputFile, final String language,
+      final int maxTokens) throws IOException {
+    NAFTextWriter naf = null;
+    int noDocs = 0;
+    int noTokens = 0;
+    int docStart = 0;
     int noSents = 0;
     int noParas = 1;
-    final List<String> sentences = Files.readAllLines(inputFile);
-    for (final String sentence : sentences) {
-      noSents = noSents + 1;
-      final String[] tokens = sentence.split(" ");
-      for (final String token : tokens) {
-        if (token.equals(RuleBasedSegmenter.PARAGRAPH)) {
-          ++noParas;
-          // TODO sentences without end markers;
-          // crap rule
-          while (noParas > noSents) {
-            ++noSents;
+    boolean paraHasWords = false;
+    boolean newSentence = true;
+    boolean newParagraph = false;
+    int offset = 0;
+    int tokenStart = 0;
+    final StringBuilder token = new StringBuilder();
+    final char[] buffer = new char[1 << 16];
+    try (BufferedReader breader = new BufferedReader(new InputStreamReader(
+        Files.newInputStream(inputFile), StandardCharsets.UTF_8))) {
+      int read;
+      do {
+        read = breader.read(buffer);
+        // a last pass with an end of line flushes the last token
+        final int length = read == -1 ? 1 : read;
+        for (int i = 0; i < length; i++) {
+          final char c = read == -1 ? '\n' : buffer[i];
+          final boolean endOfLine = c == '\n' || c == '\r';
+          if (!endOfLine && c != ' ' && c != '\t') {
+            if (token.length() == 0) {
+              tokenStart = offset;
+            }
+            token.append(c);
+          } else if (token.length() > 0) {
+            final String form = token.toString();
+            token.setLength(0);
+            if (form.equals(RuleBasedSegmenter.PARAGRAPH)) {
+              newParagraph = true;
+              newSentence = true;
+            } else {
+              if (newSentence) {
+                if (naf == null || maxTokens > 0
+                    && naf.getNumberOfWFs() >= maxTokens) {
+                  if (naf != null) {
+                    naf.close();
+                  }
+                  noDocs++;
+                  naf = newNAFTextWriter(inputFile, language, maxTokens,
+                      noDocs);
+                  docStart = tokenStart;
+                  noSents = 0;
+                  noParas = 1;
+                  paraHasWords = false;
+                  newParagraph = false;
+                }
+                if (newParagraph && paraHasWords) {
+                  noParas++;
+                  paraHasWords = false;
+                }
+                newParagraph = false;
+                noSents++;
+                newSentence = false;
+              }
+              naf.addWF(form, tokenStart - docStart, noSents, noParas);
+              paraHasWords = true;
+              noTokens++;
+            }
           }
-        } else {
-          // TODO add offset
-          final WF wf = kaf.newWF(0, token, noSents);
-          wf.setPara(noParas);
-          // wf.setSent(noSents);
+          if (endOfLine) {
+            newSentence = true;
+          }
+          offset++;
         }
+      } while (read != -1);
+    } finally {
+      if (naf != null) {
+        naf.close();
       }
     }
+    System.err.println(">> Wrote " + noTokens + " WFs to " + noDocs
+        + " NAF documents");
+  }
+
+  private static NAFTextWriter newNAFTextWriter(final Path inputFile,
+      final String language, final int maxTokens, final int docNumber)
+      throws IOException {
+    final String suffix = maxTokens > 0 ? ".part" + docNumber + ".naf"
+        : ".naf";
+    final Path outFile = Paths.get(inputFile.toString() + suffix);
+    final Writer writer = OutputFiles.newDocumentWriter(outFile);
+    System.err.println(
+        ">> Writing NAF document to " + OutputFiles.getDocumentPath(outFile));
+    return new NAFTextWriter(writer, language,
+        outFile.getFileName().toString());
   }
 
   public static void unicodeForDirectories(Path dir, boolean lowercase)
           throws IOException {
-    // process one file
-    if (Files.isRegularFile(dir)) {
-      unicodeForFiles(dir, lowercase);
-    } else {
-      // recursively process directories
-      try (DirectoryStream<Path> filesDir = Files.newDirectoryStream(dir)) {
-        for (Path file : filesDir) {
-          if (Files.isDirectory(file)) {
-            unicodeForDirectories(file, lowercase);
-          } else {
-            unicodeForFiles(file, lowercase);
-          }
-        }
-      }
-    }
+    unicodeForDirectories(dir, null, lowercase, 1);
+  }
+
+  /**
+   * Converts every file in a directory tree (or a single file) to UTF-8,
+   * writing the result next to each file with the .utf8 extension.
+   *
+   * @param dir
+   *          the file or directory
+   * @param charset
+   *          the source charset, or null to detect it for each file
+   * @param lowercase
+   *          whether to lowercase the text
+   * @param threads
+   *          the number of files converted in parallel
+   * @throws IOException
+   *           if io problems
+   */
+  public static void unicodeForDirectories(Path dir, Charset charset,
+      boolean lowercase, int threads) throws IOException {
+    Transcoder.transcodeTree(dir, charset, lowercase, threads);
   }
 
   public static void unicodeForFiles(Path inputFile, boolean lowercase)
           throws IOException {
-
-    StringBuilder sb = new StringBuilder();
-    InputStream inputStream = CmdLineUtil.openInFile(inputFile.toFile());
-    BufferedReader breader = new BufferedReader(
-            new InputStreamReader(inputStream, StandardCharsets.UTF_8));
-    String line;
-    while ((line = breader.readLine()) != null) {
-      if (lowercase) {
-        line = line.toLowerCase();
-      }
-      sb.append(line).append("\n");
-    }
-    String outputFile = inputFile.toRealPath().toString() + ".utf8";
-    Path outfile = Files.createFile(Paths.get(outputFile));
-    Files.write(outfile,
-            sb.toString().getBytes(StandardCharsets.UTF_8));
-    System.err.println("-> File converted to " + outputFile);
-    breader.close();
+    new Transcoder().transcode(inputFile, null, lowercase);
   }
 
 }
@@ -15,8 +15,6 @@
 package eus.ixa.ixa.pipe.convert;
 
 import java.io.IOException;
-import java.nio.file.DirectoryStream;
-import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
@@ -47,51 +45,106 @@ public class DSRCCorpus {
   private DSRCCorpus() {
   }
 
+  /**
+   * Declares the reader of DSRC words files, with the opinion expressions of
+   * their markables file as entities.
+   * 
+   * @param registry
+   *          the registry of conversions
+   */
+  static void registerConversions(ConversionRegistry registry) {
+    registry.registerReader("dsrc", ConversionRegistry.NAF,
+        (Path wordsFile, String language) -> {
+          Path marksFile = Paths.get(wordsFile.toString()
+              .replace("_words.xml", "_OpinionExpression_level.xml"));
+          KAFDocument kaf = new KAFDocument("en", "v1.naf");
+          try {
+            DSRCToNAFNER(kaf, wordsFile.toString(), marksFile.toString());
+          } catch (JDOMException e) {
+            throw new IOException(e);
+          }
+          return kaf;
+        });
+  }
+
   public static void DSRCToCoNLL2002(String inputDir)
       throws IOException, JDOMException {
-    // process one file
-    Path wordsFile = Paths.get(inputDir);
-    if (Files.isRegularFile(wordsFile)
-        && wordsFile.toString().endsWith("words.xml")) {
-      Path outFile = Files
-          .createFile(Paths.get(wordsFile.toString() + ".conll02"));
-      Path marksFile = Paths.get(wordsFile.toString().replace("_words.xml",
-          "_OpinionExpression_level.xml"));
-      String outDoc = DSRCCorpus.DSRCToCoNLL2002Convert(wordsFile.toString(),
-          marksFile.toString());
-      Files.write(outFile, outDoc.getBytes());
-      System.err.println(">> Wrote CoNLL document to " + outFile);
-    } else {
-      // recursively process directories
-      try (DirectoryStream<Path> wordsDir = Files
-          .newDirectoryStream(wordsFile)) {
-        for (Path file : wordsDir) {
-          if (Files.isDirectory(file)) {
-            DSRCToCoNLL2002(file.toString());
-          } else {
-            if (file.toString().endsWith("words.xml")) {
-              Path outFile = Files
-                  .createFile(Paths.get(file.toString() + ".conll02"));
-              Path marksFile = Paths.get(file.toString().replace("_words.xml",
-                  "_OpinionExpression_level.xml"));
-              String outDoc = DSRCCorpus.DSRCToCoNLL2002Convert(file.toString(),
-                  marksFile.toString());
-              Files.write(outFile, outDoc.getBytes());
-              System.err.println(">> Wrote CoNLL02 document to " + outFile);
-            }
-          }
-        }
-      }
+    // process one file or, recursively, every file of a directory
+    ConversionPipeline
+        .read(ConversionPipeline.files(Paths.get(inputDir),
+            file -> file.toString().endsWith("words.xml")))
+        .map(ConversionPipeline.getThreads(), DSRCCorpus::DSRCFileToCoNLL2002)
+        .run(outFile -> System.err
+            .println(">> Wrote CoNLL02 document to " + outFile));
+  }
+
+  /**
+   * @return the output file, or null if the file was already converted
+   */
+  private static Path DSRCFileToCoNLL2002(Path wordsFile)
+      throws IOException, JDOMException {
+    Path outPath = Paths.get(wordsFile.toString() + ".conll02");
+    if (!ConversionManifest.needsConversion(wordsFile, outPath)) {
+      return null;
     }
+    Path marksFile = Paths.get(wordsFile.toString().replace("_words.xml",
+        "_OpinionExpression_level.xml"));
+    String outDoc = DSRCCorpus.DSRCToCoNLL2002Convert(wordsFile.toString(),
+        marksFile.toString());
+    Path outFile = OutputFiles.write(outPath, outDoc);
+    ConversionManifest.converted(wordsFile, outPath);
+    return outFile;
   }
 
   public static String DSRCToCoNLL2002Convert(String wordsFile, String markFile)
       throws JDOMException, IOException {
-    KAFDocument kaf = new KAFDocument("en", "v1.naf");
-    DSRCToNAFNER(kaf, wordsFile, markFile);
-    // System.err.println(kaf.toString());
-    String conllFile = ConllUtils.nafToCoNLLConvert2002(kaf);
-    return conllFile;
+    return ConllUtils.columnarToCoNLL2002(DSRCToColumnar(wordsFile, markFile));
+  }
+
+  /**
+   * Converts a DSRC words file to a columnar document, labeling the targets of
+   * its markables file.
+   */
+  private static ColumnarDocument DSRCToColumnar(String wordsDoc,
+      String markablesDoc) throws JDOMException, IOException {
+    ColumnarDocument columnar = new ColumnarDocument();
+    SAXBuilder sax = new SAXBuilder();
+    XPathFactory xFactory = XPathFactory.instance();
+    Document docWords = sax.build(wordsDoc);
+    XPathExpression<Element> expr = xFactory.compile("//word",
+        Filters.element());
+    for (Element word : expr.evaluate(docWords)) {
+      String token = word.getText();
+      columnar.addToken(token, 0);
+      if (endOfSentence.matcher(token).matches()) {
+        columnar.endSentence();
+      }
+    }
+    columnar.endSentence();
+    // processing markables document in mmax opinion expression files
+    Document markDoc = sax.build(markablesDoc);
+    XPathExpression<Element> markExpr = xFactory.compile("//ns:markable",
+        Filters.element(), null, Namespace.getNamespace("ns",
+            "www.eml.org/NameSpaces/OpinionExpression"));
+    for (Element markable : markExpr.evaluate(markDoc)) {
+      if (markable.getAttributeValue("annotation_type")
+          .equalsIgnoreCase("target")) {
+        String markSpan = markable.getAttributeValue("span");
+        System.err.println("--> span: " + markSpan);
+        String removeCommaSpan = markSpan.replaceAll(",word_.*", "");
+        System.err.println("--> newSpan: " + removeCommaSpan);
+        String[] spanWords = removeCommaSpan.split("\\.\\.");
+        // word ids start at 1
+        int start = Integer.parseInt(spanWords[0].replace("word_", "")) - 1;
+        int end = Integer
+            .parseInt(spanWords[spanWords.length - 1].replace("word_", ""));
+        if (start >= 0 && start < end && end <= columnar.getNumberOfTokens()) {
+          columnar.addSpan(start, end, "TARGET");
+          System.err.println("--> target: " + columnar.getText(start, end));
+        }
+      } // end of create entity
+    }
+    return columnar;
   }
 
   private static void DSRCToNAFNER(KAFDocument kaf, String wordsDoc,
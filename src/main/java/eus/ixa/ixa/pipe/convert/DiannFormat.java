@@ -1,9 +1,7 @@
 package eus.ixa.ixa.pipe.convert;
 
 import java.io.IOException;
-import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
-import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
@@ -33,48 +31,59 @@ public class DiannFormat {
     StringBuilder sb = new StringBuilder();
     //reading one Diann file
     if (Files.isRegularFile(fileName)) {
-      List<String> inputLines = com.google.common.io.Files.readLines(fileName.toFile(), Charset.forName("UTF-8"));
-      for (String line : inputLines) {
-        line = line.replaceAll("(?m)^\\s+", "");
-        line = line.trim();
-        line = disTokenizedBegin.matcher(line).replaceAll("<dis>");
-        line = disTokenizedEnd.matcher(line).replaceAll("</dis>");
-        line = negTokenizedBegin.matcher(line).replaceAll("<neg>");
-        line = negTokenizedEnd.matcher(line).replaceAll("</neg>");
-        line = scpTokenizedBegin.matcher(line).replaceAll("");
-        line = scpTokenizedEnd.matcher(line).replaceAll("");
-        //convert spaces inside <dis></dis> into tabs
-        line = convertSpaceToTabDis(line);
-        line = convertSpaceToTabNeg(line);
-        String[] lines = line.split(" ");
-        //iterate over words and <dis></dis> entities
-        for (int i = 0; i < lines.length; i++) {
-          if (lines[i].startsWith("<dis>")) {
-            String entity = disPattern.matcher(lines[i]).replaceAll("$2");
-            String[] entityElems = entity.split("\t");
-            sb.append(entityElems[0] + "\t" + "B-DIS").append("\n");
-            for (int j = 1; j < entityElems.length; j++) {
-              sb.append(entityElems[j] + "\t" + "I-DIS").append("\n");
-            }
-          } else if (lines[i].startsWith("<neg>")) {
-            String entity = negPattern.matcher(lines[i]).replaceAll("$2");
-            String[] entityElems = entity.split("\t");
-            sb.append(entityElems[0] + "\t" + "B-NEG").append("\n");
-            for (int j = 1; j < entityElems.length; j++) {
-                sb.append(entityElems[j] + "\t" + "I-NEG").append("\n");
-            }
-          } else {
-           sb.append(lines[i] + "\t" + "O").append("\n");
-          }
-        }//end of sentence
-        sb.append("\n");
-      }
+      ConversionPipeline.read(ConversionPipeline.lines(fileName))
+          .map(ConversionPipeline.getThreads(), DiannFormat::sentenceToBIO)
+          .run(sb::append);
     } else {
       System.out.println("Please choose a valid file as input.");
       System.exit(1);
     }
     return sb.toString();
   }
+
+  private static String sentenceToBIO(String line) {
+    SymbolTable symbols = SymbolTable.getShared();
+    StringBuilder sb = new StringBuilder();
+    line = line.replaceAll("(?m)^\\s+", "");
+    line = line.trim();
+    line = disTokenizedBegin.matcher(line).replaceAll("<dis>");
+    line = disTokenizedEnd.matcher(line).replaceAll("</dis>");
+    line = negTokenizedBegin.matcher(line).replaceAll("<neg>");
+    line = negTokenizedEnd.matcher(line).replaceAll("</neg>");
+    line = scpTokenizedBegin.matcher(line).replaceAll("");
+    line = scpTokenizedEnd.matcher(line).replaceAll("");
+    //convert spaces inside <dis></dis> into tabs
+    line = convertSpaceToTabDis(line);
+    line = convertSpaceToTabNeg(line);
+    String[] lines = line.split(" ");
+    //iterate over words and <dis></dis> entities
+    for (int i = 0; i < lines.length; i++) {
+      if (lines[i].startsWith("<dis>")) {
+        String entity = disPattern.matcher(lines[i]).replaceAll("$2");
+        String[] entityElems = entity.split("\t");
+        sb.append(entityElems[0]).append("\t").append(symbols.getBegin("DIS"))
+            .append("\n");
+        for (int j = 1; j < entityElems.length; j++) {
+          sb.append(entityElems[j]).append("\t").append(symbols.getIn("DIS"))
+              .append("\n");
+        }
+      } else if (lines[i].startsWith("<neg>")) {
+        String entity = negPattern.matcher(lines[i]).replaceAll("$2");
+        String[] entityElems = entity.split("\t");
+        sb.append(entityElems[0]).append("\t").append(symbols.getBegin("NEG"))
+            .append("\n");
+        for (int j = 1; j < entityElems.length; j++) {
+          sb.append(entityElems[j]).append("\t").append(symbols.getIn("NEG"))
+              .append("\n");
+        }
+      } else {
+        sb.append(lines[i]).append("\t").append(ConllUtils.BIO.OUT)
+            .append("\n");
+      }
+    }//end of sentence
+    sb.append("\n");
+    return sb.toString();
+  }
   
 
   private static String convertSpaceToTabDis(String line) {
@@ -102,27 +111,16 @@ public class DiannFormat {
   }
   
   public static void addScope(Path dir) throws IOException {
-    // process one file
-    if (Files.isRegularFile(dir) && dir.toString().endsWith("tag")) {
-      processScope(dir);
-    } // process one file
-    else {
-      // recursively process directories
-      try (DirectoryStream<Path> filesDir = Files.newDirectoryStream(dir)) {
-        for (Path file : filesDir) {
-          if (Files.isDirectory(file)) {
-            addScope(dir);
-          } else {
-            if (file.toString().endsWith("tag")) {
-              processScope(file);
-            }
-          }
-        }
-      }
-    }
+    // process one file or, recursively, every file of a directory
+    ConversionPipeline
+        .read(ConversionPipeline.files(dir,
+            file -> file.toString().endsWith("tag")))
+        .map(ConversionPipeline.getThreads(), DiannFormat::processScope)
+        .run(outfile -> System.err
+            .println(">> Wrote scp document to " + outfile));
   }
   
-  private static void processScope(Path fileName) throws IOException {
+  private static Path processScope(Path fileName) throws IOException {
     // reading the TimeML xml file
     StringBuilder sb = new StringBuilder();
     List<String> sentences = com.google.common.io.Files.readLines(fileName.toFile(), StandardCharsets.UTF_8);
@@ -130,10 +128,8 @@ public class DiannFormat {
        String scopedSentence = scopePattern.matcher(sentence).replaceAll("<scp>$1</scp>");
        sb.append(scopedSentence).append("\n");
     }
-    Path outfile = Files.createFile(Paths.get(fileName.toString() + ".scp"));
-    Files.write(outfile,
-        sb.toString().trim().getBytes(StandardCharsets.UTF_8));
-    System.err.println(">> Wrote scp document to " + outfile);
+    return OutputFiles.write(Paths.get(fileName.toString() + ".scp"),
+        sb.toString().trim());
   }
 
 }
@@ -0,0 +1,563 @@
+/*
+ * Copyright 2018 Rodrigo Agerri
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package eus.ixa.ixa.pipe.convert;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+import eus.ixa.ixa.pipe.convert.ConversionPipeline.RecordReader;
+
+/**
+ * A container of documents written sequentially into a single file, for the
+ * converters which produce one small document per record, e.g., one NAF
+ * document per tweet. The format is chosen by the extension of the file:
+ * <ul>
+ * <li>.zip: a zip archive with one deflated entry per document.</li>
+ * <li>.tar, .tar.gz or .tgz: a tar archive with one entry per document.</li>
+ * <li>.jsonl or .jsonl.gz: one JSON object per line, with the name of the
+ * document in the "name" field and the document in the "naf" field.</li>
+ * </ul>
+ * The tar and JSON lines containers are also compressed if gzip compression
+ * is chosen for the output files. The containers can be read back with
+ * {@link #read(Path)}.
+ *
+ * @author ragerri
+ * @version 2018-06-07
+ */
+public final class DocumentArchive implements Closeable {
+
+  /**
+   * The formats of the containers.
+   */
+  public enum Format {
+    ZIP, TAR, JSONL
+  }
+
+  private static final int TAR_BLOCK = 512;
+  private static final int TAR_RECORD = 20 * TAR_BLOCK;
+  private static final String LONG_NAME = "././@LongLink";
+
+  private final Path file;
+  private final Format format;
+  private final OutputStream outputStream;
+  private final ZipOutputStream zipStream;
+  private long tarBytes = 0;
+  private int noDocs = 0;
+
+  private DocumentArchive(Path file, Format format) throws IOException {
+    this.format = format;
+    if (format == Format.ZIP) {
+      this.file = file;
+      outputStream = new BufferedOutputStream(Files.newOutputStream(file,
+          StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE), 1 << 16);
+      zipStream = new ZipOutputStream(outputStream, StandardCharsets.UTF_8);
+    } else if (isGzipped(file)) {
+      this.file = file;
+      outputStream = new GZIPOutputStream(
+          new BufferedOutputStream(Files.newOutputStream(file,
+              StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE),
+              1 << 16),
+          1 << 16);
+      zipStream = null;
+    } else {
+      this.file = OutputFiles.getDocumentPath(file);
+      outputStream = OutputFiles.newDocumentOutputStream(file);
+      zipStream = null;
+    }
+  }
+
+  /**
+   * Creates a container, which must not exist.
+   *
+   * @param file
+   *          the container, whose extension gives the format
+   * @return the container
+   * @throws IOException
+   *           if the format is not known or the file cannot be created
+   */
+  public static DocumentArchive create(Path file) throws IOException {
+    return new DocumentArchive(file, getFormat(file));
+  }
+
+  /**
+   * @param file
+   *          a file
+   * @return the container format given by the extension of the file, or
+   *         null if it is not a container
+   */
+  public static Format getFormat(Path file) {
+    String name = file.getFileName().toString();
+    if (name.endsWith(".tgz")) {
+      return Format.TAR;
+    }
+    if (name.endsWith(".gz")) {
+      name = name.substring(0, name.length() - 3);
+    }
+    if (name.endsWith(".zip")) {
+      return Format.ZIP;
+    } else if (name.endsWith(".tar")) {
+      return Format.TAR;
+    } else if (name.endsWith(".jsonl")) {
+      return Format.JSONL;
+    }
+    return null;
+  }
+
+  /**
+   * @param file
+   *          a file
+   * @return true if the file is a document container
+   */
+  public static boolean isArchive(Path file) {
+    return Files.isRegularFile(file) && getFormat(file) != null;
+  }
+
+  private static boolean isGzipped(Path file) {
+    String name = file.getFileName().toString();
+    return name.endsWith(".gz") || name.endsWith(".tgz");
+  }
+
+  /**
+   * @return the file actually written
+   */
+  public Path getFile() {
+    return file;
+  }
+
+  /**
+   * @return the number of documents added
+   */
+  public synchronized int getNumberOfDocuments() {
+    return noDocs;
+  }
+
+  /**
+   * Adds a document.
+   *
+   * @param name
+   *          the name of the document, usually the file it would have been
+   *          written to
+   * @param content
+   *          the document
+   * @return the path of the document inside the container
+   * @throws IOException
+   *           if io problems
+   */
+  public synchronized Path add(String name, String content)
+      throws IOException {
+    name = name.replace('\\', '/');
+    while (name.startsWith("/")) {
+      name = name.substring(1);
+    }
+    byte[] bytes = content.getBytes(StandardCharsets.UTF_8);
+    switch (format) {
+    case ZIP:
+      zipStream.putNextEntry(new ZipEntry(name));
+      zipStream.write(bytes);
+      zipStream.closeEntry();
+      break;
+    case TAR:
+      byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+      if (nameBytes.length > 100) {
+        // GNU long name entry followed by the truncated name
+        writeTarEntry(LONG_NAME, 'L',
+            Arrays.copyOf(nameBytes, nameBytes.length + 1));
+      }
+      writeTarEntry(name, '0', bytes);
+      break;
+    case JSONL:
+      StringBuilder sb = new StringBuilder(bytes.length + name.length() + 32);
+      sb.append("{\"name\":");
+      appendJsonString(sb, name);
+      sb.append(",\"naf\":");
+      appendJsonString(sb, content);
+      sb.append("}\n");
+      outputStream.write(sb.toString().getBytes(StandardCharsets.UTF_8));
+      break;
+    }
+    noDocs++;
+    return Paths.get(file.toString() + "!", name);
+  }
+
+  private void writeTarEntry(String name, char type, byte[] data)
+      throws IOException {
+    byte[] header = new byte[TAR_BLOCK];
+    putTarField(header, 0, 100, name.getBytes(StandardCharsets.UTF_8));
+    putTarOctal(header, 100, 8, 0644);
+    putTarOctal(header, 108, 8, 0);
+    putTarOctal(header, 116, 8, 0);
+    putTarOctal(header, 124, 12, data.length);
+    putTarOctal(header, 136, 12, System.currentTimeMillis() / 1000);
+    header[156] = (byte) type;
+    putTarField(header, 257, 6, "ustar".getBytes(StandardCharsets.US_ASCII));
+    header[263] = '0';
+    header[264] = '0';
+    // the checksum is computed with its own field filled with spaces
+    Arrays.fill(header, 148, 156, (byte) ' ');
+    long checksum = 0;
+    for (byte b : header) {
+      checksum += b & 0xff;
+    }
+    putTarField(header, 148, 8, String.format("%06o\0 ", checksum)
+        .getBytes(StandardCharsets.US_ASCII));
+    outputStream.write(header);
+    outputStream.write(data);
+    int padding = (TAR_BLOCK - data.length % TAR_BLOCK) % TAR_BLOCK;
+    outputStream.write(new byte[padding]);
+    tarBytes += TAR_BLOCK + data.length + padding;
+  }
+
+  private static void putTarField(byte[] header, int offset, int length,
+      byte[] value) {
+    System.arraycopy(value, 0, header, offset,
+        Math.min(length, value.length));
+  }
+
+  private static void putTarOctal(byte[] header, int offset, int length,
+      long value) {
+    String octal = String.format("%0" + (length - 1) + "o", value);
+    putTarField(header, offset, length,
+        octal.getBytes(StandardCharsets.US_ASCII));
+  }
+
+  private static void appendJsonString(StringBuilder sb, String value) {
+    sb.append('"');
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      switch (c) {
+      case '"':
+        sb.append("\\\"");
+        break;
+      case '\\':
+        sb.append("\\\\");
+        break;
+      case '\n':
+        sb.append("\\n");
+        break;
+      case '\r':
+        sb.append("\\r");
+        break;
+      case '\t':
+        sb.append("\\t");
+        break;
+      default:
+        if (c < 0x20 || c == '\u2028' || c == '\u2029') {
+          sb.append(String.format("\\u%04x", (int) c));
+        } else {
+          sb.append(c);
+        }
+      }
+    }
+    sb.append('"');
+  }
+
+  /**
+   * Finishes and closes the container.
+   */
+  @Override
+  public synchronized void close() throws IOException {
+    if (format == Format.ZIP) {
+      zipStream.close();
+      return;
+    }
+    if (format == Format.TAR) {
+      // two empty blocks, padded to a full record
+      long end = tarBytes + 2 * TAR_BLOCK;
+      end += (TAR_RECORD - end % TAR_RECORD) % TAR_RECORD;
+      outputStream.write(new byte[(int) (end - tarBytes)]);
+    }
+    outputStream.close();
+  }
+
+  /**
+   * A document read from a container.
+   */
+  public static final class Document {
+    private final String name;
+    private final byte[] content;
+
+    Document(String name, byte[] content) {
+      this.name = name;
+      this.content = content;
+    }
+
+    /**
+     * @return the name of the document in the container
+     */
+    public String getName() {
+      return name;
+    }
+
+    /**
+     * @return the document
+     */
+    public String getContent() {
+      return new String(content, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return a stream with the bytes of the document
+     */
+    public InputStream openStream() {
+      return new ByteArrayInputStream(content);
+    }
+  }
+
+  /**
+   * Reads the documents of a container in order. The directories and other
+   * special entries of the archives are skipped.
+   *
+   * @param file
+   *          the container
+   * @return the reader of the documents
+   * @throws IOException
+   *           if the format is not known or the file cannot be opened
+   */
+  public static RecordReader<Document> read(Path file) throws IOException {
+    Format format = getFormat(file);
+    if (format == null) {
+      throw new IOException("Unknown document container format: " + file);
+    }
+    InputStream inputStream = new BufferedInputStream(
+        Files.newInputStream(file), 1 << 16);
+    if (format != Format.ZIP && isGzipped(file)) {
+      inputStream = new GZIPInputStream(inputStream, 1 << 16);
+    }
+    switch (format) {
+    case ZIP:
+      return new ZipReader(inputStream);
+    case TAR:
+      return new TarReader(inputStream);
+    default:
+      return new JsonLinesReader(inputStream, file);
+    }
+  }
+
+  private static final class ZipReader implements RecordReader<Document> {
+    private final ZipInputStream zipStream;
+
+    ZipReader(InputStream inputStream) {
+      zipStream = new ZipInputStream(inputStream, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public Document read() throws IOException {
+      ZipEntry entry;
+      while ((entry = zipStream.getNextEntry()) != null) {
+        if (!entry.isDirectory()) {
+          ByteArrayOutputStream content = new ByteArrayOutputStream(
+              entry.getSize() > 0 ? (int) entry.getSize() : 8192);
+          byte[] buffer = new byte[8192];
+          int n;
+          while ((n = zipStream.read(buffer)) > 0) {
+            content.write(buffer, 0, n);
+          }
+          return new Document(entry.getName(), content.toByteArray());
+        }
+      }
+      return null;
+    }
+
+    @Override
+    public void close() throws IOException {
+      zipStream.close();
+    }
+  }
+
+  private static final class TarReader implements RecordReader<Document> {
+    private final InputStream inputStream;
+    private final byte[] header = new byte[TAR_BLOCK];
+
+    TarReader(InputStream inputStream) {
+      this.inputStream = inputStream;
+    }
+
+    @Override
+    public Document read() throws IOException {
+      String longName = null;
+      while (readFully(header, true)) {
+        if (isZeroBlock(header)) {
+          return null;
+        }
+        String name = getTarString(0, 100);
+        String prefix = getTarString(345, 155);
+        if (!prefix.isEmpty()) {
+          name = prefix + "/" + name;
+        }
+        long size = getTarOctal(124, 12);
+        char type = (char) header[156];
+        if (size > Integer.MAX_VALUE - 8) {
+          throw new IOException("Document too large in tar archive: " + name);
+        }
+        byte[] data = new byte[(int) size];
+        readFully(data, false);
+        skipFully((TAR_BLOCK - size % TAR_BLOCK) % TAR_BLOCK);
+        if (type == 'L') {
+          longName = new String(data, StandardCharsets.UTF_8)
+              .replaceAll("\0+$", "");
+        } else if (type == 'x') {
+          String path = getPaxPath(data);
+          if (path != null) {
+            longName = path;
+          }
+        } else if (type == '0' || type == '\0' || type == '7') {
+          return new Document(longName != null ? longName : name, data);
+        } else {
+          longName = null;
+        }
+      }
+      return null;
+    }
+
+    private boolean readFully(byte[] buffer, boolean allowEOF)
+        throws IOException {
+      int read = 0;
+      while (read < buffer.length) {
+        int n = inputStream.read(buffer, read, buffer.length - read);
+        if (n < 0) {
+          if (allowEOF && read == 0) {
+            return false;
+          }
+          throw new EOFException("Truncated tar archive");
+        }
+        read += n;
+      }
+      return true;
+    }
+
+    private void skipFully(long bytes) throws IOException {
+      while (bytes > 0) {
+        long n = inputStream.skip(bytes);
+        if (n <= 0) {
+          if (inputStream.read() < 0) {
+            throw new EOFException("Truncated tar archive");
+          }
+          n = 1;
+        }
+        bytes -= n;
+      }
+    }
+
+    private static boolean isZeroBlock(byte[] block) {
+      for (byte b : block) {
+        if (b != 0) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    private String getTarString(int offset, int length) {
+      int end = offset;
+      while (end < offset + length && header[end] != 0) {
+        end++;
+      }
+      return new String(header, offset, end - offset, StandardCharsets.UTF_8);
+    }
+
+    private long getTarOctal(int offset, int length) throws IOException {
+      String value = getTarString(offset, length).trim();
+      try {
+        return value.isEmpty() ? 0 : Long.parseLong(value, 8);
+      } catch (NumberFormatException e) {
+        throw new IOException("Invalid tar header", e);
+      }
+    }
+
+    /**
+     * @return the path of a pax extended header, null if it has none
+     */
+    private static String getPaxPath(byte[] data) {
+      // records are "length key=value\n"
+      String records = new String(data, StandardCharsets.UTF_8);
+      for (String record : records.split("\n")) {
+        int space = record.indexOf(' ');
+        if (space > 0 && record.startsWith("path=", space + 1)) {
+          return record.substring(space + 6);
+        }
+      }
+      return null;
+    }
+
+    @Override
+    public void close() throws IOException {
+      inputStream.close();
+    }
+  }
+
+  private static final class JsonLinesReader
+      implements RecordReader<Document> {
+    private final BufferedReader breader;
+    private final Path file;
+    private final JSONParser parser = new JSONParser();
+
+    JsonLinesReader(InputStream inputStream, Path file) {
+      breader = new BufferedReader(
+          new InputStreamReader(inputStream, StandardCharsets.UTF_8));
+      this.file = file;
+    }
+
+    @Override
+    public Document read() throws IOException {
+      String line;
+      while ((line = breader.readLine()) != null) {
+        if (line.trim().isEmpty()) {
+          continue;
+        }
+        try {
+          JSONObject jsonObject = (JSONObject) parser.parse(line);
+          String name = (String) jsonObject.get("name");
+          String naf = (String) jsonObject.get("naf");
+          return new Document(name,
+              naf == null ? new byte[0] : naf.getBytes(StandardCharsets.UTF_8));
+        } catch (ParseException | ClassCastException e) {
+          throw new IOException("Invalid JSON line in " + file, e);
+        }
+      }
+      return null;
+    }
+
+    @Override
+    public void close() throws IOException {
+      breader.close();
+    }
+  }
+}
@@ -1,12 +1,17 @@
 package eus.ixa.ixa.pipe.convert;
 
+import java.io.BufferedReader;
 import java.io.IOException;
-import java.nio.charset.Charset;
+import java.io.InputStreamReader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.HashSet;
-import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 public class EpecCorpus {
@@ -30,17 +35,43 @@ public class EpecCorpus {
       "ABZ", "ALA", "SOZ", "DAT", "DES", "ERG", "GEL", "GEN", "INE", "INS",
       "MOT", "ABS", "PAR", "PRO", "BNK", "DESK", "0"));
 
+  private static final int CATEGORY = 1;
+  private static final int SUBCATEGORY = 2;
+  private static final int CASE = 4;
+  /**
+   * Feature to kind bitmask (CATEGORY, SUBCATEGORY, CASE) so that each field
+   * is classified with one lookup instead of one per feature set.
+   */
+  private static final Map<String, Integer> featureTable = createFeatureTable();
+
+  private static Map<String, Integer> createFeatureTable() {
+    Map<String, Integer> table = new HashMap<>();
+    for (String category : categories) {
+      table.merge(category, CATEGORY, (a, b) -> a | b);
+    }
+    for (String subcategory : subcategories) {
+      table.merge(subcategory, SUBCATEGORY, (a, b) -> a | b);
+    }
+    for (String kasua : cases) {
+      table.merge(kasua, CASE, (a, b) -> a | b);
+    }
+    return table;
+  }
+
   public static String formatCorpus(Path corpus, String option) throws IOException {
     String conllCorpus = null;
     // process one file
     if (Files.isRegularFile(corpus)) {
-      List<String> inputLines = com.google.common.io.Files.readLines(corpus.toFile(), Charset.forName("UTF-8"));
+      StringWriter writer = new StringWriter();
       if (option.equalsIgnoreCase("threeLevel")) {
-        conllCorpus = getThreeFields(inputLines);
+        formatCorpus(corpus, null, null, writer);
+        conllCorpus = writer.toString();
       } else if (option.equalsIgnoreCase("twoLevel")) {
-        conllCorpus = getTwoFields(inputLines);
+        formatCorpus(corpus, null, writer, null);
+        conllCorpus = writer.toString();
       } else if (option.equalsIgnoreCase("oneLevel")) {
-        conllCorpus = getOneField(inputLines);
+        formatCorpus(corpus, writer, null, null);
+        conllCorpus = writer.toString();
       }
     } else {
       System.out.println("Please choose a valid file as input.");
@@ -49,119 +80,151 @@ public class EpecCorpus {
     return conllCorpus;
   }
 
-  private static String getThreeFields(List<String> inputLines) {
+  /**
+   * Formats the EPEC corpus reading it once and writing every requested level
+   * in the same pass. Any of the writers can be null to skip that level. The
+   * output of each level is the same as the one produced by
+   * {@link #formatCorpus(Path, String)}.
+   * 
+   * @param corpus
+   *          the EPEC corpus
+   * @param oneLevel
+   *          the writer for category
+   * @param twoLevel
+   *          the writer for category and subcategory
+   * @param threeLevel
+   *          the writer for category, subcategory and case
+   * @throws IOException
+   *           if io problems
+   */
+  public static void formatCorpus(Path corpus, Writer oneLevel,
+      Writer twoLevel, Writer threeLevel) throws IOException {
+    LevelWriter one = oneLevel == null ? null : new LevelWriter(oneLevel);
+    LevelWriter two = twoLevel == null ? null : new LevelWriter(twoLevel);
+    LevelWriter three = threeLevel == null ? null
+        : new LevelWriter(threeLevel);
     StringBuilder sb = new StringBuilder();
-    for (String line : inputLines) {
-      String[] fields = line.split(" ");
-      if (fields.length > 2) {
-        String word = fields[0];
-        String lemma = fields[1];
-        String cleanLemma = cleanLemmas(word, lemma);
-        String cleanWord = cleanWords(word,lemma);
-        String category = "";
-        String subcategory = "";
-        String kasua = "";
-        for (String field : fields) {
-          if (categories.contains(field)) {
-            category = field;
+    try (BufferedReader breader = new BufferedReader(new InputStreamReader(
+        Files.newInputStream(corpus), StandardCharsets.UTF_8))) {
+      String line;
+      while ((line = breader.readLine()) != null) {
+        String[] fields = line.split(" ");
+        if (fields.length > 2) {
+          String word = fields[0];
+          String lemma = fields[1];
+          String cleanLemma = cleanLemmas(word, lemma);
+          String cleanWord = cleanWords(word, lemma);
+          if (cleanWord.equalsIgnoreCase("zidorratrinkete")) {
+            newLine(one);
+            newLine(two);
+            newLine(three);
+            continue;
           }
-          if (subcategories.contains(field)) {
-            subcategory = field;
+          String category = "";
+          String subcategory = "";
+          String kasua = "";
+          for (String field : fields) {
+            Integer kind = featureTable.get(field);
+            if (kind != null) {
+              if ((kind & CATEGORY) != 0) {
+                category = field;
+              }
+              if ((kind & SUBCATEGORY) != 0) {
+                subcategory = field;
+              }
+              if ((kind & CASE) != 0) {
+                kasua = field;
+              }
+            }
           }
-          if (cases.contains(field)) {
-            kasua = field;
-          }
-        }
-        if (cleanWord.equalsIgnoreCase("zidorratrinkete")) {
-          sb.append("\n");
-        } else if (subcategory.equalsIgnoreCase("")) {
-          sb.append(cleanWord).append("\t").append(cleanLemma).append("\t").append(category)
-          .append("\n");
-        } else if (kasua.equalsIgnoreCase("")){
-          sb.append(cleanWord).append("\t").append(cleanLemma).append("\t").append(category).
-          append("_").append(subcategory).append("\n");
-        } else {
+          sb.setLength(0);
           sb.append(cleanWord).append("\t").append(cleanLemma).append("\t")
-              .append(category).append("_").append(subcategory).append("_")
-              .append(kasua).append("\n");
-        }
-      } else {
-        System.err.println("-> Line: " + line);
-      }
-    }
-    String corpus = sb.toString();
-    corpus = corpus.replaceAll("\n\n\n", "\n\n");
-    corpus = corpus.trim();
-    return corpus;
-  }
-  
-  private static String getTwoFields(List<String> inputLines) {
-    StringBuilder sb = new StringBuilder();
-    for (String line : inputLines) {
-      String[] fields = line.split(" ");
-      if (fields.length > 2) {
-        String word = fields[0];
-        String lemma = fields[1];
-        String cleanLemma = cleanLemmas(word, lemma);
-        String cleanWord = cleanWords(word,lemma);
-        String category = "";
-        String subcategory = "";
-        for (String field : fields) {
-          if (categories.contains(field)) {
-            category = field;
+              .append(category);
+          int oneLength = sb.length();
+          if (!subcategory.isEmpty()) {
+            sb.append("_").append(subcategory);
           }
-          if (subcategories.contains(field)) {
-            subcategory = field;
+          int twoLength = sb.length();
+          if (!subcategory.isEmpty() && !kasua.isEmpty()) {
+            sb.append("_").append(kasua);
+          }
+          if (one != null) {
+            one.write(sb, oneLength);
+          }
+          if (two != null) {
+            two.write(sb, twoLength);
+          }
+          if (three != null) {
+            three.write(sb, sb.length());
           }
-        }
-        if (cleanWord.equalsIgnoreCase("zidorratrinkete")) {
-          sb.append("\n");
-        } else if (subcategory.equalsIgnoreCase("")) {
-          sb.append(cleanWord).append("\t").append(cleanLemma).append("\t").append(category)
-          .append("\n");
         } else {
-          sb.append(cleanWord).append("\t").append(cleanLemma).append("\t")
-              .append(category).append("_").append(subcategory).append("\n");
+          System.err.println("-> Line: " + line);
         }
-      } else {
-        System.err.println("-> Line: " + line);
       }
     }
-    String corpus = sb.toString();
-    corpus = corpus.replaceAll("\n\n\n", "\n\n");
-    corpus = corpus.trim();
-    return corpus;
   }
-  
-  private static String getOneField(List<String> inputLines) {
-    StringBuilder sb = new StringBuilder();
-    for (String line : inputLines) {
-      String[] fields = line.split(" ");
-      if (fields.length > 2) {
-        String word = fields[0];
-        String lemma = fields[1];
-        String cleanLemma = cleanLemmas(word, lemma);
-        String cleanWord = cleanWords(word,lemma);
-        String category = "";
-        for (String field : fields) {
-          if (categories.contains(field)) {
-            category = field;
-          }
+
+  private static void newLine(LevelWriter writer) {
+    if (writer != null) {
+      writer.newLine();
+    }
+  }
+
+  /**
+   * Writes the lines of one level collapsing empty lines and trimming the
+   * beginning and end of the output as it was done on the full corpus string.
+   */
+  private static class LevelWriter {
+
+    private final Writer writer;
+    private boolean started = false;
+    private int newLines = 0;
+    private final StringBuilder pending = new StringBuilder();
+
+    LevelWriter(Writer writer) {
+      this.writer = writer;
+    }
+
+    void newLine() {
+      if (started) {
+        newLines++;
+      }
+    }
+
+    void write(CharSequence line, int length) throws IOException {
+      int end = length;
+      while (end > 0 && line.charAt(end - 1) <= ' ') {
+        end--;
+      }
+      if (!started) {
+        if (end == 0) {
+          return;
         }
-        if (cleanWord.equalsIgnoreCase("zidorratrinkete")) {
-          sb.append("\n");
-        } else {
-          sb.append(cleanWord).append("\t").append(cleanLemma).append("\t")
-              .append(category).append("\n");
+        int start = 0;
+        while (line.charAt(start) <= ' ') {
+          start++;
         }
+        writer.append(line, start, end);
       } else {
-        System.err.println("-> Line: " + line);
+        // same result as replacing every "\n\n\n" with "\n\n"
+        int collapsed = (newLines / 3) * 2 + newLines % 3;
+        for (int i = 0; i < collapsed; i++) {
+          pending.append('\n');
+        }
+        newLines = 1;
+        if (end == 0) {
+          pending.append(line, 0, length);
+          return;
+        }
+        writer.append(pending);
+        writer.append(line, 0, end);
       }
+      // whitespace is only written once more text follows it
+      pending.setLength(0);
+      pending.append(line, end, length);
+      started = true;
+      newLines = 1;
     }
-    String corpus = sb.toString();
-    corpus = corpus.replaceAll("\n\n\n", "\n\n");
-    corpus = corpus.trim();
-    return corpus;
   }
 
   private static String cleanLemmas(String word, String lemma) {
@@ -0,0 +1,245 @@
+/*
+ * Copyright 2018 Rodrigo Agerri
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package eus.ixa.ixa.pipe.convert;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Builds dictionaries from (word, lemma, postag) entries which do not fit in
+ * memory. Entries are sorted by word form in runs of bounded size which are
+ * spilled to disk, and the runs are then merged grouping the entries by word
+ * form to find the monosemic words, namely, those occurring in only one entry
+ * of the input dictionary. Postags are stored as their small integer ids in
+ * the shared {@link SymbolTable}.
+ *
+ * @author ragerri
+ * @version 2018-06-07
+ */
+public class ExternalDictionaryBuilder implements Closeable {
+
+  /**
+   * Default number of entries sorted in memory before spilling a run.
+   */
+  public static final int DEFAULT_RUN_SIZE = 1000000;
+
+  /**
+   * Receives the monosemic entries in word form order.
+   */
+  public interface EntryConsumer {
+    void accept(String word, String lemma, String postag) throws IOException;
+  }
+
+  private static final Comparator<Entry> byWord = (a, b) -> a.word
+      .compareTo(b.word);
+
+  private final SymbolTable postags = SymbolTable.getShared();
+  private final List<Path> runs = new ArrayList<>();
+  private final List<Integer> runSizes = new ArrayList<>();
+  private final Entry[] buffer;
+  private int size = 0;
+  private Path tmpDir;
+
+  public ExternalDictionaryBuilder() {
+    this(DEFAULT_RUN_SIZE);
+  }
+
+  /**
+   * @param runSize
+   *          the number of entries sorted in memory before spilling to disk
+   * @throws IllegalArgumentException
+   *           if the run size is not positive
+   */
+  public ExternalDictionaryBuilder(int runSize) {
+    if (runSize < 1) {
+      throw new IllegalArgumentException(
+          "runSize must be positive: " + runSize);
+    }
+    this.buffer = new Entry[runSize];
+  }
+
+  /**
+   * Adds an entry to the dictionary.
+   *
+   * @param word
+   *          the word form
+   * @param lemma
+   *          the lemma
+   * @param postag
+   *          the postag
+   * @throws IOException
+   *           if a run cannot be spilled to disk
+   */
+  public void add(String word, String lemma, String postag)
+      throws IOException {
+    buffer[size++] = new Entry(word, lemma, postags.getId(postag));
+    if (size == buffer.length) {
+      spill();
+    }
+  }
+
+  /**
+   * Merges the sorted runs and passes every monosemic entry to the consumer,
+   * sorted by word form.
+   *
+   * @param consumer
+   *          the consumer of the monosemic entries
+   * @throws IOException
+   *           if io problems
+   */
+  public void forEachMonosemic(EntryConsumer consumer) throws IOException {
+    if (runs.isEmpty()) {
+      // everything fits in memory, no need to go to disk
+      Arrays.sort(buffer, 0, size, byWord);
+      for (int i = 0; i < size; i++) {
+        if ((i == 0 || !buffer[i].word.equals(buffer[i - 1].word))
+            && (i + 1 == size || !buffer[i].word.equals(buffer[i + 1].word))) {
+          consumer.accept(buffer[i].word, buffer[i].lemma,
+              postags.getSymbol(buffer[i].postag));
+        }
+      }
+      return;
+    }
+    if (size > 0) {
+      spill();
+    }
+    PriorityQueue<RunReader> queue = new PriorityQueue<>(runs.size(),
+        (a, b) -> a.current.word.compareTo(b.current.word));
+    try {
+      for (int i = 0; i < runs.size(); i++) {
+        RunReader reader = new RunReader(runs.get(i), runSizes.get(i));
+        if (reader.next()) {
+          queue.add(reader);
+        } else {
+          reader.close();
+        }
+      }
+      while (!queue.isEmpty()) {
+        RunReader reader = queue.poll();
+        Entry first = reader.current;
+        int entries = 1;
+        advance(reader, queue);
+        while (!queue.isEmpty()
+            && queue.peek().current.word.equals(first.word)) {
+          RunReader same = queue.poll();
+          entries++;
+          advance(same, queue);
+        }
+        if (entries == 1) {
+          consumer.accept(first.word, first.lemma,
+              postags.getSymbol(first.postag));
+        }
+      }
+    } finally {
+      for (RunReader reader : queue) {
+        reader.close();
+      }
+    }
+  }
+
+  private static void advance(RunReader reader, PriorityQueue<RunReader> queue)
+      throws IOException {
+    if (reader.next()) {
+      queue.add(reader);
+    } else {
+      reader.close();
+    }
+  }
+
+  private void spill() throws IOException {
+    if (tmpDir == null) {
+      tmpDir = Files.createTempDirectory("ixa-pipe-convert-dict");
+    }
+    Arrays.sort(buffer, 0, size, byWord);
+    Path run = tmpDir.resolve("run-" + runs.size());
+    try (DataOutputStream out = new DataOutputStream(
+        new BufferedOutputStream(Files.newOutputStream(run), 1 << 16))) {
+      for (int i = 0; i < size; i++) {
+        out.writeUTF(buffer[i].word);
+        out.writeUTF(buffer[i].lemma);
+        out.writeInt(buffer[i].postag);
+        buffer[i] = null;
+      }
+    }
+    runs.add(run);
+    runSizes.add(size);
+    System.err.println("-> Spilled " + size + " dictionary entries to " + run);
+    size = 0;
+  }
+
+  /**
+   * Removes the runs spilled to disk.
+   */
+  @Override
+  public void close() throws IOException {
+    for (Path run : runs) {
+      Files.deleteIfExists(run);
+    }
+    if (tmpDir != null) {
+      Files.deleteIfExists(tmpDir);
+    }
+  }
+
+  private static class Entry {
+    private final String word;
+    private final String lemma;
+    private final int postag;
+
+    Entry(String word, String lemma, int postag) {
+      this.word = word;
+      this.lemma = lemma;
+      this.postag = postag;
+    }
+  }
+
+  private static class RunReader implements Closeable {
+    private final DataInputStream in;
+    private int remaining;
+    private Entry current;
+
+    RunReader(Path run, int entries) throws IOException {
+      this.in = new DataInputStream(
+          new BufferedInputStream(Files.newInputStream(run), 1 << 16));
+      this.remaining = entries;
+    }
+
+    boolean next() throws IOException {
+      if (remaining == 0) {
+        return false;
+      }
+      remaining--;
+      current = new Entry(in.readUTF(), in.readUTF(), in.readInt());
+      return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+      in.close();
+    }
+  }
+}
@@ -0,0 +1,290 @@
+/*
+ * Copyright 2018 Rodrigo Agerri
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package eus.ixa.ixa.pipe.convert;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import opennlp.tools.cmdline.CmdLineUtil;
+
+/**
+ * Merges many ixa-pipe-nerc entity gazetteers, word\tclass per line, into one
+ * serialized gazetteer. The gazetteers are read in parallel by the conversion
+ * threads and merged in the order given, so that the result does not depend
+ * on the number of threads. Entries are lowercased as in
+ * {@link SerializeResources#serializeEntityGazetteers(Path)}; an entry found
+ * with several classes is resolved by a {@link ConflictPolicy} and reported.
+ * The merged gazetteer is sorted by entry.
+ *
+ * @author ragerri
+ * @version 2018-06-07
+ */
+public final class GazetteerMerger {
+
+  /**
+   * How to resolve an entry found with several classes.
+   */
+  public enum ConflictPolicy {
+    /**
+     * Keep the class of the first occurrence.
+     */
+    FIRST,
+    /**
+     * Keep every class, in order of first occurrence, separated by
+     * {@link GazetteerMerger#CLASS_SEPARATOR}.
+     */
+    ALL,
+    /**
+     * Keep the most frequent class, the first one to occur if tied.
+     */
+    MAJORITY
+  }
+
+  /**
+   * Separator of the classes of an entry kept by {@link ConflictPolicy#ALL}.
+   */
+  public static final String CLASS_SEPARATOR = "|";
+  /**
+   * Malformed lines printed for each gazetteer; the rest are only counted.
+   */
+  private static final int MAX_MALFORMED_PRINTED = 5;
+
+  private GazetteerMerger() {
+  }
+
+  /**
+   * Merges gazetteers into one serialized gazetteer and writes the entries
+   * with several classes, with the number of occurrences of each class and
+   * the class kept, to the output file plus the .conflicts extension. Both
+   * are written as the other outputs of the conversions by
+   * {@link OutputFiles}.
+   *
+   * @param inputs
+   *          the gazetteers, or directories of gazetteers, in order of
+   *          precedence
+   * @param outputFile
+   *          the serialized gazetteer
+   * @param policy
+   *          the conflict policy
+   * @throws IOException
+   *           if io problems
+   */
+  public static void merge(List<Path> inputs, Path outputFile,
+      ConflictPolicy policy) throws IOException {
+    List<Path> gazetteers = new ArrayList<>();
+    for (Path input : inputs) {
+      try (Stream<Path> files = Files.walk(input)) {
+        gazetteers.addAll(files.filter(Files::isRegularFile).sorted()
+            .collect(Collectors.toList()));
+      }
+    }
+    Iterator<Path> gazetteerIterator = gazetteers.iterator();
+    Merge merge = new Merge();
+    ConversionPipeline.read(new ConversionPipeline.RecordReader<Path>() {
+      @Override
+      public Path read() {
+        return gazetteerIterator.hasNext() ? gazetteerIterator.next() : null;
+      }
+
+      @Override
+      public void close() {
+      }
+    }).map(ConversionPipeline.getThreads(), GazetteerMerger::readGazetteer)
+        .run(merge::add);
+
+    String[] entries = merge.classes.keySet()
+        .toArray(new String[merge.classes.size()]);
+    Arrays.parallelSort(entries);
+    String[] classes = new String[entries.length];
+    SymbolTable symbols = SymbolTable.getShared();
+    Path conflictsFile = Paths.get(outputFile.toString() + ".conflicts");
+    int noConflicts = 0;
+    try (Writer conflicts = OutputFiles.newWriter(conflictsFile)) {
+      StringBuilder sb = new StringBuilder();
+      for (int i = 0; i < entries.length; i++) {
+        int[] counts = merge.counts.get(entries[i]);
+        if (counts == null || counts.length == 2) {
+          classes[i] = symbols.getSymbol(merge.classes.get(entries[i]));
+          continue;
+        }
+        classes[i] = resolve(counts, policy);
+        noConflicts++;
+        sb.setLength(0);
+        sb.append(entries[i]).append('\t');
+        for (int c = 0; c < counts.length; c += 2) {
+          if (c > 0) {
+            sb.append(',');
+          }
+          sb.append(symbols.getSymbol(counts[c])).append(':')
+              .append(counts[c + 1]);
+        }
+        sb.append('\t').append(classes[i]).append('\n');
+        conflicts.write(sb.toString());
+      }
+    }
+    try (Writer merged = OutputFiles.newWriter(outputFile)) {
+      StringBuilder sb = new StringBuilder();
+      for (int i = 0; i < entries.length; i++) {
+        sb.setLength(0);
+        sb.append(entries[i]).append('\t').append(classes[i]).append('\n');
+        merged.write(sb.toString());
+      }
+    }
+    System.err.println(">> Merged " + merge.noLines + " entries of "
+        + gazetteers.size() + " gazetteers into " + entries.length
+        + " entries in " + OutputFiles.getOutputPath(outputFile) + "; "
+        + merge.noMalformed
+        + " malformed lines skipped");
+    System.err.println(">> Wrote " + noConflicts
+        + " entries with several classes, resolved by " + policy + ", to "
+        + OutputFiles.getOutputPath(conflictsFile));
+  }
+
+  /**
+   * @param counts
+   *          the class ids and occurrences of an entry, in order of first
+   *          occurrence
+   * @return the class kept
+   */
+  private static String resolve(int[] counts, ConflictPolicy policy) {
+    SymbolTable symbols = SymbolTable.getShared();
+    switch (policy) {
+    case ALL:
+      StringBuilder sb = new StringBuilder();
+      for (int c = 0; c < counts.length; c += 2) {
+        if (c > 0) {
+          sb.append(CLASS_SEPARATOR);
+        }
+        sb.append(symbols.getSymbol(counts[c]));
+      }
+      return sb.toString();
+    case MAJORITY:
+      int best = 0;
+      for (int c = 2; c < counts.length; c += 2) {
+        if (counts[c + 1] > counts[best + 1]) {
+          best = c;
+        }
+      }
+      return symbols.getSymbol(counts[best]);
+    default:
+      return symbols.getSymbol(counts[0]);
+    }
+  }
+
+  /**
+   * Reads the entries of a gazetteer in file order, with their classes as
+   * {@link SymbolTable} ids.
+   */
+  private static Gazetteer readGazetteer(Path file) throws IOException {
+    SymbolTable symbols = SymbolTable.getShared();
+    Gazetteer gazetteer = new Gazetteer();
+    try (BufferedReader breader = new BufferedReader(new InputStreamReader(
+        CmdLineUtil.openInFile(file.toFile()), StandardCharsets.UTF_8))) {
+      String line;
+      int lineNumber = 0;
+      while ((line = breader.readLine()) != null) {
+        lineNumber++;
+        String[] lineArray = line.split("\t");
+        if (lineArray.length != 2) {
+          if (gazetteer.noMalformed++ < MAX_MALFORMED_PRINTED) {
+            System.err.println("-> Malformed line " + lineNumber + " of "
+                + file + ": " + line);
+          }
+          continue;
+        }
+        String normalizedToken = SerializeResources.dotInsideI
+            .matcher(lineArray[0]).replaceAll("i");
+        gazetteer.add(normalizedToken.toLowerCase(),
+            symbols.getId(lineArray[1]));
+      }
+    }
+    System.err.println("-> Read " + gazetteer.entries.size() + " entries from "
+        + file + "; " + gazetteer.noMalformed + " malformed lines skipped");
+    return gazetteer;
+  }
+
+  /**
+   * The entries of a gazetteer and their class ids.
+   */
+  private static class Gazetteer {
+    private final List<String> entries = new ArrayList<>();
+    private int[] classes = new int[1024];
+    private int noMalformed;
+
+    void add(String entry, int classId) {
+      if (entries.size() == classes.length) {
+        classes = Arrays.copyOf(classes, classes.length * 2);
+      }
+      classes[entries.size()] = classId;
+      entries.add(entry);
+    }
+  }
+
+  /**
+   * The merged entries. The class id of the first occurrence of every entry
+   * is kept, and the occurrences of each class are only counted for the
+   * entries which occur more than once.
+   */
+  private static class Merge {
+    private final Map<String, Integer> classes = new HashMap<>();
+    // class id and occurrences pairs, in order of first occurrence
+    private final Map<String, int[]> counts = new HashMap<>();
+    private long noLines;
+    private long noMalformed;
+
+    void add(Gazetteer gazetteer) {
+      noMalformed += gazetteer.noMalformed;
+      for (int i = 0; i < gazetteer.entries.size(); i++) {
+        String entry = gazetteer.entries.get(i);
+        int classId = gazetteer.classes[i];
+        noLines++;
+        Integer first = classes.putIfAbsent(entry, classId);
+        if (first == null) {
+          continue;
+        }
+        int[] entryCounts = counts.get(entry);
+        if (entryCounts == null) {
+          entryCounts = new int[] { first, 1 };
+        }
+        int c = 0;
+        while (c < entryCounts.length && entryCounts[c] != classId) {
+          c += 2;
+        }
+        if (c == entryCounts.length) {
+          entryCounts = Arrays.copyOf(entryCounts, c + 2);
+          entryCounts[c] = classId;
+        }
+        entryCounts[c + 1]++;
+        counts.put(entry, entryCounts);
+      }
+    }
+  }
+}
@@ -1,33 +1,20 @@
 package eus.ixa.ixa.pipe.convert;
 
-import java.io.File;
 import java.io.IOException;
 import java.io.StringWriter;
-import java.nio.charset.Charset;
-import java.nio.charset.StandardCharsets;
-import java.nio.file.DirectoryStream;
-import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.Paths;
 import java.util.List;
 import java.util.Properties;
-import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
-import org.jdom2.Content;
-import org.jdom2.Document;
 import org.jdom2.Element;
-import org.jdom2.JDOMException;
-import org.jdom2.filter.Filters;
-import org.jdom2.input.SAXBuilder;
 import org.jdom2.output.Format;
 import org.jdom2.output.XMLOutputter;
-import org.jdom2.xpath.XPathExpression;
-import org.jdom2.xpath.XPathFactory;
 
+import eus.ixa.ixa.pipe.convert.ConversionPipeline.RecordReader;
+import eus.ixa.ixa.pipe.convert.ConversionPipeline.Stage;
 import eus.ixa.ixa.pipe.ml.StatisticalDocumentClassifier;
 import eus.ixa.ixa.pipe.ml.tok.Token;
-import ixa.kaflib.KAFDocument;
 
 public class HyperPartisan {
   
@@ -38,107 +25,125 @@ public class HyperPartisan {
   }
 
   public static void hyperPartisanToTrainDoc(Path textXML, Path groundTruth) throws IOException {
-    SAXBuilder sax = new SAXBuilder();
-    XPathFactory xFactory = XPathFactory.instance();
-    try {
-      //reading the articles content XML
-      Document doc = sax.build(textXML.toFile());
-      XPathExpression<Element> expr = xFactory.compile("//article",
-          Filters.element());
-      List<Element> articles = expr.evaluate(doc);
-      //read the ground truth XML
-      Document docTruth = sax.build(groundTruth.toFile());
-      List<Element> articlesTruth = expr.evaluate(docTruth);
-      //iterate over every article
-      for (int i = 0; i < articles.size(); i++) {
-        //obtain text using stringbuffer
-      //obtain text Element with html tags inside
-        XMLOutputter outp = new XMLOutputter();
-        outp.setFormat(Format.getCompactFormat());
-        StringWriter sw = new StringWriter();
-        outp.output(articles.get(i).getContent(), sw);
-        StringBuffer sb = sw.getBuffer();
-        String documentText = htmlPattern.matcher(sb.toString()).replaceAll("");
-        //obtain rest of elements
-        String articleTruth = articlesTruth.get(i).getAttributeValue("hyperpartisan");
-        String articleTitle = articles.get(i).getAttributeValue("title");
-        String sourceUrl = articlesTruth.get(i).getAttributeValue("url");
-        if (tokenize) {
-          //tokenizing the document
-          List<List<Token>> tokenizedContent = StringUtils
-                  .tokenizeSentence(documentText + " " + articleTitle, "en");
-          StringBuilder tokenizedText = new StringBuilder();
-          for (List<Token> sentence : tokenizedContent) {
-            for (Token token : sentence) {
-              tokenizedText.append(token).append(" ");
-            }
-          }
-          System.out.println(articleTruth + "\t" + tokenizedText + "\t" + sourceUrl);
+    //reading the articles content XML and the ground truth XML in parallel
+    RecordReader<Element> articles = ConversionPipeline.elements(textXML, "article");
+    RecordReader<Element> articlesTruth = ConversionPipeline.elements(groundTruth, "article");
+    RecordReader<Element[]> pairs = new RecordReader<Element[]>() {
+      @Override
+      public Element[] read() throws IOException {
+        Element article = articles.read();
+        Element articleTruth = articlesTruth.read();
+        if (article == null && articleTruth == null) {
+          return null;
         }
-        else {
-          System.out.println(articleTruth + "\t" + documentText + " " + articleTitle);
+        //both files must list the same articles in the same order
+        if (article == null || articleTruth == null) {
+          throw new IOException((article == null ? groundTruth : textXML)
+              + " has more articles than "
+              + (article == null ? textXML : groundTruth));
+        }
+        String id = article.getAttributeValue("id");
+        String truthId = articleTruth.getAttributeValue("id");
+        if (id == null || !id.equals(truthId)) {
+          throw new IOException("Article " + id + " of " + textXML
+              + " does not match article " + truthId + " of " + groundTruth);
+        }
+        return new Element[] { article, articleTruth };
+      }
+
+      @Override
+      public void close() throws IOException {
+        try {
+          articles.close();
+        } finally {
+          articlesTruth.close();
         }
       }
-    } catch (JDOMException | IOException e) {
-      e.printStackTrace();
+    };
+    //iterate over every article
+    ConversionPipeline.read(pairs)
+        .map(ConversionPipeline.getThreads(), pair -> articleToTrainDoc(pair[0], pair[1]))
+        .run(System.out::println);
+  }
+
+  private static String articleToTrainDoc(Element article, Element articleTruth) throws IOException {
+    //obtain text Element with html tags inside
+    String documentText = getArticleText(article);
+    //obtain rest of elements
+    String truth = articleTruth.getAttributeValue("hyperpartisan");
+    String articleTitle = article.getAttributeValue("title");
+    String sourceUrl = articleTruth.getAttributeValue("url");
+    if (tokenize) {
+      //tokenizing the document
+      String tokenizedText = tokenizeArticle(documentText + " " + articleTitle);
+      return truth + "\t" + tokenizedText + "\t" + sourceUrl;
+    }
+    else {
+      return truth + "\t" + documentText + " " + articleTitle;
     }
   }
   
   public static String hyperPartisanToTest(Path textXML, String model) throws IOException {
     StringBuilder outputText = new StringBuilder();
-    SAXBuilder sax = new SAXBuilder();
-    XPathFactory xFactory = XPathFactory.instance();
-    try {
-      //reading the articles content XML
-      Document doc = sax.build(textXML.toFile());
-      XPathExpression<Element> expr = xFactory.compile("//article",
-          Filters.element());
-      List<Element> articles = expr.evaluate(doc);
-      //iterate over every article
-      for (Element article : articles) {
-        //obtain text Element with html tags inside
-        XMLOutputter outp = new XMLOutputter();
-        outp.setFormat(Format.getCompactFormat());
-        StringWriter sw = new StringWriter();
-        outp.output(article.getContent(), sw);
-        StringBuffer sb = sw.getBuffer();
-        String documentText = htmlPattern.matcher(sb.toString()).replaceAll("");
-        //obtain rest of elements
-        String articleId = article.getAttributeValue("id");
-        String articleTitle = article.getAttributeValue("title");
-        //tokenizing the document
-        List<List<Token>> tokenizedContent = StringUtils
-            .tokenizeSentence(documentText + " " + articleTitle, "en");
-        StringBuilder tokenizedText = new StringBuilder();
-        for (List<Token> sentence : tokenizedContent) {
-          for (Token token : sentence) {
-            tokenizedText.append(token).append(" ");
-          }
-        }
-        outputText.append(articleId).append("\t").append(tokenizedText.toString()).append("\n");
+    int threads = ConversionPipeline.getThreads();
+    //reading the articles content XML, tokenizing and classifying every article
+    ConversionPipeline.read(ConversionPipeline.elements(textXML, "article"))
+        .map(threads, HyperPartisan::articleToTest)
+        .mapPerThread(threads, () -> annotateGeneralTest(model))
+        .run(outputText::append);
+    return outputText.toString();
+  }
+
+  private static String[] articleToTest(Element article) throws IOException {
+    //obtain text Element with html tags inside
+    String documentText = getArticleText(article);
+    //obtain rest of elements
+    String articleId = article.getAttributeValue("id");
+    String articleTitle = article.getAttributeValue("title");
+    //tokenizing the document
+    String tokenizedText = tokenizeArticle(documentText + " " + articleTitle);
+    return new String[] { articleId, tokenizedText };
+  }
+
+  private static String getArticleText(Element article) throws IOException {
+    XMLOutputter outp = new XMLOutputter();
+    outp.setFormat(Format.getCompactFormat());
+    StringWriter sw = new StringWriter();
+    outp.output(article.getContent(), sw);
+    StringBuffer sb = sw.getBuffer();
+    return htmlPattern.matcher(sb.toString()).replaceAll("");
+  }
+
+  private static String tokenizeArticle(String text) {
+    List<List<Token>> tokenizedContent = StringUtils.tokenizeSentence(text, "en");
+    StringBuilder tokenizedText = new StringBuilder();
+    for (List<Token> sentence : tokenizedContent) {
+      for (Token token : sentence) {
+        tokenizedText.append(token).append(" ");
       }
-    } catch (JDOMException | IOException e) {
-      e.printStackTrace();
     }
-    String predictionFile = annotateGeneralTest(outputText.toString(), model);
-    return predictionFile;
+    return tokenizedText.toString();
   }
   
-  private static String annotateGeneralTest(String inputText, String model)
+  /**
+   * Creates a stage classifying the tokenized articles, with its own
+   * classifier.
+   * @param model the document classification model
+   * @return the stage, which takes the article id and text and returns the
+   *         prediction line
+   * @throws IOException if the model cannot be loaded
+   */
+  private static Stage<String[], String> annotateGeneralTest(String model)
       throws IOException {
-    StringBuilder sb = new StringBuilder();
-    String[] documentLines = inputText.split("\n");
     Properties properties = setDocProperties(model, "en", "no");
     StatisticalDocumentClassifier docClassifier = new StatisticalDocumentClassifier(
         properties);
-    for (String line : documentLines) {
-      String[] lineArray = line.split("\t");
-      String textId = lineArray[0];
-      String[] document = lineArray[1].split(" ");
+    return article -> {
+      String textId = article[0];
+      String[] document = article[1].split(" ");
       String hyperClass = docClassifier.classify(document);
-      sb.append(textId).append("\t").append(hyperClass).append("\n");
-    }
-    return sb.toString();
+      return textId + "\t" + hyperClass + "\n";
+    };
   }
 
   private static Properties setDocProperties(String model, String language,
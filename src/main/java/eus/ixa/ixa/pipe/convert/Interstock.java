@@ -7,6 +7,8 @@ import java.io.InputStreamReader;
 import java.nio.charset.Charset;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.UnaryOperator;
 import java.util.regex.Pattern;
 
 import org.json.simple.JSONArray;
@@ -14,6 +16,7 @@ import org.json.simple.JSONObject;
 import org.json.simple.parser.JSONParser;
 import org.json.simple.parser.ParseException;
 
+import eus.ixa.ixa.pipe.convert.ConversionPipeline.Stage;
 import opennlp.tools.cmdline.CmdLineUtil;
 
 public class Interstock {
@@ -40,226 +43,123 @@ public class Interstock {
   }
 
   public static void getJsonFinanceBinaryDataset(String fileName) throws IOException {
-    JSONParser parser = new JSONParser();
-    Path filePath = Paths.get(fileName);
-    InputStream inputStream = CmdLineUtil.openInFile(filePath.toFile());
-    BufferedReader breader = new BufferedReader(new InputStreamReader(inputStream, Charset.forName("UTF-8")));
-    String line;
-    while ((line = breader.readLine()) != null) {
-      try {
-        Object obj = parser.parse(line);
-        JSONObject jsonObject = (JSONObject) obj;
-        //get opinions array
-        JSONArray opinionsList = (JSONArray) jsonObject.get("opinions");
-        String category = null;
-        //get body and polarity for first opinion only
-        for (int i = 0; i < opinionsList.size(); i++) {
-         JSONObject opinion = (JSONObject) opinionsList.get(0);
-         String validation = (String) opinion.get("validation");
-         category = normalizeValidationToFinanceBinary(validation);
-        }
-        //get body text
-        String body = (String) jsonObject.get("body");
-        body = cleanExtraSpacesInBody(body);
-        System.out.println(category + "\t" + body);
-      } catch (ParseException e) {
-        e.printStackTrace();
-      }
-    }
-    breader.close();
+    printFirstOpinions(fileName, Interstock::normalizeValidationToFinanceBinary);
   }
   
   public static void getJsonFinanceOpinionsBinary(String fileName) throws IOException {
-    JSONParser parser = new JSONParser();
-    Path filePath = Paths.get(fileName);
-    InputStream inputStream = CmdLineUtil.openInFile(filePath.toFile());
-    BufferedReader breader = new BufferedReader(new InputStreamReader(inputStream, Charset.forName("UTF-8")));
-    String line;
-    while ((line = breader.readLine()) != null) {
-      try {
-        Object obj = parser.parse(line);
-        JSONObject jsonObject = (JSONObject) obj;
-        //get opinions array
-        JSONArray opinionsList = (JSONArray) jsonObject.get("opinions");
-        String category = null;
-        //get body and polarity for first opinion only
-        for (int i = 0; i < opinionsList.size(); i++) {
-         JSONObject opinion = (JSONObject) opinionsList.get(0);
-         String validation = (String) opinion.get("validation");
-         category = normalizeFinanceToSubjectiveObjective(validation);
-        }
-        if (category.matches("subjective|objective")) {
-          //get body text
-          String body = (String) jsonObject.get("body");
-          body = cleanExtraSpacesInBody(body);
-          System.out.println(category + "\t" + body);
-        }
-      } catch (ParseException e) {
-        e.printStackTrace();
-      }
-    }
-    breader.close();
+    printFirstOpinions(fileName, validation -> {
+      String category = normalizeFinanceToSubjectiveObjective(validation);
+      return category.matches("subjective|objective") ? category : null;
+    });
   }
   
   public static void getJsonFinanceOpinionsPolarity(String fileName) throws IOException {
-    JSONParser parser = new JSONParser();
-    Path filePath = Paths.get(fileName);
-    InputStream inputStream = CmdLineUtil.openInFile(filePath.toFile());
-    BufferedReader breader = new BufferedReader(new InputStreamReader(inputStream, Charset.forName("UTF-8")));
-    String line;
-    while ((line = breader.readLine()) != null) {
-      try {
-        Object obj = parser.parse(line);
-        JSONObject jsonObject = (JSONObject) obj;
-        //get opinions array
-        JSONArray opinionsList = (JSONArray) jsonObject.get("opinions");
-        String category = null;
-        //get body and polarity for first opinion only
-        for (int i = 0; i < opinionsList.size(); i++) {
-         JSONObject opinion = (JSONObject) opinionsList.get(0);
-         category = (String) opinion.get("validation");
-        }
-        if (category.matches("opf\\+|opf-")) {
-          //get body text
-          String body = (String) jsonObject.get("body");
-          body = cleanExtraSpacesInBody(body);
-          System.out.println(category + "\t" + body);
-        }
-      } catch (ParseException e) {
-        e.printStackTrace();
-      }
-    }
-    breader.close();
+    printFirstOpinions(fileName,
+        validation -> validation.matches("opf\\+|opf-") ? validation : null);
   }
   
   public static void getJsonAllOpinionsBinary(String fileName) throws IOException {
-    JSONParser parser = new JSONParser();
-    Path filePath = Paths.get(fileName);
-    InputStream inputStream = CmdLineUtil.openInFile(filePath.toFile());
-    BufferedReader breader = new BufferedReader(new InputStreamReader(inputStream, Charset.forName("UTF-8")));
-    String line;
-    int counter = 0;
-    while ((line = breader.readLine()) != null) {
-      try {
-        Object obj = parser.parse(line);
-        JSONObject jsonObject = (JSONObject) obj;
-        //get opinions array
-        JSONArray opinionsList = (JSONArray) jsonObject.get("opinions");
-        for (int i = 0; i < opinionsList.size(); i++) {
-         JSONObject opinion = (JSONObject) opinionsList.get(i);
-         counter++;
-         String body = (String) jsonObject.get("body");
-         body = cleanExtraSpacesInBody(body);
-         String text = (String) opinion.get("text");
-         String validation = (String) opinion.get("validation");
-         validation = Interstock.normalizeValidationToFinanceBinary(validation);
-         System.out.println(validation + "\t" + body + "\t" + text);
-        }
-      } catch (ParseException e) {
-        e.printStackTrace();
-      }
-    }
-    System.out.println(counter);
-    breader.close();
+    printAllOpinions(fileName, false,
+        Interstock::normalizeValidationToFinanceBinary);
   }
   
-  
-  
   public static void getJsonFinanceAllOpinionsBinary(String fileName) throws IOException {
-    JSONParser parser = new JSONParser();
-    Path filePath = Paths.get(fileName);
-    InputStream inputStream = CmdLineUtil.openInFile(filePath.toFile());
-    BufferedReader breader = new BufferedReader(new InputStreamReader(inputStream, Charset.forName("UTF-8")));
-    String line;
-    int counter = 0;
-    while ((line = breader.readLine()) != null) {
-      try {
-        Object obj = parser.parse(line);
-        JSONObject jsonObject = (JSONObject) obj;
-        //get opinions array
-        JSONArray opinionsList = (JSONArray) jsonObject.get("opinions");
-        for (int i = 0; i < opinionsList.size(); i++) {
-         JSONObject opinion = (JSONObject) opinionsList.get(i);
-         counter++;
-         String validation = (String) opinion.get("validation");
-         validation = Interstock.normalizeFinanceToSubjectiveObjective(validation);
-         if (validation.matches("objective|subjective")) {
-           String body = (String) jsonObject.get("body");
-           body = cleanExtraSpacesInBody(body);
-           String text = (String) opinion.get("text");
-           System.out.println(validation + "\t" + body + "\t" + text);
-         }
-        }
-      } catch (ParseException e) {
-        e.printStackTrace();
-      }
-    }
-    System.out.println(counter);
-    breader.close();
+    printAllOpinions(fileName, false, validation -> {
+      String category = normalizeFinanceToSubjectiveObjective(validation);
+      return category.matches("objective|subjective") ? category : null;
+    });
   }
   
   public static void getJsonFinanceAllOpinionsPolarity(String fileName) throws IOException {
-    JSONParser parser = new JSONParser();
-    Path filePath = Paths.get(fileName);
-    InputStream inputStream = CmdLineUtil.openInFile(filePath.toFile());
-    BufferedReader breader = new BufferedReader(new InputStreamReader(inputStream, Charset.forName("UTF-8")));
-    String line;
-    int counter = 0;
-    while ((line = breader.readLine()) != null) {
-      try {
-        Object obj = parser.parse(line);
-        JSONObject jsonObject = (JSONObject) obj;
-        //get opinions array
-        JSONArray opinionsList = (JSONArray) jsonObject.get("opinions");
-        for (int i = 0; i < opinionsList.size(); i++) {
-         JSONObject opinion = (JSONObject) opinionsList.get(i);
-         counter++;
-         String validation = (String) opinion.get("validation");
-         if (validation.matches("opf\\+|opf-")) {
-           String body = (String) jsonObject.get("body");
-           body = cleanExtraSpacesInBody(body);
-           String text = (String) opinion.get("text");
-           System.out.println(validation + "\t" + body + "\t" + text);
-         }
-        }
-      } catch (ParseException e) {
-        e.printStackTrace();
-      }
-    }
-    System.out.println(counter);
-    breader.close();
+    printAllOpinions(fileName, false,
+        validation -> validation.matches("opf\\+|opf-") ? validation : null);
   }
   
   public static void getJsonMultipleOpinions(String fileName) throws IOException {
-    JSONParser parser = new JSONParser();
-    Path filePath = Paths.get(fileName);
-    InputStream inputStream = CmdLineUtil.openInFile(filePath.toFile());
-    BufferedReader breader = new BufferedReader(new InputStreamReader(inputStream, Charset.forName("UTF-8")));
-    String line;
-    int counter = 0;
-    while ((line = breader.readLine()) != null) {
-      try {
-        Object obj = parser.parse(line);
-        JSONObject jsonObject = (JSONObject) obj;
-        //get opinions array
-        JSONArray opinionsList = (JSONArray) jsonObject.get("opinions");
-        for (int i = 0; i < opinionsList.size(); i++) {
-         JSONObject opinion = (JSONObject) opinionsList.get(i);
-         if (opinionsList.size() > 1) {
-           counter++;
-           String body = (String) jsonObject.get("body");
-           body = cleanExtraSpacesInBody(body);
-           String text = (String) opinion.get("text");
-           String validation = (String) opinion.get("validation");
-           System.out.println(validation + "\t" + body + "\t" + text);
-         }
+    printAllOpinions(fileName, true, validation -> validation);
+  }
+  
+  /**
+   * Prints the category and body of every document whose first opinion is
+   * given a category.
+   * @param fileName the JSON lines dataset
+   * @param validationToCategory the category of a validation, null to skip the document
+   * @throws IOException if io problems
+   */
+  private static void printFirstOpinions(String fileName,
+      UnaryOperator<String> validationToCategory) throws IOException {
+    convertJsonLines(fileName, jsonObject -> {
+      //get body and polarity for first opinion only
+      JSONArray opinionsList = (JSONArray) jsonObject.get("opinions");
+      if (opinionsList.isEmpty()) {
+        return null;
+      }
+      JSONObject opinion = (JSONObject) opinionsList.get(0);
+      String category = validationToCategory.apply((String) opinion.get("validation"));
+      if (category == null) {
+        return null;
+      }
+      //get body text
+      String body = cleanExtraSpacesInBody((String) jsonObject.get("body"));
+      return category + "\t" + body + "\n";
+    });
+  }
+  
+  /**
+   * Prints the category, body and text of every opinion which is given a
+   * category, followed by the number of opinions seen.
+   * @param fileName the JSON lines dataset
+   * @param multipleOnly only the documents with more than one opinion
+   * @param validationToCategory the category of a validation, null to skip the opinion
+   * @throws IOException if io problems
+   */
+  private static void printAllOpinions(String fileName, boolean multipleOnly,
+      UnaryOperator<String> validationToCategory) throws IOException {
+    AtomicInteger counter = new AtomicInteger();
+    convertJsonLines(fileName, jsonObject -> {
+      //get opinions array
+      JSONArray opinionsList = (JSONArray) jsonObject.get("opinions");
+      if (multipleOnly && opinionsList.size() < 2) {
+        return null;
+      }
+      StringBuilder sb = new StringBuilder();
+      for (Object element : opinionsList) {
+        JSONObject opinion = (JSONObject) element;
+        counter.incrementAndGet();
+        String category = validationToCategory.apply((String) opinion.get("validation"));
+        if (category != null) {
+          String body = cleanExtraSpacesInBody((String) jsonObject.get("body"));
+          String text = (String) opinion.get("text");
+          sb.append(category).append("\t").append(body).append("\t").append(text).append("\n");
         }
-      } catch (ParseException e) {
-        e.printStackTrace();
       }
-    }
+      return sb.toString();
+    });
     System.out.println(counter);
-    breader.close();
+  }
+  
+  /**
+   * Converts the documents of a JSON lines dataset in parallel, printing the
+   * output of each document in input order. Lines which are not valid JSON
+   * are reported and skipped.
+   * @param fileName the JSON lines dataset
+   * @param conversion converts a document, returning null to skip it
+   * @throws IOException if io problems
+   */
+  private static void convertJsonLines(String fileName,
+      Stage<JSONObject, String> conversion) throws IOException {
+    ConversionPipeline.read(ConversionPipeline.lines(Paths.get(fileName)))
+        .mapPerThread(ConversionPipeline.getThreads(), () -> {
+          JSONParser parser = new JSONParser();
+          return (String line) -> {
+            try {
+              return conversion.apply((JSONObject) parser.parse(line));
+            } catch (ParseException e) {
+              e.printStackTrace();
+              return null;
+            }
+          };
+        }).run(System.out::print);
   }
   
   private static String normalizeValidationToFinanceBinary(String validation) {
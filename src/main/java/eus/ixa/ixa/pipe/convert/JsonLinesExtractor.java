@@ -0,0 +1,372 @@
+/*
+ * Copyright 2018 Rodrigo Agerri
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package eus.ixa.ixa.pipe.convert;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Extracts fields of a JSON lines file, one JSON document per line, as tab
+ * separated values. The fields are top level keys, e.g., text, or JSON
+ * pointers, e.g., /user/name or /opinions/0/text. Every line is scanned
+ * without building any JSON object: only the values of the requested fields
+ * are decoded and everything else is skipped. Chunks of lines are scanned by
+ * the conversion threads and written in input order.
+ *
+ * @author ragerri
+ * @version 2018-06-07
+ */
+public final class JsonLinesExtractor {
+
+  /**
+   * Number of lines scanned at a time by each thread.
+   */
+  private static final int CHUNK_LINES = 1024;
+
+  private JsonLinesExtractor() {
+  }
+
+  /**
+   * Writes the requested fields of every line of a JSON lines file, separated
+   * by tabs, one line per input line. Missing and null values are written as
+   * empty strings; strings are unescaped and their tabs and line breaks
+   * replaced by spaces; numbers, booleans, objects and arrays are written as
+   * in the input. Lines which are not valid JSON are reported and skipped, and
+   * empty lines are skipped.
+   *
+   * @param file
+   *          the JSON lines file
+   * @param fields
+   *          the keys or JSON pointers of the fields
+   * @param writer
+   *          the writer of the tab separated values, flushed but not closed
+   * @throws IOException
+   *           if io problems
+   */
+  public static void extract(Path file, List<String> fields, Writer writer)
+      throws IOException {
+    Node root = new Node();
+    for (int i = 0; i < fields.size(); i++) {
+      Node node = root;
+      for (String key : parsePointer(fields.get(i))) {
+        node = node.children.computeIfAbsent(key, k -> new Node());
+      }
+      node.field = i;
+    }
+    AtomicLong extracted = new AtomicLong();
+    AtomicLong malformed = new AtomicLong();
+    ConversionPipeline
+        .read(ConversionPipeline.batches(ConversionPipeline.lines(file),
+            CHUNK_LINES))
+        .mapPerThread(ConversionPipeline.getThreads(), () -> {
+          Scanner scanner = new Scanner(root, fields.size());
+          return (List<String> chunk) -> {
+            StringBuilder sb = new StringBuilder(chunk.size() * 128);
+            for (String line : chunk) {
+              if (line.trim().isEmpty()) {
+                continue;
+              }
+              if (scanner.scan(line, sb)) {
+                extracted.incrementAndGet();
+              } else {
+                malformed.incrementAndGet();
+                System.err.println("-> Skipping malformed JSON line: "
+                    + (line.length() > 80 ? line.substring(0, 80) + "..."
+                        : line));
+              }
+            }
+            return sb.toString();
+          };
+        }).run(writer::write);
+    writer.flush();
+    System.err.println("-> Extracted " + fields.size() + " fields from "
+        + extracted + " lines; " + malformed
+        + " malformed lines skipped");
+  }
+
+  /**
+   * Splits a JSON pointer into its keys; any other field is a top level key.
+   */
+  static String[] parsePointer(String field) {
+    if (field.isEmpty()) {
+      throw new IllegalArgumentException("Empty JSON field");
+    }
+    if (!field.startsWith("/")) {
+      return new String[] { field };
+    }
+    String[] keys = field.substring(1).split("/", -1);
+    for (int i = 0; i < keys.length; i++) {
+      keys[i] = keys[i].replace("~1", "/").replace("~0", "~");
+    }
+    return keys;
+  }
+
+  /**
+   * A node of the tree of requested keys; array elements are keyed by their
+   * index.
+   */
+  private static class Node {
+    private final Map<String, Node> children = new HashMap<>();
+    private int field = -1;
+  }
+
+  /**
+   * Scans one JSON document at a time, keeping its buffers between lines.
+   */
+  private static class Scanner {
+    private final Node root;
+    private final String[] values;
+    private final StringBuilder buffer = new StringBuilder();
+    private String json;
+    private int pos;
+
+    Scanner(Node root, int noFields) {
+      this.root = root;
+      this.values = new String[noFields];
+    }
+
+    /**
+     * Appends the values of the fields of a line as a tab separated line.
+     *
+     * @return false if the line is not valid JSON, and nothing is appended
+     */
+    boolean scan(String line, StringBuilder sb) {
+      json = line;
+      pos = 0;
+      Arrays.fill(values, null);
+      try {
+        scanValue(root);
+        skipSpaces();
+        if (pos != json.length()) {
+          return false;
+        }
+      } catch (IllegalArgumentException | IllegalStateException
+          | IndexOutOfBoundsException e) {
+        return false;
+      }
+      for (int i = 0; i < values.length; i++) {
+        if (i > 0) {
+          sb.append('\t');
+        }
+        if (values[i] != null) {
+          sb.append(values[i]);
+        }
+      }
+      sb.append('\n');
+      return true;
+    }
+
+    private void scanValue(Node node) {
+      skipSpaces();
+      char c = json.charAt(pos);
+      if (node == null || node.field == -1 && node.children.isEmpty()) {
+        skipValue(c);
+        return;
+      }
+      int start = pos;
+      if (c == '"' && node.field != -1) {
+        values[node.field] = readString(true);
+        return;
+      }
+      if (c == '{') {
+        scanObject(node);
+      } else if (c == '[') {
+        scanArray(node);
+      } else {
+        skipValue(c);
+      }
+      if (node.field != -1) {
+        String raw = json.substring(start, pos);
+        values[node.field] = raw.equals("null") ? null : raw;
+      }
+    }
+
+    private void scanObject(Node node) {
+      pos++;
+      skipSpaces();
+      if (json.charAt(pos) == '}') {
+        pos++;
+        return;
+      }
+      while (true) {
+        skipSpaces();
+        if (json.charAt(pos) != '"') {
+          throw new IllegalStateException("Expected key at " + pos);
+        }
+        Node child = node.children.get(readString(false));
+        skipSpaces();
+        expect(':');
+        scanValue(child);
+        skipSpaces();
+        char c = json.charAt(pos++);
+        if (c == '}') {
+          return;
+        } else if (c != ',') {
+          throw new IllegalStateException("Expected , or } at " + pos);
+        }
+      }
+    }
+
+    private void scanArray(Node node) {
+      pos++;
+      skipSpaces();
+      if (json.charAt(pos) == ']') {
+        pos++;
+        return;
+      }
+      for (int index = 0;; index++) {
+        scanValue(node.children.get(Integer.toString(index)));
+        skipSpaces();
+        char c = json.charAt(pos++);
+        if (c == ']') {
+          return;
+        } else if (c != ',') {
+          throw new IllegalStateException("Expected , or ] at " + pos);
+        }
+      }
+    }
+
+    /**
+     * Skips a value without decoding it; nested objects and arrays are only
+     * matched by their brackets.
+     */
+    private void skipValue(char c) {
+      if (c == '"') {
+        skipString();
+      } else if (c == '{' || c == '[') {
+        int depth = 0;
+        do {
+          c = json.charAt(pos);
+          if (c == '"') {
+            skipString();
+            continue;
+          }
+          if (c == '{' || c == '[') {
+            depth++;
+          } else if (c == '}' || c == ']') {
+            depth--;
+          }
+          pos++;
+        } while (depth > 0);
+      } else {
+        int start = pos;
+        while (pos < json.length()
+            && ",]} \t\r\n".indexOf(json.charAt(pos)) == -1) {
+          pos++;
+        }
+        if (pos == start) {
+          throw new IllegalStateException("Expected value at " + pos);
+        }
+      }
+    }
+
+    private void skipString() {
+      pos++;
+      while (true) {
+        char c = json.charAt(pos++);
+        if (c == '\\') {
+          pos++;
+        } else if (c == '"') {
+          return;
+        }
+      }
+    }
+
+    /**
+     * Reads and unescapes a string.
+     *
+     * @param tsv
+     *          whether to replace tabs and line breaks by spaces
+     */
+    private String readString(boolean tsv) {
+      pos++;
+      int start = pos;
+      // no escapes, the usual case for keys
+      while (true) {
+        char c = json.charAt(pos);
+        if (c == '"') {
+          String value = json.substring(start, pos++);
+          return tsv ? value.replace('\t', ' ') : value;
+        } else if (c == '\\') {
+          break;
+        }
+        pos++;
+      }
+      buffer.setLength(0);
+      buffer.append(json, start, pos);
+      while (true) {
+        char c = json.charAt(pos++);
+        if (c == '"') {
+          break;
+        } else if (c == '\\') {
+          c = json.charAt(pos++);
+          switch (c) {
+          case 'b':
+            c = '\b';
+            break;
+          case 'f':
+            c = '\f';
+            break;
+          case 'n':
+            c = '\n';
+            break;
+          case 'r':
+            c = '\r';
+            break;
+          case 't':
+            c = '\t';
+            break;
+          case 'u':
+            c = (char) Integer.parseInt(json.substring(pos, pos + 4), 16);
+            pos += 4;
+            break;
+          case '"':
+          case '\\':
+          case '/':
+            break;
+          default:
+            throw new IllegalStateException("Bad escape at " + pos);
+          }
+        }
+        if (tsv && (c == '\t' || c == '\n' || c == '\r')) {
+          c = ' ';
+        }
+        buffer.append(c);
+      }
+      return buffer.toString();
+    }
+
+    private void expect(char expected) {
+      if (json.charAt(pos++) != expected) {
+        throw new IllegalStateException("Expected " + expected + " at " + pos);
+      }
+    }
+
+    private void skipSpaces() {
+      while (pos < json.length()
+          && Character.isWhitespace(json.charAt(pos))) {
+        pos++;
+      }
+    }
+  }
+}
@@ -0,0 +1,287 @@
+/*
+ * Copyright 2018 Rodrigo Agerri
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package eus.ixa.ixa.pipe.convert;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Builds a DictionaryLemmatizer dictionary, word\tlemma\tpostag per line,
+ * keyed by word form and postag. The word forms and lemmas of all the
+ * entries are packed in one char pool and the postags stored as their
+ * {@link SymbolTable} ids, so an entry takes three ints plus its characters
+ * instead of a list key, its backing array and three strings. The entries are
+ * deduplicated by sorting them once they are all read; as when putting them
+ * in a map, the last entry of a word form and postag is kept.
+ *
+ * @author ragerri
+ * @version 2018-06-07
+ */
+public final class LemmaDictionaryBuilder {
+
+  private static final int INITIAL_ENTRIES = 1 << 16;
+  /**
+   * Turkish capital letter I with dot, normalized to I in the word forms.
+   */
+  private static final char DOT_INSIDE_I = '\u0130';
+
+  private final SymbolTable postags = SymbolTable.getShared();
+  private char[] pool = new char[INITIAL_ENTRIES * 16];
+  private int poolSize;
+  // the lemma follows the word form in the pool, and the next word form the
+  // lemma, so the starts of both delimit the entry
+  private int[] formStarts = new int[INITIAL_ENTRIES + 1];
+  private int[] lemmaStarts = new int[INITIAL_ENTRIES];
+  private int[] postagIds = new int[INITIAL_ENTRIES];
+  private int size;
+
+  /**
+   * Adds an entry from a dictionary line.
+   *
+   * @param line
+   *          the line, word\tlemma\tpostag
+   * @return false if the line is not well formed, and nothing is added
+   */
+  public boolean add(String line) {
+    // three tab separated fields; trailing empty fields are ignored
+    int firstTab = line.indexOf('\t');
+    int secondTab = firstTab == -1 ? -1 : line.indexOf('\t', firstTab + 1);
+    if (secondTab == -1) {
+      return false;
+    }
+    int postagEnd = line.indexOf('\t', secondTab + 1);
+    if (postagEnd == -1) {
+      postagEnd = line.length();
+    } else {
+      for (int i = postagEnd; i < line.length(); i++) {
+        if (line.charAt(i) != '\t') {
+          return false;
+        }
+      }
+    }
+    if (postagEnd == secondTab + 1) {
+      return false;
+    }
+    if (size == lemmaStarts.length) {
+      int capacity = size * 2;
+      formStarts = Arrays.copyOf(formStarts, capacity + 1);
+      lemmaStarts = Arrays.copyOf(lemmaStarts, capacity);
+      postagIds = Arrays.copyOf(postagIds, capacity);
+    }
+    ensurePool(secondTab);
+    for (int i = 0; i < firstTab; i++) {
+      char c = line.charAt(i);
+      pool[poolSize++] = c == DOT_INSIDE_I ? 'I' : c;
+    }
+    lemmaStarts[size] = poolSize;
+    line.getChars(firstTab + 1, secondTab, pool, poolSize);
+    poolSize += secondTab - firstTab - 1;
+    postagIds[size] = postags.getId(line.substring(secondTab + 1, postagEnd));
+    formStarts[++size] = poolSize;
+    return true;
+  }
+
+  private void ensurePool(int noChars) {
+    if (poolSize + noChars > pool.length) {
+      long capacity = Math.max(pool.length * 2L, (long) poolSize + noChars);
+      if (capacity > Integer.MAX_VALUE - 8) {
+        if ((long) poolSize + noChars > Integer.MAX_VALUE - 8) {
+          throw new IllegalStateException(
+              "Lemma dictionary too large: " + size + " entries");
+        }
+        capacity = Integer.MAX_VALUE - 8;
+      }
+      pool = Arrays.copyOf(pool, (int) capacity);
+    }
+  }
+
+  /**
+   * @return the number of entries added, including duplicates
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Sorts the entries by word form and postag and removes the duplicates.
+   * The entries must not be added to after this.
+   *
+   * @return read only map from word form and postag lists to lemmas, sorted
+   *         and backed by the builder
+   */
+  public Map<List<String>, String> build() {
+    int[] order = new int[size];
+    for (int i = 0; i < size; i++) {
+      order[i] = i;
+    }
+    // stable, so that the duplicates stay in input order
+    sort(order);
+    int noEntries = 0;
+    for (int i = 0; i < size; i++) {
+      if (i + 1 < size && compare(order[i], order[i + 1]) == 0) {
+        continue;
+      }
+      order[noEntries++] = order[i];
+    }
+    return new SortedEntries(Arrays.copyOf(order, noEntries));
+  }
+
+  /**
+   * Bottom-up merge sort of entry indices.
+   */
+  private void sort(int[] order) {
+    int[] from = order;
+    int[] to = new int[order.length];
+    for (int width = 1; width < order.length; width *= 2) {
+      for (int low = 0; low < order.length; low += 2 * width) {
+        int mid = Math.min(low + width, order.length);
+        int high = Math.min(low + 2 * width, order.length);
+        int i = low;
+        int j = mid;
+        for (int k = low; k < high; k++) {
+          if (i < mid && (j == high || compare(from[i], from[j]) <= 0)) {
+            to[k] = from[i++];
+          } else {
+            to[k] = from[j++];
+          }
+        }
+      }
+      int[] tmp = from;
+      from = to;
+      to = tmp;
+    }
+    if (from != order) {
+      System.arraycopy(from, 0, order, 0, order.length);
+    }
+  }
+
+  private int compare(int a, int b) {
+    int aStart = formStarts[a];
+    int aEnd = lemmaStarts[a];
+    int bStart = formStarts[b];
+    int bEnd = lemmaStarts[b];
+    int length = Math.min(aEnd - aStart, bEnd - bStart);
+    for (int i = 0; i < length; i++) {
+      char ca = pool[aStart + i];
+      char cb = pool[bStart + i];
+      if (ca != cb) {
+        return ca - cb;
+      }
+    }
+    if (aEnd - aStart != bEnd - bStart) {
+      return (aEnd - aStart) - (bEnd - bStart);
+    }
+    return postagIds[a] == postagIds[b] ? 0
+        : postags.getSymbol(postagIds[a])
+            .compareTo(postags.getSymbol(postagIds[b]));
+  }
+
+  private String getForm(int entry) {
+    return new String(pool, formStarts[entry],
+        lemmaStarts[entry] - formStarts[entry]);
+  }
+
+  private String getLemma(int entry) {
+    return new String(pool, lemmaStarts[entry],
+        formStarts[entry + 1] - lemmaStarts[entry]);
+  }
+
+  /**
+   * The deduplicated entries in order; the strings of an entry are only
+   * created when it is read.
+   */
+  private class SortedEntries extends AbstractMap<List<String>, String> {
+    private final int[] entries;
+
+    SortedEntries(int[] entries) {
+      this.entries = entries;
+    }
+
+    @Override
+    public int size() {
+      return entries.length;
+    }
+
+    @Override
+    public String get(Object key) {
+      if (!(key instanceof List) || ((List<?>) key).size() != 2) {
+        return null;
+      }
+      Object form = ((List<?>) key).get(0);
+      Object postag = ((List<?>) key).get(1);
+      int low = 0;
+      int high = entries.length - 1;
+      while (low <= high) {
+        int mid = (low + high) >>> 1;
+        int cmp = getForm(entries[mid]).compareTo((String) form);
+        if (cmp == 0) {
+          cmp = postags.getSymbol(postagIds[entries[mid]])
+              .compareTo((String) postag);
+        }
+        if (cmp < 0) {
+          low = mid + 1;
+        } else if (cmp > 0) {
+          high = mid - 1;
+        } else {
+          return getLemma(entries[mid]);
+        }
+      }
+      return null;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+      return get(key) != null;
+    }
+
+    @Override
+    public Set<Map.Entry<List<String>, String>> entrySet() {
+      return new AbstractSet<Map.Entry<List<String>, String>>() {
+        @Override
+        public int size() {
+          return entries.length;
+        }
+
+        @Override
+        public Iterator<Map.Entry<List<String>, String>> iterator() {
+          return new Iterator<Map.Entry<List<String>, String>>() {
+            private int i;
+
+            @Override
+            public boolean hasNext() {
+              return i < entries.length;
+            }
+
+            @Override
+            public Map.Entry<List<String>, String> next() {
+              int entry = entries[i++];
+              return new SimpleImmutableEntry<>(
+                  Arrays.asList(getForm(entry),
+                      postags.getSymbol(postagIds[entry])),
+                  getLemma(entry));
+            }
+          };
+        }
+      };
+    }
+  }
+}
@@ -1,20 +1,25 @@
 package eus.ixa.ixa.pipe.convert;
 
+import java.io.BufferedReader;
+import java.io.Closeable;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
-
-import com.google.common.collect.ArrayListMultimap;
-import com.google.common.collect.ListMultimap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import eus.ixa.ixa.pipe.ml.tok.Token;
 import ixa.kaflib.Entity;
 import ixa.kaflib.KAFDocument;
-import ixa.kaflib.Term;
 import ixa.kaflib.WF;
 
 public class MarkytFormat {
@@ -22,181 +27,155 @@ public class MarkytFormat {
   private MarkytFormat() {
   }
 
-  private static void barrToNAFNER(KAFDocument kaf, String docName,
-      String entitiesFile, String language) throws IOException {
-    // 100005->T#63#64#GLOBAL
-    ListMultimap<String, String> entitiesMap = getEntitiesMap(entitiesFile);
-    // reading the document file
-    List<String> docs = Files.readAllLines(Paths.get(docName));
-    // naf sentence counter
-    int counter = 1;
-    for (String doc : docs) {
-      String[] docArray = doc.split("\t");
-      List<Integer> wfFromOffsetsTitle = new ArrayList<>();
-      List<Integer> wfToOffsetsTitle = new ArrayList<>();
-      List<Integer> wfFromOffsetsAbstract = new ArrayList<>();
-      List<Integer> wfToOffsetsAbstract = new ArrayList<>();
-      List<WF> sentWFs = new ArrayList<>();
-      List<Term> sentTerms = new ArrayList<>();
-      // docId and original text
-      String docId = docArray[0];
-      String titleString = docArray[2];
-      String abstractString = docArray[3];
-
-      List<List<Token>> tokenizedTitle = StringUtils
-          .tokenizeSentence(titleString, language);
-      // adding tokens from Title
-      for (List<Token> sentence : tokenizedTitle) {
-        for (Token token : sentence) {
-          WF wf = kaf.newWF(token.startOffset(), token.getTokenValue(),
-              counter);
-          int toOffset = wf.getOffset() + wf.getLength();
-          wf.setXpath(docId + "#" + "T");
-          final List<WF> wfTarget = new ArrayList<WF>();
-          wfTarget.add(wf);
-          wfFromOffsetsTitle.add(wf.getOffset());
-          wfToOffsetsTitle.add(toOffset);
-          sentWFs.add(wf);
-          Term term = kaf.newTerm(KAFDocument.newWFSpan(wfTarget));
-          term.setPos("O");
-          term.setLemma(token.getTokenValue());
-          sentTerms.add(term);
-        }
+  /**
+   * Adds the tokens of the title and the abstract of a BARR document to a
+   * columnar document, labeling the entities of the document whose offsets
+   * match token boundaries. Entities not aligned with the tokens are not
+   * labeled; nested and overlapping entities are labeled. Both are reported.
+   */
+  private static void barrDocumentToColumnar(ColumnarDocument columnar,
+      String doc, List<MarkytEntity> entities, String language,
+      EntityReport report) {
+    String[] docArray = doc.split("\t");
+    // all the title in one sentence
+    SectionIndex titleIndex = addSection(columnar,
+        StringUtils.tokenizeSentence(docArray[2], language), false);
+    // one sentence for each sentence in the abstract
+    SectionIndex abstractIndex = addSection(columnar,
+        StringUtils.tokenizeDocument(docArray[3], language), true);
+    for (int[] span : alignEntities(entities, titleIndex, abstractIndex,
+        report)) {
+      columnar.addSpan(span[0], span[1], entities.get(span[2]).type);
+    }
+  }
+
+  /**
+   * Aligns the entities of a document with its tokens, reporting those not
+   * aligned and the nested and overlapping ones.
+   *
+   * @return the first token, the token after the last one and the position
+   *         in the entities list of each aligned entity, in input order
+   */
+  private static List<int[]> alignEntities(List<MarkytEntity> entities,
+      SectionIndex titleIndex, SectionIndex abstractIndex,
+      EntityReport report) {
+    List<int[]> spans = new ArrayList<>(entities.size());
+    for (int e = 0; e < entities.size(); e++) {
+      MarkytEntity entity = entities.get(e);
+      SectionIndex index;
+      if (entity.section.equalsIgnoreCase("T")) {
+        index = titleIndex;
+      } else if (entity.section.equalsIgnoreCase("A")) {
+        index = abstractIndex;
+      } else {
+        continue;
       }
-      // update the NAF sentence counter after each title
-      counter++;
-      List<List<Token>> tokenizedAbstract = StringUtils
-          .tokenizeDocument(abstractString, language);
-      // adding tokens from Abstract
-      for (List<Token> sentence : tokenizedAbstract) {
-        for (Token token : sentence) {
-          WF wf = kaf.newWF(token.startOffset(), token.getTokenValue(),
-              counter);
-          int toOffset = wf.getOffset() + wf.getLength();
-          wf.setXpath(docId + "#" + "A");
-          final List<WF> wfTarget = new ArrayList<WF>();
-          wfTarget.add(wf);
-          wfFromOffsetsAbstract.add(wf.getOffset());
-          wfToOffsetsAbstract.add(toOffset);
-          sentWFs.add(wf);
-          Term term = kaf.newTerm(KAFDocument.newWFSpan(wfTarget));
-          term.setPos("O");
-          term.setLemma(token.getTokenValue());
-          sentTerms.add(term);
-        }
-        // update the NAF sentence counter after each sentence in abstract
-        counter++;
+      int startIndex = index.getStart(entity.fromOffset);
+      int endIndex = index.getEnd(entity.toOffset);
+      // TODO correct manually the offsets of the entities not aligned
+      if (startIndex == -1 || endIndex == -1 || startIndex >= endIndex) {
+        System.err.println("-> Entity not aligned with the tokens: " + entity);
+        report.notAligned.incrementAndGet();
+        continue;
       }
-      String[] tokenIds = new String[sentWFs.size()];
-      for (int i = 0; i < sentWFs.size(); i++) {
-        tokenIds[i] = sentWFs.get(i).getId();
+      spans.add(new int[] { startIndex, endIndex, e });
+    }
+    report.added.addAndGet(spans.size());
+    reportOverlaps(entities, new ArrayList<>(spans), report);
+    return spans;
+  }
+
+  /**
+   * Adds the tokens of a section of a BARR document to a columnar document.
+   *
+   * @return the offsets index of the section
+   */
+  private static SectionIndex addSection(ColumnarDocument columnar,
+      List<List<Token>> sentences, boolean splitSentences) {
+    int noTokens = 0;
+    for (List<Token> sentence : sentences) {
+      noTokens += sentence.size();
+    }
+    SectionIndex index = new SectionIndex(columnar.getNumberOfTokens(),
+        noTokens);
+    for (List<Token> sentence : sentences) {
+      for (Token token : sentence) {
+        int position = columnar.addToken(token.getTokenValue(),
+            token.startOffset());
+        index.add(columnar.getOffset(position),
+            columnar.getOffset(position) + columnar.getLength(position));
       }
-      List<String> entityValues = entitiesMap.get(docId);
-      System.err.println("-> DocId: " + docId);
-      // System.err.println(entityValues);
-      for (String entity : entityValues) {
-        // 100005->T#63#64#GLOBAL
-        String[] entityAttributes = entity.split("#");
-        // processing entities in Titles
-        if (entityAttributes[0].equalsIgnoreCase("T")) {
-          int fromOffset = Integer.parseInt(entityAttributes[1]);
-          int toOffset = Integer.parseInt(entityAttributes[2]);
-          // System.err.println("-> TitlefromOffset: " + fromOffset);
-          // System.err.println("-> TitletoOffset: " + toOffset);
-          int startIndex = -1;
-          int endIndex = -1;
-          for (int i = 0; i < wfFromOffsetsTitle.size(); i++) {
-            if (wfFromOffsetsTitle.get(i) == fromOffset) {
-              startIndex = i;
-            }
-          }
-          for (int i = 0; i < wfToOffsetsTitle.size(); i++) {
-            if (wfToOffsetsTitle.get(i) == toOffset) {
-              // span is +1 with respect to the last token of the span
-              endIndex = i + 1;
-            }
-          }
-          // TODO remove this condition to correct manually offsets
-          if (startIndex != -1 && endIndex != -1) {
-            List<String> wfIds = Arrays
-                .asList(Arrays.copyOfRange(tokenIds, startIndex, endIndex));
-            List<String> wfTermIds = NAFUtils.getWFIdsFromTerms(sentTerms);
-            if (NAFUtils.checkTermsRefsIntegrity(wfIds, wfTermIds)) {
-              List<Term> nameTerms = kaf.getTermsFromWFs(wfIds);
-              ixa.kaflib.Span<Term> neSpan = KAFDocument.newTermSpan(nameTerms);
-              List<ixa.kaflib.Span<Term>> references = new ArrayList<ixa.kaflib.Span<Term>>();
-              references.add(neSpan);
-              Entity neEntity = kaf.newEntity(references);
-              neEntity.setType(entityAttributes[3]);
-            }
-          }
-        } // processing entities in Abstract
-        else if (entityAttributes[0].equalsIgnoreCase("A")) {
-          int fromOffset = Integer.parseInt(entityAttributes[1]);
-          int toOffset = Integer.parseInt(entityAttributes[2]);
-          // System.err.println("-> AbstractfromOffset: " + fromOffset);
-          // System.err.println("-> AbstracttoOffset: " + toOffset);
-          int startIndex = -1;
-          int endIndex = -1;
-          for (int i = 0; i < wfFromOffsetsAbstract.size(); i++) {
-            if (wfFromOffsetsAbstract.get(i) == fromOffset) {
-              startIndex = i + wfFromOffsetsTitle.size();
-              // System.err.println("-> startIndex: " + startIndex);
-            }
-          }
-          for (int i = 0; i < wfToOffsetsAbstract.size(); i++) {
-            if (wfToOffsetsAbstract.get(i) == toOffset) {
-              // span is +1 with respect to the last token of the span
-              endIndex = (i + 1) + wfToOffsetsTitle.size();
-              // System.err.println("-> endIndex: " + endIndex);
-            }
-          }
-          // TODO remove this condition to correct offsets manually
-          if (startIndex != -1 && endIndex != -1) {
-            List<String> wfIds = Arrays
-                .asList(Arrays.copyOfRange(tokenIds, startIndex, endIndex));
-            List<String> wfTermIds = NAFUtils.getWFIdsFromTerms(sentTerms);
-            if (NAFUtils.checkTermsRefsIntegrity(wfIds, wfTermIds)) {
-              List<Term> nameTerms = kaf.getTermsFromWFs(wfIds);
-              ixa.kaflib.Span<Term> neSpan = KAFDocument.newTermSpan(nameTerms);
-              List<ixa.kaflib.Span<Term>> references = new ArrayList<ixa.kaflib.Span<Term>>();
-              references.add(neSpan);
-              Entity neEntity = kaf.newEntity(references);
-              neEntity.setType(entityAttributes[3]);
-            }
-          }
-        }
+      if (splitSentences) {
+        columnar.endSentence();
       }
-    } // end of document
+    }
+    columnar.endSentence();
+    return index;
   }
 
-  private static ListMultimap<String, String> getEntitiesMap(
-      String entitiesFile) throws IOException {
-    ListMultimap<String, String> entitiesMap = ArrayListMultimap.create();
-    // going through every entity marked in the entities file
-    List<String> entitiesAnnotations = Files
-        .readAllLines(Paths.get(entitiesFile));
-    for (String entity : entitiesAnnotations) {
-      String[] entityArray = entity.split("\t");
-      String entityDocId = entityArray[0];
-      String docType = entityArray[2];
-      String type = entityArray[5];
-      String[] offsets = entityArray[3].split(":");
-      // 100005->T#63#64#GLOBAL
-      String valueMap = docType + "#" + offsets[0] + "#" + offsets[1] + "#"
-          + type;
-      entitiesMap.put(entityDocId, valueMap);
+  /**
+   * Reports the entities nested in or overlapping a previous entity of the
+   * same document.
+   *
+   * @param entities
+   *          the entities of the document
+   * @param spans
+   *          the first token, the token after the last one and the position
+   *          in the entities list of each aligned entity
+   */
+  private static void reportOverlaps(List<MarkytEntity> entities,
+      List<int[]> spans, EntityReport report) {
+    // by start, longest first, so that enclosing entities come first
+    spans.sort((a, b) -> a[0] != b[0] ? Integer.compare(a[0], b[0])
+        : Integer.compare(b[1], a[1]));
+    int[] enclosing = null;
+    for (int[] span : spans) {
+      if (enclosing != null && span[0] < enclosing[1]) {
+        boolean nested = span[1] <= enclosing[1];
+        System.err.println("-> " + (nested ? "Nested" : "Overlapping")
+            + " entity: " + entities.get(span[2]) + " with "
+            + entities.get(enclosing[2]));
+        if (nested) {
+          report.nested.incrementAndGet();
+        } else {
+          report.overlapping.incrementAndGet();
+        }
+      }
+      if (enclosing == null || span[1] > enclosing[1]) {
+        enclosing = span;
+      }
     }
-    return entitiesMap;
   }
 
-  public static String barrToCoNLL2002(String docName, String entitiesFile,
+  /**
+   * Converts a BARR document file and its entities file to CoNLL 2002 format,
+   * printing it to the standard output. Every document is tokenized and
+   * labeled in its own columnar document by the conversion threads and
+   * printed in input order, so only the documents in flight are kept in
+   * memory.
+   * 
+   * @param docName
+   *          the documents file
+   * @param entitiesFile
+   *          the entities file
+   * @param language
+   *          the language
+   * @throws IOException
+   *           if io problems
+   */
+  public static void barrToCoNLL2002(String docName, String entitiesFile,
       String language) throws IOException {
-    KAFDocument kaf = new KAFDocument("en", "v1.naf");
-    barrToNAFNER(kaf, docName, entitiesFile, language);
-    // System.out.println(kaf.toString());
-    String conllFile = ConllUtils.nafToCoNLLConvert2002(kaf);
-    return conllFile;
+    EntityReport report = new EntityReport();
+    ConversionPipeline
+        .read(new BarrDocumentReader(Paths.get(docName),
+            Paths.get(entitiesFile), report))
+        .map(ConversionPipeline.getThreads(), document -> {
+          ColumnarDocument columnar = new ColumnarDocument();
+          barrDocumentToColumnar(columnar, document.doc, document.entities,
+              language, report);
+          return ConllUtils.columnarToCoNLL2002(columnar);
+        }).run(System.out::print);
+    report.print();
   }
 
   public static String barrToWFs(String docName, String language)
@@ -207,38 +186,79 @@ public class MarkytFormat {
     // naf sentence counter
     int counter = 1;
     for (String doc : docs) {
-      String[] docArray = doc.split("\t");
-      // docId and original text
-      String docId = docArray[0];
-      String titleString = docArray[2];
-      String abstractString = docArray[3];
-
-      List<List<Token>> tokenizedTitle = StringUtils
-          .tokenizeSentence(titleString, language);
-      // adding tokens from Title
-      for (List<Token> sentence : tokenizedTitle) {
-        for (Token token : sentence) {
-          WF wf = kaf.newWF(token.startOffset(), token.getTokenValue(),
-              counter);
-          wf.setXpath(docId + "#" + "T");
-        }
+      counter = barrDocumentToWFs(kaf, doc, counter, language);
+    }
+    return kaf.toString();
+  }
+
+  /**
+   * Converts every document of a BARR document file to a tokenized WF NAF
+   * layer, writing one NAF document per document, named after its id. The
+   * documents are tokenized by the conversion threads.
+   * 
+   * @param docName
+   *          the documents file
+   * @param language
+   *          the language
+   * @throws IOException
+   *           if io problems
+   */
+  public static void barrToWFsPerDocument(String docName, String language)
+      throws IOException {
+    ConversionPipeline.read(ConversionPipeline.lines(Paths.get(docName)))
+        .map(ConversionPipeline.getThreads(), doc -> {
+          if (doc.isEmpty()) {
+            return null;
+          }
+          KAFDocument kaf = new KAFDocument("es", "v1.naf");
+          barrDocumentToWFs(kaf, doc, 1, language);
+          String docId = doc.substring(0, doc.indexOf('\t'));
+          kaf.createPublic().publicId = docId;
+          return new String[] { docId + ".naf", kaf.toString() };
+        }).run(document -> {
+          Path outfile = OutputFiles.writeDocument(Paths.get(document[0]),
+              document[1]);
+          System.err.println(">> Wrote naf document to " + outfile);
+        });
+  }
+
+  /**
+   * Adds the tokens of the title and the abstract of a BARR document to the
+   * WF layer of a NAF document.
+   *
+   * @return the NAF sentence counter after the document
+   */
+  private static int barrDocumentToWFs(KAFDocument kaf, String doc,
+      int counter, String language) {
+    String[] docArray = doc.split("\t");
+    // docId and original text
+    String docId = docArray[0];
+    String titleString = docArray[2];
+    String abstractString = docArray[3];
+
+    List<List<Token>> tokenizedTitle = StringUtils
+        .tokenizeSentence(titleString, language);
+    // adding tokens from Title
+    for (List<Token> sentence : tokenizedTitle) {
+      for (Token token : sentence) {
+        WF wf = kaf.newWF(token.startOffset(), token.getTokenValue(), counter);
+        wf.setXpath(docId + "#" + "T");
       }
-      // update the NAF sentence counter after each title
-      counter++;
-      List<List<Token>> tokenizedAbstract = StringUtils
-          .tokenizeDocument(abstractString, language);
-      // adding tokens from Abstract
-      for (List<Token> sentence : tokenizedAbstract) {
-        for (Token token : sentence) {
-          WF wf = kaf.newWF(token.startOffset(), token.getTokenValue(),
-              counter);
-          wf.setXpath(docId + "#" + "A");
-        }
-        // update the NAF sentence counter after each sentence in abstract
-        counter++;
+    }
+    // update the NAF sentence counter after each title
+    counter++;
+    List<List<Token>> tokenizedAbstract = StringUtils
+        .tokenizeDocument(abstractString, language);
+    // adding tokens from Abstract
+    for (List<Token> sentence : tokenizedAbstract) {
+      for (Token token : sentence) {
+        WF wf = kaf.newWF(token.startOffset(), token.getTokenValue(), counter);
+        wf.setXpath(docId + "#" + "A");
       }
+      // update the NAF sentence counter after each sentence in abstract
+      counter++;
     }
-    return kaf.toString();
+    return counter;
   }
 
   public static String nafToBARREntities(String inputNAF) throws IOException {
@@ -267,4 +287,251 @@ public class MarkytFormat {
     }
     return sb.toString().trim();
   }
+
+  /**
+   * A line of a BARR document file with the entities of its document.
+   */
+  private static class BarrDocument {
+    private final String doc;
+    private final List<MarkytEntity> entities;
+
+    BarrDocument(String doc, List<MarkytEntity> entities) {
+      this.doc = doc;
+      this.entities = entities;
+    }
+  }
+
+  /**
+   * Reads the documents of a BARR document file paired with their entities.
+   */
+  private static class BarrDocumentReader
+      implements ConversionPipeline.RecordReader<BarrDocument> {
+    private final BufferedReader breader;
+    private final EntityGroups entityGroups;
+    private final EntityReport report;
+
+    BarrDocumentReader(Path docFile, Path entitiesFile, EntityReport report)
+        throws IOException {
+      this.breader = Files.newBufferedReader(docFile, StandardCharsets.UTF_8);
+      this.entityGroups = new EntityGroups(entitiesFile);
+      this.report = report;
+    }
+
+    @Override
+    public BarrDocument read() throws IOException {
+      String doc;
+      while ((doc = breader.readLine()) != null) {
+        if (!doc.isEmpty()) {
+          String docId = doc.substring(0, doc.indexOf('\t'));
+          System.err.println("-> DocId: " + docId);
+          return new BarrDocument(doc, entityGroups.get(docId));
+        }
+      }
+      report.unmatched.addAndGet(entityGroups.countRemaining());
+      return null;
+    }
+
+    @Override
+    public void close() throws IOException {
+      try {
+        breader.close();
+      } finally {
+        entityGroups.close();
+      }
+    }
+  }
+
+  /**
+   * Sorted offsets of the tokens of a section of a document. The tokens are
+   * added in text order, so both offset arrays are sorted and the token at a
+   * given offset is found by binary search.
+   */
+  private static class SectionIndex {
+    private final int firstToken;
+    private final int[] fromOffsets;
+    private final int[] toOffsets;
+    private int size;
+
+    SectionIndex(int firstToken, int noTokens) {
+      this.firstToken = firstToken;
+      this.fromOffsets = new int[noTokens];
+      this.toOffsets = new int[noTokens];
+    }
+
+    void add(int fromOffset, int toOffset) {
+      fromOffsets[size] = fromOffset;
+      toOffsets[size] = toOffset;
+      size++;
+    }
+
+    /**
+     * @return the document position of the token starting at the offset, -1
+     *         if none
+     */
+    int getStart(int fromOffset) {
+      int i = Arrays.binarySearch(fromOffsets, 0, size, fromOffset);
+      return i < 0 ? -1 : firstToken + i;
+    }
+
+    /**
+     * @return the document position after the token ending at the offset, -1
+     *         if none
+     */
+    int getEnd(int toOffset) {
+      int i = Arrays.binarySearch(toOffsets, 0, size, toOffset);
+      // span is +1 with respect to the last token of the span
+      return i < 0 ? -1 : firstToken + i + 1;
+    }
+  }
+
+  /**
+   * An entity of a BARR entities file.
+   */
+  static class MarkytEntity {
+    private final String docId;
+    private final String section;
+    private final int fromOffset;
+    private final int toOffset;
+    private final String type;
+
+    MarkytEntity(String line) {
+      // docId, section, from:to offsets and type
+      String[] entityArray = line.split("\t");
+      String[] offsets = entityArray[3].split(":");
+      this.docId = entityArray[0];
+      this.section = entityArray[2];
+      this.fromOffset = Integer.parseInt(offsets[0]);
+      this.toOffset = Integer.parseInt(offsets[1]);
+      this.type = entityArray[5];
+    }
+
+    @Override
+    public String toString() {
+      return docId + "#" + section + "#" + fromOffset + "#" + toOffset + "#"
+          + type;
+    }
+  }
+
+  /**
+   * Streams the entities file one document at a time. The entities of a
+   * document are usually in consecutive lines and the documents in the same
+   * order as in the document file, so only the entities of the current
+   * document are in memory; groups found ahead of their document are kept
+   * until it is requested, and merged with any other group of the document
+   * found before that. Entities of a document found after the document was
+   * requested cannot be added to it any more, so they are rejected with an
+   * {@code IOException} instead of being dropped.
+   */
+  static class EntityGroups implements Closeable {
+    private final BufferedReader breader;
+    private final Map<String, List<MarkytEntity>> pending = new HashMap<>();
+    private final Set<String> requested = new HashSet<>();
+    private MarkytEntity next;
+
+    EntityGroups(Path entitiesFile) throws IOException {
+      this.breader = Files.newBufferedReader(entitiesFile,
+          StandardCharsets.UTF_8);
+      this.next = readEntity();
+    }
+
+    /**
+     * @return the entities of a document, empty if none
+     * @throws IOException
+     *           if io problems, or if entities of a document already
+     *           requested are found
+     */
+    List<MarkytEntity> get(String docId) throws IOException {
+      List<MarkytEntity> group = pending.remove(docId);
+      if (group == null) {
+        group = find(docId);
+      }
+      requested.add(docId);
+      return group;
+    }
+
+    private List<MarkytEntity> find(String docId) throws IOException {
+      List<MarkytEntity> group;
+      while ((group = readGroup()) != null) {
+        String groupId = group.get(0).docId;
+        if (groupId.equals(docId)) {
+          return group;
+        }
+        List<MarkytEntity> previous = pending.putIfAbsent(groupId, group);
+        if (previous != null) {
+          previous.addAll(group);
+        }
+      }
+      return Collections.emptyList();
+    }
+
+    /**
+     * @return the number of entities of documents not requested
+     * @throws IOException
+     *           if io problems, or if entities of a document already
+     *           requested are found
+     */
+    int countRemaining() throws IOException {
+      int remaining = 0;
+      for (List<MarkytEntity> group : pending.values()) {
+        remaining += group.size();
+      }
+      List<MarkytEntity> group;
+      while ((group = readGroup()) != null) {
+        remaining += group.size();
+      }
+      return remaining;
+    }
+
+    private List<MarkytEntity> readGroup() throws IOException {
+      if (next == null) {
+        return null;
+      }
+      List<MarkytEntity> group = new ArrayList<>();
+      String docId = next.docId;
+      if (requested.contains(docId)) {
+        throw new IOException("Entities of document " + docId
+            + " found after the document was converted: " + next
+            + "; the entities of each document must be in consecutive lines");
+      }
+      while (next != null && next.docId.equals(docId)) {
+        group.add(next);
+        next = readEntity();
+      }
+      return group;
+    }
+
+    private MarkytEntity readEntity() throws IOException {
+      String line;
+      while ((line = breader.readLine()) != null) {
+        if (!line.isEmpty()) {
+          return new MarkytEntity(line);
+        }
+      }
+      return null;
+    }
+
+    @Override
+    public void close() throws IOException {
+      breader.close();
+    }
+  }
+
+  /**
+   * Counts of the entities of a conversion, updated by the conversion
+   * threads.
+   */
+  private static class EntityReport {
+    private final AtomicInteger added = new AtomicInteger();
+    private final AtomicInteger notAligned = new AtomicInteger();
+    private final AtomicInteger nested = new AtomicInteger();
+    private final AtomicInteger overlapping = new AtomicInteger();
+    private final AtomicInteger unmatched = new AtomicInteger();
+
+    void print() {
+      System.err.println("-> " + added + " entities added, " + nested
+          + " nested and " + overlapping + " overlapping; " + notAligned
+          + " not aligned with the tokens and " + unmatched
+          + " of documents not found skipped");
+    }
+  }
 }
@@ -0,0 +1,496 @@
+/*
+ * Copyright 2018 Rodrigo Agerri
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package eus.ixa.ixa.pipe.convert;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import eus.ixa.ixa.pipe.convert.ConversionPipeline.RecordReader;
+
+/**
+ * Reads only some layers of a NAF document with a StAX parser. Unlike
+ * {@code KAFDocument.createFromFile}, the elements of the layers not
+ * requested are skipped without creating any objects, and parsing stops as
+ * soon as every requested layer has been read, so that the layers after them
+ * (coreference, SRL, etc.) are not even parsed. Reading the terms layer
+ * implies reading the text layer, to which the term spans refer. KAF
+ * documents, with their kafHeader and wid, tid and eid attributes, are read
+ * as well; any other root element is an error.
+ *
+ * @author ragerri
+ * @version 2018-06-07
+ */
+public final class NAFReader {
+
+  /**
+   * The layers that can be read.
+   */
+  public enum Layer {
+    HEADER, TOPICS, TEXT, TERMS, ENTITIES
+  }
+
+  private static final XMLInputFactory inputFactory = XMLInputFactory
+      .newInstance();
+  static {
+    inputFactory.setProperty(XMLInputFactory.IS_COALESCING, true);
+    inputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+    inputFactory.setProperty(
+        XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+  }
+
+  private String publicId;
+  private final List<String> topics = new ArrayList<>();
+  private final List<WordForm> wordForms = new ArrayList<>();
+  private final Map<String, WordForm> wordFormsById = new HashMap<>();
+  private final List<Term> terms = new ArrayList<>();
+  private final List<Entity> entities = new ArrayList<>();
+
+  private NAFReader() {
+  }
+
+  /**
+   * Reads the given layers of a NAF document.
+   *
+   * @param nafFile
+   *          the NAF document
+   * @param layers
+   *          the layers to read
+   * @return the reader containing the layers read
+   * @throws IOException
+   *           if io problems or if the document is not well formed
+   */
+  public static NAFReader read(Path nafFile, Layer... layers)
+      throws IOException {
+    try (InputStream inputStream = new BufferedInputStream(
+        Files.newInputStream(nafFile), 1 << 16)) {
+      return read(inputStream, layers);
+    } catch (XMLStreamException e) {
+      throw new IOException("Error reading NAF document " + nafFile, e);
+    }
+  }
+
+  /**
+   * Reads the given layers of a NAF document of a container.
+   *
+   * @param document
+   *          the NAF document
+   * @param layers
+   *          the layers to read
+   * @return the reader containing the layers read
+   * @throws IOException
+   *           if the document is not well formed
+   */
+  public static NAFReader read(DocumentArchive.Document document,
+      Layer... layers) throws IOException {
+    try (InputStream inputStream = document.openStream()) {
+      return read(inputStream, layers);
+    } catch (XMLStreamException e) {
+      throw new IOException("Error reading NAF document " + document.getName(),
+          e);
+    }
+  }
+
+  /**
+   * Reads the given layers of every NAF document of a file, which is either
+   * a NAF document or a {@link DocumentArchive} of NAF documents.
+   *
+   * @param file
+   *          the NAF document or container
+   * @param layers
+   *          the layers to read
+   * @return the reader of the documents
+   * @throws IOException
+   *           if the file cannot be opened
+   */
+  public static RecordReader<NAFReader> readAll(Path file, Layer... layers)
+      throws IOException {
+    if (!DocumentArchive.isArchive(file)) {
+      NAFReader naf = read(file, layers);
+      return new RecordReader<NAFReader>() {
+        private boolean done = false;
+
+        @Override
+        public NAFReader read() {
+          if (done) {
+            return null;
+          }
+          done = true;
+          return naf;
+        }
+
+        @Override
+        public void close() {
+        }
+      };
+    }
+    RecordReader<DocumentArchive.Document> documents = DocumentArchive
+        .read(file);
+    return new RecordReader<NAFReader>() {
+      @Override
+      public NAFReader read() throws IOException {
+        DocumentArchive.Document document = documents.read();
+        return document == null ? null : NAFReader.read(document, layers);
+      }
+
+      @Override
+      public void close() throws IOException {
+        documents.close();
+      }
+    };
+  }
+
+  /**
+   * Reads the given layers of a NAF document.
+   *
+   * @param inputStream
+   *          the NAF document, which is not closed
+   * @param layers
+   *          the layers to read
+   * @return the reader containing the layers read
+   * @throws XMLStreamException
+   *           if the document is not well formed or not a NAF or KAF
+   *           document
+   */
+  public static NAFReader read(InputStream inputStream, Layer... layers)
+      throws XMLStreamException {
+    EnumSet<Layer> pending = EnumSet.noneOf(Layer.class);
+    Collections.addAll(pending, layers);
+    if (pending.contains(Layer.TERMS)) {
+      pending.add(Layer.TEXT);
+    }
+    NAFReader naf = new NAFReader();
+    XMLStreamReader reader = inputFactory.createXMLStreamReader(inputStream);
+    try {
+      boolean root = true;
+      while (!pending.isEmpty() && reader.hasNext()) {
+        if (reader.next() != XMLStreamConstants.START_ELEMENT) {
+          continue;
+        }
+        if (root) {
+          String element = reader.getLocalName();
+          if (!element.equals("NAF") && !element.equals("KAF")) {
+            throw new XMLStreamException(
+                "Not a NAF or KAF document, root element: " + element,
+                reader.getLocation());
+          }
+          root = false;
+          continue;
+        }
+        Layer layer = getLayer(reader.getLocalName());
+        if (layer != null && pending.remove(layer)) {
+          naf.readLayer(reader, layer);
+        } else {
+          skipElement(reader);
+        }
+      }
+    } finally {
+      reader.close();
+    }
+    return naf;
+  }
+
+  private static Layer getLayer(String element) {
+    switch (element) {
+    case "nafHeader":
+    case "kafHeader":
+      return Layer.HEADER;
+    case "topics":
+      return Layer.TOPICS;
+    case "text":
+      return Layer.TEXT;
+    case "terms":
+      return Layer.TERMS;
+    case "entities":
+      return Layer.ENTITIES;
+    default:
+      return null;
+    }
+  }
+
+  /**
+   * Skips the current element and its descendants.
+   */
+  private static void skipElement(XMLStreamReader reader)
+      throws XMLStreamException {
+    int depth = 1;
+    while (depth > 0) {
+      int event = reader.next();
+      if (event == XMLStreamConstants.START_ELEMENT) {
+        depth++;
+      } else if (event == XMLStreamConstants.END_ELEMENT) {
+        depth--;
+      }
+    }
+  }
+
+  /**
+   * @return the id of the current element, in the NAF id attribute or else in
+   *         the given KAF attribute
+   */
+  private static String getId(XMLStreamReader reader, String kafAttribute) {
+    String id = reader.getAttributeValue(null, "id");
+    return id != null ? id : reader.getAttributeValue(null, kafAttribute);
+  }
+
+  private void readLayer(XMLStreamReader reader, Layer layer)
+      throws XMLStreamException {
+    String layerElement = reader.getLocalName();
+    Term term = null;
+    Entity entity = null;
+    int externalRefDepth = 0;
+    while (true) {
+      int event = reader.next();
+      if (event == XMLStreamConstants.END_ELEMENT) {
+        String element = reader.getLocalName();
+        if (element.equals(layerElement)) {
+          return;
+        } else if (element.equals("externalRef")) {
+          externalRefDepth--;
+        }
+        continue;
+      }
+      if (event != XMLStreamConstants.START_ELEMENT) {
+        continue;
+      }
+      String element = reader.getLocalName();
+      if (layer == Layer.HEADER && element.equals("public")) {
+        publicId = reader.getAttributeValue(null, "publicId");
+      } else if (layer == Layer.TOPICS && element.equals("topic")) {
+        topics.add(reader.getElementText());
+      } else if (layer == Layer.TEXT && element.equals("wf")) {
+        String sent = reader.getAttributeValue(null, "sent");
+        WordForm wf = new WordForm(getId(reader, "wid"),
+            sent == null ? 0 : Integer.parseInt(sent));
+        // getElementText consumes the end element
+        wf.form = reader.getElementText();
+        wordForms.add(wf);
+        wordFormsById.put(wf.id, wf);
+      } else if (layer == Layer.TERMS && element.equals("term")) {
+        term = new Term(getId(reader, "tid"),
+            reader.getAttributeValue(null, "lemma"),
+            reader.getAttributeValue(null, "morphofeat"));
+        terms.add(term);
+      } else if (layer == Layer.TERMS && element.equals("target")
+          && term != null) {
+        WordForm wf = wordFormsById.get(reader.getAttributeValue(null, "id"));
+        if (wf != null) {
+          term.wordForms.add(wf);
+        }
+      } else if (layer == Layer.TERMS && element.equals("externalReferences")
+          || layer == Layer.TERMS && element.equals("component")) {
+        // do not take the targets of components as the span of the term
+        skipElement(reader);
+      } else if (layer == Layer.ENTITIES && element.equals("entity")) {
+        entity = new Entity(getId(reader, "eid"),
+            reader.getAttributeValue(null, "type"));
+        entities.add(entity);
+      } else if (layer == Layer.ENTITIES && element.equals("target")
+          && entity != null) {
+        entity.termIds.add(reader.getAttributeValue(null, "id"));
+      } else if (layer == Layer.ENTITIES && element.equals("externalRef")
+          && entity != null) {
+        // only the top level references, as KAFDocument does
+        if (externalRefDepth == 0) {
+          entity.externalReferences
+              .add(reader.getAttributeValue(null, "reference"));
+        }
+        externalRefDepth++;
+      }
+    }
+  }
+
+  /**
+   * @return the public id of the document, or null if it has none
+   */
+  public String getPublicId() {
+    return publicId;
+  }
+
+  /**
+   * @return the values of the topics
+   */
+  public List<String> getTopics() {
+    return topics;
+  }
+
+  /**
+   * @return the word forms in document order
+   */
+  public List<WordForm> getWordForms() {
+    return wordForms;
+  }
+
+  /**
+   * @return the word forms grouped by sentence, in sentence number order
+   */
+  public List<List<WordForm>> getSentences() {
+    TreeMap<Integer, List<WordForm>> sentences = new TreeMap<>();
+    for (WordForm wf : wordForms) {
+      sentences.computeIfAbsent(wf.sent, k -> new ArrayList<>()).add(wf);
+    }
+    return new ArrayList<>(sentences.values());
+  }
+
+  /**
+   * @return the terms in document order
+   */
+  public List<Term> getTerms() {
+    return terms;
+  }
+
+  /**
+   * @return the entities in document order
+   */
+  public List<Entity> getEntities() {
+    return entities;
+  }
+
+  /**
+   * A word form of the text layer.
+   */
+  public static final class WordForm {
+    private final String id;
+    private final int sent;
+    private String form;
+
+    WordForm(String id, int sent) {
+      this.id = id;
+      this.sent = sent;
+    }
+
+    public String getId() {
+      return id;
+    }
+
+    public String getForm() {
+      return form;
+    }
+
+    public int getSent() {
+      return sent;
+    }
+  }
+
+  /**
+   * A term of the terms layer.
+   */
+  public static final class Term {
+    private final String id;
+    private final String lemma;
+    private final String morphofeat;
+    private final List<WordForm> wordForms = new ArrayList<>();
+
+    Term(String id, String lemma, String morphofeat) {
+      this.id = id;
+      this.lemma = lemma;
+      this.morphofeat = morphofeat;
+    }
+
+    public String getId() {
+      return id;
+    }
+
+    public String getLemma() {
+      return lemma;
+    }
+
+    public String getMorphofeat() {
+      return morphofeat;
+    }
+
+    /**
+     * @return the word forms of the span of the term
+     */
+    public List<WordForm> getWordForms() {
+      return wordForms;
+    }
+
+    /**
+     * @return the forms of the span of the term separated by spaces
+     */
+    public String getForm() {
+      StringBuilder sb = new StringBuilder();
+      for (WordForm wf : wordForms) {
+        if (sb.length() > 0) {
+          sb.append(" ");
+        }
+        sb.append(wf.form);
+      }
+      return sb.toString();
+    }
+
+    /**
+     * @return the sentence of the first word form of the term, 0 if the span
+     *         is empty
+     */
+    public int getSent() {
+      return wordForms.isEmpty() ? 0 : wordForms.get(0).sent;
+    }
+  }
+
+  /**
+   * An entity of the entities layer.
+   */
+  public static final class Entity {
+    private final String id;
+    private final String type;
+    private final List<String> termIds = new ArrayList<>();
+    private final List<String> externalReferences = new ArrayList<>();
+
+    Entity(String id, String type) {
+      this.id = id;
+      this.type = type;
+    }
+
+    public String getId() {
+      return id;
+    }
+
+    public String getType() {
+      return type;
+    }
+
+    /**
+     * @return the ids of the terms in the references of the entity
+     */
+    public List<String> getTermIds() {
+      return termIds;
+    }
+
+    /**
+     * @return the references of the top level external references
+     */
+    public List<String> getExternalReferences() {
+      return externalReferences;
+    }
+  }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright 2018 Rodrigo Agerri
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package eus.ixa.ixa.pipe.convert;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Writer;
+
+import javax.xml.XMLConstants;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+/**
+ * Writes a NAF document containing the header and the text layer as the word
+ * forms are added, so that the document is never kept in memory.
+ *
+ * @author ragerri
+ * @version 2018-06-07
+ */
+public final class NAFTextWriter implements Closeable {
+
+  private static final XMLOutputFactory outputFactory = XMLOutputFactory
+      .newInstance();
+
+  private final Writer writer;
+  private final XMLStreamWriter xmlWriter;
+  private int noWFs = 0;
+
+  /**
+   * Starts a NAF document, writing everything up to the text layer.
+   *
+   * @param writer
+   *          the writer, closed when closing this NAF writer
+   * @param language
+   *          the language of the document
+   * @param publicId
+   *          the public id, or null not to write it
+   * @throws IOException
+   *           if io problems
+   */
+  public NAFTextWriter(Writer writer, String language, String publicId)
+      throws IOException {
+    this.writer = writer;
+    try {
+      xmlWriter = outputFactory.createXMLStreamWriter(writer);
+      xmlWriter.writeStartDocument("UTF-8", "1.0");
+      xmlWriter.writeCharacters("\n");
+      xmlWriter.writeStartElement("NAF");
+      xmlWriter.writeAttribute("xml", XMLConstants.XML_NS_URI, "lang",
+          language);
+      xmlWriter.writeAttribute("version", "v1.naf");
+      xmlWriter.writeCharacters("\n  ");
+      xmlWriter.writeStartElement("nafHeader");
+      if (publicId != null) {
+        xmlWriter.writeCharacters("\n    ");
+        xmlWriter.writeEmptyElement("public");
+        xmlWriter.writeAttribute("publicId", publicId);
+        xmlWriter.writeCharacters("\n  ");
+      }
+      xmlWriter.writeEndElement();
+      xmlWriter.writeCharacters("\n  ");
+      xmlWriter.writeStartElement("text");
+    } catch (XMLStreamException e) {
+      throw new IOException(e);
+    }
+  }
+
+  /**
+   * Writes a word form.
+   *
+   * @param form
+   *          the word form
+   * @param offset
+   *          the offset of the word form in the document
+   * @param sent
+   *          the sentence number
+   * @param para
+   *          the paragraph number
+   * @throws IOException
+   *           if io problems
+   */
+  public void addWF(String form, int offset, int sent, int para)
+      throws IOException {
+    noWFs++;
+    try {
+      xmlWriter.writeCharacters("\n    ");
+      xmlWriter.writeStartElement("wf");
+      xmlWriter.writeAttribute("id", "w" + noWFs);
+      xmlWriter.writeAttribute("offset", Integer.toString(offset));
+      xmlWriter.writeAttribute("length", Integer.toString(form.length()));
+      xmlWriter.writeAttribute("sent", Integer.toString(sent));
+      xmlWriter.writeAttribute("para", Integer.toString(para));
+      xmlWriter.writeCharacters(form);
+      xmlWriter.writeEndElement();
+    } catch (XMLStreamException e) {
+      throw new IOException(e);
+    }
+  }
+
+  /**
+   * @return the number of word forms written
+   */
+  public int getNumberOfWFs() {
+    return noWFs;
+  }
+
+  /**
+   * Closes the text layer and the document.
+   */
+  @Override
+  public void close() throws IOException {
+    try {
+      if (noWFs > 0) {
+        xmlWriter.writeCharacters("\n  ");
+      }
+      xmlWriter.writeEndElement();
+      xmlWriter.writeCharacters("\n");
+      xmlWriter.writeEndElement();
+      xmlWriter.writeCharacters("\n");
+      xmlWriter.writeEndDocument();
+      xmlWriter.close();
+    } catch (XMLStreamException e) {
+      throw new IOException(e);
+    } finally {
+      writer.close();
+    }
+  }
+}
@@ -1,8 +1,11 @@
 package eus.ixa.ixa.pipe.convert;
 
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.List;
 
+import eus.ixa.ixa.pipe.ml.tok.Token;
+import ixa.kaflib.KAFDocument;
 import ixa.kaflib.Term;
 import ixa.kaflib.WF;
 
@@ -11,6 +14,59 @@ public class NAFUtils {
   private NAFUtils() {
   }
 
+  /**
+   * Declares the conversions of NAF files and of raw NAF documents.
+   * 
+   * @param registry
+   *          the registry of conversions
+   */
+  static void registerConversions(ConversionRegistry registry) {
+    registry.registerReader(ConversionRegistry.NAF, ConversionRegistry.NAF,
+        (Path file, String language) -> KAFDocument
+            .createFromFile(file.toFile()));
+    registry.registerWriter(ConversionRegistry.NAF, ConversionRegistry.NAF,
+        (KAFDocument kaf, String language) -> kaf.toString());
+    registry.registerWriter(ConversionRegistry.RAW_NAF,
+        ConversionRegistry.RAW_NAF,
+        (KAFDocument kaf, String language) -> kaf.toString());
+    registry.registerTransform(ConversionRegistry.RAW_NAF,
+        ConversionRegistry.NAF, NAFUtils::tokenizeRawText);
+  }
+
+  /**
+   * Tokenizes the raw text of a NAF document into a new NAF document with one
+   * term per token.
+   * 
+   * @param raw
+   *          the NAF document with the raw text
+   * @param language
+   *          the language
+   * @return the tokenized NAF document
+   */
+  public static KAFDocument tokenizeRawText(KAFDocument raw,
+      String language) {
+    KAFDocument kaf = new KAFDocument(language, "v1.naf");
+    if (raw.getFileDesc() != null) {
+      kaf.createFileDesc().creationtime = raw.getFileDesc().creationtime;
+    }
+    kaf.setRawText(raw.getRawText());
+    List<List<Token>> sentences = StringUtils
+        .tokenizeDocument(raw.getRawText(), language);
+    int counter = 1;
+    for (List<Token> sentence : sentences) {
+      for (Token token : sentence) {
+        WF wf = kaf.newWF(token.startOffset(), token.getTokenValue(), counter);
+        final List<WF> wfTarget = new ArrayList<WF>();
+        wfTarget.add(wf);
+        Term term = kaf.newTerm(KAFDocument.newWFSpan(wfTarget));
+        term.setPos("O");
+        term.setLemma(token.getTokenValue());
+      }
+      counter++;
+    }
+    return kaf;
+  }
+
   public static String getSentenceStringFromWFs(List<WF> sent) {
     StringBuilder sb = new StringBuilder();
     for (WF wf : sent) {
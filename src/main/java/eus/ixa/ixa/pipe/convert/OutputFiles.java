@@ -0,0 +1,577 @@
+/*
+ * Copyright 2018 Rodrigo Agerri
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package eus.ixa.ixa.pipe.convert;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Opens the output files of the converters according to the output options
+ * of the command line: compression and sharding. By default the output is
+ * written, uncompressed, to the file requested by the converter. If sharding
+ * is enabled the output is split into several files named by appending a
+ * five digit shard number to the file name, e.g., corpus.conll02.00000,
+ * corpus.conll02.00001, etc.; a new shard is only started at the end of a
+ * record, which can be a line or a sentence (a block of lines ended by an
+ * empty line). Compressed files get the .gz extension. The compression and
+ * the writing of sharded or compressed outputs are done by a small pool of
+ * threads shared by all the outputs, so that they overlap with the
+ * conversion; closing an output waits until it is completely written.
+ * Outputs which are whole documents, e.g., NAF files, are compressed but
+ * never sharded, and are written by the thread which writes them; they can
+ * instead be collected in a single {@link DocumentArchive}. Output files are
+ * never overwritten.
+ *
+ * @author ragerri
+ * @version 2018-06-07
+ */
+public final class OutputFiles {
+
+  /**
+   * The compression of the output files.
+   */
+  public enum Compression {
+    NONE(""), GZIP(".gz");
+
+    private final String extension;
+
+    Compression(String extension) {
+      this.extension = extension;
+    }
+
+    public String getExtension() {
+      return extension;
+    }
+  }
+
+  /**
+   * The records at whose end a new shard can be started.
+   */
+  public enum Records {
+    LINE, SENTENCE
+  }
+
+  private static final int BLOCK_SIZE = 1 << 20;
+  private static final int QUEUED_BLOCKS = 4;
+  private static final Pattern SHARD_NUMBER = Pattern.compile("\\.\\d{5}$");
+  /**
+   * Compresses and writes the blocks of every sharded or compressed output.
+   * The threads are daemons so that they do not keep the JVM alive; every
+   * output is completely written once closed.
+   */
+  private static final ExecutorService writers = Executors.newFixedThreadPool(
+      Math.max(2, Runtime.getRuntime().availableProcessors() / 2), task -> {
+        Thread thread = new Thread(task, "output-writer");
+        thread.setDaemon(true);
+        return thread;
+      });
+
+  private static volatile Compression compression = Compression.NONE;
+  private static volatile long maxShardBytes = 0;
+  private static volatile long maxShardRecords = 0;
+  private static volatile Records records = Records.LINE;
+  private static volatile DocumentArchive archive;
+
+  private OutputFiles() {
+  }
+
+  /**
+   * Sets the output options for every output file opened afterwards.
+   *
+   * @param compression
+   *          the compression
+   * @param maxShardBytes
+   *          the maximum uncompressed size of a shard, 0 for no limit
+   * @param maxShardRecords
+   *          the maximum number of records of a shard, 0 for no limit
+   * @param records
+   *          the records at which shards are cut
+   */
+  public static void configure(Compression compression, long maxShardBytes,
+      long maxShardRecords, Records records) {
+    OutputFiles.compression = compression;
+    OutputFiles.maxShardBytes = maxShardBytes;
+    OutputFiles.maxShardRecords = maxShardRecords;
+    OutputFiles.records = records;
+  }
+
+  /**
+   * Writes the documents written with {@link #writeDocument(Path, String)}
+   * into a container instead of one file each, until the container is closed.
+   *
+   * @param archiveFile
+   *          the container, whose extension gives its format
+   * @throws IOException
+   *           if the container exists or cannot be created
+   */
+  public static synchronized void openArchive(Path archiveFile)
+      throws IOException {
+    closeArchive();
+    archive = DocumentArchive.create(archiveFile);
+    System.err.println(">> Writing documents to " + archive.getFile());
+  }
+
+  /**
+   * Closes the container of documents, if any.
+   *
+   * @throws IOException
+   *           if the container cannot be written
+   */
+  public static synchronized void closeArchive() throws IOException {
+    if (archive != null) {
+      DocumentArchive closing = archive;
+      archive = null;
+      closing.close();
+      System.err.println(">> Wrote " + closing.getNumberOfDocuments()
+          + " documents to " + closing.getFile());
+    }
+  }
+
+  /**
+   * @return true if the output is split into shards
+   */
+  public static boolean isSharded() {
+    return maxShardBytes > 0 || maxShardRecords > 0;
+  }
+
+  /**
+   * Gets the name of the first file written for the given output file.
+   *
+   * @param file
+   *          the output file requested by the converter
+   * @return the first file actually written
+   */
+  public static Path getOutputPath(Path file) {
+    return getShardPath(file, isSharded(), 0);
+  }
+
+  /**
+   * Gets the name of the file written for the given document.
+   *
+   * @param file
+   *          the document file requested by the converter
+   * @return the file actually written
+   */
+  public static Path getDocumentPath(Path file) {
+    return getShardPath(file, false, 0);
+  }
+
+  private static Path getShardPath(Path file, boolean sharded, int shard) {
+    String name = file.toString();
+    if (sharded) {
+      name = name + String.format(".%05d", shard);
+    }
+    return Paths.get(name + compression.getExtension());
+  }
+
+  /**
+   * Tells whether a file is one of the files written for an output file with
+   * the given extension, with any compression and sharding, e.g.,
+   * corpus.clean, corpus.clean.gz or corpus.clean.00001.gz for .clean.
+   *
+   * @param file
+   *          the file
+   * @param extension
+   *          the extension of the output file requested by the converter
+   * @return true if the file name ends with the extension
+   */
+  public static boolean hasOutputExtension(Path file, String extension) {
+    String name = file.getFileName().toString();
+    for (Compression fileCompression : Compression.values()) {
+      String compressionExtension = fileCompression.getExtension();
+      if (!compressionExtension.isEmpty()
+          && name.endsWith(compressionExtension)) {
+        name = name.substring(0,
+            name.length() - compressionExtension.length());
+        break;
+      }
+    }
+    return SHARD_NUMBER.matcher(name).replaceFirst("").endsWith(extension);
+  }
+
+  /**
+   * Deletes every file written for the given output file or document, with
+   * any compression and sharding.
+   *
+   * @param file
+   *          the output file requested by the converter
+   * @throws IOException
+   *           if a file cannot be deleted
+   */
+  public static void delete(Path file) throws IOException {
+    for (Compression fileCompression : Compression.values()) {
+      String extension = fileCompression.getExtension();
+      Files.deleteIfExists(Paths.get(file.toString() + extension));
+      int shard = 0;
+      while (Files.deleteIfExists(Paths
+          .get(file.toString() + String.format(".%05d", shard) + extension))) {
+        shard++;
+      }
+    }
+  }
+
+  /**
+   * Opens an output stream for the given output file.
+   *
+   * @param file
+   *          the output file requested by the converter
+   * @return the output stream
+   * @throws IOException
+   *           if the first file already exists or cannot be created
+   */
+  public static OutputStream newOutputStream(Path file) throws IOException {
+    if (!isSharded() && compression == Compression.NONE) {
+      return open(getOutputPath(file), compression);
+    }
+    return new ShardedOutputStream(file, compression, maxShardBytes,
+        maxShardRecords, records);
+  }
+
+  /**
+   * Opens an output stream for a document, which is compressed but not
+   * sharded.
+   *
+   * @param file
+   *          the document file requested by the converter
+   * @return the output stream
+   * @throws IOException
+   *           if the file already exists or cannot be created
+   */
+  public static OutputStream newDocumentOutputStream(Path file)
+      throws IOException {
+    return open(getDocumentPath(file), compression);
+  }
+
+  private static OutputStream open(Path file, Compression compression)
+      throws IOException {
+    OutputStream outputStream = new BufferedOutputStream(
+        Files.newOutputStream(file, StandardOpenOption.CREATE_NEW,
+            StandardOpenOption.WRITE),
+        1 << 16);
+    if (compression == Compression.GZIP) {
+      outputStream = new GZIPOutputStream(outputStream, 1 << 16);
+    }
+    return outputStream;
+  }
+
+  /**
+   * Opens a UTF-8 writer for a document, which is compressed but not
+   * sharded.
+   *
+   * @param file
+   *          the document file requested by the converter
+   * @return the writer
+   * @throws IOException
+   *           if the file already exists or cannot be created
+   */
+  public static Writer newDocumentWriter(Path file) throws IOException {
+    return new BufferedWriter(new OutputStreamWriter(
+        newDocumentOutputStream(file), StandardCharsets.UTF_8));
+  }
+
+  /**
+   * Opens a UTF-8 writer for the given output file.
+   *
+   * @param file
+   *          the output file requested by the converter
+   * @return the writer
+   * @throws IOException
+   *           if the first file already exists or cannot be created
+   */
+  public static Writer newWriter(Path file) throws IOException {
+    return new BufferedWriter(
+        new OutputStreamWriter(newOutputStream(file), StandardCharsets.UTF_8));
+  }
+
+  /**
+   * Writes a string encoded in UTF-8 to the given output file.
+   *
+   * @param file
+   *          the output file requested by the converter
+   * @param content
+   *          the content
+   * @return the first file actually written
+   * @throws IOException
+   *           if the first file already exists or cannot be created
+   */
+  public static Path write(Path file, String content) throws IOException {
+    try (Writer writer = newWriter(file)) {
+      writer.write(content);
+    }
+    return getOutputPath(file);
+  }
+
+  /**
+   * Writes a document encoded in UTF-8, compressed but not sharded, or adds
+   * it to the container of documents if one is open.
+   *
+   * @param file
+   *          the document file requested by the converter
+   * @param content
+   *          the content
+   * @return the file actually written, or the path of the document inside
+   *         the container
+   * @throws IOException
+   *           if the file already exists or cannot be created
+   */
+  public static Path writeDocument(Path file, String content)
+      throws IOException {
+    DocumentArchive documents = archive;
+    if (documents != null) {
+      return documents.add(file.toString(), content);
+    }
+    try (Writer writer = newDocumentWriter(file)) {
+      writer.write(content);
+    }
+    return getDocumentPath(file);
+  }
+
+  /**
+   * Splits the bytes written into shards at record boundaries and passes
+   * them in blocks to the shared writer threads, which compress them and
+   * write the files. The blocks of an output are written in order by one
+   * writer task at a time, and at most {@link #QUEUED_BLOCKS} blocks wait to
+   * be written.
+   */
+  private static final class ShardedOutputStream extends OutputStream {
+
+    private static final byte[] ROTATE = new byte[0];
+    private static final byte[] END = new byte[0];
+
+    private final Path file;
+    private final Compression compression;
+    private final long maxBytes;
+    private final long maxRecords;
+    private final boolean sentenceRecords;
+    private final boolean sharded;
+    private final Queue<byte[]> pending = new ConcurrentLinkedQueue<>();
+    private final Semaphore freeBlocks = new Semaphore(QUEUED_BLOCKS);
+    private final AtomicBoolean draining = new AtomicBoolean();
+    private final CountDownLatch finished = new CountDownLatch(1);
+    private volatile IOException error;
+    // used by the writer tasks
+    private OutputStream outputStream;
+    private int shard = 0;
+    // used by the thread writing to this stream
+    private final byte[] singleByte = new byte[1];
+    private byte[] block = new byte[BLOCK_SIZE];
+    private int blockSize = 0;
+    private long shardBytes = 0;
+    private long shardRecords = 0;
+    private int previousByte = '\n';
+    private boolean closed = false;
+
+    ShardedOutputStream(Path file, Compression compression, long maxBytes,
+        long maxRecords, Records records) throws IOException {
+      this.file = file;
+      this.compression = compression;
+      this.maxBytes = maxBytes;
+      this.maxRecords = maxRecords;
+      this.sentenceRecords = records == Records.SENTENCE;
+      this.sharded = maxBytes > 0 || maxRecords > 0;
+      // fail early, as Files.createFile did, if the output exists
+      outputStream = open(getShardPath(file, sharded, 0), compression);
+    }
+
+    /**
+     * Runs in a writer thread while there are blocks pending.
+     */
+    private void drain() {
+      do {
+        byte[] data;
+        while ((data = pending.poll()) != null) {
+          process(data);
+          freeBlocks.release();
+        }
+        draining.set(false);
+        // a block may have been added after the queue was found empty
+      } while (!pending.isEmpty() && draining.compareAndSet(false, true));
+    }
+
+    /**
+     * Writes a block, or closes the shard. A new shard is opened lazily,
+     * when there is something to write to it. After an error the blocks are
+     * only discarded.
+     */
+    private void process(byte[] data) {
+      try {
+        if (data == END || data == ROTATE) {
+          closeShard();
+        } else if (error == null) {
+          if (outputStream == null) {
+            outputStream = open(getShardPath(file, sharded, ++shard),
+                compression);
+          }
+          outputStream.write(data);
+        }
+      } catch (IOException e) {
+        if (error == null) {
+          error = e;
+        }
+      } finally {
+        if (data == END) {
+          finished.countDown();
+        }
+      }
+    }
+
+    private void closeShard() throws IOException {
+      if (outputStream != null) {
+        OutputStream closing = outputStream;
+        outputStream = null;
+        closing.close();
+      }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      singleByte[0] = (byte) b;
+      write(singleByte, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length)
+        throws IOException {
+      checkError();
+      int start = offset;
+      int end = offset + length;
+      for (int i = offset; i < end; i++) {
+        byte b = bytes[i];
+        boolean recordEnd = b == '\n'
+            && (!sentenceRecords || previousByte == '\n');
+        previousByte = b;
+        if (recordEnd) {
+          shardRecords++;
+          shardBytes += i + 1 - start;
+          append(bytes, start, i + 1 - start);
+          start = i + 1;
+          if (maxBytes > 0 && shardBytes >= maxBytes
+              || maxRecords > 0 && shardRecords >= maxRecords) {
+            enqueueBlock();
+            put(ROTATE);
+            shardBytes = 0;
+            shardRecords = 0;
+          }
+        }
+      }
+      shardBytes += end - start;
+      append(bytes, start, end - start);
+    }
+
+    private void append(byte[] bytes, int offset, int length)
+        throws IOException {
+      while (length > 0) {
+        int chunk = Math.min(length, block.length - blockSize);
+        System.arraycopy(bytes, offset, block, blockSize, chunk);
+        blockSize += chunk;
+        offset += chunk;
+        length -= chunk;
+        if (blockSize == block.length) {
+          enqueueBlock();
+        }
+      }
+    }
+
+    private void enqueueBlock() throws IOException {
+      if (blockSize > 0) {
+        put(blockSize == block.length ? block
+            : Arrays.copyOf(block, blockSize));
+        block = new byte[BLOCK_SIZE];
+        blockSize = 0;
+      }
+    }
+
+    private void put(byte[] data) throws IOException {
+      enqueue(data);
+      checkError();
+    }
+
+    private void enqueue(byte[] data) throws InterruptedIOException {
+      try {
+        freeBlocks.acquire();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted writing " + file);
+      }
+      pending.add(data);
+      if (draining.compareAndSet(false, true)) {
+        writers.execute(this::drain);
+      }
+    }
+
+    private void checkError() throws IOException {
+      if (error != null) {
+        throw new IOException("Error writing " + file, error);
+      }
+    }
+
+    /**
+     * Passes the buffered bytes to the writer threads; they are written to
+     * disk asynchronously.
+     */
+    @Override
+    public void flush() throws IOException {
+      enqueueBlock();
+    }
+
+    /**
+     * Waits until every byte is written and the last shard closed.
+     */
+    @Override
+    public void close() throws IOException {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      try {
+        if (error == null) {
+          enqueueBlock();
+        }
+      } finally {
+        // the last shard is closed even after an error
+        enqueue(END);
+        try {
+          finished.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException("Interrupted writing " + file);
+        }
+      }
+      checkError();
+    }
+  }
+}
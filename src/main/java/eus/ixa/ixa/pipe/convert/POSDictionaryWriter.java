@@ -0,0 +1,116 @@
+/*
+ * Copyright 2018 Rodrigo Agerri
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package eus.ixa.ixa.pipe.convert;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+/**
+ * Writes a case sensitive Apache OpenNLP {@code POSDictionary} as the entries
+ * are added, in the xml format of {@code POSDictionary#serialize}, so that the
+ * dictionary is never kept in memory. Every word must be added only once.
+ *
+ * @author ragerri
+ * @version 2018-06-07
+ */
+public final class POSDictionaryWriter implements Closeable {
+
+  private static final XMLOutputFactory outputFactory = XMLOutputFactory
+      .newInstance();
+
+  private final OutputStream outputStream;
+  private final XMLStreamWriter xmlWriter;
+  private int noEntries = 0;
+
+  /**
+   * Starts a dictionary, writing the root element.
+   *
+   * @param outputStream
+   *          the output, closed when closing this dictionary writer
+   * @throws IOException
+   *           if io problems
+   */
+  public POSDictionaryWriter(OutputStream outputStream) throws IOException {
+    this.outputStream = outputStream;
+    try {
+      xmlWriter = outputFactory.createXMLStreamWriter(outputStream, "UTF-8");
+      xmlWriter.writeStartDocument("UTF-8", "1.0");
+      xmlWriter.writeCharacters("\n");
+      xmlWriter.writeStartElement("dictionary");
+      xmlWriter.writeAttribute("case_sensitive", "true");
+    } catch (XMLStreamException e) {
+      throw new IOException(e);
+    }
+  }
+
+  /**
+   * Writes an entry.
+   *
+   * @param word
+   *          the word
+   * @param tags
+   *          the postags of the word separated by spaces
+   * @throws IOException
+   *           if io problems
+   */
+  public void addEntry(String word, String tags) throws IOException {
+    noEntries++;
+    try {
+      xmlWriter.writeCharacters("\n");
+      xmlWriter.writeStartElement("entry");
+      xmlWriter.writeAttribute("tags", tags);
+      xmlWriter.writeCharacters("\n");
+      xmlWriter.writeStartElement("token");
+      xmlWriter.writeCharacters(word);
+      xmlWriter.writeEndElement();
+      xmlWriter.writeCharacters("\n");
+      xmlWriter.writeEndElement();
+    } catch (XMLStreamException e) {
+      throw new IOException(e);
+    }
+  }
+
+  /**
+   * @return the number of entries written
+   */
+  public int getNumberOfEntries() {
+    return noEntries;
+  }
+
+  /**
+   * Ends the dictionary and closes the output.
+   */
+  @Override
+  public void close() throws IOException {
+    try {
+      xmlWriter.writeCharacters("\n");
+      xmlWriter.writeEndElement();
+      xmlWriter.writeCharacters("\n");
+      xmlWriter.writeEndDocument();
+      xmlWriter.close();
+    } catch (XMLStreamException e) {
+      throw new IOException(e);
+    } finally {
+      outputStream.close();
+    }
+  }
+}
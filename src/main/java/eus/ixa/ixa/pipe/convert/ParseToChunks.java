@@ -18,16 +18,17 @@ public class ParseToChunks {
   public static void parseToChunks(Path inFile) throws IOException {
     final List<String> inputTrees = Files.readAllLines(inFile,
         StandardCharsets.UTF_8);
-    final Path outfile = Files
-        .createFile(Paths.get(inFile.toString() + ".chunks"));
     final String outTree = parseToChunks(inputTrees);
-    Files.write(outfile, outTree.getBytes(StandardCharsets.UTF_8));
+    final Path outfile = OutputFiles
+        .write(Paths.get(inFile.toString() + ".chunks"), outTree);
     System.err.println(">> Wrote chunks to " + outfile);
   }
 
   private static String parseToChunks(List<String> inputTrees)
       throws IOException {
 
+    SymbolTable symbols = SymbolTable.getShared();
+    String out = ConllUtils.BIO.OUT.toString();
     StringBuilder sb = new StringBuilder();
     for (final String parseSent : inputTrees) {
       final Parse parse = Parse.parseParse(parseSent);
@@ -41,7 +42,7 @@ public class ParseToChunks {
           if (c.isPosTag()) {
             toks.add(c.getCoveredText());
             tags.add(c.getType());
-            preds.add("O");
+            preds.add(out);
           } else {
             boolean start = true;
             String ctype = c.getType();
@@ -51,10 +52,10 @@ public class ParseToChunks {
               toks.add(tok.getCoveredText());
               tags.add(tok.getType());
               if (start) {
-                preds.add("B-" + ctype);
+                preds.add(symbols.getBegin(ctype));
                 start = false;
               } else {
-                preds.add("I-" + ctype);
+                preds.add(symbols.getIn(ctype));
               }
             }
           }
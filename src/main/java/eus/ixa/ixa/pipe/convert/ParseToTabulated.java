@@ -18,10 +18,9 @@ public class ParseToTabulated {
   public static void parseToTabulated(Path inFile) throws IOException {
     final List<String> inputTrees = Files.readAllLines(inFile,
         StandardCharsets.UTF_8);
-    final Path outfile = Files
-        .createFile(Paths.get(inFile.toString() + ".tsv"));
     final String outTree = parseToTabulated(inputTrees);
-    Files.write(outfile, outTree.getBytes(StandardCharsets.UTF_8));
+    final Path outfile = OutputFiles
+        .write(Paths.get(inFile.toString() + ".tsv"), outTree);
     System.err.println(">> Wrote Tabulated POS format to " + outfile);
   }
 
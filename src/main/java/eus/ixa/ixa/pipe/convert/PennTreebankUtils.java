@@ -27,10 +27,9 @@ public class PennTreebankUtils {
     if (Files.isRegularFile(treebankFile)) {
       List<String> inputTrees = Files.readAllLines(treebankFile,
           StandardCharsets.UTF_8);
-      Path outfile = Files
-          .createFile(Paths.get(treebankFile.toString() + ".tok"));
       String outFile = getTokensFromTree(inputTrees);
-      Files.write(outfile, outFile.getBytes(StandardCharsets.UTF_8));
+      Path outfile = OutputFiles
+          .write(Paths.get(treebankFile.toString() + ".tok"), outFile);
       System.err.println(">> Wrote tokens to " + outfile);
     } else {
       System.out.println("Please choose a valid file as input.");
@@ -92,9 +91,11 @@ public class PennTreebankUtils {
     // process one file
     if (Files.isRegularFile(treebankFile)) {
       List<String> inputTrees = Files.readAllLines(treebankFile);
-      Path outfile = Paths.get(treebankFile.toString() + ".pos");
+      Path posFile = Paths.get(treebankFile.toString() + ".pos");
       String outFile = getPreTerminals(inputTrees);
-      Files.write(outfile, outFile.getBytes());
+      // this output has always been overwritten
+      Files.deleteIfExists(OutputFiles.getOutputPath(posFile));
+      Path outfile = OutputFiles.write(posFile, outFile);
       System.err
           .println(">> Wrote Apache OpenNLP POS training format to " + outfile);
     } else {
@@ -153,10 +154,9 @@ public class PennTreebankUtils {
     if (Files.isRegularFile(treebankFile)) {
       List<String> inputTrees = Files.readAllLines(treebankFile,
           StandardCharsets.UTF_8);
-      Path outfile = Files
-          .createFile(Paths.get(treebankFile.toString() + ".treeN"));
       String outFile = normalizeParse(inputTrees);
-      Files.write(outfile, outFile.getBytes(StandardCharsets.UTF_8));
+      Path outfile = OutputFiles
+          .write(Paths.get(treebankFile.toString() + ".treeN"), outFile);
       System.err.println(">> Wrote normalized parse to " + outfile);
     } else {
       System.out.println("Please choose a valid file as input.");
@@ -0,0 +1,177 @@
+/*
+ * Copyright 2018 Rodrigo Agerri
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package eus.ixa.ixa.pipe.convert;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import ixa.kaflib.Entity;
+import ixa.kaflib.KAFDocument;
+import ixa.kaflib.Span;
+import ixa.kaflib.Term;
+import ixa.kaflib.WF;
+
+/**
+ * Index of the terms of a NAF document by sentence, built in one pass over the
+ * terms and entities. The terms are stored grouped by sentence in one array,
+ * in the order of the sentences of the text layer, and the entities starting
+ * at each term are stored in arrays aligned with it, so that exporting a
+ * document does not require per sentence or per term lookups.
+ *
+ * @author ragerri
+ * @version 2018-06-07
+ */
+public final class SentenceIndex {
+
+  private final Term[] terms;
+  private final int[] sentenceStarts;
+  private final int[] entitySpanSizes;
+  private final String[] entityTypes;
+  private final String[] conllTypes;
+
+  private SentenceIndex(Term[] terms, int[] sentenceStarts) {
+    this.terms = terms;
+    this.sentenceStarts = sentenceStarts;
+    this.entitySpanSizes = new int[terms.length];
+    this.entityTypes = new String[terms.length];
+    this.conllTypes = new String[terms.length];
+  }
+
+  /**
+   * Builds the index of a document.
+   *
+   * @param kaf
+   *          the document
+   * @return the index
+   */
+  public static SentenceIndex build(KAFDocument kaf) {
+    // sentence numbers of the text layer to their position
+    List<List<WF>> sentences = kaf.getSentences();
+    int maxSent = 0;
+    for (List<WF> sentence : sentences) {
+      maxSent = Math.max(maxSent, sentence.get(0).getSent());
+    }
+    int[] sentencePositions = new int[maxSent + 1];
+    Arrays.fill(sentencePositions, -1);
+    for (int i = 0; i < sentences.size(); i++) {
+      sentencePositions[sentences.get(i).get(0).getSent()] = i;
+    }
+    // group the terms by sentence keeping their order
+    List<Term> termList = kaf.getTerms();
+    int[] termSentences = new int[termList.size()];
+    int[] sentenceStarts = new int[sentences.size() + 1];
+    for (int i = 0; i < termSentences.length; i++) {
+      int sent = termList.get(i).getSent();
+      termSentences[i] = sent >= 0 && sent <= maxSent ? sentencePositions[sent]
+          : -1;
+      if (termSentences[i] != -1) {
+        sentenceStarts[termSentences[i] + 1]++;
+      }
+    }
+    for (int i = 0; i < sentences.size(); i++) {
+      sentenceStarts[i + 1] += sentenceStarts[i];
+    }
+    Term[] terms = new Term[sentenceStarts[sentences.size()]];
+    int[] next = Arrays.copyOf(sentenceStarts, sentences.size());
+    Map<Term, Integer> termPositions = new IdentityHashMap<>(terms.length);
+    for (int i = 0; i < termSentences.length; i++) {
+      if (termSentences[i] != -1) {
+        int position = next[termSentences[i]]++;
+        terms[position] = termList.get(i);
+        termPositions.put(terms[position], position);
+      }
+    }
+    SentenceIndex index = new SentenceIndex(terms, sentenceStarts);
+    for (Entity ne : kaf.getEntities()) {
+      String conllType = ne.getType() == null ? null
+          : ConllUtils.convertToConLLTypes(ne.getType());
+      for (Span<Term> spanTerm : ne.getSpans()) {
+        Integer position = termPositions.get(spanTerm.getFirstTarget());
+        if (position != null) {
+          index.entitySpanSizes[position] = spanTerm.size();
+          index.entityTypes[position] = ne.getType();
+          index.conllTypes[position] = conllType;
+        }
+      }
+    }
+    return index;
+  }
+
+  /**
+   * @return the number of sentences
+   */
+  public int getNumberOfSentences() {
+    return sentenceStarts.length - 1;
+  }
+
+  /**
+   * @param sentence
+   *          the position of the sentence
+   * @return the position of the first term of the sentence
+   */
+  public int getSentenceStart(int sentence) {
+    return sentenceStarts[sentence];
+  }
+
+  /**
+   * @param sentence
+   *          the position of the sentence
+   * @return the position after the last term of the sentence
+   */
+  public int getSentenceEnd(int sentence) {
+    return sentenceStarts[sentence + 1];
+  }
+
+  /**
+   * @param position
+   *          the position of the term
+   * @return the term
+   */
+  public Term getTerm(int position) {
+    return terms[position];
+  }
+
+  /**
+   * @param position
+   *          the position of the term
+   * @return the size of the span of the entity starting at the term, 0 if
+   *         none
+   */
+  public int getEntitySpanSize(int position) {
+    return entitySpanSizes[position];
+  }
+
+  /**
+   * @param position
+   *          the position of the term
+   * @return the type of the entity starting at the term, null if none
+   */
+  public String getEntityType(int position) {
+    return entityTypes[position];
+  }
+
+  /**
+   * @param position
+   *          the position of the term
+   * @return the CoNLL type of the entity starting at the term, null if none
+   */
+  public String getConllType(int position) {
+    return conllTypes[position];
+  }
+}
@@ -19,15 +19,24 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
 import java.util.regex.Pattern;
 
 import eus.ixa.ixa.pipe.ml.utils.IOUtils;
@@ -57,6 +66,18 @@ public class SerializeResources {
   public static final Pattern dotInsideI = Pattern.compile("\u0130",
       Pattern.UNICODE_CHARACTER_CLASS);
   public static final String SER_GZ = ".gz";
+  /**
+   * Extension of the Brown cluster lexicons with path prefixes.
+   */
+  public static final String PREFIXES = ".prefixes";
+  /**
+   * Extension of the prefix id tables of the Brown cluster lexicons.
+   */
+  public static final String PREFIX_IDS = PREFIXES + ".ids";
+  /**
+   * Default frequency cutoff of the words of Brown cluster lexicons.
+   */
+  public static final int DEFAULT_FREQUENCY_CUTOFF = 5;
 
   private SerializeResources() {
   }
@@ -84,6 +105,7 @@ public class SerializeResources {
       throws IOException {
 
     Map<String, String> tokenToClusterMap = new HashMap<String, String>();
+    SymbolTable symbols = SymbolTable.getShared();
 
     InputStream inputStream = CmdLineUtil.openInFile(clusterFile.toFile());
     BufferedReader breader = new BufferedReader(
@@ -96,18 +118,18 @@ public class SerializeResources {
             .replaceAll("i");
         if (lowercase) {
           tokenToClusterMap.put(normalizedToken.toLowerCase(),
-              lineArray[1].intern());
+              symbols.intern(lineArray[1]));
         } else {
-          tokenToClusterMap.put(normalizedToken, lineArray[1].intern());
+          tokenToClusterMap.put(normalizedToken, symbols.intern(lineArray[1]));
         }
       } else if (lineArray.length == 2) {
         String normalizedToken = dotInsideI.matcher(lineArray[0])
             .replaceAll("i");
         if (lowercase) {
           tokenToClusterMap.put(normalizedToken.toLowerCase(),
-              lineArray[1].intern());
+              symbols.intern(lineArray[1]));
         } else {
-          tokenToClusterMap.put(normalizedToken, lineArray[1].intern());
+          tokenToClusterMap.put(normalizedToken, symbols.intern(lineArray[1]));
         }
       }
     }
@@ -120,17 +142,35 @@ public class SerializeResources {
 
   public static void serializeBrownClusters(Path dir, boolean lowercase)
       throws IOException {
+    serializeBrownClusters(dir, lowercase, DEFAULT_FREQUENCY_CUTOFF);
+  }
+
+  /**
+   * Serializes Brown cluster lexicons, path\tword\tfrequency per line, as
+   * word and path.
+   * 
+   * @param dir
+   *          a lexicon or a directory of lexicons
+   * @param lowercase
+   *          whether to lowercase the words
+   * @param frequencyCutoff
+   *          the words occurring this number of times or less are skipped
+   * @throws IOException
+   *           if io problems
+   */
+  public static void serializeBrownClusters(Path dir, boolean lowercase,
+      int frequencyCutoff) throws IOException {
     // process one file
     if (Files.isRegularFile(dir)) {
-      serializeBrownClusterFiles(dir, lowercase);
+      serializeBrownClusterFiles(dir, lowercase, frequencyCutoff);
     } else {
       // recursively process directories
       try (DirectoryStream<Path> filesDir = Files.newDirectoryStream(dir)) {
         for (Path file : filesDir) {
           if (Files.isDirectory(file)) {
-            serializeBrownClusters(file, lowercase);
+            serializeBrownClusters(file, lowercase, frequencyCutoff);
           } else {
-            serializeBrownClusterFiles(file, lowercase);
+            serializeBrownClusterFiles(file, lowercase, frequencyCutoff);
           }
         }
       }
@@ -139,47 +179,201 @@ public class SerializeResources {
 
   public static void serializeBrownClusterFiles(Path clusterFile,
       boolean lowercase) throws NumberFormatException, IOException {
+    serializeBrownClusterFiles(clusterFile, lowercase,
+        DEFAULT_FREQUENCY_CUTOFF);
+  }
+
+  private static void serializeBrownClusterFiles(Path clusterFile,
+      boolean lowercase, int frequencyCutoff)
+      throws NumberFormatException, IOException {
+    Map<String, String> tokenToClusterMap = readBrownClusters(clusterFile,
+        lowercase, frequencyCutoff);
+    String outputFile = clusterFile.toRealPath().toString() + SER_GZ;
+    IOUtils.writeClusterToFile(tokenToClusterMap, outputFile,
+        IOUtils.SPACE_DELIMITER);
+    System.err.println("-> Cluster serialized to " + outputFile);
+  }
+
+  /**
+   * Serializes Brown cluster lexicons, path\tword\tfrequency per line, as
+   * word, path and the ids of the prefixes of the path of every given
+   * length, separated by spaces, so that the prefix features are not
+   * computed for every token when the lexicon is used. A path shorter than a
+   * prefix length is its own prefix. The prefixes are interned in a
+   * {@link SymbolTable} of the lexicon in sorted order, so that equal prefixes
+   * get the same id, numbered from 0, and the ids of a lexicon do not depend
+   * on the order in which its words are read. The columns are computed once
+   * per cluster and shared by the words of the cluster. The lexicon of each
+   * file is written to the file plus the .prefixes.gz extension, and its
+   * prefix ids, id\tprefix per line, to the file plus the .prefixes.ids
+   * extension, by {@link OutputFiles}; the serialized lexicons, ending in .gz,
+   * and the prefix id tables found in a directory are skipped.
+   * 
+   * @param dir
+   *          a lexicon or a directory of lexicons
+   * @param lowercase
+   *          whether to lowercase the words
+   * @param prefixLengths
+   *          the lengths of the prefixes, e.g., 4, 6, 10 and 20
+   * @param frequencyCutoff
+   *          the words occurring this number of times or less are skipped
+   * @throws IOException
+   *           if io problems
+   * @throws IllegalArgumentException
+   *           if a prefix length is not positive
+   */
+  public static void serializeBrownClusterPrefixes(Path dir,
+      boolean lowercase, int[] prefixLengths, int frequencyCutoff)
+      throws IOException {
+    for (int prefixLength : prefixLengths) {
+      if (prefixLength < 1) {
+        throw new IllegalArgumentException(
+            "Prefix lengths must be positive: "
+                + Arrays.toString(prefixLengths));
+      }
+    }
+    if (Files.isRegularFile(dir)) {
+      serializeBrownClusterPrefixFiles(dir, lowercase, prefixLengths,
+          frequencyCutoff);
+    } else {
+      // recursively process directories
+      try (DirectoryStream<Path> filesDir = Files.newDirectoryStream(dir)) {
+        for (Path file : filesDir) {
+          if (Files.isDirectory(file)) {
+            serializeBrownClusterPrefixes(file, lowercase, prefixLengths,
+                frequencyCutoff);
+          } else if (!file.getFileName().toString().endsWith(SER_GZ)
+              && !OutputFiles.hasOutputExtension(file, PREFIX_IDS)) {
+            serializeBrownClusterPrefixFiles(file, lowercase, prefixLengths,
+                frequencyCutoff);
+          }
+        }
+      }
+    }
+  }
+
+  private static void serializeBrownClusterPrefixFiles(Path clusterFile,
+      boolean lowercase, int[] prefixLengths, int frequencyCutoff)
+      throws IOException {
+    Map<String, String> tokenToClusterMap = readBrownClusters(clusterFile,
+        lowercase, frequencyCutoff);
+    SymbolTable prefixes = new SymbolTable();
+    int noClusters = addPrefixColumns(tokenToClusterMap, prefixLengths,
+        prefixes);
+    String clusterPath = clusterFile.toRealPath().toString();
+    // the id table first, so that an existing one is not left stale
+    Path idsFile = writePrefixIds(Paths.get(clusterPath + PREFIX_IDS),
+        prefixes);
+    String outputFile = clusterPath + PREFIXES + SER_GZ;
+    IOUtils.writeClusterToFile(tokenToClusterMap, outputFile,
+        IOUtils.SPACE_DELIMITER);
+    System.err.println("-> Cluster prefixes " + Arrays.toString(prefixLengths)
+        + " of " + tokenToClusterMap.size() + " words in " + noClusters
+        + " clusters, " + prefixes.size() + " distinct prefixes, serialized to "
+        + outputFile + " with the prefix ids in " + idsFile);
+  }
 
+  /**
+   * Writes the prefix id table of a lexicon, id\tprefix per line.
+   *
+   * @return the file actually written
+   */
+  static Path writePrefixIds(Path file, SymbolTable prefixes)
+      throws IOException {
+    try (Writer writer = OutputFiles.newWriter(file)) {
+      StringBuilder sb = new StringBuilder();
+      for (int id = 0; id < prefixes.size(); id++) {
+        sb.setLength(0);
+        sb.append(id).append('\t').append(prefixes.getSymbol(id))
+            .append('\n');
+        writer.write(sb.toString());
+      }
+    }
+    return OutputFiles.getOutputPath(file);
+  }
+
+  /**
+   * Replaces the path of every word by the path followed by the ids of its
+   * prefixes, separated by spaces. The prefixes are interned in sorted order,
+   * so that the ids do not depend on the iteration order of the map.
+   *
+   * @param tokenToClusterMap
+   *          the words and their paths
+   * @param prefixLengths
+   *          the lengths of the prefixes
+   * @param prefixes
+   *          the empty table where the prefixes are interned
+   * @return the number of distinct paths
+   */
+  static int addPrefixColumns(Map<String, String> tokenToClusterMap,
+      int[] prefixLengths, SymbolTable prefixes) {
+    Set<String> paths = new HashSet<>(tokenToClusterMap.values());
+    SortedSet<String> sortedPrefixes = new TreeSet<>();
+    for (String path : paths) {
+      for (int prefixLength : prefixLengths) {
+        sortedPrefixes
+            .add(path.substring(0, Math.min(prefixLength, path.length())));
+      }
+    }
+    for (String prefix : sortedPrefixes) {
+      prefixes.intern(prefix);
+    }
+    // the columns of each cluster, shared by its words
+    Map<String, String> pathColumns = new HashMap<>();
+    StringBuilder sb = new StringBuilder();
+    for (Map.Entry<String, String> entry : tokenToClusterMap.entrySet()) {
+      entry.setValue(pathColumns.computeIfAbsent(entry.getValue(), path -> {
+        sb.setLength(0);
+        sb.append(path);
+        for (int prefixLength : prefixLengths) {
+          sb.append(' ').append(prefixes.getId(
+              path.substring(0, Math.min(prefixLength, path.length()))));
+        }
+        return sb.toString();
+      }));
+    }
+    return paths.size();
+  }
+
+  /**
+   * Reads a Brown cluster lexicon, path\tword\tfrequency or path\tword per
+   * line, skipping the words which occur this number of times or less.
+   * 
+   * @return the path of every word
+   */
+  private static Map<String, String> readBrownClusters(Path clusterFile,
+      boolean lowercase, int frequencyCutoff) throws IOException {
     Map<String, String> tokenToClusterMap = new HashMap<String, String>();
+    SymbolTable symbols = SymbolTable.getShared();
     InputStream inputStream = CmdLineUtil.openInFile(clusterFile.toFile());
-    BufferedReader breader = new BufferedReader(
-        new InputStreamReader(inputStream, Charset.forName("UTF-8")));
-    String line;
-    while ((line = breader.readLine()) != null) {
-      String[] lineArray = tabPattern.split(line);
-      if (lineArray.length == 3) {
-        int freq = Integer.parseInt(lineArray[2]);
-        if (freq > 5) {
-          String normalizedToken = dotInsideI.matcher(lineArray[1])
-              .replaceAll("I");
-          if (lowercase) {
-            tokenToClusterMap.put(normalizedToken.toLowerCase(),
-                lineArray[0].intern());
-          } else {
-            tokenToClusterMap.put(normalizedToken, lineArray[0].intern());
+    try (BufferedReader breader = new BufferedReader(
+        new InputStreamReader(inputStream, Charset.forName("UTF-8")))) {
+      String line;
+      while ((line = breader.readLine()) != null) {
+        String[] lineArray = tabPattern.split(line);
+        if (lineArray.length == 3) {
+          int freq = Integer.parseInt(lineArray[2]);
+          if (freq <= frequencyCutoff) {
+            continue;
           }
+        } else if (lineArray.length != 2) {
+          continue;
         }
-      } else if (lineArray.length == 2) {
-        String normalizedToken = dotInsideI.matcher(lineArray[0])
+        String normalizedToken = dotInsideI.matcher(lineArray[1])
             .replaceAll("I");
         if (lowercase) {
-          tokenToClusterMap.put(normalizedToken.toLowerCase(),
-              lineArray[0].intern());
-        } else {
-          tokenToClusterMap.put(normalizedToken, lineArray[0].intern());
+          normalizedToken = normalizedToken.toLowerCase();
         }
+        tokenToClusterMap.put(normalizedToken, symbols.intern(lineArray[0]));
       }
     }
-    String outputFile = clusterFile.toRealPath().toString() + SER_GZ;
-    IOUtils.writeClusterToFile(tokenToClusterMap, outputFile,
-        IOUtils.SPACE_DELIMITER);
-    System.err.println("-> Cluster serialized to " + outputFile);
-    breader.close();
+    return tokenToClusterMap;
   }
 
   public static void serializeEntityGazetteers(Path dictionaryFile)
       throws IOException {
     Map<String, String> dictionary = new HashMap<String, String>();
+    SymbolTable symbols = SymbolTable.getShared();
     InputStream inputStream = CmdLineUtil.openInFile(dictionaryFile.toFile());
     BufferedReader breader = new BufferedReader(
         new InputStreamReader(inputStream, Charset.forName("UTF-8")));
@@ -189,7 +383,8 @@ public class SerializeResources {
       if (lineArray.length == 2) {
         String normalizedToken = dotInsideI.matcher(lineArray[0])
             .replaceAll("i");
-        dictionary.put(normalizedToken.toLowerCase(), lineArray[1].intern());
+        dictionary.put(normalizedToken.toLowerCase(),
+            symbols.intern(lineArray[1]));
       } else {
         System.err.println(lineArray[0] + " is not well formed!");
       }
@@ -199,25 +394,47 @@ public class SerializeResources {
     breader.close();
   }
 
+  /**
+   * Serializes a DictionaryLemmatizer dictionary, word\tlemma\tpostag per
+   * line, keyed by word form and postag, sorted, keeping the last lemma of
+   * each key. It reports the entries read per second and the peak heap used.
+   * 
+   * @param lemmaDict
+   *          the dictionary
+   * @throws IOException
+   *           if io problems
+   */
   public static void serializeLemmaDictionary(Path lemmaDict)
       throws IOException {
-    Map<List<String>, String> dictMap = new HashMap<List<String>, String>();
+    long start = System.nanoTime();
+    LemmaDictionaryBuilder builder = new LemmaDictionaryBuilder();
     InputStream inputStream = CmdLineUtil.openInFile(lemmaDict.toFile());
-    BufferedReader breader = new BufferedReader(
-        new InputStreamReader(inputStream, StandardCharsets.UTF_8));
-    String line;
-    while ((line = breader.readLine()) != null) {
-      final String[] elems = tabPattern.split(line);
-      if (elems.length == 3) {
-        String normalizedToken = dotInsideI.matcher(elems[0]).replaceAll("I");
-        dictMap.put(Arrays.asList(normalizedToken, elems[2]), elems[1]);
-      } else {
-        System.err.println(elems[0] + " is not well formed!");
+    try (BufferedReader breader = new BufferedReader(
+        new InputStreamReader(inputStream, StandardCharsets.UTF_8))) {
+      String line;
+      while ((line = breader.readLine()) != null) {
+        if (!builder.add(line)) {
+          int tab = line.indexOf('\t');
+          System.err.println((tab == -1 ? line : line.substring(0, tab))
+              + " is not well formed!");
+        }
       }
     }
+    Map<List<String>, String> dictMap = builder.build();
+    double seconds = (System.nanoTime() - start) / 1e9;
     String outputFile = lemmaDict.toString() + SER_GZ;
     IOUtils.writeDictionaryLemmatizerToFile(dictMap, outputFile,
         IOUtils.TAB_DELIMITER);
-    breader.close();
+    long peakHeap = 0;
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      if (pool.getType() == MemoryType.HEAP) {
+        peakHeap += pool.getPeakUsage().getUsed();
+      }
+    }
+    System.err.println(String.format(
+        ">> Serialized %d entries, %d read in %.1f s (%.0f entries/s), to %s; "
+            + "peak heap %d MB",
+        dictMap.size(), builder.size(), seconds, builder.size() / seconds,
+        outputFile, peakHeap >> 20));
   }
 }
@@ -0,0 +1,202 @@
+/*
+ * Copyright 2018 Rodrigo Agerri
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package eus.ixa.ixa.pipe.convert;
+
+import java.util.Locale;
+
+/**
+ * Computes the shortest edit script (SES) to go from a word form to its lemma.
+ * It produces the same scripts as
+ * {@code eus.ixa.ixa.pipe.ml.utils.StringUtils#getShortestEditScript} but the
+ * levenshtein matrix and the reversed lowercased strings are kept in char and
+ * int arrays that are reused between calls, so the only allocation per word is
+ * the resulting script. Instances are not thread safe; use one per thread.
+ *
+ * @author ragerri
+ * @version 2018-06-07
+ */
+public final class ShortestEditScript {
+
+  /**
+   * The SES for a word form equal to its lemma.
+   */
+  public static final String IDENTITY = "O";
+
+  private char[] wordForm = new char[32];
+  private char[] lemma = new char[32];
+  private int[] distance = new int[33 * 33];
+  private final StringBuilder permutations = new StringBuilder();
+  private final boolean simpleLowercase;
+
+  public ShortestEditScript() {
+    String language = Locale.getDefault().getLanguage();
+    // these locales have lowercasing rules which are not char by char
+    simpleLowercase = !(language.equals("tr") || language.equals("az")
+        || language.equals("lt"));
+  }
+
+  /**
+   * Get the SES required to go from a word form to a lemma.
+   *
+   * @param word
+   *          the word form
+   * @param lemmaString
+   *          the lemma
+   * @return the shortest edit script
+   */
+  public String getShortestEditScript(String word, String lemmaString) {
+    int wordLength = reverseLowercase(word, true);
+    int lemmaLength = reverseLowercase(lemmaString, false);
+    if (wordLength == lemmaLength && equals(wordLength)) {
+      return IDENTITY;
+    }
+    levenshteinDistance(wordLength, lemmaLength);
+    permutations.setLength(0);
+    computeShortestEditScript(wordLength, lemmaLength);
+    return permutations.toString();
+  }
+
+  /**
+   * Lowercases and reverses a string into the word form or lemma buffer.
+   *
+   * @return the number of chars in the buffer
+   */
+  private int reverseLowercase(String string, boolean isWordForm) {
+    int length = string.length();
+    boolean simple = simpleLowercase;
+    for (int i = 0; i < length && simple; i++) {
+      char c = string.charAt(i);
+      // chars whose lowercase depends on context or changes the length
+      simple = c != '\u0130' && c != '\u03A3' && !Character.isSurrogate(c);
+    }
+    if (!simple) {
+      // StringBuilder.reverse keeps surrogate pairs in order
+      string = new StringBuilder(string.toLowerCase()).reverse().toString();
+      length = string.length();
+    }
+    char[] buffer = ensureCapacity(isWordForm ? wordForm : lemma, length);
+    if (isWordForm) {
+      wordForm = buffer;
+    } else {
+      lemma = buffer;
+    }
+    if (simple) {
+      for (int i = 0; i < length; i++) {
+        buffer[length - 1 - i] = Character.toLowerCase(string.charAt(i));
+      }
+    } else {
+      string.getChars(0, length, buffer, 0);
+    }
+    return length;
+  }
+
+  private static char[] ensureCapacity(char[] buffer, int length) {
+    if (buffer.length < length) {
+      return new char[Math.max(length, buffer.length * 2)];
+    }
+    return buffer;
+  }
+
+  private boolean equals(int length) {
+    for (int i = 0; i < length; i++) {
+      if (wordForm[i] != lemma[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Fills the levenshtein distance matrix, stored by rows in the distance
+   * array. As in the original implementation, if any of the strings is empty
+   * the matrix is left with zeros.
+   */
+  private void levenshteinDistance(int wordLength, int lemmaLength) {
+    int columns = lemmaLength + 1;
+    int size = (wordLength + 1) * columns;
+    if (distance.length < size) {
+      distance = new int[Math.max(size, distance.length * 2)];
+    }
+    if (wordLength == 0 || lemmaLength == 0) {
+      for (int i = 0; i < size; i++) {
+        distance[i] = 0;
+      }
+      return;
+    }
+    for (int i = 0; i <= wordLength; i++) {
+      distance[i * columns] = i;
+    }
+    for (int j = 0; j <= lemmaLength; j++) {
+      distance[j] = j;
+    }
+    for (int i = 1; i <= wordLength; i++) {
+      char s_i = wordForm[i - 1];
+      int row = i * columns;
+      int previousRow = row - columns;
+      for (int j = 1; j <= lemmaLength; j++) {
+        int cost = s_i == lemma[j - 1] ? 0 : 1;
+        int deletion = distance[previousRow + j] + 1;
+        int insertion = distance[row + j - 1] + 1;
+        int substitution = distance[previousRow + j - 1] + cost;
+        distance[row + j] = Math.min(Math.min(deletion, insertion),
+            substitution);
+      }
+    }
+  }
+
+  private void computeShortestEditScript(int wordLength, int lemmaLength) {
+    int columns = lemmaLength + 1;
+    int i = wordLength;
+    int j = lemmaLength;
+    while (true) {
+      int current = distance[i * columns + j];
+      if (current == 0) {
+        break;
+      }
+      if (j > 0 && i > 0 && distance[(i - 1) * columns + j - 1] < current) {
+        permutations.append('R').append(i - 1).append(wordForm[i - 1])
+            .append(lemma[j - 1]);
+        j--;
+        i--;
+        continue;
+      }
+      if (j > 0 && distance[i * columns + j - 1] < current) {
+        permutations.append('I').append(i).append(lemma[j - 1]);
+        j--;
+        continue;
+      }
+      if (i > 0 && distance[(i - 1) * columns + j] < current) {
+        permutations.append('D').append(i - 1).append(wordForm[i - 1]);
+        i--;
+        continue;
+      }
+      if (i > 0 && j > 0 && distance[(i - 1) * columns + j - 1] == current) {
+        i--;
+        j--;
+        continue;
+      }
+      if (i > 0 && distance[(i - 1) * columns + j] == current) {
+        i--;
+        continue;
+      }
+      if (j > 0 && distance[i * columns + j - 1] == current) {
+        j--;
+        continue;
+      }
+    }
+  }
+}
@@ -19,7 +19,6 @@ package eus.ixa.ixa.pipe.convert;
 import java.io.File;
 import java.io.IOException;
 import java.nio.charset.Charset;
-import java.nio.charset.StandardCharsets;
 import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
@@ -272,8 +271,8 @@ public final class StringUtils {
       String docClass = docClassifier.classify(document);
       sb.append(docClass + "\t" + line).append("\n");
     }
-    Path outfile = Files.createFile(Paths.get(inputFile + ".doc"));
-    Files.write(outfile, sb.toString().getBytes(StandardCharsets.UTF_8));
+    Path outfile = OutputFiles.write(Paths.get(inputFile + ".doc"),
+        sb.toString());
     System.err.println(">> Wrote document classifier document to " + outfile);
   }
   
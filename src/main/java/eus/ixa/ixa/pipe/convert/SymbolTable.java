@@ -0,0 +1,175 @@
+/*
+ * Copyright 2018 Rodrigo Agerri
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package eus.ixa.ixa.pipe.convert;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+import eus.ixa.ixa.pipe.convert.ConllUtils.BIO;
+
+/**
+ * Thread-safe table of the symbols of the conversions, e.g., postags, entity
+ * types or cluster ids. Every distinct symbol is stored once and mapped to a
+ * small int id, and its BIO labels are composed once, the first time they are
+ * requested, so that labeling a token does not create any string. Looking up
+ * a symbol already in the table does not lock.
+ *
+ * @author ragerri
+ * @version 2018-06-07
+ */
+public final class SymbolTable {
+
+  private static final SymbolTable SHARED = new SymbolTable();
+
+  private final ConcurrentHashMap<String, Symbol> symbols =
+      new ConcurrentHashMap<>();
+  // written only while holding the lock, after the symbol is complete
+  private volatile Symbol[] byId = new Symbol[64];
+  private int size;
+
+  /**
+   * @return the table shared by all the conversions
+   */
+  public static SymbolTable getShared() {
+    return SHARED;
+  }
+
+  /**
+   * @param symbol
+   *          the symbol
+   * @return the id of the symbol, which is added if not in the table
+   */
+  public int getId(String symbol) {
+    return lookup(symbol).id;
+  }
+
+  /**
+   * Returns the instance of a symbol stored in the table, as
+   * {@code String.intern()} does.
+   *
+   * @param symbol
+   *          the symbol
+   * @return the symbol stored in the table
+   */
+  public String intern(String symbol) {
+    return lookup(symbol).value;
+  }
+
+  /**
+   * @param id
+   *          the id of a symbol
+   * @return the symbol
+   */
+  public String getSymbol(int id) {
+    return byId[id].value;
+  }
+
+  /**
+   * @param type
+   *          the type of a span
+   * @return the label of the first token of the span, e.g., B-LOC
+   */
+  public String getBegin(String type) {
+    return lookup(type).getBegin();
+  }
+
+  /**
+   * @param type
+   *          the type of a span
+   * @return the label of the other tokens of the span, e.g., I-LOC
+   */
+  public String getIn(String type) {
+    return lookup(type).getIn();
+  }
+
+  /**
+   * @param id
+   *          the id of the type of a span
+   * @return the label of the first token of the span
+   */
+  public String getBegin(int id) {
+    return byId[id].getBegin();
+  }
+
+  /**
+   * @param id
+   *          the id of the type of a span
+   * @return the label of the other tokens of the span
+   */
+  public String getIn(int id) {
+    return byId[id].getIn();
+  }
+
+  /**
+   * @return the number of symbols in the table
+   */
+  public int size() {
+    return symbols.size();
+  }
+
+  private Symbol lookup(String symbol) {
+    Symbol entry = symbols.get(symbol);
+    return entry != null ? entry : add(symbol);
+  }
+
+  private synchronized Symbol add(String symbol) {
+    Symbol entry = symbols.get(symbol);
+    if (entry == null) {
+      entry = new Symbol(size, symbol);
+      Symbol[] ids = byId;
+      if (size == ids.length) {
+        ids = Arrays.copyOf(ids, size * 2);
+      }
+      ids[size++] = entry;
+      // the id must resolve before it is visible through the map
+      byId = ids;
+      symbols.put(symbol, entry);
+    }
+    return entry;
+  }
+
+  private static class Symbol {
+    private final int id;
+    private final String value;
+    // composed lazily; racing threads compose equal strings
+    private String begin;
+    private String in;
+
+    Symbol(int id, String value) {
+      this.id = id;
+      this.value = value;
+    }
+
+    String getBegin() {
+      String label = begin;
+      if (label == null) {
+        label = BIO.BEGIN.toString() + value;
+        begin = label;
+      }
+      return label;
+    }
+
+    String getIn() {
+      String label = in;
+      if (label == null) {
+        label = BIO.IN.toString() + value;
+        in = label;
+      }
+      return label;
+    }
+  }
+}
@@ -16,26 +16,21 @@
 
 package eus.ixa.ixa.pipe.convert;
 
-import java.io.File;
+import java.io.BufferedInputStream;
 import java.io.IOException;
-import java.nio.charset.Charset;
-import java.nio.charset.StandardCharsets;
-import java.nio.file.DirectoryStream;
+import java.io.InputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
-import java.util.Properties;
 
-import org.jdom2.Document;
 import org.jdom2.Element;
 import org.jdom2.JDOMException;
-import org.jdom2.filter.Filters;
-import org.jdom2.input.SAXBuilder;
-import org.jdom2.xpath.XPathExpression;
-import org.jdom2.xpath.XPathFactory;
 
-import eus.ixa.ixa.pipe.ml.StatisticalDocumentClassifier;
+import eus.ixa.ixa.pipe.ml.document.DocumentClassifierME;
+import eus.ixa.ixa.pipe.ml.document.DocumentClassifierModel;
 import eus.ixa.ixa.pipe.ml.tok.Token;
 import ixa.kaflib.KAFDocument;
 
@@ -48,6 +43,10 @@ import ixa.kaflib.KAFDocument;
 public class TassFormat {
 
   private static String LANGUAGE = "es";
+  /**
+   * Number of tweets classified at a time by each annotation thread.
+   */
+  public static final int DEFAULT_BATCH_SIZE = 256;
 
   // do not instantiate this class
   private TassFormat() {
@@ -55,124 +54,202 @@ public class TassFormat {
 
   public static void generalToTabulated(String fileName)
       throws JDOMException, IOException {
-    StringBuilder sb = new StringBuilder();
-    // reading the TASS General Corpus xml file
-    SAXBuilder sax = new SAXBuilder();
-    XPathFactory xFactory = XPathFactory.instance();
-    Document doc = sax.build(fileName);
-    XPathExpression<Element> expr = xFactory.compile("//tweet",
-        Filters.element());
-    List<Element> tweets = expr.evaluate(doc);
-
-    for (Element tweet : tweets) {
-      String tokenizedTweetContent = null;
-      String tweetPolarity = null;
-      String tweetId = tweet.getChildText("tweetid");
-      String tweetContentString = tweet.getChildText("content");
-      // the list contains just one list of tokens
-      List<List<Token>> segmentedSentences = StringUtils
-          .tokenizeSentence(tweetContentString, LANGUAGE);
-      for (List<Token> tokenizedSentence : segmentedSentences) {
-        String[] tokenizedTweetArray = eus.ixa.ixa.pipe.ml.utils.StringUtils
-            .convertListTokenToArrayStrings(tokenizedSentence);
-        tokenizedTweetContent = StringUtils
-            .getStringFromTokens(tokenizedTweetArray);
-      }
-      if (tweet.getChild("sentiments").getChild("polarity")
-          .getChildText("value") != null) {
-        tweetPolarity = tweet.getChild("sentiments").getChild("polarity")
-            .getChildText("value");
-      }
-      sb.append(tweetId).append("\t").append(tweetPolarity).append("\t")
-          .append(tokenizedTweetContent).append("\n");
+    // reading the TASS General Corpus xml file one tweet at a time
+    ConversionPipeline
+        .read(ConversionPipeline.elements(Paths.get(fileName), "tweet"))
+        .map(ConversionPipeline.getThreads(), TassFormat::tweetToTabulated)
+        .run(System.out::print);
+  }
+
+  private static String tweetToTabulated(Element tweet) {
+    String tokenizedTweetContent = null;
+    String tweetPolarity = null;
+    String tweetId = tweet.getChildText("tweetid");
+    String tweetContentString = tweet.getChildText("content");
+    // the list contains just one list of tokens
+    List<List<Token>> segmentedSentences = StringUtils
+        .tokenizeSentence(tweetContentString, LANGUAGE);
+    for (List<Token> tokenizedSentence : segmentedSentences) {
+      String[] tokenizedTweetArray = eus.ixa.ixa.pipe.ml.utils.StringUtils
+          .convertListTokenToArrayStrings(tokenizedSentence);
+      tokenizedTweetContent = StringUtils
+          .getStringFromTokens(tokenizedTweetArray);
+    }
+    if (tweet.getChild("sentiments").getChild("polarity")
+        .getChildText("value") != null) {
+      tweetPolarity = tweet.getChild("sentiments").getChild("polarity")
+          .getChildText("value");
     }
-    System.out.println(sb.toString());
+    return tweetId + "\t" + tweetPolarity + "\t" + tokenizedTweetContent
+        + "\n";
   }
 
-  public static void generalToWFs(String fileName) {
-    SAXBuilder sax = new SAXBuilder();
-    XPathFactory xFactory = XPathFactory.instance();
-    try {
-      Document doc = sax.build(fileName);
-      XPathExpression<Element> expr = xFactory.compile("//tweet",
-          Filters.element());
-      List<Element> tweets = expr.evaluate(doc);
-
-      for (Element tweet : tweets) {
-        String tweetId = tweet.getChildText("tweetid");
-        KAFDocument kaf = new KAFDocument(LANGUAGE, "v1.naf");
-        kaf.createPublic().publicId = tweetId;
-
-        String tweetContentString = tweet.getChildText("content");
-        List<List<Token>> segmentedSentences = StringUtils
-            .tokenizeSentence(tweetContentString, LANGUAGE);
-        for (List<Token> sentence : segmentedSentences) {
-          for (Token token : sentence) {
-            kaf.newWF(token.startOffset(), token.getTokenValue(), 1);
-          }
-        }
-        Path outfile = Files.createFile(Paths.get(tweetId + ".naf"));
-        Files.write(outfile, kaf.toString().getBytes(StandardCharsets.UTF_8));
-        System.err.println(">> Wrote naf document to " + outfile);
+  public static void generalToWFs(String fileName) throws IOException {
+    // the documents are written in order, so that they can be collected in
+    // a container
+    ConversionPipeline
+        .read(ConversionPipeline.elements(Paths.get(fileName), "tweet"))
+        .map(ConversionPipeline.getThreads(), TassFormat::tweetToWFs)
+        .run(document -> {
+          Path outfile = OutputFiles.writeDocument(Paths.get(document[0]),
+              document[1]);
+          System.err.println(">> Wrote naf document to " + outfile);
+        });
+  }
+
+  /**
+   * @return the name and content of the NAF document of the tweet
+   */
+  private static String[] tweetToWFs(Element tweet) {
+    String tweetId = tweet.getChildText("tweetid");
+    KAFDocument kaf = new KAFDocument(LANGUAGE, "v1.naf");
+    kaf.createPublic().publicId = tweetId;
+
+    String tweetContentString = tweet.getChildText("content");
+    List<List<Token>> segmentedSentences = StringUtils
+        .tokenizeSentence(tweetContentString, LANGUAGE);
+    for (List<Token> sentence : segmentedSentences) {
+      for (Token token : sentence) {
+        kaf.newWF(token.startOffset(), token.getTokenValue(), 1);
       }
-    } catch (JDOMException | IOException e) {
-      e.printStackTrace();
     }
+    return new String[] { tweetId + ".naf", kaf.toString() };
   }
 
   public static String nafToGeneralTest(Path dir) throws IOException {
-    // process one file
     StringBuilder sb = new StringBuilder();
-    if (Files.isRegularFile(dir) && dir.toString().endsWith("topic")) {
-      processNafToGeneralTest(dir, sb);
-    } // process one file
-    else {
-      // recursively process directories
-      try (DirectoryStream<Path> filesDir = Files.newDirectoryStream(dir)) {
-        for (Path file : filesDir) {
-          if (Files.isDirectory(file)) {
-            nafToGeneralTest(dir);
-          } else {
-            if (file.toString().endsWith("topic")) {
-              processNafToGeneralTest(file, sb);
-            }
-          }
-        }
-      }
+    if (DocumentArchive.isArchive(dir)) {
+      // every document of a container
+      ConversionPipeline.read(DocumentArchive.read(dir))
+          .map(ConversionPipeline.getThreads(),
+              document -> nafToGeneralTestLine(NAFReader.read(document,
+                  NAFReader.Layer.HEADER, NAFReader.Layer.TOPICS)))
+          .run(sb::append);
+      return sb.toString();
     }
+    // process one file or, recursively, every file of a directory
+    ConversionPipeline
+        .read(ConversionPipeline.files(dir,
+            file -> file.toString().endsWith("topic")))
+        .map(ConversionPipeline.getThreads(), TassFormat::nafToGeneralTestLine)
+        .run(sb::append);
     return sb.toString();
   }
 
   public static void processNafToGeneralTest(Path inputNAF, StringBuilder sb)
       throws IOException {
-    KAFDocument kaf = KAFDocument.createFromFile(inputNAF.toFile());
-    String tweetId = kaf.getPublic().publicId;
-    String polarity = kaf.getTopics().get(0).getTopicValue();
-    sb.append(tweetId).append("\t").append(polarity).append("\n");
+    sb.append(nafToGeneralTestLine(inputNAF));
+  }
+
+  private static String nafToGeneralTestLine(Path inputNAF)
+      throws IOException {
+    return nafToGeneralTestLine(NAFReader.read(inputNAF,
+        NAFReader.Layer.HEADER, NAFReader.Layer.TOPICS));
+  }
+
+  private static String nafToGeneralTestLine(NAFReader naf) {
+    String tweetId = naf.getPublicId();
+    String polarity = naf.getTopics().get(0);
+    return tweetId + "\t" + polarity + "\n";
   }
 
   public static void annotateGeneralTest(String inputFile, String model)
       throws IOException {
-    List<String> inputLines = com.google.common.io.Files
-        .readLines(new File(inputFile), Charset.forName("UTF-8"));
-    Properties properties = setDocProperties(model, LANGUAGE, "no");
-    StatisticalDocumentClassifier docClassifier = new StatisticalDocumentClassifier(
-        properties);
-    for (String line : inputLines) {
+    annotateGeneralTest(inputFile, model, ConversionPipeline.getThreads(),
+        DEFAULT_BATCH_SIZE);
+  }
+
+  /**
+   * Annotates the polarity of the tweets of a TASS test set in tabulated
+   * format, printing the tweet id and polarity of every tweet in input order.
+   * The model is loaded once and shared by several threads that classify the
+   * tweets in batches, each with its own classifier built from the model
+   * because classifiers are not thread safe. The throughput and the
+   * classification time of the batches are reported at the end.
+   * 
+   * @param inputFile
+   *          the test set
+   * @param model
+   *          the document classification model
+   * @param threads
+   *          the number of classification threads
+   * @param batchSize
+   *          the number of tweets classified at a time by each thread
+   * @throws IOException
+   *           if io problems
+   */
+  public static void annotateGeneralTest(String inputFile, String model,
+      int threads, int batchSize) throws IOException {
+    DocumentClassifierModel docModel;
+    try (InputStream in = new BufferedInputStream(
+        Files.newInputStream(Paths.get(model)))) {
+      docModel = new DocumentClassifierModel(in);
+    }
+    List<Long> batchTimes = new ArrayList<>();
+    long[] noTweets = new long[1];
+    long start = System.nanoTime();
+    ConversionPipeline
+        .read(ConversionPipeline.batches(
+            ConversionPipeline.lines(Paths.get(inputFile)), batchSize))
+        .mapPerThread(threads, () -> {
+          DocumentClassifierME docClassifier = new DocumentClassifierME(
+              docModel);
+          return (List<String> batch) -> classifyBatch(docClassifier, batch);
+        }).run(batch -> {
+          // one write per batch
+          System.out.print(batch.output);
+          batchTimes.add(batch.nanos);
+          noTweets[0] += batch.size;
+        });
+    double seconds = (System.nanoTime() - start) / 1e9;
+    System.err.println(String.format(
+        "-> Annotated %d tweets in %.2f s, %.0f tweets/s, with %d threads and batches of %d",
+        noTweets[0], seconds, noTweets[0] / seconds, threads, batchSize));
+    if (!batchTimes.isEmpty()) {
+      Collections.sort(batchTimes);
+      long total = 0;
+      for (long nanos : batchTimes) {
+        total += nanos;
+      }
+      System.err.println(String.format(
+          "-> Batch classification time: p50 %.1f ms, p95 %.1f ms, max %.1f ms; %.3f ms per tweet",
+          percentile(batchTimes, 0.50) / 1e6,
+          percentile(batchTimes, 0.95) / 1e6,
+          batchTimes.get(batchTimes.size() - 1) / 1e6,
+          total / 1e6 / noTweets[0]));
+    }
+  }
+
+  private static ClassifiedBatch classifyBatch(
+      DocumentClassifierME docClassifier, List<String> batch) {
+    long start = System.nanoTime();
+    StringBuilder sb = new StringBuilder(batch.size() * 32);
+    for (String line : batch) {
       String[] lineArray = line.split("\t");
       String tweetId = lineArray[0];
       String[] document = lineArray[2].split(" ");
-      String polarity = docClassifier.classify(document);
-      System.out.println(tweetId + "\t" + polarity);
+      String polarity = docClassifier
+          .getBestLabel(docClassifier.classifyProb(document));
+      sb.append(tweetId).append("\t").append(polarity).append("\n");
     }
+    return new ClassifiedBatch(sb.toString(), batch.size(),
+        System.nanoTime() - start);
+  }
+
+  private static long percentile(List<Long> sortedValues, double fraction) {
+    int index = (int) Math.ceil(fraction * sortedValues.size()) - 1;
+    return sortedValues.get(Math.max(0, index));
   }
 
-  private static Properties setDocProperties(String model, String language,
-      String clearFeatures) {
-    Properties oteProperties = new Properties();
-    oteProperties.setProperty("model", model);
-    oteProperties.setProperty("language", language);
-    oteProperties.setProperty("clearFeatures", clearFeatures);
-    return oteProperties;
+  private static class ClassifiedBatch {
+    private final String output;
+    private final int size;
+    private final long nanos;
+
+    ClassifiedBatch(String output, int size, long nanos) {
+      this.output = output;
+      this.size = size;
+      this.nanos = nanos;
+    }
   }
 }
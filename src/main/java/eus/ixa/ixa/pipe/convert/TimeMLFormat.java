@@ -2,9 +2,6 @@ package eus.ixa.ixa.pipe.convert;
 
 import java.io.IOException;
 import java.io.StringWriter;
-import java.nio.charset.StandardCharsets;
-import java.nio.file.DirectoryStream;
-import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.List;
@@ -34,7 +31,8 @@ public class TimeMLFormat {
   private TimeMLFormat() {
   }
 
-  private static void timeMLToBIO(Path fileName, String language) throws IOException {
+  private static Path timeMLToBIO(Path fileName, String language) throws IOException {
+    SymbolTable symbols = SymbolTable.getShared();
     // reading the TimeML xml file
     StringBuilder sb = new StringBuilder();
     SAXBuilder sax = new SAXBuilder();
@@ -73,9 +71,11 @@ public class TimeMLFormat {
             String timexText = timex3Pattern.matcher(textArray[i])
                 .replaceAll("$2").trim();
             String[] timexExpression = timexText.split("(maitena)+");
-            sb.append(timexExpression[0]).append("\t").append("B-").append(timexType).append("\n");
+            sb.append(timexExpression[0]).append("\t")
+                .append(symbols.getBegin(timexType)).append("\n");
             for (int j = 1; j < timexExpression.length; j++) {
-              sb.append(timexExpression[j]).append("\t").append("I-").append(timexType).append("\n");
+              sb.append(timexExpression[j]).append("\t")
+                  .append(symbols.getIn(timexType)).append("\n");
             }
           } else {
             sb.append(textArray[i]).append("\t").append("O").append("\n");
@@ -86,10 +86,8 @@ public class TimeMLFormat {
     } catch (JDOMException | IOException e) {
       e.printStackTrace();
     }
-    Path outfile = Files.createFile(Paths.get(fileName.toString() + ".conll02"));
-    Files.write(outfile,
-        sb.toString().getBytes(StandardCharsets.UTF_8));
-    System.err.println(">> Wrote conll02 document to " + outfile);
+    return OutputFiles
+        .write(Paths.get(fileName.toString() + ".conll02"), sb.toString());
   }
   
   private static String convertTimex(String line) {
@@ -119,44 +117,62 @@ public class TimeMLFormat {
   }
   
   public static void timeMLToCoNLL2002(Path dir, String language) throws IOException {
-    if (Files.isRegularFile(dir) && !dir.toString().endsWith("conll02")) {
-      timeMLToBIO(dir, language);
-    }
-    else {
-      // recursively process directories
-      try (DirectoryStream<Path> filesDir = Files.newDirectoryStream(dir)) {
-        for (Path file : filesDir) {
-          if (Files.isDirectory(file)) {
-            timeMLToCoNLL2002(dir, language);
-          } else {
-            if (!file.toString().endsWith("conll02")) {
-              timeMLToBIO(file, language);
-            }
+    // process one file or, recursively, every file of a directory
+    ConversionPipeline
+        .read(ConversionPipeline.files(dir,
+            file -> !OutputFiles.hasOutputExtension(file, ".conll02")))
+        .map(ConversionPipeline.getThreads(),
+            file -> timeMLToBIO(file, language))
+        .run(outfile -> System.err
+            .println(">> Wrote conll02 document to " + outfile));
+  }
+
+  /**
+   * Declares the reader of TimeML documents into raw NAF documents.
+   * 
+   * @param registry
+   *          the registry of conversions
+   */
+  static void registerConversions(ConversionRegistry registry) {
+    registry.registerReader("timeml", ConversionRegistry.RAW_NAF,
+        (Path file, String language) -> {
+          try {
+            return timeMLToRawKAF(file.toString());
+          } catch (JDOMException e) {
+            throw new IOException(e);
           }
-        }
-      }
-    }
+        });
   }
 
   public static String timeMLToRawNAF(String fileName, String language) {
-    KAFDocument kaf = new KAFDocument("en", "v1.naf");
-    SAXBuilder sax = new SAXBuilder();
     try {
-      Document doc = sax.build(fileName);
-      Element rootElement = doc.getRootElement();
-      // getting the Document Creation Time
-      Element dctElement = rootElement.getChild("DCT");
-      Element dctTimex = dctElement.getChild("TIMEX3");
-      String dctTimexValue = dctTimex.getAttributeValue("value");
-      kaf.createFileDesc().creationtime = dctTimexValue;
-      // getting the TEXT
-      Element textElement = rootElement.getChild("TEXT");
-      String words = textElement.getValue();
-      kaf.setRawText(words);
+      return timeMLToRawKAF(fileName).toString();
     } catch (JDOMException | IOException e) {
       e.printStackTrace();
+      return new KAFDocument("en", "v1.naf").toString();
     }
-    return kaf.toString();
+  }
+
+  /**
+   * @return the NAF document with the creation time and the raw text of a
+   *         TimeML document
+   */
+  private static KAFDocument timeMLToRawKAF(String fileName)
+      throws JDOMException, IOException {
+    KAFDocument kaf = new KAFDocument("en", "v1.naf");
+    SAXBuilder sax = new SAXBuilder();
+    Document doc = sax.build(fileName);
+    Element rootElement = doc.getRootElement();
+    // getting the Document Creation Time
+    Element dctElement = rootElement.getChild("DCT");
+    Element dctTimex = dctElement.getChild("TIMEX3");
+    String dctTimexValue = dctTimex.getAttributeValue("value");
+    kaf.createFileDesc().creationtime = dctTimexValue;
+    // getting the TEXT
+    Element textElement = rootElement.getChild("TEXT");
+    String words = textElement.getValue();
+    kaf.setRawText(words);
+    return kaf;
   }
   
 }
@@ -0,0 +1,383 @@
+/*
+ * Copyright 2018 Rodrigo Agerri
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package eus.ixa.ixa.pipe.convert;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Converts text files to UTF-8. The source charset is detected from a prefix
+ * of each file (byte order marks, UTF-16, UTF-8, Windows-1252, ISO-8859-15
+ * and ISO-8859-1) unless it is given. Files are streamed through a
+ * {@link CharsetDecoder} and a {@link CharsetEncoder} over file channels with
+ * buffers reused for the whole file; lowercasing, if required, is done in the
+ * same pass. As with the previous line based conversion, line terminators are
+ * normalized to \n and the output always ends with a newline.
+ *
+ * @author ragerri
+ * @version 2018-06-07
+ */
+public final class Transcoder {
+
+  public static final String UTF8_EXTENSION = ".utf8";
+  private static final Charset WINDOWS_1252 = Charset.forName("windows-1252");
+  private static final Charset ISO_8859_15 = Charset.forName("ISO-8859-15");
+  private static final int SAMPLE_SIZE = 64 * 1024;
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private final ByteBuffer inBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+  private final CharBuffer decoded = CharBuffer.allocate(BUFFER_SIZE);
+  private final CharBuffer normalized = CharBuffer.allocate(BUFFER_SIZE + 1);
+  private final ByteBuffer outBuffer = ByteBuffer
+      .allocateDirect(BUFFER_SIZE * 4);
+  private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+      .onMalformedInput(CodingErrorAction.REPLACE)
+      .onUnmappableCharacter(CodingErrorAction.REPLACE);
+  private boolean previousIsCR;
+  private boolean atStart;
+  private char lastChar;
+
+  /**
+   * Detects the charset of a file looking at its first bytes.
+   *
+   * @param file
+   *          the file
+   * @return the detected charset
+   * @throws IOException
+   *           if io problems
+   */
+  public static Charset detectCharset(Path file) throws IOException {
+    ByteBuffer sample = ByteBuffer.allocate(SAMPLE_SIZE);
+    try (FileChannel channel = FileChannel.open(file,
+        StandardOpenOption.READ)) {
+      while (sample.hasRemaining() && channel.read(sample) != -1) {
+        // fill the sample
+      }
+    }
+    sample.flip();
+    return detectCharset(sample, sample.limit() < SAMPLE_SIZE);
+  }
+
+  private static Charset detectCharset(ByteBuffer sample, boolean complete) {
+    int length = sample.limit();
+    if (length >= 3 && (sample.get(0) & 0xFF) == 0xEF
+        && (sample.get(1) & 0xFF) == 0xBB && (sample.get(2) & 0xFF) == 0xBF) {
+      return StandardCharsets.UTF_8;
+    }
+    if (length >= 2 && (sample.get(0) & 0xFF) == 0xFE
+        && (sample.get(1) & 0xFF) == 0xFF) {
+      return StandardCharsets.UTF_16BE;
+    }
+    if (length >= 2 && (sample.get(0) & 0xFF) == 0xFF
+        && (sample.get(1) & 0xFF) == 0xFE) {
+      return StandardCharsets.UTF_16LE;
+    }
+    // UTF-16 without BOM: most of the text has zeros in one of the bytes
+    int evenZeros = 0;
+    int oddZeros = 0;
+    for (int i = 0; i < length; i++) {
+      if (sample.get(i) == 0) {
+        if (i % 2 == 0) {
+          evenZeros++;
+        } else {
+          oddZeros++;
+        }
+      }
+    }
+    if (length >= 2 && evenZeros > length / 4 && oddZeros < length / 40) {
+      return StandardCharsets.UTF_16BE;
+    }
+    if (length >= 2 && oddZeros > length / 4 && evenZeros < length / 40) {
+      return StandardCharsets.UTF_16LE;
+    }
+    if (isUTF8(sample, complete)) {
+      return StandardCharsets.UTF_8;
+    }
+    boolean hasC1 = false;
+    boolean hasEuro = false;
+    for (int i = 0; i < length; i++) {
+      int b = sample.get(i) & 0xFF;
+      if (b >= 0x80 && b <= 0x9F) {
+        hasC1 = true;
+      } else if (b == 0xA4 && isNextToDigit(sample, i)) {
+        hasEuro = true;
+      }
+    }
+    // C1 controls are not used in text, they are printable in Windows-1252
+    if (hasC1) {
+      return WINDOWS_1252;
+    }
+    // the currency sign of Latin-1 is the euro sign in Latin-9
+    if (hasEuro) {
+      return ISO_8859_15;
+    }
+    return StandardCharsets.ISO_8859_1;
+  }
+
+  private static boolean isNextToDigit(ByteBuffer sample, int i) {
+    for (int j = Math.max(0, i - 2); j <= Math.min(sample.limit() - 1,
+        i + 2); j++) {
+      if (sample.get(j) >= '0' && sample.get(j) <= '9') {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static boolean isUTF8(ByteBuffer sample, boolean complete) {
+    CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+        .onMalformedInput(CodingErrorAction.REPORT)
+        .onUnmappableCharacter(CodingErrorAction.REPORT);
+    ByteBuffer bytes = sample.duplicate();
+    CharBuffer chars = CharBuffer.allocate(bytes.remaining());
+    CoderResult result = decoder.decode(bytes, chars, complete);
+    if (result.isError()) {
+      return false;
+    }
+    // a multibyte character can be cut at the end of the sample
+    return complete ? !decoder.flush(chars).isError()
+        : bytes.remaining() < 4;
+  }
+
+  /**
+   * Transcodes a file into UTF-8 writing it to a file with the .utf8
+   * extension.
+   *
+   * @param inputFile
+   *          the input file
+   * @param charset
+   *          the source charset, or null to detect it
+   * @param lowercase
+   *          whether to lowercase the text
+   * @return the output file
+   * @throws IOException
+   *           if io problems
+   */
+  public Path transcode(Path inputFile, Charset charset, boolean lowercase)
+      throws IOException {
+    Path outputFile = Paths
+        .get(inputFile.toRealPath().toString() + UTF8_EXTENSION);
+    if (!ConversionManifest.needsConversion(inputFile, outputFile)) {
+      return OutputFiles.getOutputPath(outputFile);
+    }
+    Charset sourceCharset = charset == null ? detectCharset(inputFile)
+        : charset;
+    try (FileChannel in = FileChannel.open(inputFile, StandardOpenOption.READ);
+        WritableByteChannel out = Channels
+            .newChannel(OutputFiles.newOutputStream(outputFile))) {
+      transcode(in, out, sourceCharset, lowercase);
+    }
+    ConversionManifest.converted(inputFile, outputFile);
+    outputFile = OutputFiles.getOutputPath(outputFile);
+    System.err.println("-> File converted from " + sourceCharset + " to "
+        + outputFile);
+    return outputFile;
+  }
+
+  private void transcode(FileChannel in, WritableByteChannel out,
+      Charset charset, boolean lowercase) throws IOException {
+    CharsetDecoder decoder = charset.newDecoder()
+        .onMalformedInput(CodingErrorAction.REPLACE)
+        .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    encoder.reset();
+    inBuffer.clear();
+    outBuffer.clear();
+    previousIsCR = false;
+    atStart = true;
+    lastChar = '\n';
+    boolean endOfInput = false;
+    while (!endOfInput) {
+      endOfInput = in.read(inBuffer) == -1;
+      inBuffer.flip();
+      CoderResult result;
+      do {
+        decoded.clear();
+        result = decoder.decode(inBuffer, decoded, endOfInput);
+        decoded.flip();
+        processAndWrite(out, lowercase);
+      } while (result.isOverflow());
+      inBuffer.compact();
+    }
+    decoded.clear();
+    decoder.flush(decoded);
+    decoded.flip();
+    processAndWrite(out, lowercase);
+    if (lastChar != '\n') {
+      decoded.clear();
+      decoded.put('\n').flip();
+      processAndWrite(out, false);
+    }
+    encode(out, CharBuffer.allocate(0), true);
+    encoder.flush(outBuffer);
+    writeOut(out);
+  }
+
+  /**
+   * Removes the byte order mark, normalizes line terminators and lowercases
+   * the decoded chars before encoding them.
+   */
+  private void processAndWrite(WritableByteChannel out, boolean lowercase)
+      throws IOException {
+    normalized.clear();
+    if (atStart && decoded.hasRemaining()) {
+      if (decoded.get(decoded.position()) == '\uFEFF') {
+        decoded.get();
+      }
+      atStart = false;
+    }
+    while (decoded.hasRemaining()) {
+      char c = decoded.get();
+      if (c == '\r') {
+        c = '\n';
+        previousIsCR = true;
+      } else if (c == '\n' && previousIsCR) {
+        previousIsCR = false;
+        continue;
+      } else {
+        previousIsCR = false;
+        if (lowercase) {
+          if (Character.isHighSurrogate(c) && decoded.hasRemaining()
+              && Character.isLowSurrogate(decoded.get(decoded.position()))) {
+            int codePoint = Character.toLowerCase(
+                Character.toCodePoint(c, decoded.get()));
+            normalized.put(Character.highSurrogate(codePoint));
+            c = Character.lowSurrogate(codePoint);
+          } else {
+            c = Character.toLowerCase(c);
+          }
+        }
+      }
+      normalized.put(c);
+      lastChar = c;
+    }
+    normalized.flip();
+    encode(out, normalized, false);
+  }
+
+  private void encode(WritableByteChannel out, CharBuffer chars,
+      boolean endOfInput)
+      throws IOException {
+    while (true) {
+      CoderResult result = encoder.encode(chars, outBuffer, endOfInput);
+      if (result.isError()) {
+        try {
+          result.throwException();
+        } catch (CharacterCodingException e) {
+          throw new IOException(e);
+        }
+      }
+      if (result.isOverflow()) {
+        writeOut(out);
+      } else {
+        // a trailing high surrogate is kept for the next call
+        return;
+      }
+    }
+  }
+
+  private void writeOut(WritableByteChannel out) throws IOException {
+    outBuffer.flip();
+    while (outBuffer.hasRemaining()) {
+      out.write(outBuffer);
+    }
+    outBuffer.clear();
+  }
+
+  /**
+   * Transcodes every file in a directory tree (or a single file) into UTF-8
+   * using several threads. Files with the .utf8 extension (possibly followed
+   * by a shard number or a compression extension) are skipped.
+   *
+   * @param dir
+   *          the file or directory
+   * @param charset
+   *          the source charset, or null to detect it for each file
+   * @param lowercase
+   *          whether to lowercase the text
+   * @param threads
+   *          the number of threads
+   * @throws IOException
+   *           if io problems, or if any file could not be converted once
+   *           all the others are
+   */
+  public static void transcodeTree(Path dir, final Charset charset,
+      final boolean lowercase, int threads) throws IOException {
+    List<Path> files;
+    try (Stream<Path> paths = Files.walk(dir)) {
+      files = paths.filter(Files::isRegularFile)
+          .filter(file -> !OutputFiles.hasOutputExtension(file, UTF8_EXTENSION))
+          .collect(Collectors.toList());
+    }
+    final ThreadLocal<Transcoder> transcoders = ThreadLocal
+        .withInitial(Transcoder::new);
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      List<Future<Path>> results = new ArrayList<>();
+      for (final Path file : files) {
+        results.add(executor.submit(
+            () -> transcoders.get().transcode(file, charset, lowercase)));
+      }
+      List<Throwable> failures = new ArrayList<>();
+      for (int i = 0; i < results.size(); i++) {
+        try {
+          results.get(i).get();
+        } catch (ExecutionException e) {
+          System.err.println("-> Failed to convert " + files.get(i) + ": "
+              + e.getCause());
+          failures.add(e.getCause());
+        }
+      }
+      if (!failures.isEmpty()) {
+        IOException e = new IOException("Failed to convert " + failures.size()
+            + " of " + files.size() + " files in " + dir, failures.get(0));
+        for (int i = 1; i < failures.size(); i++) {
+          e.addSuppressed(failures.get(i));
+        }
+        throw e;
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while converting " + dir);
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2018 Rodrigo Agerri
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package eus.ixa.ixa.pipe.convert;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ConversionManifestTest {
+
+  private Path dir;
+  private Path manifest;
+  private Path input;
+
+  @Before
+  public void setUp() throws IOException {
+    dir = Files.createTempDirectory("manifest");
+    manifest = dir.resolve("manifest.tsv");
+    input = dir.resolve("doc.naf");
+    Files.write(input, Arrays.asList("<NAF/>"), StandardCharsets.UTF_8);
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    ConversionManifest.close();
+    try (Stream<Path> files = Files.walk(dir)) {
+      for (Path file : files.sorted(Comparator.reverseOrder())
+          .collect(Collectors.toList())) {
+        Files.delete(file);
+      }
+    }
+  }
+
+  /**
+   * Converts the input in a run with the given options, if needed.
+   *
+   * @return true if the input was converted
+   */
+  private boolean run(String options, Path output) throws IOException {
+    ConversionManifest.open(manifest, options, false);
+    try {
+      if (!ConversionManifest.needsConversion(input, output)) {
+        return false;
+      }
+      OutputFiles.write(output, options + "\n");
+      ConversionManifest.converted(input, output);
+      return true;
+    } finally {
+      ConversionManifest.close();
+    }
+  }
+
+  @Test
+  public void testUnchangedInputIsSkipped() throws IOException {
+    Path output = dir.resolve("doc.naf.conll02");
+    assertTrue(run("nafToCoNLL02", output));
+    assertFalse(run("nafToCoNLL02", output));
+  }
+
+  @Test
+  public void testConversionsSharingAManifest() throws IOException {
+    Path conll02 = dir.resolve("doc.naf.conll02");
+    Path conll03 = dir.resolve("doc.naf.conll03");
+    assertTrue(run("nafToCoNLL02", conll02));
+    assertTrue(run("nafToCoNLL03", conll03));
+    // neither conversion removes the output of the other
+    assertTrue(Files.exists(conll02));
+    assertTrue(Files.exists(conll03));
+    assertFalse(run("nafToCoNLL02", conll02));
+    assertFalse(run("nafToCoNLL03", conll03));
+  }
+
+  @Test
+  public void testIsManifest() throws IOException {
+    assertFalse(ConversionManifest.isManifest(manifest));
+    ConversionManifest.open(manifest, "nafToCoNLL02", false);
+    assertTrue(ConversionManifest.isManifest(manifest));
+    assertTrue(ConversionManifest
+        .isManifest(dir.resolve("sub").resolve("..").resolve("manifest.tsv")));
+    assertFalse(ConversionManifest.isManifest(input));
+  }
+
+  @Test
+  public void testChangedOptionsConvertAgain() throws IOException {
+    Path output = dir.resolve("doc.naf.conll02");
+    assertTrue(run("nafToCoNLL02", output));
+    assertTrue(run("nafToCoNLL02 --lowercase", output));
+    assertFalse(run("nafToCoNLL02 --lowercase", output));
+  }
+}
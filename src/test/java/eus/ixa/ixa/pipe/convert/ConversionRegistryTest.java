@@ -0,0 +1,136 @@
+/*
+ * Copyright 2018 Rodrigo Agerri
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package eus.ixa.ixa.pipe.convert;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.TreeSet;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class ConversionRegistryTest {
+
+  private ConversionRegistry registry;
+
+  @Before
+  public void setUp() {
+    registry = new ConversionRegistry();
+    // a -> raw -> doc -> out, and a shortcut from raw to out through tagged
+    registry.registerReader("a", "raw",
+        (Path file, String language) -> "raw(" + file.getFileName() + ")");
+    registry.registerTransform("raw", "doc",
+        (String raw, String language) -> "doc(" + raw + ")");
+    registry.registerTransform("doc", "tagged",
+        (String doc, String language) -> "tagged(" + doc + ")");
+    registry.registerTransform("raw", "tagged",
+        (String raw, String language) -> language + "(" + raw + ")");
+    registry.registerWriter("tagged", "out",
+        (String tagged, String language) -> "out(" + tagged + ")");
+    registry.registerWriter("raw", "text",
+        (String raw, String language) -> raw);
+  }
+
+  @Test
+  public void testFormats() {
+    assertEquals(new TreeSet<>(Arrays.asList("a")),
+        registry.getInputFormats());
+    assertEquals(new TreeSet<>(Arrays.asList("out", "text")),
+        registry.getOutputFormats());
+  }
+
+  @Test
+  public void testShortestConversion() throws IOException {
+    assertEquals("a -> raw -> tagged -> out", registry.describe("a", "out"));
+    assertEquals("out(eu(raw(in.txt)))",
+        registry.convert("a", "out", Paths.get("in.txt"), "eu"));
+  }
+
+  @Test
+  public void testConversionWithoutTransforms() throws IOException {
+    assertEquals("a -> raw -> text", registry.describe("a", "text"));
+    assertEquals("raw(in.txt)",
+        registry.convert("a", "text", Paths.get("in.txt"), "en"));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testNoConversion() {
+    registry.describe("out", "a");
+  }
+
+  @Test
+  public void testStepErrorsArePropagated() {
+    IOException error = new IOException("malformed input");
+    registry.registerReader("bad", "raw", (Path file, String language) -> {
+      throw error;
+    });
+    try {
+      registry.convert("bad", "text", Paths.get("in.txt"), "en");
+      fail("the reader error must not be dropped");
+    } catch (IOException e) {
+      assertSame(error, e);
+    }
+  }
+
+  @Test
+  public void testAbsa2015RoundTrip() throws IOException {
+    String output = roundTrip("absa2015", "<Reviews><Review rid=\"1\">"
+        + "<sentences><sentence id=\"1:0\">"
+        + "<text>The pizza was great .</text><Opinions>"
+        + "<Opinion target=\"pizza\" category=\"FOOD#QUALITY\" "
+        + "polarity=\"positive\" from=\"4\" to=\"9\"/>"
+        + "</Opinions></sentence></sentences></Review></Reviews>");
+    assertTrue(output, output.contains("target=\"pizza\""));
+    assertTrue(output, output.contains("category=\"FOOD#QUALITY\""));
+    assertTrue(output, output.contains("from=\"4\" to=\"9\""));
+  }
+
+  @Test
+  public void testAbsa2014RoundTrip() throws IOException {
+    String output = roundTrip("absa2014", "<sentences><sentence id=\"1\">"
+        + "<text>The pizza was great .</text><aspectTerms>"
+        + "<aspectTerm term=\"pizza\" polarity=\"positive\" "
+        + "from=\"4\" to=\"9\"/>"
+        + "</aspectTerms></sentence></sentences>");
+    assertTrue(output, output.contains("term=\"pizza\""));
+    assertTrue(output, output.contains("from=\"4\" to=\"9\""));
+  }
+
+  /**
+   * Reads an ABSA dataset into NAF and writes it back in the same format.
+   */
+  private static String roundTrip(String format, String dataset)
+      throws IOException {
+    Path input = Files.createTempFile("absa", ".xml");
+    try {
+      Files.write(input, dataset.getBytes(StandardCharsets.UTF_8));
+      return ConversionRegistry.createDefault().convert(format, format, input,
+          "en");
+    } finally {
+      Files.delete(input);
+    }
+  }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright 2018 Rodrigo Agerri
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package eus.ixa.ixa.pipe.convert;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class ExternalDictionaryBuilderTest {
+
+  private static final String[][] ENTRIES = { { "walks", "walk", "VBZ" },
+      { "the", "the", "DT" }, { "walks", "walk", "NNS" },
+      { "dogs", "dog", "NNS" }, { "a", "a", "DT" }, { "ran", "run", "VBD" },
+      { "the", "the", "NNP" }, { "cat", "cat", "NN" },
+      { "walks", "walk", "VB" }, { "zebra", "zebra", "NN" } };
+
+  private static final List<String> MONOSEMIC = Arrays.asList("a\ta\tDT",
+      "cat\tcat\tNN", "dogs\tdog\tNNS", "ran\trun\tVBD", "zebra\tzebra\tNN");
+
+  private static List<String> monosemic(int runSize) throws IOException {
+    List<String> entries = new ArrayList<>();
+    try (ExternalDictionaryBuilder builder = new ExternalDictionaryBuilder(
+        runSize)) {
+      for (String[] entry : ENTRIES) {
+        builder.add(entry[0], entry[1], entry[2]);
+      }
+      builder.forEachMonosemic((word, lemma, postag) -> entries
+          .add(word + "\t" + lemma + "\t" + postag));
+    }
+    return entries;
+  }
+
+  @Test
+  public void testInMemory() throws IOException {
+    assertEquals(MONOSEMIC,
+        monosemic(ExternalDictionaryBuilder.DEFAULT_RUN_SIZE));
+  }
+
+  @Test
+  public void testMergedRuns() throws IOException {
+    // polysemic words split across runs, and a last partial run
+    for (int runSize = 1; runSize <= ENTRIES.length; runSize++) {
+      assertEquals("run size " + runSize, MONOSEMIC, monosemic(runSize));
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testNonPositiveRunSize() {
+    new ExternalDictionaryBuilder(0);
+  }
+}
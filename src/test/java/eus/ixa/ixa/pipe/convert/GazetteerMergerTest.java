@@ -0,0 +1,116 @@
+/*
+ * Copyright 2018 Rodrigo Agerri
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package eus.ixa.ixa.pipe.convert;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import eus.ixa.ixa.pipe.convert.GazetteerMerger.ConflictPolicy;
+
+public class GazetteerMergerTest {
+
+  private Path dir;
+  private Path gazetteers;
+
+  @Before
+  public void setUp() throws IOException {
+    dir = Files.createTempDirectory("gazetteers");
+    gazetteers = Files.createDirectory(dir.resolve("input"));
+    Files.write(gazetteers.resolve("a.txt"),
+        Arrays.asList("Paris\tLOC", "Jordan\tPER", "Ebro\tLOC"),
+        StandardCharsets.UTF_8);
+    Files.write(gazetteers.resolve("b.txt"), Arrays.asList("paris\tLOC",
+        "jordan\tLOC", "malformed line", "Jordan\tLOC", "ebro\tLOC\textra"),
+        StandardCharsets.UTF_8);
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    try (Stream<Path> files = Files.walk(dir)) {
+      for (Path file : files.sorted(Comparator.reverseOrder())
+          .collect(Collectors.toList())) {
+        Files.delete(file);
+      }
+    }
+  }
+
+  private List<String> mergeConflicts(ConflictPolicy policy)
+      throws IOException {
+    Path output = dir.resolve("merged-" + policy + ".ser.gz");
+    GazetteerMerger.merge(Collections.singletonList(gazetteers), output,
+        policy);
+    return Files.readAllLines(dir.resolve(output.getFileName() + ".conflicts"),
+        StandardCharsets.UTF_8);
+  }
+
+  @Test
+  public void testFirstPolicy() throws IOException {
+    assertEquals(Arrays.asList("jordan\tPER:1,LOC:2\tPER"),
+        mergeConflicts(ConflictPolicy.FIRST));
+  }
+
+  @Test
+  public void testMajorityPolicy() throws IOException {
+    assertEquals(Arrays.asList("jordan\tPER:1,LOC:2\tLOC"),
+        mergeConflicts(ConflictPolicy.MAJORITY));
+  }
+
+  @Test
+  public void testAllPolicy() throws IOException {
+    assertEquals(Arrays.asList("jordan\tPER:1,LOC:2\tPER|LOC"),
+        mergeConflicts(ConflictPolicy.ALL));
+  }
+
+  @Test
+  public void testMergedGazetteer() throws IOException {
+    Path output = dir.resolve("merged.ser.gz");
+    GazetteerMerger.merge(Collections.singletonList(gazetteers), output,
+        ConflictPolicy.FIRST);
+    assertEquals(Arrays.asList("ebro\tLOC", "jordan\tPER", "paris\tLOC"),
+        Files.readAllLines(output, StandardCharsets.UTF_8));
+  }
+
+  @Test(expected = IOException.class)
+  public void testMergedGazetteerIsNotOverwritten() throws IOException {
+    Path output = dir.resolve("merged.ser.gz");
+    Files.createFile(output);
+    GazetteerMerger.merge(Collections.singletonList(gazetteers), output,
+        ConflictPolicy.FIRST);
+  }
+
+  @Test(expected = IOException.class)
+  public void testConflictsReportIsNotOverwritten() throws IOException {
+    Path output = dir.resolve("merged.ser.gz");
+    Files.createFile(dir.resolve("merged.ser.gz.conflicts"));
+    GazetteerMerger.merge(Collections.singletonList(gazetteers), output,
+        ConflictPolicy.FIRST);
+  }
+}
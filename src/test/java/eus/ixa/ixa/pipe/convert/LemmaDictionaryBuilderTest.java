@@ -0,0 +1,101 @@
+/*
+ * Copyright 2018 Rodrigo Agerri
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package eus.ixa.ixa.pipe.convert;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.junit.Test;
+
+public class LemmaDictionaryBuilderTest {
+
+  private static final String[] LINES = { "walks\twalk\tVBZ",
+      "the\tthe\tDT", "walks\twalk\tNNS", "Walks\tWalks\tNNP",
+      "ran\trun\tVBD", "walks\twalked\tVBZ", "w\tw\tNN",
+      "\u0130zmir\tIzmir\tNNP", "walk\twalk\tVB" };
+
+  private static Map<List<String>, String> build(String... lines) {
+    LemmaDictionaryBuilder builder = new LemmaDictionaryBuilder();
+    for (String line : lines) {
+      assertTrue(line, builder.add(line));
+    }
+    assertEquals(lines.length, builder.size());
+    return builder.build();
+  }
+
+  private static List<String> key(String word, String postag) {
+    return Arrays.asList(word, postag);
+  }
+
+  @Test
+  public void testSortedByFormAndPostag() {
+    List<List<String>> keys = new ArrayList<>(build(LINES).keySet());
+    assertEquals(Arrays.asList(key("Izmir", "NNP"), key("Walks", "NNP"),
+        key("ran", "VBD"), key("the", "DT"), key("w", "NN"),
+        key("walk", "VB"), key("walks", "NNS"), key("walks", "VBZ")), keys);
+  }
+
+  @Test
+  public void testLastDuplicateIsKept() {
+    Map<List<String>, String> dictionary = build(LINES);
+    assertEquals(8, dictionary.size());
+    assertEquals("walked", dictionary.get(key("walks", "VBZ")));
+    assertEquals("walk", dictionary.get(key("walks", "NNS")));
+  }
+
+  @Test
+  public void testLookup() {
+    Map<List<String>, String> dictionary = build(LINES);
+    assertEquals("Izmir", dictionary.get(key("Izmir", "NNP")));
+    assertEquals("run", dictionary.get(key("ran", "VBD")));
+    assertNull(dictionary.get(key("ran", "VBN")));
+    assertNull(dictionary.get(key("wal", "VB")));
+    assertFalse(dictionary.containsKey(key("\u0130zmir", "NNP")));
+  }
+
+  @Test
+  public void testSameAsSortedMap() {
+    Map<List<String>, String> expected = new TreeMap<>((a, b) -> {
+      int cmp = a.get(0).compareTo(b.get(0));
+      return cmp != 0 ? cmp : a.get(1).compareTo(b.get(1));
+    });
+    for (String line : LINES) {
+      String[] fields = line.split("\t");
+      expected.put(key(fields[0].replace('\u0130', 'I'), fields[2]), fields[1]);
+    }
+    assertEquals(new ArrayList<>(expected.entrySet()),
+        new ArrayList<>(build(LINES).entrySet()));
+  }
+
+  @Test
+  public void testMalformedLines() {
+    LemmaDictionaryBuilder builder = new LemmaDictionaryBuilder();
+    assertFalse(builder.add("walks\twalk"));
+    assertFalse(builder.add("walks\twalk\t"));
+    assertFalse(builder.add("walks\twalk\tVBZ\textra"));
+    assertTrue(builder.add("walks\twalk\tVBZ\t\t"));
+    assertEquals(1, builder.size());
+  }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright 2018 Rodrigo Agerri
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package eus.ixa.ixa.pipe.convert;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import eus.ixa.ixa.pipe.convert.MarkytFormat.EntityGroups;
+import eus.ixa.ixa.pipe.convert.MarkytFormat.MarkytEntity;
+
+public class MarkytFormatTest {
+
+  private Path entitiesFile;
+
+  @Before
+  public void setUp() throws IOException {
+    entitiesFile = Files.createTempFile("markyt", ".tsv");
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    Files.deleteIfExists(entitiesFile);
+  }
+
+  private static String entity(String docId, int from, int to) {
+    return docId + "\t1\tA\t" + from + ":" + to + "\tword\tSHORT";
+  }
+
+  private static List<String> toStrings(List<MarkytEntity> entities) {
+    List<String> strings = new ArrayList<>();
+    for (MarkytEntity entity : entities) {
+      strings.add(entity.toString());
+    }
+    return strings;
+  }
+
+  private EntityGroups groups(String... lines) throws IOException {
+    Files.write(entitiesFile, Arrays.asList(lines), StandardCharsets.UTF_8);
+    return new EntityGroups(entitiesFile);
+  }
+
+  @Test
+  public void testGroupsInDocumentOrder() throws IOException {
+    try (EntityGroups groups = groups(entity("1", 0, 4), entity("1", 5, 9),
+        "", entity("2", 0, 3))) {
+      assertEquals(Arrays.asList("1#A#0#4#SHORT", "1#A#5#9#SHORT"),
+          toStrings(groups.get("1")));
+      assertEquals(Arrays.asList("2#A#0#3#SHORT"),
+          toStrings(groups.get("2")));
+      assertEquals(0, groups.countRemaining());
+    }
+  }
+
+  @Test
+  public void testGroupsAheadOfTheirDocumentAreMerged() throws IOException {
+    try (EntityGroups groups = groups(entity("2", 0, 3), entity("3", 1, 2),
+        entity("2", 4, 6), entity("1", 0, 4))) {
+      assertEquals(Arrays.asList("1#A#0#4#SHORT"),
+          toStrings(groups.get("1")));
+      assertEquals(Arrays.asList("2#A#0#3#SHORT", "2#A#4#6#SHORT"),
+          toStrings(groups.get("2")));
+      assertTrue(groups.get("4").isEmpty());
+      // the entities of document 3 were never requested
+      assertEquals(1, groups.countRemaining());
+    }
+  }
+
+  @Test
+  public void testLateEntitiesAreRejected() throws IOException {
+    try (EntityGroups groups = groups(entity("1", 0, 4), entity("2", 0, 3),
+        entity("1", 5, 9))) {
+      assertEquals(1, groups.get("1").size());
+      assertEquals(1, groups.get("2").size());
+      try {
+        groups.countRemaining();
+        fail("entities of a converted document must not be dropped");
+      } catch (IOException e) {
+        assertTrue(e.getMessage().contains("document 1"));
+      }
+    }
+  }
+
+  @Test
+  public void testLateEntitiesFoundWhileSearchingAreRejected()
+      throws IOException {
+    try (EntityGroups groups = groups(entity("1", 0, 4), entity("1", 5, 9),
+        entity("2", 0, 3), entity("1", 10, 12), entity("3", 0, 1))) {
+      assertEquals(2, groups.get("1").size());
+      try {
+        groups.get("3");
+        fail("entities of a converted document must not be dropped");
+      } catch (IOException e) {
+        assertTrue(e.getMessage().contains("document 1"));
+      }
+    }
+  }
+}
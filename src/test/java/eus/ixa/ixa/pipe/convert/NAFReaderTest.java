@@ -0,0 +1,82 @@
+/*
+ * Copyright 2018 Rodrigo Agerri
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package eus.ixa.ixa.pipe.convert;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import javax.xml.stream.XMLStreamException;
+
+import org.junit.Test;
+
+import eus.ixa.ixa.pipe.convert.NAFReader.Layer;
+
+public class NAFReaderTest {
+
+  private static final String NAF = "<?xml version=\"1.0\"?>\n"
+      + "<NAF xml:lang=\"en\" version=\"v1.naf\">\n"
+      + "<nafHeader><public publicId=\"doc1\"/></nafHeader>\n"
+      + "<text><wf id=\"w1\" sent=\"1\">John</wf>"
+      + "<wf id=\"w2\" sent=\"1\">runs</wf></text>\n"
+      + "<terms><term id=\"t1\" lemma=\"John\" morphofeat=\"NNP\">"
+      + "<span><target id=\"w1\"/></span></term>"
+      + "<term id=\"t2\" lemma=\"run\" morphofeat=\"VBZ\">"
+      + "<span><target id=\"w2\"/></span></term></terms>\n"
+      + "<entities><entity id=\"e1\" type=\"PER\"><references><span>"
+      + "<target id=\"t1\"/></span></references></entity></entities>\n"
+      + "</NAF>\n";
+
+  private static NAFReader read(String document, Layer... layers)
+      throws XMLStreamException {
+    return NAFReader.read(
+        new ByteArrayInputStream(document.getBytes(StandardCharsets.UTF_8)),
+        layers);
+  }
+
+  private static void assertLayers(NAFReader naf) {
+    assertEquals("doc1", naf.getPublicId());
+    assertEquals(2, naf.getTerms().size());
+    assertEquals("w1", naf.getTerms().get(0).getWordForms().get(0).getId());
+    assertEquals("John", naf.getTerms().get(0).getForm());
+    assertEquals("t2", naf.getTerms().get(1).getId());
+    assertEquals("run", naf.getTerms().get(1).getLemma());
+    assertEquals(1, naf.getEntities().size());
+    assertEquals("e1", naf.getEntities().get(0).getId());
+    assertEquals(Arrays.asList("t1"), naf.getEntities().get(0).getTermIds());
+  }
+
+  @Test
+  public void testNAF() throws XMLStreamException {
+    assertLayers(read(NAF, Layer.HEADER, Layer.TERMS, Layer.ENTITIES));
+  }
+
+  @Test
+  public void testKAF() throws XMLStreamException {
+    String kaf = NAF.replace("NAF ", "KAF ").replace("</NAF>", "</KAF>")
+        .replace("nafHeader", "kafHeader").replace("wf id=", "wf wid=")
+        .replace("term id=", "term tid=").replace("entity id=", "entity eid=");
+    assertLayers(read(kaf, Layer.HEADER, Layer.TERMS, Layer.ENTITIES));
+  }
+
+  @Test(expected = XMLStreamException.class)
+  public void testUnknownRoot() throws XMLStreamException {
+    read(NAF.replace("NAF", "TEI"), Layer.TERMS);
+  }
+}
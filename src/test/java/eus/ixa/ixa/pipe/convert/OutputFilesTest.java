@@ -0,0 +1,190 @@
+/*
+ * Copyright 2018 Rodrigo Agerri
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package eus.ixa.ixa.pipe.convert;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import eus.ixa.ixa.pipe.convert.OutputFiles.Compression;
+import eus.ixa.ixa.pipe.convert.OutputFiles.Records;
+
+public class OutputFilesTest {
+
+  private Path dir;
+
+  @Before
+  public void setUp() throws IOException {
+    dir = Files.createTempDirectory("output-files");
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    OutputFiles.configure(Compression.NONE, 0, 0, Records.LINE);
+    try (Stream<Path> files = Files.walk(dir)) {
+      for (Path file : files.sorted(Comparator.reverseOrder())
+          .collect(Collectors.toList())) {
+        Files.delete(file);
+      }
+    }
+  }
+
+  private List<String> listFiles() throws IOException {
+    try (Stream<Path> files = Files.list(dir)) {
+      return files.map(file -> file.getFileName().toString()).sorted()
+          .collect(Collectors.toList());
+    }
+  }
+
+  private String read(String name) throws IOException {
+    try (InputStream in = name.endsWith(".gz")
+        ? new GZIPInputStream(Files.newInputStream(dir.resolve(name)))
+        : Files.newInputStream(dir.resolve(name))) {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      byte[] buffer = new byte[8192];
+      int n;
+      while ((n = in.read(buffer)) != -1) {
+        bytes.write(buffer, 0, n);
+      }
+      return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+    }
+  }
+
+  @Test
+  public void testUnsharded() throws IOException {
+    Path written = OutputFiles.write(dir.resolve("corpus.txt"), "a\nb\n");
+    assertEquals(dir.resolve("corpus.txt"), written);
+    assertEquals(Arrays.asList("corpus.txt"), listFiles());
+    assertEquals("a\nb\n", read("corpus.txt"));
+  }
+
+  @Test
+  public void testShardsByLines() throws IOException {
+    OutputFiles.configure(Compression.NONE, 0, 2, Records.LINE);
+    assertTrue(OutputFiles.isSharded());
+    Path written = OutputFiles.write(dir.resolve("corpus.txt"),
+        "1\n2\n3\n4\n5\n");
+    assertEquals(dir.resolve("corpus.txt.00000"), written);
+    // no empty shard after the last full one
+    assertEquals(Arrays.asList("corpus.txt.00000", "corpus.txt.00001",
+        "corpus.txt.00002"), listFiles());
+    assertEquals("1\n2\n", read("corpus.txt.00000"));
+    assertEquals("3\n4\n", read("corpus.txt.00001"));
+    assertEquals("5\n", read("corpus.txt.00002"));
+  }
+
+  @Test
+  public void testShardsBySentences() throws IOException {
+    OutputFiles.configure(Compression.NONE, 6, 0, Records.SENTENCE);
+    OutputFiles.write(dir.resolve("corpus.conll02"),
+        "a B-LOC\nb O\n\nc O\n\nd O\ne O\n\n");
+    // a sentence is never split, even when longer than a shard
+    assertEquals(Arrays.asList("corpus.conll02.00000", "corpus.conll02.00001"),
+        listFiles());
+    assertEquals("a B-LOC\nb O\n\n", read("corpus.conll02.00000"));
+    assertEquals("c O\n\nd O\ne O\n\n", read("corpus.conll02.00001"));
+  }
+
+  @Test
+  public void testCompressedShards() throws IOException {
+    OutputFiles.configure(Compression.GZIP, 0, 1000, Records.LINE);
+    StringBuilder content = new StringBuilder();
+    try (OutputStream out = OutputFiles
+        .newOutputStream(dir.resolve("corpus.txt"))) {
+      for (int i = 0; i < 2500; i++) {
+        String line = "line " + i + "\n";
+        content.append(line);
+        byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+        if (i % 2 == 0) {
+          out.write(bytes);
+        } else {
+          for (byte b : bytes) {
+            out.write(b);
+          }
+        }
+      }
+    }
+    List<String> files = listFiles();
+    assertEquals(Arrays.asList("corpus.txt.00000.gz", "corpus.txt.00001.gz",
+        "corpus.txt.00002.gz"), files);
+    StringBuilder written = new StringBuilder();
+    for (String file : files) {
+      written.append(read(file));
+    }
+    assertEquals(content.toString(), written.toString());
+    assertEquals(500, read("corpus.txt.00002.gz").split("\n").length);
+  }
+
+  @Test
+  public void testDocumentsAreNotSharded() throws IOException {
+    OutputFiles.configure(Compression.GZIP, 0, 1, Records.LINE);
+    Path written = OutputFiles.writeDocument(dir.resolve("doc.naf"),
+        "<NAF>\n</NAF>\n");
+    assertEquals(dir.resolve("doc.naf.gz"), written);
+    assertEquals("<NAF>\n</NAF>\n", read("doc.naf.gz"));
+  }
+
+  @Test(expected = IOException.class)
+  public void testNotOverwritten() throws IOException {
+    OutputFiles.configure(Compression.NONE, 0, 2, Records.LINE);
+    Files.createFile(dir.resolve("corpus.txt.00000"));
+    OutputFiles.write(dir.resolve("corpus.txt"), "1\n");
+  }
+
+  @Test
+  public void testDelete() throws IOException {
+    OutputFiles.configure(Compression.GZIP, 0, 1, Records.LINE);
+    OutputFiles.write(dir.resolve("corpus.txt"), "1\n2\n3\n");
+    assertEquals(3, listFiles().size());
+    OutputFiles.delete(dir.resolve("corpus.txt"));
+    assertEquals(new ArrayList<String>(), listFiles());
+  }
+
+  @Test
+  public void testOutputExtension() {
+    for (String name : Arrays.asList("corpus.clean", "corpus.clean.gz",
+        "corpus.clean.00001", "corpus.clean.00001.gz", "dir/corpus.clean")) {
+      assertTrue(name,
+          OutputFiles.hasOutputExtension(Paths.get(name), ".clean"));
+    }
+    for (String name : Arrays.asList("corpus.clean.txt", "corpus.cleaned",
+        "corpus.clean.001", "corpus.clean/file")) {
+      assertFalse(name,
+          OutputFiles.hasOutputExtension(Paths.get(name), ".clean"));
+    }
+  }
+}
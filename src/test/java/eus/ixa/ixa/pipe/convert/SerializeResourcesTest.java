@@ -0,0 +1,119 @@
+/*
+ * Copyright 2018 Rodrigo Agerri
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package eus.ixa.ixa.pipe.convert;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class SerializeResourcesTest {
+
+  /**
+   * @return the path and the prefixes of the columns of a word
+   */
+  private static String resolve(String columns, SymbolTable prefixes) {
+    String[] fields = columns.split(" ");
+    StringBuilder sb = new StringBuilder(fields[0]);
+    for (int i = 1; i < fields.length; i++) {
+      sb.append(' ').append(prefixes.getSymbol(Integer.parseInt(fields[i])));
+    }
+    return sb.toString();
+  }
+
+  @Test
+  public void testPrefixColumns() {
+    Map<String, String> clusters = new HashMap<>();
+    clusters.put("house", "0110");
+    clusters.put("home", "0110");
+    clusters.put("the", "01");
+    clusters.put("run", "1110010");
+    SymbolTable prefixes = new SymbolTable();
+
+    int noClusters = SerializeResources.addPrefixColumns(clusters,
+        new int[] { 2, 4 }, prefixes);
+
+    assertEquals(3, noClusters);
+    assertEquals(4, clusters.size());
+    assertEquals("0110 01 0110", resolve(clusters.get("house"), prefixes));
+    assertEquals("01 01 01", resolve(clusters.get("the"), prefixes));
+    assertEquals("1110010 11 1110", resolve(clusters.get("run"), prefixes));
+    // the columns are shared by the words of a cluster
+    assertSame(clusters.get("house"), clusters.get("home"));
+    // every distinct prefix is interned once
+    assertEquals(4, prefixes.size());
+    assertEquals(clusters.get("house").split(" ")[1],
+        clusters.get("the").split(" ")[1]);
+    // the prefixes are numbered in sorted order
+    assertEquals("0110 0 1", clusters.get("house"));
+    assertEquals("01 0 0", clusters.get("the"));
+    assertEquals("1110010 2 3", clusters.get("run"));
+  }
+
+  @Test
+  public void testPrefixIdsDoNotDependOnWordOrder() {
+    Map<String, String> clusters = new LinkedHashMap<>();
+    clusters.put("run", "1110010");
+    clusters.put("the", "01");
+    Map<String, String> reversed = new LinkedHashMap<>();
+    reversed.put("the", "01");
+    reversed.put("run", "1110010");
+
+    SerializeResources.addPrefixColumns(clusters, new int[] { 2, 4 },
+        new SymbolTable());
+    SerializeResources.addPrefixColumns(reversed, new int[] { 2, 4 },
+        new SymbolTable());
+
+    assertEquals(clusters, reversed);
+  }
+
+  @Test
+  public void testPrefixIdTable() throws IOException {
+    Map<String, String> clusters = new HashMap<>();
+    clusters.put("house", "0110");
+    clusters.put("run", "1110010");
+    SymbolTable prefixes = new SymbolTable();
+    SerializeResources.addPrefixColumns(clusters, new int[] { 2, 4 },
+        prefixes);
+    Path dir = Files.createTempDirectory("prefixes");
+    Path ids = dir.resolve("clusters" + SerializeResources.PREFIX_IDS);
+    try {
+      assertEquals(ids, SerializeResources.writePrefixIds(ids, prefixes));
+      assertEquals(Arrays.asList("0\t01", "1\t0110", "2\t11", "3\t1110"),
+          Files.readAllLines(ids, StandardCharsets.UTF_8));
+    } finally {
+      Files.deleteIfExists(ids);
+      Files.delete(dir);
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testNonPositivePrefixLength() throws IOException {
+    SerializeResources.serializeBrownClusterPrefixes(Paths.get("clusters"),
+        false, new int[] { 4, 0 }, SerializeResources.DEFAULT_FREQUENCY_CUTOFF);
+  }
+}